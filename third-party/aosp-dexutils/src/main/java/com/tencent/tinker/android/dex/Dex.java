@@ -33,7 +33,9 @@ import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -64,6 +66,13 @@ public final class Dex {
     private int nextSectionStart = 0;
     private byte[] signature = null;
 
+    /**
+     * Lookup indexes built on demand, they are immutable once published, so a racing
+     * thread at worst builds the same index again.
+     */
+    private volatile SymbolIndex symbolIndex = null;
+    private volatile int[] classDefIndexesOfTypes = null;
+
     /**
      * Creates a new dex that reads from {@code data}. It is an error to modify
      * {@code data} after using it to create a dex buffer.
@@ -387,11 +396,33 @@ public final class Dex {
         return data.getInt(position);  // nameIndex
     }
 
+    /**
+     * @return index of {@code s} in string ids, or {@code (-(insertion point) - 1)} if it doesn't
+     * exist, the same as {@link Collections#binarySearch(List, Object)} over {@link #strings()}.
+     */
     public int findStringIndex(String s) {
+        SymbolIndex symbols = getOrBuildSymbolIndex();
+        Integer index = symbols.stringToIndexMap.get(s);
+        if (index != null) {
+            return index;
+        }
+        // Strings are all decoded by now, so the search for the insertion point doesn't decode either.
         return Collections.binarySearch(strings, s);
     }
 
+    /**
+     * @return index of {@code descriptor} in type ids, or {@code (-(insertion point) - 1)} if it
+     * doesn't exist, the same as {@link Collections#binarySearch(List, Object)} over {@link #typeNames()}.
+     */
     public int findTypeIndex(String descriptor) {
+        Integer stringIndex = getOrBuildSymbolIndex().stringToIndexMap.get(descriptor);
+        if (stringIndex != null) {
+            // Type ids are sorted by their descriptor index, which can be compared without decoding.
+            int typeIndex = Collections.binarySearch(typeIds, stringIndex);
+            if (typeIndex >= 0) {
+                return typeIndex;
+            }
+        }
         return Collections.binarySearch(typeNames, descriptor);
     }
 
@@ -408,12 +439,43 @@ public final class Dex {
         if (!tableOfContents.classDefs.exists()) {
             return -1;
         }
-        for (int i = 0; i < tableOfContents.classDefs.size; i++) {
-            if (typeIndexFromClassDefIndex(i) == typeIndex) {
-                return i;
+        int[] classDefIndexes = classDefIndexesOfTypes;
+        if (classDefIndexes == null) {
+            classDefIndexes = new int[tableOfContents.typeIds.size];
+            Arrays.fill(classDefIndexes, -1);
+            for (int i = 0; i < tableOfContents.classDefs.size; i++) {
+                int classTypeIndex = typeIndexFromClassDefIndex(i);
+                if (classTypeIndex >= 0 && classTypeIndex < classDefIndexes.length
+                        && classDefIndexes[classTypeIndex] < 0) {
+                    classDefIndexes[classTypeIndex] = i;
+                }
             }
+            classDefIndexesOfTypes = classDefIndexes;
+        }
+        return classDefIndexes[typeIndex];
+    }
+
+    /**
+     * Decodes all strings of this dex in one pass and keeps them together with a hashed
+     * string to index map. Afterwards {@link #strings()}, {@link #typeNames()},
+     * {@link #findStringIndex(String)} and {@link #findTypeIndex(String)} don't decode
+     * or search any more.
+     *
+     * It keeps all strings in memory, so only call it when lots of symbols will be resolved,
+     * the find methods call it anyway. The index is not updated by writing to the dex, so
+     * don't build it before the string sections of a dex under construction are written.
+     */
+    public void buildSymbolIndex() {
+        getOrBuildSymbolIndex();
+    }
+
+    private SymbolIndex getOrBuildSymbolIndex() {
+        SymbolIndex result = symbolIndex;
+        if (result == null) {
+            result = new SymbolIndex();
+            symbolIndex = result;
         }
-        return -1;
+        return result;
     }
 
     /**
@@ -881,8 +943,12 @@ public final class Dex {
     private final class StringTable extends AbstractList<String> implements RandomAccess {
         @Override public String get(int index) {
             checkBounds(index, tableOfContents.stringIds.size);
+            SymbolIndex symbols = symbolIndex;
+            if (symbols != null) {
+                return symbols.strings[index];
+            }
             int stringOff = openSection(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM)).readInt();
-            return openSection(stringOff).readStringData().value;
+            return openSection(stringOff).readStringData().getValue();
         }
         @Override public int size() {
             return tableOfContents.stringIds.size;
@@ -985,4 +1051,29 @@ public final class Dex {
                : new ClassDefIterator();
         }
     }
+
+    /**
+     * Decoded strings of this dex and the index of each string, see {@link #buildSymbolIndex()}.
+     */
+    private final class SymbolIndex {
+        private final String[] strings;
+        private final HashMap<String, Integer> stringToIndexMap;
+
+        private SymbolIndex() {
+            final int count = tableOfContents.stringIds.size;
+            strings = new String[count];
+            stringToIndexMap = new HashMap<>(Math.max(16, (int) (count / 0.75f) + 1));
+            if (count == 0) {
+                return;
+            }
+            final Section idsIn = openSection(tableOfContents.stringIds);
+            final Section dataIn = openSection(0);
+            for (int i = 0; i < count; ++i) {
+                dataIn.position(idsIn.readInt());
+                final String value = dataIn.readStringData().getValue();
+                strings[i] = value;
+                stringToIndexMap.put(value, i);
+            }
+        }
+    }
 }
@@ -35,17 +35,8 @@ public final class Leb128 {
      * @return its write size, in bytes
      */
     public static int unsignedLeb128Size(int value) {
-        // TODO: This could be much cleverer.
-
-        int remaining = value >>> 7;
-        int count = 0;
-
-        while (remaining != 0) {
-            remaining >>>= 7;
-            count++;
-        }
-
-        return count + 1;
+        // One byte for every 7 significant bits, and at least one byte for zero.
+        return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
     }
 
     public static int unsignedLeb128p1Size(int value) {
@@ -60,23 +51,8 @@ public final class Leb128 {
      * @return its write size, in bytes
      */
     public static int signedLeb128Size(int value) {
-        // TODO: This could be much cleverer.
-
-        int remaining = value >> 7;
-        int count = 0;
-        boolean hasMore = true;
-        int end = ((value & Integer.MIN_VALUE) == 0) ? 0 : -1;
-
-        while (hasMore) {
-            hasMore = (remaining != end)
-                || ((remaining & 1) != ((value >> 6) & 1));
-
-            value = remaining;
-            remaining >>= 7;
-            count++;
-        }
-
-        return count;
+        // Significant bits of the magnitude plus the sign bit, 7 bits per byte.
+        return (39 - Integer.numberOfLeadingZeros(value ^ (value >> 31))) / 7;
     }
 
     /**
@@ -128,6 +104,96 @@ public final class Leb128 {
         return result;
     }
 
+    /**
+     * Reads an signed integer from {@code in} starting at {@code offset}. The caller
+     * must make sure that at least 5 bytes are readable from {@code offset}.
+     *
+     * @return the value in the low 32 bits and the count of bytes it takes in the high 32 bits,
+     * see {@link #valueOf(long)} and {@link #sizeOf(long)}.
+     */
+    public static long readSignedLeb128(byte[] in, int offset) {
+        int cur = in[offset];
+        if (cur >= 0) {
+            return pack((cur << 25) >> 25, 1);
+        }
+        int result = cur & 0x7f;
+        cur = in[offset + 1];
+        result |= (cur & 0x7f) << 7;
+        if (cur >= 0) {
+            return pack((result << 18) >> 18, 2);
+        }
+        cur = in[offset + 2];
+        result |= (cur & 0x7f) << 14;
+        if (cur >= 0) {
+            return pack((result << 11) >> 11, 3);
+        }
+        cur = in[offset + 3];
+        result |= (cur & 0x7f) << 21;
+        if (cur >= 0) {
+            return pack((result << 4) >> 4, 4);
+        }
+        cur = in[offset + 4];
+        if (cur < 0) {
+            throw new DexException("invalid LEB128 sequence");
+        }
+        return pack(result | (cur << 28), 5);
+    }
+
+    /**
+     * Reads an unsigned leb128 integer from {@code in} starting at {@code offset}. The caller
+     * must make sure that at least 5 bytes are readable from {@code offset}.
+     *
+     * @return the value in the low 32 bits and the count of bytes it takes in the high 32 bits,
+     * see {@link #valueOf(long)} and {@link #sizeOf(long)}.
+     */
+    public static long readUnsignedLeb128(byte[] in, int offset) {
+        int cur = in[offset];
+        if (cur >= 0) {
+            return pack(cur, 1);
+        }
+        int result = cur & 0x7f;
+        cur = in[offset + 1];
+        result |= (cur & 0x7f) << 7;
+        if (cur >= 0) {
+            return pack(result, 2);
+        }
+        cur = in[offset + 2];
+        result |= (cur & 0x7f) << 14;
+        if (cur >= 0) {
+            return pack(result, 3);
+        }
+        cur = in[offset + 3];
+        result |= (cur & 0x7f) << 21;
+        if (cur >= 0) {
+            return pack(result, 4);
+        }
+        cur = in[offset + 4];
+        if (cur < 0) {
+            throw new DexException("invalid LEB128 sequence");
+        }
+        return pack(result | (cur << 28), 5);
+    }
+
+    /**
+     * Returns the value of a result of {@link #readUnsignedLeb128(byte[], int)}
+     * or {@link #readSignedLeb128(byte[], int)}.
+     */
+    public static int valueOf(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * Returns the count of bytes read of a result of {@link #readUnsignedLeb128(byte[], int)}
+     * or {@link #readSignedLeb128(byte[], int)}.
+     */
+    public static int sizeOf(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    private static long pack(int value, int size) {
+        return ((long) size << 32) | (value & 0xFFFFFFFFL);
+    }
+
     /**
      * Reads an unsigned leb128p1 integer from {@code in}.
      */
@@ -155,6 +221,36 @@ public final class Leb128 {
         return bytesWritten;
     }
 
+    /**
+     * Writes {@code value} as an unsigned leb128 integer to {@code out}, starting at
+     * {@code offset}, which must have room for 5 bytes. Returns the offset after the
+     * written bytes.
+     */
+    public static int writeUnsignedLeb128(byte[] out, int offset, int value) {
+        if ((value >>> 7) == 0) {
+            out[offset] = (byte) value;
+            return offset + 1;
+        }
+        out[offset] = (byte) (value | 0x80);
+        if ((value >>> 14) == 0) {
+            out[offset + 1] = (byte) (value >>> 7);
+            return offset + 2;
+        }
+        out[offset + 1] = (byte) ((value >>> 7) | 0x80);
+        if ((value >>> 21) == 0) {
+            out[offset + 2] = (byte) (value >>> 14);
+            return offset + 3;
+        }
+        out[offset + 2] = (byte) ((value >>> 14) | 0x80);
+        if ((value >>> 28) == 0) {
+            out[offset + 3] = (byte) (value >>> 21);
+            return offset + 4;
+        }
+        out[offset + 3] = (byte) ((value >>> 21) | 0x80);
+        out[offset + 4] = (byte) (value >>> 28);
+        return offset + 5;
+    }
+
     /**
      * Writes {@code value} as an unsigned integer to {@code out}, starting at
      * {@code offset}. Returns the number of bytes written.
@@ -163,6 +259,21 @@ public final class Leb128 {
         return writeUnsignedLeb128(out, value + 1);
     }
 
+    /**
+     * Writes {@code value} as a signed integer to {@code out}, starting at
+     * {@code offset}, which must have room for 5 bytes. Returns the offset after the
+     * written bytes.
+     */
+    public static int writeSignedLeb128(byte[] out, int offset, int value) {
+        int size = signedLeb128Size(value);
+        for (int i = 1; i < size; ++i) {
+            out[offset++] = (byte) (value | 0x80);
+            value >>= 7;
+        }
+        out[offset] = (byte) (value & 0x7f);
+        return offset + 1;
+    }
+
     /**
      * Writes {@code value} as a signed integer to {@code out}, starting at
      * {@code offset}. Returns the number of bytes written.
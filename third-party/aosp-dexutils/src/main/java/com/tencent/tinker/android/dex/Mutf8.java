@@ -60,6 +60,119 @@ public final class Mutf8 {
         }
     }
 
+    /**
+     * Decodes {@code length} bytes of {@code in} starting at {@code offset}, which
+     * don't include the delimiter 0x00, into {@code out}.
+     */
+    public static String decode(byte[] in, int offset, int length, char[] out) throws UTFDataFormatException {
+        int s = 0;
+        int p = offset;
+        final int end = offset + length;
+        while (p < end) {
+            final int unit = decodeUnit(in, p, end);
+            if (unit < 0) {
+                throw new UTFDataFormatException("bad byte at " + (p - offset));
+            }
+            out[s++] = (char) unit;
+            p += unitByteCount(in[p]);
+        }
+        return new String(out, 0, s);
+    }
+
+    /**
+     * Returns the number of UTF-16 code units encoded by {@code length} bytes
+     * of {@code in} starting at {@code offset}, checking the encoding without decoding it.
+     */
+    public static int countUnits(byte[] in, int offset, int length) throws UTFDataFormatException {
+        int result = 0;
+        int p = offset;
+        final int end = offset + length;
+        while (p < end) {
+            if (decodeUnit(in, p, end) < 0) {
+                throw new UTFDataFormatException("bad byte at " + (p - offset));
+            }
+            ++result;
+            p += unitByteCount(in[p]);
+        }
+        return result;
+    }
+
+    /**
+     * Compares two modified UTF-8 byte sequences the way the dex format orders strings,
+     * which is by the values of their UTF-16 code units, without decoding them.
+     *
+     * <p>The byte order of modified UTF-8 agrees with the code unit order except for
+     * U+0000, which is encoded as 0xc0 0x80, so the code units are only decoded at the
+     * first byte that differs.
+     */
+    public static int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        final int n = Math.min(aLength, bLength);
+        for (int i = 0; i < n; ++i) {
+            final int aByte = a[aOffset + i] & 0xff;
+            final int bByte = b[bOffset + i] & 0xff;
+            if (aByte == bByte) {
+                continue;
+            }
+            if (aByte < 0x80 && bByte < 0x80) {
+                return aByte - bByte;
+            }
+            // Bytes before i are equal, so both code units start at the same position.
+            int unitStart = i;
+            while (unitStart > 0 && (a[aOffset + unitStart] & 0xc0) == 0x80) {
+                --unitStart;
+            }
+            final int aUnit = decodeUnit(a, aOffset + unitStart, aOffset + aLength);
+            final int bUnit = decodeUnit(b, bOffset + unitStart, bOffset + bLength);
+            if (aUnit != bUnit) {
+                return aUnit - bUnit;
+            }
+            // Malformed or overlong encodings of the same code unit, keep the order total.
+            return aByte - bByte;
+        }
+        return aLength - bLength;
+    }
+
+    private static int unitByteCount(byte lead) {
+        if ((lead & 0x80) == 0) {
+            return 1;
+        } else if ((lead & 0xe0) == 0xc0) {
+            return 2;
+        } else {
+            return 3;
+        }
+    }
+
+    /**
+     * @return the code unit starting at {@code pos}, or -1 if it is malformed.
+     */
+    private static int decodeUnit(byte[] in, int pos, int end) {
+        final int a = in[pos] & 0xff;
+        if (a < 0x80) {
+            return a;
+        } else if ((a & 0xe0) == 0xc0) {
+            if (pos + 1 >= end) {
+                return -1;
+            }
+            final int b = in[pos + 1] & 0xff;
+            if ((b & 0xc0) != 0x80) {
+                return -1;
+            }
+            return ((a & 0x1f) << 6) | (b & 0x3f);
+        } else if ((a & 0xf0) == 0xe0) {
+            if (pos + 2 >= end) {
+                return -1;
+            }
+            final int b = in[pos + 1] & 0xff;
+            final int c = in[pos + 2] & 0xff;
+            if (((b & 0xc0) != 0x80) || ((c & 0xc0) != 0x80)) {
+                return -1;
+            }
+            return ((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (c & 0x3f);
+        } else {
+            return -1;
+        }
+    }
+
     /**
      * Returns the number of bytes the modified UTF8 representation of 's' would take.
      */
@@ -17,6 +17,7 @@
 package com.tencent.tinker.android.dex;
 
 import com.tencent.tinker.android.dex.TableOfContents.Section.Item;
+import com.tencent.tinker.android.dex.io.DexDataBuffer;
 
 import java.io.UTFDataFormatException;
 
@@ -24,23 +25,95 @@ import java.io.UTFDataFormatException;
  * *** This file is NOT a part of AOSP. ***
  *
  * Structure of StringData element in Dex file.
+ *
+ * The modified UTF-8 bytes of the string are kept as they are in the dex, comparing and
+ * hashing are done on these bytes and the {@code String} is only decoded when {@link #getValue()}
+ * is called, so diffing and patching the string data section doesn't decode any string.
+ * The encoding is still checked when the string data is read from a dex.
  */
 public class StringData extends Item<StringData> {
+    private final byte[] mutf8Bytes;
+    private final int mutf8Offset;
+    private final int mutf8Length;
+    private final int utf16Length;
+
+    private int hash;
+
+    /**
+     * @deprecated the string read from a dex is decoded on demand, so this field is only set
+     * once {@link #getValue()} has been called, or by {@link #StringData(int, String)}. Use
+     * {@link #getValue()} instead, and don't change it, the string is compared by its bytes.
+     */
+    @Deprecated
     public String value;
 
     public StringData(int offset, String value) {
         super(offset);
+        try {
+            this.mutf8Bytes = Mutf8.encode(value);
+        } catch (UTFDataFormatException e) {
+            throw new DexException(e);
+        }
+        this.mutf8Offset = 0;
+        this.mutf8Length = this.mutf8Bytes.length;
+        this.utf16Length = value.length();
         this.value = value;
     }
 
+    /**
+     * @param mutf8Bytes array holding the modified UTF-8 bytes of the string, which is
+     *                   referenced rather than copied, so it must not be changed afterwards.
+     * @param mutf8Offset offset of the bytes in {@code mutf8Bytes}.
+     * @param mutf8Length count of the bytes, not including the delimiter 0x00.
+     * @param utf16Length length of the string in UTF-16 code units.
+     */
+    public StringData(int offset, byte[] mutf8Bytes, int mutf8Offset, int mutf8Length, int utf16Length) {
+        super(offset);
+        this.mutf8Bytes = mutf8Bytes;
+        this.mutf8Offset = mutf8Offset;
+        this.mutf8Length = mutf8Length;
+        this.utf16Length = utf16Length;
+    }
+
+    public String getValue() {
+        if (value == null) {
+            try {
+                value = Mutf8.decode(mutf8Bytes, mutf8Offset, mutf8Length, new char[utf16Length]);
+            } catch (UTFDataFormatException e) {
+                throw new DexException(e);
+            }
+        }
+        return value;
+    }
+
+    public int getUtf16Length() {
+        return utf16Length;
+    }
+
+    /**
+     * Write the modified UTF-8 bytes of the string, not including the delimiter 0x00.
+     */
+    public void writeMutf8BytesTo(DexDataBuffer out) {
+        out.write(mutf8Bytes, mutf8Offset, mutf8Length);
+    }
+
     @Override
     public int compareTo(StringData other) {
-        return value.compareTo(other.value);
+        return Mutf8.compare(mutf8Bytes, mutf8Offset, mutf8Length,
+                other.mutf8Bytes, other.mutf8Offset, other.mutf8Length);
     }
 
     @Override
     public int hashCode() {
-        return value.hashCode();
+        int h = hash;
+        if (h == 0 && mutf8Length > 0) {
+            final int end = mutf8Offset + mutf8Length;
+            for (int i = mutf8Offset; i < end; ++i) {
+                h = 31 * h + mutf8Bytes[i];
+            }
+            hash = h;
+        }
+        return h;
     }
 
     @Override
@@ -53,10 +126,6 @@ public class StringData extends Item<StringData> {
 
     @Override
     public int byteCountInDex() {
-        try {
-            return Leb128.unsignedLeb128Size(value.length()) + (int) Mutf8.countBytes(value, false) + SizeOf.UBYTE;
-        } catch (UTFDataFormatException e) {
-            throw new DexException(e);
-        }
+        return Leb128.unsignedLeb128Size(utf16Length) + mutf8Length + SizeOf.UBYTE;
     }
 }
@@ -39,6 +39,8 @@ import com.tencent.tinker.android.dex.util.ByteInput;
 import com.tencent.tinker.android.dex.util.ByteOutput;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UTFDataFormatException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -50,6 +52,8 @@ import java.nio.ByteOrder;
 public class DexDataBuffer implements ByteInput, ByteOutput {
     public static final int DEFAULT_BUFFER_SIZE = 512;
 
+    private static final int MAX_LEB128_SIZE = 5;
+
     private static final short[] EMPTY_SHORT_ARRAY = new short[0];
     private static final Code.Try[] EMPTY_TRY_ARRAY = new Code.Try[0];
     private static final Code.CatchHandler[] EMPTY_CATCHHANDLER_ARRAY = new Code.CatchHandler[0];
@@ -96,7 +100,8 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
         if (this.data.position() + bytes > this.data.limit()) {
             if (this.isResizeAllowed) {
                 byte[] array = this.data.array();
-                byte[] newArray = new byte[array.length + bytes + (array.length >> 1)];
+                // double it so a large output is copied only a few times
+                byte[] newArray = new byte[Math.max(array.length << 1, this.data.position() + bytes)];
                 System.arraycopy(array, 0, newArray, 0, this.data.position());
                 int lastPos = this.data.position();
                 this.data = ByteBuffer.wrap(newArray);
@@ -114,6 +119,13 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
         return result;
     }
 
+    /**
+     * Write the data to the stream without copying it like {@link #array()}.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(this.data.array(), this.data.arrayOffset(), this.dataBound);
+    }
+
     @Override
     public byte readByte() {
         return data.get();
@@ -153,30 +165,71 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public int readUleb128() {
+        if (data.hasArray() && data.remaining() >= MAX_LEB128_SIZE) {
+            int pos = data.position();
+            long packed = Leb128.readUnsignedLeb128(data.array(), data.arrayOffset() + pos);
+            data.position(pos + Leb128.sizeOf(packed));
+            return Leb128.valueOf(packed);
+        }
         return Leb128.readUnsignedLeb128(this);
     }
 
     public int readUleb128p1() {
-        return Leb128.readUnsignedLeb128(this) - 1;
+        return readUleb128() - 1;
     }
 
     public int readSleb128() {
+        if (data.hasArray() && data.remaining() >= MAX_LEB128_SIZE) {
+            int pos = data.position();
+            long packed = Leb128.readSignedLeb128(data.array(), data.arrayOffset() + pos);
+            data.position(pos + Leb128.sizeOf(packed));
+            return Leb128.valueOf(packed);
+        }
         return Leb128.readSignedLeb128(this);
     }
 
     public StringData readStringData() {
         int off = data.position();
-        try {
-            int expectedLength = readUleb128();
-            String result = Mutf8.decode(this, new char[expectedLength]);
-            if (result.length() != expectedLength) {
-                throw new DexException("Declared length " + expectedLength
-                        + " doesn't match decoded length of " + result.length());
+        int expectedLength = readUleb128();
+        byte[] bytes;
+        int bytesOffset;
+        int bytesLength;
+        if (data.hasArray()) {
+            // Keep referring to the dex bytes, the string is decoded only when it's asked for.
+            bytes = data.array();
+            bytesOffset = data.arrayOffset() + data.position();
+            int end = data.arrayOffset() + data.limit();
+            int pos = bytesOffset;
+            while (pos < end && bytes[pos] != 0) {
+                ++pos;
+            }
+            if (pos >= end) {
+                throw new DexException("Unterminated string data at " + off);
+            }
+            bytesLength = pos - bytesOffset;
+            data.position(data.position() + bytesLength + 1);
+        } else {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(expectedLength);
+            byte b;
+            while ((b = readByte()) != 0) {
+                baos.write(b);
             }
-            return new StringData(off, result);
+            bytes = baos.toByteArray();
+            bytesOffset = 0;
+            bytesLength = bytes.length;
+        }
+        // Check the encoding here, so a malformed string fails when it's read, not when it's decoded.
+        int decodedLength;
+        try {
+            decodedLength = Mutf8.countUnits(bytes, bytesOffset, bytesLength);
         } catch (UTFDataFormatException e) {
             throw new DexException(e);
         }
+        if (decodedLength != expectedLength) {
+            throw new DexException("Declared length " + expectedLength
+                    + " doesn't match decoded length of " + decodedLength);
+        }
+        return new StringData(off, bytes, bytesOffset, bytesLength, expectedLength);
     }
 
     public TypeList readTypeList() {
@@ -411,7 +464,25 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     private ClassData.Field[] readFields(int count) {
         ClassData.Field[] result = new ClassData.Field[count];
         int fieldIndex = 0;
-        for (int i = 0; i < count; i++) {
+        int i = 0;
+        if (data.hasArray()) {
+            // Decode from the backing array while a whole item is surely in bounds,
+            // the rest near the limit goes through the checked path below.
+            final byte[] array = data.array();
+            final int base = data.arrayOffset();
+            final int limit = base + data.limit();
+            int pos = base + data.position();
+            for (; i < count && limit - pos >= 2 * MAX_LEB128_SIZE; i++) {
+                long packed = Leb128.readUnsignedLeb128(array, pos);
+                pos += Leb128.sizeOf(packed);
+                fieldIndex += Leb128.valueOf(packed); // field index diff
+                packed = Leb128.readUnsignedLeb128(array, pos);
+                pos += Leb128.sizeOf(packed);
+                result[i] = new ClassData.Field(fieldIndex, Leb128.valueOf(packed));
+            }
+            data.position(pos - base);
+        }
+        for (; i < count; i++) {
             fieldIndex += readUleb128(); // field index diff
             int accessFlags = readUleb128();
             result[i] = new ClassData.Field(fieldIndex, accessFlags);
@@ -422,7 +493,26 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     private ClassData.Method[] readMethods(int count) {
         ClassData.Method[] result = new ClassData.Method[count];
         int methodIndex = 0;
-        for (int i = 0; i < count; i++) {
+        int i = 0;
+        if (data.hasArray()) {
+            final byte[] array = data.array();
+            final int base = data.arrayOffset();
+            final int limit = base + data.limit();
+            int pos = base + data.position();
+            for (; i < count && limit - pos >= 3 * MAX_LEB128_SIZE; i++) {
+                long packed = Leb128.readUnsignedLeb128(array, pos);
+                pos += Leb128.sizeOf(packed);
+                methodIndex += Leb128.valueOf(packed); // method index diff
+                packed = Leb128.readUnsignedLeb128(array, pos);
+                pos += Leb128.sizeOf(packed);
+                int accessFlags = Leb128.valueOf(packed);
+                packed = Leb128.readUnsignedLeb128(array, pos);
+                pos += Leb128.sizeOf(packed);
+                result[i] = new ClassData.Method(methodIndex, accessFlags, Leb128.valueOf(packed));
+            }
+            data.position(pos - base);
+        }
+        for (; i < count; i++) {
             methodIndex += readUleb128(); // method index diff
             int accessFlags = readUleb128();
             int codeOff = readUleb128();
@@ -585,6 +675,14 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
         }
     }
 
+    public void write(byte[] bytes, int offset, int length) {
+        ensureBufferSize(length * SizeOf.UBYTE);
+        this.data.put(bytes, offset, length);
+        if (this.data.position() > this.dataBound) {
+            this.dataBound = this.data.position();
+        }
+    }
+
     public void write(short[] shorts) {
         ensureBufferSize(shorts.length * SizeOf.USHORT);
         for (short s : shorts) {
@@ -596,6 +694,13 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public void writeUleb128(int i) {
+        ensureBufferSize(MAX_LEB128_SIZE);
+        if (data.hasArray() && data.remaining() >= MAX_LEB128_SIZE) {
+            int base = data.arrayOffset();
+            int pos = Leb128.writeUnsignedLeb128(data.array(), base + data.position(), i);
+            updatePositionAfterBulkWrite(pos - base);
+            return;
+        }
         Leb128.writeUnsignedLeb128(this, i);
     }
 
@@ -604,9 +709,23 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     }
 
     public void writeSleb128(int i) {
+        ensureBufferSize(MAX_LEB128_SIZE);
+        if (data.hasArray() && data.remaining() >= MAX_LEB128_SIZE) {
+            int base = data.arrayOffset();
+            int pos = Leb128.writeSignedLeb128(data.array(), base + data.position(), i);
+            updatePositionAfterBulkWrite(pos - base);
+            return;
+        }
         Leb128.writeSignedLeb128(this, i);
     }
 
+    private void updatePositionAfterBulkWrite(int pos) {
+        data.position(pos);
+        if (pos > this.dataBound) {
+            this.dataBound = pos;
+        }
+    }
+
     /**
      * Write String data into current section.
      *
@@ -614,15 +733,10 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      */
     public int writeStringData(StringData stringData) {
         int off = data.position();
-        try {
-            int length = stringData.value.length();
-            writeUleb128(length);
-            write(Mutf8.encode(stringData.value));
-            writeByte(0);
-            return off;
-        } catch (UTFDataFormatException e) {
-            throw new AssertionError(e);
-        }
+        writeUleb128(stringData.getUtf16Length());
+        stringData.writeMutf8BytesTo(this);
+        writeByte(0);
+        return off;
     }
 
     /**
@@ -803,6 +917,29 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
      */
     public int writeClassData(ClassData classData) {
         int off = data.position();
+        long maxSize = MAX_LEB128_SIZE * (4
+                + 2L * (classData.staticFields.length + classData.instanceFields.length)
+                + 3L * (classData.directMethods.length + classData.virtualMethods.length));
+        if (maxSize <= Integer.MAX_VALUE - off) {
+            ensureBufferSize((int) maxSize);
+        }
+        if (data.hasArray() && data.remaining() >= maxSize) {
+            // Room for the worst case is reserved, encode the whole item into the
+            // backing array and move the position once.
+            final byte[] array = data.array();
+            final int base = data.arrayOffset();
+            int pos = base + off;
+            pos = Leb128.writeUnsignedLeb128(array, pos, classData.staticFields.length);
+            pos = Leb128.writeUnsignedLeb128(array, pos, classData.instanceFields.length);
+            pos = Leb128.writeUnsignedLeb128(array, pos, classData.directMethods.length);
+            pos = Leb128.writeUnsignedLeb128(array, pos, classData.virtualMethods.length);
+            pos = writeFields(array, pos, classData.staticFields);
+            pos = writeFields(array, pos, classData.instanceFields);
+            pos = writeMethods(array, pos, classData.directMethods);
+            pos = writeMethods(array, pos, classData.virtualMethods);
+            updatePositionAfterBulkWrite(pos - base);
+            return off;
+        }
         writeUleb128(classData.staticFields.length);
         writeUleb128(classData.instanceFields.length);
         writeUleb128(classData.directMethods.length);
@@ -814,6 +951,27 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
         return off;
     }
 
+    private static int writeFields(byte[] out, int pos, ClassData.Field[] fields) {
+        int lastOutFieldIndex = 0;
+        for (ClassData.Field field : fields) {
+            pos = Leb128.writeUnsignedLeb128(out, pos, field.fieldIndex - lastOutFieldIndex);
+            lastOutFieldIndex = field.fieldIndex;
+            pos = Leb128.writeUnsignedLeb128(out, pos, field.accessFlags);
+        }
+        return pos;
+    }
+
+    private static int writeMethods(byte[] out, int pos, ClassData.Method[] methods) {
+        int lastOutMethodIndex = 0;
+        for (ClassData.Method method : methods) {
+            pos = Leb128.writeUnsignedLeb128(out, pos, method.methodIndex - lastOutMethodIndex);
+            lastOutMethodIndex = method.methodIndex;
+            pos = Leb128.writeUnsignedLeb128(out, pos, method.accessFlags);
+            pos = Leb128.writeUnsignedLeb128(out, pos, method.codeOffset);
+        }
+        return pos;
+    }
+
     private void writeFields(ClassData.Field[] fields) {
         int lastOutFieldIndex = 0;
         for (ClassData.Field field : fields) {
@@ -0,0 +1,162 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.ziputils.ziputil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Enumeration;
+
+/**
+ * Alignment of the STORED entries written by {@link TinkerZipOutputStream}, like what zipalign -p does.
+ *
+ * AssetManager can only mmap an uncompressed entry such as resources.arsc when its data is aligned,
+ * otherwise it has to read the whole entry into memory. Every STORED entry is aligned to the default
+ * alignment, and rules can force an entry to be STORED with a larger alignment. Deflated entries are
+ * never aligned, they are always inflated to memory anyway.
+ *
+ * A rule matches an entry by its exact name, or by suffix if the pattern starts with '*'.
+ * The first matched rule wins.
+ */
+public final class TinkerZipAlignPolicy {
+    public static final int DEFAULT_ALIGNMENT = 4;
+    public static final int PAGE_ALIGNMENT    = 4096;
+
+    // the alignment is stored in a u16 of the alignment extra field
+    private static final int MAX_ALIGNMENT = 0x8000;
+
+    private static final String RESOURCES_ARSC = "resources.arsc";
+
+    private final int             defaultAlignment;
+    private final ArrayList<Rule> rules = new ArrayList<>();
+
+    public TinkerZipAlignPolicy(int defaultAlignment) {
+        checkAlignment(defaultAlignment);
+        this.defaultAlignment = defaultAlignment;
+    }
+
+    /**
+     * Policy for resources.apk, resources.arsc is always STORED and page aligned.
+     */
+    public static TinkerZipAlignPolicy forResources() {
+        return new TinkerZipAlignPolicy(DEFAULT_ALIGNMENT).addRule(RESOURCES_ARSC, true, PAGE_ALIGNMENT);
+    }
+
+    /**
+     * @param namePattern exact entry name, or '*' followed by a suffix
+     * @param forceStored write the entry STORED even if the source is deflated
+     * @param alignment   alignment of the entry data, must be a power of 2
+     */
+    public TinkerZipAlignPolicy addRule(String namePattern, boolean forceStored, int alignment) {
+        if (namePattern == null || namePattern.isEmpty()) {
+            throw new IllegalArgumentException("empty name pattern");
+        }
+        checkAlignment(alignment);
+        rules.add(new Rule(namePattern, forceStored, alignment));
+        return this;
+    }
+
+    /**
+     * @return alignment of the data of a STORED entry
+     */
+    public int getAlignment(String name) {
+        final Rule rule = findRule(name);
+        return rule != null ? rule.alignment : defaultAlignment;
+    }
+
+    public boolean isForceStored(String name) {
+        final Rule rule = findRule(name);
+        return rule != null && rule.forceStored;
+    }
+
+    /**
+     * Verify the zip file is written with this policy.
+     *
+     * @return name of the first entry which should be STORED but is not, or whose data is not aligned,
+     * null if all the entries are fine.
+     */
+    public String findMisalignedEntry(File file) throws IOException {
+        TinkerZipFile zipFile = null;
+        RandomAccessFile raf = null;
+        try {
+            zipFile = new TinkerZipFile(file);
+            raf = new RandomAccessFile(file, "r");
+            final Enumeration<? extends TinkerZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final TinkerZipEntry entry = entries.nextElement();
+                final String name = entry.getName();
+                if (entry.getMethod() != TinkerZipEntry.STORED) {
+                    if (isForceStored(name)) {
+                        return name;
+                    }
+                    continue;
+                }
+                // name and extra length of the local header, they may differ from the central directory ones
+                raf.seek(entry.getLocalHeaderRelOffset() + 26);
+                final int nameLength = Short.reverseBytes(raf.readShort()) & 0xffff;
+                final int extraLength = Short.reverseBytes(raf.readShort()) & 0xffff;
+                final long dataOffset = entry.getLocalHeaderRelOffset() + ZipConstants.LOCHDR + nameLength + extraLength;
+                if (dataOffset % getAlignment(name) != 0) {
+                    return name;
+                }
+            }
+            return null;
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+            if (zipFile != null) {
+                zipFile.close();
+            }
+        }
+    }
+
+    private Rule findRule(String name) {
+        for (Rule rule : rules) {
+            if (rule.matches(name)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private static void checkAlignment(int alignment) {
+        if (alignment <= 0 || (alignment & (alignment - 1)) != 0 || alignment > MAX_ALIGNMENT) {
+            throw new IllegalArgumentException("bad alignment: " + alignment);
+        }
+    }
+
+    private static final class Rule {
+        final String  namePattern;
+        final boolean forceStored;
+        final int     alignment;
+
+        Rule(String namePattern, boolean forceStored, int alignment) {
+            this.namePattern = namePattern;
+            this.forceStored = forceStored;
+            this.alignment = alignment;
+        }
+
+        boolean matches(String name) {
+            if (namePattern.charAt(0) == '*') {
+                return name.endsWith(namePattern.substring(1));
+            }
+            return name.equals(namePattern);
+        }
+    }
+}
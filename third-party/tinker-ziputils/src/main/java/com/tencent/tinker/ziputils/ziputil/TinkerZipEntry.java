@@ -18,6 +18,7 @@ package com.tencent.tinker.ziputils.ziputil;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.util.Arrays;
@@ -182,6 +183,43 @@ public class TinkerZipEntry implements ZipConstants, Cloneable {
         }*/
     }
 
+    /*
+     * Internal constructor used by the mapped mode of TinkerZipFile. Creates a new ZipEntry
+     * from the Central Directory Entry at "cdeOffset" of the little endian "cd" buffer, which
+     * has already been validated when the central directory was indexed. Only absolute
+     * gets are used, so the buffer can be shared among threads.
+     */
+    TinkerZipEntry(ByteBuffer cd, int cdeOffset) {
+        compressionMethod = cd.getShort(cdeOffset + 10) & 0xffff;
+        time = cd.getShort(cdeOffset + 12) & 0xffff;
+        modDate = cd.getShort(cdeOffset + 14) & 0xffff;
+        crc = ((long) cd.getInt(cdeOffset + 16)) & 0xffffffffL;
+        compressedSize = ((long) cd.getInt(cdeOffset + 20)) & 0xffffffffL;
+        size = ((long) cd.getInt(cdeOffset + 24)) & 0xffffffffL;
+        int nameLength = cd.getShort(cdeOffset + 28) & 0xffff;
+        int extraLength = cd.getShort(cdeOffset + 30) & 0xffff;
+        int commentByteCount = cd.getShort(cdeOffset + 32) & 0xffff;
+        localHeaderRelOffset = ((long) cd.getInt(cdeOffset + 42)) & 0xffffffffL;
+        int pos = cdeOffset + CENHDR;
+        name = new String(getBytes(cd, pos, nameLength), 0, nameLength, StandardCharsets.UTF_8);
+        pos += nameLength;
+        if (extraLength > 0) {
+            extra = getBytes(cd, pos, extraLength);
+        }
+        pos += extraLength;
+        if (commentByteCount > 0) {
+            comment = new String(getBytes(cd, pos, commentByteCount), 0, commentByteCount, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int offset, int byteCount) {
+        byte[] bytes = new byte[byteCount];
+        for (int i = 0; i < byteCount; ++i) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
     private static boolean containsNulByte(byte[] bytes) {
         for (byte b : bytes) {
             if (b == 0) {
@@ -405,6 +443,11 @@ public class TinkerZipEntry implements ZipConstants, Cloneable {
         return name.charAt(name.length() - 1) == '/';
     }
 
+    /** @hide */
+    public long getLocalHeaderRelOffset() {
+        return localHeaderRelOffset;
+    }
+
     /** @hide */
     public long getDataOffset() {
         return dataOffset;
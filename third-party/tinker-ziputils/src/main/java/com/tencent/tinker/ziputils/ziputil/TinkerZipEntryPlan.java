@@ -0,0 +1,187 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.ziputils.ziputil;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Precomputed plan to rebuild resources.apk from the base apk.
+ *
+ * The patch builder records which entries of the base apk should be copied as they are
+ * (their ordinals in the central directory and their local header offsets), and which ones
+ * would be replaced by the large modified files. Then the rebuild on the device is just a
+ * sequential walk of the base apk, without any name lookup or pattern matching.
+ *
+ * Format (big endian):
+ * magic, version, old entry count, copy count, [ordinal, local header offset] * copy count,
+ * manifest ordinal, replace count, [ordinal] * replace count.
+ * Local header offsets are written as longs, the others are ints.
+ *
+ * The plan is a deflated entry of the patch, read it through an inflating stream.
+ */
+public final class TinkerZipEntryPlan {
+    private static final int MAGIC   = 0x54524550; // TREP
+    private static final int VERSION = 2;
+
+    private final int    oldEntryCount;
+    private final int[]  copyOrdinals;
+    private final long[] copyOffsets;
+    private final int    manifestOrdinal;
+    private final int[]  replaceOrdinals;
+
+    public TinkerZipEntryPlan(int oldEntryCount, int[] copyOrdinals, long[] copyOffsets, int manifestOrdinal, int[] replaceOrdinals) {
+        if (copyOrdinals.length != copyOffsets.length) {
+            throw new IllegalArgumentException("copy ordinals and offsets mismatch");
+        }
+        this.oldEntryCount = oldEntryCount;
+        this.copyOrdinals = copyOrdinals;
+        this.copyOffsets = copyOffsets;
+        this.manifestOrdinal = manifestOrdinal;
+        this.replaceOrdinals = replaceOrdinals;
+    }
+
+    /**
+     * @return entries of the zip file in central directory order, index is the ordinal used by the plan
+     */
+    public static TinkerZipEntry[] listEntries(TinkerZipFile zipFile) {
+        final TinkerZipEntry[] result = new TinkerZipEntry[zipFile.size()];
+        final Enumeration<? extends TinkerZipEntry> entries = zipFile.entries();
+        int ordinal = 0;
+        while (entries.hasMoreElements() && ordinal < result.length) {
+            result[ordinal++] = entries.nextElement();
+        }
+        return result;
+    }
+
+    public static TinkerZipEntryPlan read(InputStream is) throws IOException {
+        final DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("bad entry plan magic");
+        }
+        final int version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("unsupported entry plan version: " + version);
+        }
+        final int oldEntryCount = in.readInt();
+        final int copyCount = in.readInt();
+        if (copyCount < 0 || copyCount > oldEntryCount) {
+            throw new IOException("bad entry plan copy count: " + copyCount);
+        }
+        final int[] copyOrdinals = new int[copyCount];
+        final long[] copyOffsets = new long[copyCount];
+        for (int i = 0; i < copyCount; i++) {
+            copyOrdinals[i] = in.readInt();
+            copyOffsets[i] = in.readLong();
+            if (copyOffsets[i] < 0) {
+                throw new IOException("bad entry plan offset: " + copyOffsets[i]);
+            }
+        }
+        final int manifestOrdinal = in.readInt();
+        final int replaceCount = in.readInt();
+        if (replaceCount < 0 || replaceCount > oldEntryCount) {
+            throw new IOException("bad entry plan replace count: " + replaceCount);
+        }
+        final int[] replaceOrdinals = new int[replaceCount];
+        for (int i = 0; i < replaceCount; i++) {
+            replaceOrdinals[i] = in.readInt();
+        }
+        return new TinkerZipEntryPlan(oldEntryCount, copyOrdinals, copyOffsets, manifestOrdinal, replaceOrdinals);
+    }
+
+    public void write(OutputStream os) throws IOException {
+        final DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(oldEntryCount);
+        out.writeInt(copyOrdinals.length);
+        for (int i = 0; i < copyOrdinals.length; i++) {
+            out.writeInt(copyOrdinals[i]);
+            out.writeLong(copyOffsets[i]);
+        }
+        out.writeInt(manifestOrdinal);
+        out.writeInt(replaceOrdinals.length);
+        for (int ordinal : replaceOrdinals) {
+            out.writeInt(ordinal);
+        }
+        out.flush();
+    }
+
+    /**
+     * Check whether this plan is made from the same base apk. Since we copy entries by ordinal,
+     * any difference of entry layout should fall back to the name based rebuild.
+     */
+    public boolean matches(TinkerZipEntry[] oldEntries, String manifestName, List<String> replaceNames) {
+        if (oldEntries.length != oldEntryCount) {
+            return false;
+        }
+        int lastOrdinal = -1;
+        for (int i = 0; i < copyOrdinals.length; i++) {
+            final int ordinal = copyOrdinals[i];
+            // ordinals must be ascending, that is the order we write them
+            if (ordinal <= lastOrdinal || ordinal >= oldEntryCount) {
+                return false;
+            }
+            final TinkerZipEntry entry = oldEntries[ordinal];
+            if (entry.getLocalHeaderRelOffset() != copyOffsets[i] || entry.getName().contains("../")) {
+                return false;
+            }
+            lastOrdinal = ordinal;
+        }
+        if (!isEntryNamed(oldEntries, manifestOrdinal, manifestName)) {
+            return false;
+        }
+        if (replaceOrdinals.length != replaceNames.size()) {
+            return false;
+        }
+        for (int i = 0; i < replaceOrdinals.length; i++) {
+            if (!isEntryNamed(oldEntries, replaceOrdinals[i], replaceNames.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the unchanged entries and then the manifest from the base apk.
+     *
+     * @return count of the entries written
+     */
+    public int copyEntries(TinkerZipFile oldApk, TinkerZipEntry[] oldEntries, TinkerZipOutputStream out) throws IOException {
+        for (int ordinal : copyOrdinals) {
+            TinkerZipUtil.extractTinkerEntry(oldApk, oldEntries[ordinal], out);
+        }
+        TinkerZipUtil.extractTinkerEntry(oldApk, oldEntries[manifestOrdinal], out);
+        return copyOrdinals.length + 1;
+    }
+
+    /**
+     * @return the base entry replaced by the index-th large modified file
+     */
+    public TinkerZipEntry getReplaceEntry(TinkerZipEntry[] oldEntries, int index) {
+        return oldEntries[replaceOrdinals[index]];
+    }
+
+    private static boolean isEntryNamed(TinkerZipEntry[] oldEntries, int ordinal, String name) {
+        return ordinal >= 0 && ordinal < oldEntries.length && oldEntries[ordinal].getName().equals(name);
+    }
+}
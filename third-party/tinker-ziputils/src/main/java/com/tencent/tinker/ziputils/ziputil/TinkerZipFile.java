@@ -23,10 +23,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -56,6 +60,12 @@ public class TinkerZipFile implements Closeable, ZipConstants {
      * Delete zip file when closed.
      */
     public static final int OPEN_DELETE = 4;
+    /**
+     * Map zip file into memory, must be used with {@code OPEN_READ}.
+     * The central directory is indexed by the raw name bytes and entries are created on demand,
+     * input streams read the mapping without any lock, so they can be used by many threads.
+     */
+    public static final int OPEN_MAPPED = 8;
     /**
      * General Purpose Bit Flags, Bit 0.
      * If set, indicates that the file is encrypted.
@@ -95,6 +105,14 @@ public class TinkerZipFile implements Closeable, ZipConstants {
     private RandomAccessFile raf;
     private String comment;
 
+    // only for OPEN_MAPPED, the mapping is in little endian order and we only use absolute gets on it
+    private volatile ByteBuffer mappedBuffer;
+    // offset of the central directory entry of each ordinal
+    private int[] cdeOffsets;
+    // open-addressed hash over the raw name bytes, slot holds ordinal + 1, 0 means empty
+    private int[] nameTable;
+    private AtomicReferenceArray<TinkerZipEntry> mappedEntries;
+
     /**
      * Constructs a new {@code ZipFile} allowing read access to the contents of the given file.
      *
@@ -121,7 +139,8 @@ public class TinkerZipFile implements Closeable, ZipConstants {
      *
      * <p>UTF-8 is used to decode all comments and entry names in the file.
      *
-     * <p>The {@code mode} must be either {@code OPEN_READ} or {@code OPEN_READ|OPEN_DELETE}.
+     * <p>The {@code mode} must be {@code OPEN_READ}, optionally with {@code OPEN_DELETE}
+     * and {@code OPEN_MAPPED}.
      * If the {@code OPEN_DELETE} flag is supplied, the file will be deleted at or before the
      * time that the {@code ZipFile} is closed (the contents will remain accessible until
      * this {@code ZipFile} is closed); it also calls {@code File.deleteOnExit}.
@@ -130,7 +149,7 @@ public class TinkerZipFile implements Closeable, ZipConstants {
      */
     public TinkerZipFile(File file, int mode) throws IOException {
         filename = file.getPath();
-        if (mode != OPEN_READ && mode != (OPEN_READ | OPEN_DELETE)) {
+        if ((mode & OPEN_READ) == 0 || (mode & ~(OPEN_READ | OPEN_DELETE | OPEN_MAPPED)) != 0) {
             throw new IllegalArgumentException("Bad mode: " + mode);
         }
         if ((mode & OPEN_DELETE) != 0) {
@@ -140,6 +159,9 @@ public class TinkerZipFile implements Closeable, ZipConstants {
             fileToDeleteOnClose = null;
         }
         raf = new RandomAccessFile(filename, "r");
+        if ((mode & OPEN_MAPPED) != 0) {
+            mappedBuffer = mapFile(raf);
+        }
 
         readCentralDir();
         // guard.open("close");
@@ -251,6 +273,8 @@ public class TinkerZipFile implements Closeable, ZipConstants {
         if (localRaf != null) { // Only close initialized instances
             synchronized (localRaf) {
                 raf = null;
+                // the mapping is released by gc, streams still holding it would see the file closed
+                mappedBuffer = null;
                 localRaf.close();
             }
             if (fileToDeleteOnClose != null) {
@@ -278,6 +302,22 @@ public class TinkerZipFile implements Closeable, ZipConstants {
      */
     public Enumeration<? extends TinkerZipEntry> entries() {
         checkNotClosed();
+        if (cdeOffsets != null) {
+            return new Enumeration<TinkerZipEntry>() {
+                private int ordinal = 0;
+                public boolean hasMoreElements() {
+                    checkNotClosed();
+                    return ordinal < cdeOffsets.length;
+                }
+                public TinkerZipEntry nextElement() {
+                    checkNotClosed();
+                    if (ordinal >= cdeOffsets.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return getMappedEntry(ordinal++);
+                }
+            };
+        }
         final Iterator<TinkerZipEntry> iterator = entries.values().iterator();
         return new Enumeration<TinkerZipEntry>() {
             public boolean hasMoreElements() {
@@ -313,6 +353,9 @@ public class TinkerZipFile implements Closeable, ZipConstants {
         if (entryName == null) {
             throw new NullPointerException("entryName == null");
         }
+        if (cdeOffsets != null) {
+            return findMappedEntry(entryName);
+        }
         TinkerZipEntry ze = entries.get(entryName);
         if (ze == null) {
             ze = entries.get(entryName + "/");
@@ -336,6 +379,9 @@ public class TinkerZipFile implements Closeable, ZipConstants {
         if (entry == null) {
             return null;
         }
+        if (cdeOffsets != null) {
+            return getMappedInputStream(entry);
+        }
         // Create an InputStream at the right part of the file.
         RandomAccessFile localRaf = raf;
         synchronized (localRaf) {
@@ -396,6 +442,9 @@ public class TinkerZipFile implements Closeable, ZipConstants {
      */
     public int size() {
         checkNotClosed();
+        if (cdeOffsets != null) {
+            return cdeOffsets.length;
+        }
         return entries.size();
     }
 
@@ -470,6 +519,11 @@ public class TinkerZipFile implements Closeable, ZipConstants {
             comment = new String(commentBytes, 0, commentBytes.length, StandardCharsets.UTF_8);
         }
 
+        if (mappedBuffer != null) {
+            indexCentralDir(mappedBuffer, centralDirOffset, numEntries);
+            return;
+        }
+
         // Seek to the first CDE and read all entries.
         // We have to do this now (from the constructor) rather than lazily because the
         // public API doesn't allow us to throw IOException except from the constructor
@@ -491,6 +545,192 @@ public class TinkerZipFile implements Closeable, ZipConstants {
 
     }
 
+    /**
+     * @return the read-only mapping of the whole file, or null if it is too large or fail to map,
+     * we would fall back to read it by the RandomAccessFile then.
+     */
+    private static ByteBuffer mapFile(RandomAccessFile raf) {
+        try {
+            final long length = raf.length();
+            if (length > Integer.MAX_VALUE) {
+                return null;
+            }
+            final ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } catch (IOException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Index the central directory of the mapping. Entries are validated here like the
+     * RandomAccessFile way does, but not created until someone asks for them.
+     */
+    private void indexCentralDir(ByteBuffer buffer, long centralDirOffset, int numEntries) throws IOException {
+        final int limit = buffer.limit();
+        if (centralDirOffset > limit) {
+            throw new ZipException("Central directory offset is out of file: " + centralDirOffset);
+        }
+        final int[] offsets = new int[numEntries];
+        // keep the load factor at most 0.5, so the probe sequences are short
+        final int[] table = new int[Integer.highestOneBit(Math.max(numEntries * 2 - 1, 1)) << 1];
+        final int mask = table.length - 1;
+        int pos = (int) centralDirOffset;
+        for (int i = 0; i < numEntries; ++i) {
+            if (pos > limit - CENHDR) {
+                throw new ZipException("Truncated central directory entry at " + pos);
+            }
+            final int sig = buffer.getInt(pos);
+            if (sig != CENSIG) {
+                throwZipException(filename, limit, "unknown", 0, "Central Directory Entry", sig);
+            }
+            final int gpbf = buffer.getShort(pos + 8) & 0xffff;
+            if ((gpbf & GPBF_UNSUPPORTED_MASK) != 0) {
+                throw new ZipException("Invalid General Purpose Bit Flag: " + gpbf);
+            }
+            final long localHeaderRelOffset = ((long) buffer.getInt(pos + 42)) & 0xffffffffL;
+            if (localHeaderRelOffset >= centralDirOffset) {
+                throw new ZipException("Local file header offset is after central directory");
+            }
+            final int nameLength = buffer.getShort(pos + 28) & 0xffff;
+            final int nameOffset = pos + CENHDR;
+            final int next = nameOffset + nameLength
+                + (buffer.getShort(pos + 30) & 0xffff) + (buffer.getShort(pos + 32) & 0xffff);
+            if (next > limit) {
+                throw new ZipException("Truncated central directory entry at " + pos);
+            }
+            int hash = 0;
+            for (int j = nameOffset; j < nameOffset + nameLength; ++j) {
+                final byte b = buffer.get(j);
+                if (b == 0) {
+                    throw new ZipException("Filename contains NUL byte at central directory entry " + i);
+                }
+                hash = 31 * hash + (b & 0xff);
+            }
+            int slot = mixHash(hash) & mask;
+            while (table[slot] != 0) {
+                if (sameName(buffer, offsets[table[slot] - 1], pos)) {
+                    throw new ZipException("Duplicate entry name: " + new TinkerZipEntry(buffer, pos).getName());
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+            offsets[i] = pos;
+            pos = next;
+        }
+        cdeOffsets = offsets;
+        nameTable = table;
+        mappedEntries = new AtomicReferenceArray<TinkerZipEntry>(numEntries);
+    }
+
+    private static int mixHash(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameName(ByteBuffer buffer, int cdeOffset1, int cdeOffset2) {
+        final int nameLength = buffer.getShort(cdeOffset1 + 28) & 0xffff;
+        if (nameLength != (buffer.getShort(cdeOffset2 + 28) & 0xffff)) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; ++i) {
+            if (buffer.get(cdeOffset1 + CENHDR + i) != buffer.get(cdeOffset2 + CENHDR + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean nameEquals(ByteBuffer buffer, int cdeOffset, byte[] name, boolean trailingSlash) {
+        final int nameLength = buffer.getShort(cdeOffset + 28) & 0xffff;
+        if (nameLength != (trailingSlash ? name.length + 1 : name.length)) {
+            return false;
+        }
+        final int nameOffset = cdeOffset + CENHDR;
+        for (int i = 0; i < name.length; ++i) {
+            if (buffer.get(nameOffset + i) != name[i]) {
+                return false;
+            }
+        }
+        return !trailingSlash || buffer.get(nameOffset + name.length) == '/';
+    }
+
+    private ByteBuffer getMappedBuffer() {
+        final ByteBuffer buffer = mappedBuffer;
+        if (buffer == null) {
+            throw new IllegalStateException("Zip file closed");
+        }
+        return buffer;
+    }
+
+    private TinkerZipEntry getMappedEntry(int ordinal) {
+        TinkerZipEntry entry = mappedEntries.get(ordinal);
+        if (entry == null) {
+            // racing threads may both create it, but only the first one is published
+            mappedEntries.compareAndSet(ordinal, null, new TinkerZipEntry(getMappedBuffer(), cdeOffsets[ordinal]));
+            entry = mappedEntries.get(ordinal);
+        }
+        return entry;
+    }
+
+    private TinkerZipEntry findMappedEntry(String entryName) {
+        final ByteBuffer buffer = getMappedBuffer();
+        final byte[] name = entryName.getBytes(StandardCharsets.UTF_8);
+        int hash = 0;
+        for (byte b : name) {
+            hash = 31 * hash + (b & 0xff);
+        }
+        int ordinal = findMappedOrdinal(buffer, name, hash, false);
+        if (ordinal < 0) {
+            ordinal = findMappedOrdinal(buffer, name, 31 * hash + '/', true);
+        }
+        return ordinal < 0 ? null : getMappedEntry(ordinal);
+    }
+
+    private int findMappedOrdinal(ByteBuffer buffer, byte[] name, int hash, boolean trailingSlash) {
+        final int[] table = nameTable;
+        final int mask = table.length - 1;
+        for (int slot = mixHash(hash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int ordinal = table[slot] - 1;
+            if (nameEquals(buffer, cdeOffsets[ordinal], name, trailingSlash)) {
+                return ordinal;
+            }
+        }
+        return -1;
+    }
+
+    private InputStream getMappedInputStream(TinkerZipEntry entry) throws IOException {
+        final ByteBuffer buffer = getMappedBuffer();
+        final long localHeaderRelOffset = entry.localHeaderRelOffset;
+        if (localHeaderRelOffset > buffer.limit() - LOCHDR) {
+            throw new ZipException("Local file header of " + entry.getName() + " is out of file");
+        }
+        final int pos = (int) localHeaderRelOffset;
+        final int localMagic = buffer.getInt(pos);
+        if (localMagic != LOCSIG) {
+            throwZipException(filename, buffer.limit(), entry.getName(), localHeaderRelOffset, "Local File Header", localMagic);
+        }
+        // At position 6 we find the General Purpose Bit Flag.
+        final int gpbf = buffer.getShort(pos + 6) & 0xffff;
+        if ((gpbf & TinkerZipFile.GPBF_UNSUPPORTED_MASK) != 0) {
+            throw new ZipException("Invalid General Purpose Bit Flag: " + gpbf);
+        }
+        // Offset 26 has the file name length, and offset 28 has the extra field length.
+        // These lengths can differ from the ones in the central header.
+        final int fileNameLength = buffer.getShort(pos + 26) & 0xffff;
+        final int extraFieldLength = buffer.getShort(pos + 28) & 0xffff;
+        final long dataOffset = (long) pos + LOCHDR + fileNameLength + extraFieldLength;
+        final long dataLength = entry.compressionMethod == TinkerZipEntry.STORED ? entry.size : entry.compressedSize;
+        if (dataOffset + dataLength > buffer.limit()) {
+            throw new ZipException("Data of " + entry.getName() + " is out of file");
+        }
+        // each stream owns its duplicate, the positions don't affect each other
+        final ByteBuffer data = buffer.duplicate();
+        data.limit((int) (dataOffset + dataLength));
+        data.position((int) dataOffset);
+        return new MappedStream(data);
+    }
+
     // private final CloseGuard guard = CloseGuard.get();
     static class EocdRecord {
         final long numEntries;
@@ -565,6 +805,50 @@ public class TinkerZipFile implements Closeable, ZipConstants {
             }
         }*/
     }
+    /**
+     * Stream over the data of an entry in the mapping. Streams don't share any position,
+     * so unlike {@link RAFStream} they can be read by many threads without locking.
+     */
+    private class MappedStream extends InputStream {
+        private final ByteBuffer data;
+        MappedStream(ByteBuffer data) {
+            this.data = data;
+        }
+        private void checkMapped() throws IOException {
+            if (mappedBuffer == null) {
+                throw new IOException("Zip file closed");
+            }
+        }
+        @Override public int available() throws IOException {
+            checkMapped();
+            return data.remaining();
+        }
+        @Override public int read() throws IOException {
+            checkMapped();
+            return data.hasRemaining() ? data.get() & 0xff : -1;
+        }
+        @Override public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+            checkMapped();
+            if (byteCount == 0) {
+                return 0;
+            }
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            byteCount = Math.min(byteCount, data.remaining());
+            data.get(buffer, byteOffset, byteCount);
+            return byteCount;
+        }
+        @Override public long skip(long byteCount) throws IOException {
+            checkMapped();
+            if (byteCount <= 0) {
+                return 0;
+            }
+            byteCount = Math.min(byteCount, data.remaining());
+            data.position(data.position() + (int) byteCount);
+            return byteCount;
+        }
+    }
     /** @hide */
     /*public static class ZipInflaterInputStream extends InflaterInputStream {
         private final ZipEntry entry;
@@ -84,6 +84,11 @@ public class TinkerZipOutputStream extends FilterOutputStream implements ZipCons
     final static int              TIME_CONST               = 40691;
     final static int              MOD_DATE_CONST           = 18698;
     private static final int      ZIP_VERSION_2_0          = 20; // Zip specification version 2.0.
+    /**
+     * Header id of the alignment extra field defined by Android zipalign.
+     */
+    private static final int      ALIGNMENT_EXTRA_ID       = 0xd935;
+    private static final int      ALIGNMENT_EXTRA_MIN_SIZE = 6;
     private static final byte[] ZIP64_PLACEHOLDER_BYTES =
             new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
     private final HashSet<String> entries                  = new HashSet<String>();
@@ -117,6 +122,14 @@ public class TinkerZipOutputStream extends FilterOutputStream implements ZipCons
      * to the start of the current entry header is greater than 0xFFFFFFFF.
      */
     private boolean currentEntryNeedsZip64;
+    /**
+     * Alignment of STORED entries, null means no alignment at all.
+     */
+    private TinkerZipAlignPolicy alignPolicy;
+    /**
+     * Extra field written to the local header of the current entry only, it is used for alignment.
+     */
+    private byte[] localExtraBytes;
     /**
      * Constructs a new {@code ZipOutputStream} that writes a zip file to the given
      * {@code OutputStream}.
@@ -134,6 +147,19 @@ public class TinkerZipOutputStream extends FilterOutputStream implements ZipCons
         this.forceZip64 = forceZip64;
     }
 
+    /**
+     * Align the data of STORED entries written after this call, see {@link TinkerZipAlignPolicy}.
+     * The padding is written as an alignment extra field in the local header, just like zipalign -p,
+     * so the central directory is untouched.
+     */
+    public void setAlignPolicy(TinkerZipAlignPolicy alignPolicy) {
+        this.alignPolicy = alignPolicy;
+    }
+
+    public TinkerZipAlignPolicy getAlignPolicy() {
+        return alignPolicy;
+    }
+
     /**
      * Sets the default compression method to be used when a {@code ZipEntry} doesn't
      * explicitly specify a method. See {@link TinkerZipEntry#setMethod} for more details.
@@ -308,6 +334,10 @@ public class TinkerZipOutputStream extends FilterOutputStream implements ZipCons
         writeLongAsUint32(cDir, currentEntry.getCompressedSize());
         writeLongAsUint32(cDir, currentEntry.getSize());
         curOffset += writeIntAsUint16(cDir, nameBytes.length);
+        if (localExtraBytes != null) {
+            curOffset += localExtraBytes.length;
+            localExtraBytes = null;
+        }
         if (currentEntry.extra != null) {
             curOffset += writeIntAsUint16(cDir, currentEntry.extra.length);
         } else {
@@ -506,17 +536,45 @@ public class TinkerZipOutputStream extends FilterOutputStream implements ZipCons
         /*if (currentEntryNeedsZip64) {
             Zip64.insertZip64ExtendedInfoToExtras(currentEntry);
         }*/
-        if (currentEntry.extra != null) {
+        if (method == STORED && alignPolicy != null) {
+            localExtraBytes = createAlignmentExtra(offset + LOCHDR + nameBytes.length,
+                alignPolicy.getAlignment(currentEntry.name));
+        }
+        if (localExtraBytes != null) {
+            writeIntAsUint16(out, localExtraBytes.length);
+        } else if (currentEntry.extra != null) {
             writeIntAsUint16(out, currentEntry.extra.length);
         } else {
             writeIntAsUint16(out, 0);
         }
         out.write(nameBytes);
-        if (currentEntry.extra != null) {
+        if (localExtraBytes != null) {
+            out.write(localExtraBytes);
+        } else if (currentEntry.extra != null) {
             out.write(currentEntry.extra);
         }
     }
 
+    /**
+     * Android zip alignment extra field: header id, data size, alignment, then zero padding.
+     * It is the same as what zipalign -p writes, so the platform tools can read it as well.
+     *
+     * @param extraOffset offset of the extra field, the entry data follows it
+     */
+    private static byte[] createAlignmentExtra(long extraOffset, int alignment) {
+        final long dataOffset = extraOffset + ALIGNMENT_EXTRA_MIN_SIZE;
+        final int padding = (int) ((alignment - dataOffset % alignment) % alignment);
+        final byte[] extra = new byte[ALIGNMENT_EXTRA_MIN_SIZE + padding];
+        final int dataSize = extra.length - 4;
+        extra[0] = (byte) (ALIGNMENT_EXTRA_ID & 0xff);
+        extra[1] = (byte) (ALIGNMENT_EXTRA_ID >>> 8);
+        extra[2] = (byte) (dataSize & 0xff);
+        extra[3] = (byte) (dataSize >>> 8);
+        extra[4] = (byte) (alignment & 0xff);
+        extra[5] = (byte) (alignment >>> 8);
+        return extra;
+    }
+
     /**
      * Sets the comment associated with the file being written. See {@link TinkerZipFile#getComment}.
      * @throws IllegalArgumentException if the comment is >= 64 Ki encoded bytes.
@@ -21,6 +21,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 /**
  * Created by zhangshaowen on 16/8/10.
@@ -29,20 +35,104 @@ public class TinkerZipUtil {
     private static final int BUFFER_SIZE = 4096;
 
     public static void extractTinkerEntry(TinkerZipFile apk, TinkerZipEntry zipEntry, TinkerZipOutputStream outputStream) throws IOException {
+        extractTinkerEntry(apk, zipEntry, outputStream, null);
+    }
+
+    /**
+     * Copy the raw data of the entry.
+     *
+     * @param digest if not null, the uncompressed data of the entry is digested into it on the way,
+     *               deflated data is inflated only for the digest.
+     */
+    public static void extractTinkerEntry(TinkerZipFile apk, TinkerZipEntry zipEntry, TinkerZipOutputStream outputStream,
+                                          MessageDigest digest) throws IOException {
+        final TinkerZipAlignPolicy alignPolicy = outputStream.getAlignPolicy();
+        if (alignPolicy != null && zipEntry.getMethod() == TinkerZipEntry.DEFLATED
+            && alignPolicy.isForceStored(zipEntry.getName())) {
+            extractTinkerEntryStored(apk, zipEntry, outputStream, digest);
+            return;
+        }
+        final Inflater inflater = (digest != null && zipEntry.getMethod() == TinkerZipEntry.DEFLATED ? new Inflater(true) : null);
         InputStream in = null;
         try {
             in = apk.getInputStream(zipEntry);
             outputStream.putNextEntry(new TinkerZipEntry(zipEntry));
             byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] inflated = (inflater != null ? new byte[BUFFER_SIZE] : null);
+
+            for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
+                outputStream.write(buffer, 0, length);
+                if (inflater != null) {
+                    inflateAndDigest(inflater, buffer, length, inflated, digest);
+                } else if (digest != null) {
+                    digest.update(buffer, 0, length);
+                }
+            }
+            if (inflater != null && !inflater.finished()) {
+                throw new ZipException("truncated deflated data of entry " + zipEntry.getName());
+            }
+            outputStream.closeEntry();
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static void inflateAndDigest(Inflater inflater, byte[] input, int length, byte[] inflated, MessageDigest digest) throws IOException {
+        inflater.setInput(input, 0, length);
+        try {
+            while (!inflater.needsInput() && !inflater.finished()) {
+                final int count = inflater.inflate(inflated);
+                if (count == 0 && inflater.needsDictionary()) {
+                    throw new ZipException("deflated data needs a preset dictionary");
+                }
+                digest.update(inflated, 0, count);
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("bad deflated data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The raw input stream returns the deflated data, inflate it here so the entry can be STORED and aligned.
+     */
+    private static void extractTinkerEntryStored(TinkerZipFile apk, TinkerZipEntry zipEntry, TinkerZipOutputStream outputStream,
+                                                 MessageDigest digest) throws IOException {
+        final TinkerZipEntry storedEntry = new TinkerZipEntry(zipEntry);
+        storedEntry.setMethod(TinkerZipEntry.STORED);
+        storedEntry.setSize(zipEntry.getSize());
+        storedEntry.setCompressedSize(zipEntry.getSize());
+        storedEntry.setCrc(zipEntry.getCrc());
+        final Inflater inflater = new Inflater(true);
+        InputStream in = null;
+        try {
+            in = new InflaterInputStream(apk.getInputStream(zipEntry), inflater, BUFFER_SIZE);
+            outputStream.putNextEntry(storedEntry);
+            final CRC32 crc = new CRC32();
+            long size = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
 
             for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
                 outputStream.write(buffer, 0, length);
+                crc.update(buffer, 0, length);
+                if (digest != null) {
+                    digest.update(buffer, 0, length);
+                }
+                size += length;
+            }
+            if (size != zipEntry.getSize() || crc.getValue() != zipEntry.getCrc()) {
+                throw new ZipException("inflated data mismatch for entry " + zipEntry.getName());
             }
             outputStream.closeEntry();
         } finally {
             if (in != null) {
                 in.close();
             }
+            inflater.end();
         }
     }
 
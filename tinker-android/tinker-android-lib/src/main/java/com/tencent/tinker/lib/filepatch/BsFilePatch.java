@@ -1,7 +1,10 @@
 package com.tencent.tinker.lib.filepatch;
 
 import com.tencent.tinker.bsdiff.BSPatch;
+import com.tencent.tinker.commons.arscpatcher.ArscPatchApplier;
+import com.tencent.tinker.commons.arscpatcher.struct.ArscPatchFile;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,6 +13,15 @@ public class BsFilePatch extends AbstractFilePatch{
 
     @Override
     public int patchFast(InputStream oldInputStream, InputStream diffInputStream, File newFile) throws IOException {
-        return BSPatch.patchFast(oldInputStream, diffInputStream, newFile);
+        if (oldInputStream == null || diffInputStream == null || newFile == null) {
+            return BSPatch.patchFast(oldInputStream, diffInputStream, newFile);
+        }
+        // resources.arsc may be diffed by chunks, see ArscPatchGenerator
+        final BufferedInputStream diffIn = new BufferedInputStream(diffInputStream);
+        if (ArscPatchFile.isArscPatch(diffIn)) {
+            new ArscPatchApplier(oldInputStream, diffIn).executeAndSaveTo(newFile);
+            return BSPatch.RETURN_SUCCESS;
+        }
+        return BSPatch.patchFast(oldInputStream, diffIn, newFile);
     }
 }
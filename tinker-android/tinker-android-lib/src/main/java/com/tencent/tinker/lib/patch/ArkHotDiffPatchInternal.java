@@ -39,16 +39,17 @@ public class ArkHotDiffPatchInternal extends BasePatchInternal {
             return true;
         }
 
-        patchArkHotLibraryExtract(context, patchVersionDirectory, arkHotMeta, patchFile);
+        patchArkHotLibraryExtract(context, patchVersionDirectory, arkHotMeta, patchFile, checker);
 
         return true;
     }
 
-    private static boolean extractArkHotLibrary(Context context, String dir, File patchFile, int type) {
+    private static boolean extractArkHotLibrary(Context context, String dir, File patchFile, ShareSecurityCheck checker, int type) {
         Tinker manager = Tinker.with(context);
         ZipFile patch = null;
         try {
-            patch = new ZipFile(patchFile);
+            // entries of the patch are verified with the signed manifest while we extract them
+            patch = checker.openPatchFile(patchFile);
 
             for (ShareArkHotDiffPatchInfo info : arkPatchList) {
                 final String path = info.path;
@@ -94,13 +95,13 @@ public class ArkHotDiffPatchInternal extends BasePatchInternal {
     }
 
     private static boolean patchArkHotLibraryExtract(Context context, String patchVersionDirectory,
-                                                     String meta, File patchFile) {
+                                                     String meta, File patchFile, ShareSecurityCheck checker) {
         String dir = patchVersionDirectory + "/" + ShareConstants.ARKHOTFIX_PATH + "/";
 
         arkPatchList.clear();
         ShareArkHotDiffPatchInfo.parseDiffPatchInfo(meta, arkPatchList);
 
-        if (!extractArkHotLibrary(context, dir, patchFile, TYPE_ARKHOT_SO)) {
+        if (!extractArkHotLibrary(context, dir, patchFile, checker, TYPE_ARKHOT_SO)) {
             return false;
         }
 
@@ -71,6 +71,11 @@ public class BasePatchInternal {
                 while ((length = is.read(buffer)) > 0) {
                     os.write(buffer, 0, length);
                 }
+            } catch (SecurityException e) {
+                // the entry mismatches the signed manifest, drop what we have written and don't retry
+                IOHelper.closeQuietly(os);
+                SharePatchFileUtil.safeDeleteFile(extractTo);
+                throw e;
             } finally {
                 IOHelper.closeQuietly(os);
                 IOHelper.closeQuietly(is);
@@ -46,6 +46,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
@@ -72,6 +73,16 @@ public class DexDiffPatchInternal extends BasePatchInternal {
 
     protected static boolean tryRecoverDexFiles(Tinker manager, ShareSecurityCheck checker, Context context,
                                                 String patchVersionDirectory, File patchFile, PatchResult patchResult) {
+        return tryRecoverDexFiles(manager, checker, context, patchVersionDirectory, patchFile, patchResult, false);
+    }
+
+    /**
+     * @param deferDexOptimize if true, only do a quick interpret or verify dexopt here, the full speed
+     *                         compilation is left to {@link #optimizeDexFilesDeferred(Context, String)}
+     */
+    protected static boolean tryRecoverDexFiles(Tinker manager, ShareSecurityCheck checker, Context context,
+                                                String patchVersionDirectory, File patchFile, PatchResult patchResult,
+                                                boolean deferDexOptimize) {
         if (!manager.isEnabledForDex()) {
             ShareTinkerLog.w(TAG, "patch recover, dex is not enabled");
             return true;
@@ -84,7 +95,7 @@ public class DexDiffPatchInternal extends BasePatchInternal {
         }
 
         long begin = SystemClock.elapsedRealtime();
-        boolean result = patchDexExtractViaDexDiff(context, patchVersionDirectory, dexMeta, patchFile, patchResult);
+        boolean result = patchDexExtractViaDexDiff(context, patchVersionDirectory, dexMeta, patchFile, checker, patchResult, deferDexOptimize);
         long cost = SystemClock.elapsedRealtime() - begin;
         patchResult.dexCostTime = cost;
         ShareTinkerLog.i(TAG, "recover dex result:%b, cost:%d", result, cost);
@@ -166,14 +177,95 @@ public class DexDiffPatchInternal extends BasePatchInternal {
         return true;
     }
 
-    private static boolean patchDexExtractViaDexDiff(Context context, String patchVersionDirectory, String meta, final File patchFile, PatchResult patchResult) {
-        String dir = patchVersionDirectory + "/" + DEX_PATH + "/";
+    /**
+     * whether we can commit a patch with a quick dexopt and leave the full compilation to
+     * {@link #optimizeDexFilesDeferred(Context, String)}.
+     * for dalvik the odex must be generated before loading, and for android o to p the dex2oat
+     * is triggered by the class loader itself, so there is nothing we can defer.
+     */
+    public static boolean canDeferDexOptimize() {
+        if (!isVmArt || ShareTinkerInternals.isArkHotRuning()) {
+            return false;
+        }
+        return ShareTinkerInternals.isVersionInRange(21, 25, true)
+            || ShareTinkerInternals.isNewerOrEqualThanVersion(29, true);
+    }
 
-        if (!extractDexDiffInternals(context, dir, meta, patchFile, TYPE_DEX)) {
-            ShareTinkerLog.w(TAG, "patch recover, extractDiffInternals fail");
+    /**
+     * the oat dir a patch committed by the quick dexopt should be loaded from
+     */
+    public static String getDeferredDexOptimizeDir() {
+        // after android o the odex files are always placed in dex/oat/isa, oat dir is useless
+        return ShareTinkerInternals.isAfterAndroidO()
+            ? ShareConstants.DEFAULT_DEX_OPTIMIZE_PATH : ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH;
+    }
+
+    /**
+     * do the full speed compilation for the dex files of a patch which is committed with a quick dexopt,
+     * it is slow, so don't call it on the main thread.
+     *
+     * @return true if all the odex files are generated
+     */
+    public static boolean optimizeDexFilesDeferred(Context context, String patchVersionDirectory) {
+        final List<File> legalFiles = collectLegalDexFiles(patchVersionDirectory + "/" + DEX_PATH + "/");
+        if (legalFiles.isEmpty()) {
+            ShareTinkerLog.w(TAG, "deferred dexopt, there is no dex file to optimize");
+            return true;
+        }
+        final File optimizeDexDirectoryFile = new File(patchVersionDirectory + "/" + DEX_OPTIMIZE_PATH + "/");
+        if (!optimizeDexDirectoryFile.exists() && !optimizeDexDirectoryFile.mkdirs()) {
+            ShareTinkerLog.w(TAG, "deferred dexopt, make optimizeDexDirectoryFile fail");
             return false;
         }
+        final boolean useDLC = TinkerApplication.getInstance().isUseDelegateLastClassLoader();
+        final long start = System.currentTimeMillis();
+        final TinkerDexOptimizer.ResultCallback callback = new TinkerDexOptimizer.ResultCallback() {
+            @Override
+            public void onStart(File dexFile, File optimizedDir) {
+                ShareTinkerLog.i(TAG, "start to deferred optimize dex %s, size: %d", dexFile.getPath(), dexFile.length());
+            }
+
+            @Override
+            public void onSuccess(File dexFile, File optimizedDir, File optimizedFile) {
+                ShareTinkerLog.i(TAG, "success to deferred optimize dex %s, opt file:%s, opt file size: %d",
+                    dexFile.getPath(), optimizedFile.getPath(), optimizedFile.length());
+            }
+
+            @Override
+            public void onFailed(File dexFile, File optimizedDir, Throwable thr) {
+                ShareTinkerLog.printErrStackTrace(TAG, thr, "fail to deferred optimize dex %s", dexFile.getPath());
+            }
+        };
+        boolean result = true;
+        // one by one, so the job can give up between dex files once it is stopped
+        for (File dexFile : legalFiles) {
+            if (Thread.currentThread().isInterrupted()) {
+                ShareTinkerLog.w(TAG, "deferred dexopt is interrupted before %s", dexFile.getPath());
+                result = false;
+                break;
+            }
+            if (!TinkerDexOptimizer.optimizeAll(context, Collections.singletonList(dexFile),
+                optimizeDexDirectoryFile, useDLC, callback)) {
+                result = false;
+                break;
+            }
+        }
+        if (result) {
+            for (File dexFile : legalFiles) {
+                final File odexFile = new File(SharePatchFileUtil.optimizedPathFor(dexFile, optimizeDexDirectoryFile));
+                // same as the blocking dexopt, pm may generate the odex files asynchronously on some devices
+                if (!SharePatchFileUtil.isLegalFile(odexFile) && !SharePatchFileUtil.shouldAcceptEvenIfIllegal(odexFile)) {
+                    ShareTinkerLog.e(TAG, "deferred dexopt, odex file %s is not generated", odexFile.getPath());
+                    result = false;
+                    break;
+                }
+            }
+        }
+        ShareTinkerLog.i(TAG, "deferred dexopt result: %b, use: %dms", result, (System.currentTimeMillis() - start));
+        return result;
+    }
 
+    private static List<File> collectLegalDexFiles(String dir) {
         File dexFiles = new File(dir);
         File[] files = dexFiles.listFiles();
         List<File> legalFiles = new ArrayList<>();
@@ -190,9 +282,26 @@ public class DexDiffPatchInternal extends BasePatchInternal {
                 }
             }
         }
+        return legalFiles;
+    }
+
+    private static boolean patchDexExtractViaDexDiff(Context context, String patchVersionDirectory, String meta, final File patchFile,
+                                                     ShareSecurityCheck checker, PatchResult patchResult, boolean deferDexOptimize) {
+        String dir = patchVersionDirectory + "/" + DEX_PATH + "/";
+
+        if (!extractDexDiffInternals(context, dir, meta, patchFile, checker, TYPE_DEX)) {
+            ShareTinkerLog.w(TAG, "patch recover, extractDiffInternals fail");
+            return false;
+        }
+
+        List<File> legalFiles = collectLegalDexFiles(dir);
 
         ShareTinkerLog.i(TAG, "legal files to do dexopt: " + legalFiles);
 
+        if (deferDexOptimize) {
+            final String optimizeDexDirectory = patchVersionDirectory + "/" + getDeferredDexOptimizeDir() + "/";
+            return quickOptimizeDexFiles(context, legalFiles, optimizeDexDirectory, patchFile, patchResult);
+        }
         final String optimizeDexDirectory = patchVersionDirectory + "/" + DEX_OPTIMIZE_PATH + "/";
         return dexOptimizeDexFiles(context, legalFiles, optimizeDexDirectory, patchFile, patchResult);
 
@@ -426,6 +535,73 @@ public class DexDiffPatchInternal extends BasePatchInternal {
         return true;
     }
 
+    /**
+     * dexopt with interpret mode before android o; after android q we don't trigger dexopt at all,
+     * the dex files are verified by the runtime when loading and the odex files would be generated later.
+     */
+    private static boolean quickOptimizeDexFiles(Context context, List<File> dexFiles, String optimizeDexDirectory,
+                                                 final File patchFile, final PatchResult patchResult) {
+        optFiles.clear();
+
+        if (patchResult != null) {
+            patchResult.dexoptTriggerTime = System.currentTimeMillis();
+            patchResult.isOatGenerated = false;
+        }
+        if (dexFiles == null || ShareTinkerInternals.isAfterAndroidO()) {
+            ShareTinkerLog.i(TAG, "patch recover, skip dexopt, it would be done later");
+            return true;
+        }
+        File optimizeDexDirectoryFile = new File(optimizeDexDirectory);
+        if (!optimizeDexDirectoryFile.exists() && !optimizeDexDirectoryFile.mkdirs()) {
+            ShareTinkerLog.w(TAG, "patch recover, make optimizeDexDirectoryFile fail");
+            return false;
+        }
+        for (File file : dexFiles) {
+            optFiles.add(new File(SharePatchFileUtil.optimizedPathFor(file, optimizeDexDirectoryFile)));
+        }
+        final String targetISA;
+        try {
+            targetISA = ShareTinkerInternals.getCurrentInstructionSet();
+        } catch (Throwable thr) {
+            Tinker.with(context).getPatchReporter().onPatchDexOptFail(patchFile, dexFiles, thr);
+            return false;
+        }
+        ShareTinkerLog.i(TAG, "patch recover, try to interpret optimize dex file count:%d, optimizeDexDirectory:%s", dexFiles.size(), optimizeDexDirectory);
+
+        final List<File> failOptDexFile = new Vector<>();
+        final Throwable[] throwable = new Throwable[1];
+        final boolean useDLC = TinkerApplication.getInstance().isUseDelegateLastClassLoader();
+
+        TinkerDexOptimizer.optimizeAll(
+              context, dexFiles, optimizeDexDirectoryFile, true,
+              useDLC, targetISA,
+              new TinkerDexOptimizer.ResultCallback() {
+                  @Override
+                  public void onStart(File dexFile, File optimizedDir) {
+                      ShareTinkerLog.i(TAG, "start to interpret optimize dex %s, size: %d", dexFile.getPath(), dexFile.length());
+                  }
+
+                  @Override
+                  public void onSuccess(File dexFile, File optimizedDir, File optimizedFile) {
+                      ShareTinkerLog.i(TAG, "success to interpret optimize dex %s, opt file:%s", dexFile.getPath(), optimizedFile.getPath());
+                  }
+
+                  @Override
+                  public void onFailed(File dexFile, File optimizedDir, Throwable thr) {
+                      ShareTinkerLog.i(TAG, "fail to interpret optimize dex %s", dexFile.getPath());
+                      failOptDexFile.add(dexFile);
+                      throwable[0] = thr;
+                  }
+              }
+        );
+
+        if (!failOptDexFile.isEmpty()) {
+            Tinker.with(context).getPatchReporter().onPatchDexOptFail(patchFile, failOptDexFile, throwable[0]);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * for ViVo or some other rom, they would make dex2oat asynchronous
      * so we need to check whether oat file is actually generated.
@@ -447,7 +623,7 @@ public class DexDiffPatchInternal extends BasePatchInternal {
         return true;
     }
 
-    private static boolean extractDexDiffInternals(Context context, String dir, String meta, File patchFile, int type) {
+    private static boolean extractDexDiffInternals(Context context, String dir, String meta, File patchFile, ShareSecurityCheck checker, int type) {
         //parse
         patchList.clear();
         ShareDexDiffPatchInfo.parseDexDiffPatchInfo(meta, patchList);
@@ -475,7 +651,8 @@ public class DexDiffPatchInternal extends BasePatchInternal {
 
             String apkPath = applicationInfo.sourceDir;
             apk = new ZipFile(apkPath);
-            patch = new ZipFile(patchFile);
+            // entries of the patch are verified with the signed manifest while we extract them
+            patch = checker.openPatchFile(patchFile);
             if (checkClassNDexFiles(dir)) {
                 ShareTinkerLog.w(TAG, "class n dex file %s is already exist, and md5 match, just continue", ShareConstants.CLASS_N_APK_NAME);
                 return true;
@@ -653,6 +830,11 @@ public class DexDiffPatchInternal extends BasePatchInternal {
                     length = bis.read(buffer);
                 }
                 zos.closeEntry();
+            } catch (SecurityException e) {
+                // the entry mismatches the signed manifest, drop what we have written and don't retry
+                IOHelper.closeQuietly(zos);
+                SharePatchFileUtil.safeDeleteFile(extractTo);
+                throw e;
             } finally {
                 IOHelper.closeQuietly(bis);
                 IOHelper.closeQuietly(zos);
@@ -32,16 +32,29 @@ import com.tencent.tinker.loader.shareutil.SharePatchFileUtil;
 import com.tencent.tinker.loader.shareutil.ShareResPatchInfo;
 import com.tencent.tinker.loader.shareutil.ShareSecurityCheck;
 import com.tencent.tinker.loader.shareutil.ShareTinkerInternals;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipAlignPolicy;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipEntry;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntryPlan;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipFile;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipOutputStream;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipUtil;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -52,6 +65,9 @@ public class ResDiffPatchInternal extends BasePatchInternal {
 
     protected static final String TAG = "Tinker.ResDiffPatchInternal";
 
+    // bspatch loads the whole old and new file into memory, don't run too many of them at the same time
+    private static final int MAX_LARGE_MOD_PATCH_THREADS = 2;
+
     protected static boolean tryRecoverResourceFiles(Tinker manager, ShareSecurityCheck checker, Context context,
                                                      String patchVersionDirectory, File patchFile, boolean useCustomPatcher, PatchResult patchResult) {
 
@@ -67,7 +83,7 @@ public class ResDiffPatchInternal extends BasePatchInternal {
         }
 
         long begin = SystemClock.elapsedRealtime();
-        boolean result = patchResourceExtractViaResourceDiff(context, patchVersionDirectory, resourceMeta, patchFile, useCustomPatcher);
+        boolean result = patchResourceExtractViaResourceDiff(context, patchVersionDirectory, resourceMeta, patchFile, checker, useCustomPatcher);
         long cost = SystemClock.elapsedRealtime() - begin;
         patchResult.resCostTime = cost;
         ShareTinkerLog.i(TAG, "recover resource result:%b, cost:%d", result, cost);
@@ -75,17 +91,19 @@ public class ResDiffPatchInternal extends BasePatchInternal {
     }
 
     private static boolean patchResourceExtractViaResourceDiff(Context context, String patchVersionDirectory,
-                                                               String meta, File patchFile, boolean useCustomPatcher) {
+                                                               String meta, File patchFile, ShareSecurityCheck checker,
+                                                               boolean useCustomPatcher) {
         String dir = patchVersionDirectory + "/" + ShareConstants.RES_PATH + "/";
 
-        if (!extractResourceDiffInternals(context, dir, meta, patchFile, TYPE_RESOURCE, useCustomPatcher)) {
+        if (!extractResourceDiffInternals(context, dir, meta, patchFile, checker, TYPE_RESOURCE, useCustomPatcher)) {
             ShareTinkerLog.w(TAG, "patch recover, extractDiffInternals fail");
             return false;
         }
         return true;
     }
 
-    private static boolean extractResourceDiffInternals(Context context, String dir, String meta, File patchFile, int type, boolean useCustomPatcher) {
+    private static boolean extractResourceDiffInternals(Context context, String dir, String meta, File patchFile, ShareSecurityCheck checker,
+                                                        int type, boolean useCustomPatcher) {
         ShareResPatchInfo resPatchInfo = new ShareResPatchInfo();
         ShareResPatchInfo.parseAllResPatchInfo(meta, resPatchInfo);
         ShareTinkerLog.i(TAG, "res dir: %s, meta: %s", dir, resPatchInfo.toString());
@@ -124,59 +142,88 @@ public class ResDiffPatchInternal extends BasePatchInternal {
             }
             String apkPath = applicationInfo.sourceDir;
 
-
-            if (!checkAndExtractResourceLargeFile(context, apkPath, directory, tempResFileDirectory, patchFile, resPatchInfo, type, useCustomPatcher)) {
-                return false;
-            }
-
             TinkerZipOutputStream out = null;
+            final TinkerZipAlignPolicy alignPolicy = TinkerZipAlignPolicy.forResources();
             TinkerZipFile oldApk = null;
             TinkerZipFile newApk = null;
+            ZipFile apkFile = null;
+            ZipFile patchZipFile = null;
+            ExecutorService largeModPatchExecutor = null;
+            final Map<String, Future<Boolean>> largeModPatchTasks = new HashMap<>();
             int totalEntryCount = 0;
             try {
+                apkFile = new ZipFile(apkPath);
+                // entries of the patch are verified with the signed manifest while we extract them
+                patchZipFile = checker.openPatchFile(patchFile);
+                if (!resPatchInfo.largeModRes.isEmpty()) {
+                    largeModPatchExecutor = Executors.newFixedThreadPool(getLargeModPatchThreadCount(context, resPatchInfo, useCustomPatcher));
+                }
+                // large modified files are patched in background, while we are copying the unchanged entries
+                if (!checkAndExtractResourceLargeFile(context, apkFile, patchZipFile, tempResFileDirectory, patchFile, resPatchInfo, type,
+                    useCustomPatcher, largeModPatchExecutor, largeModPatchTasks)) {
+                    return false;
+                }
                 out = new TinkerZipOutputStream(new BufferedOutputStream(new FileOutputStream(resOutput)));
-                oldApk = new TinkerZipFile(apkPath);
-                newApk = new TinkerZipFile(patchFile);
-                final Enumeration<? extends TinkerZipEntry> entries = oldApk.entries();
-                while (entries.hasMoreElements()) {
-                    TinkerZipEntry zipEntry = entries.nextElement();
-                    if (zipEntry == null) {
-                        throw new TinkerRuntimeException("zipEntry is null when get from oldApk");
-                    }
-                    String name = zipEntry.getName();
-                    if (name.contains("../")) {
-                        continue;
-                    }
-                    if (ShareResPatchInfo.checkFileInPattern(resPatchInfo.patterns, name)) {
-                        //won't contain in add set.
-                        if (!resPatchInfo.deleteRes.contains(name)
-                            && !resPatchInfo.modRes.contains(name)
-                            && !resPatchInfo.largeModRes.contains(name)
-                            && !name.equals(ShareConstants.RES_MANIFEST)) {
-                            TinkerZipUtil.extractTinkerEntry(oldApk, zipEntry, out);
-                            totalEntryCount++;
+                // resources.arsc is STORED and page aligned so AssetManager can mmap it instead of
+                // inflating it into memory, other STORED entries are aligned to 4 bytes like zipalign does
+                out.setAlignPolicy(alignPolicy);
+                // base apk may have tens of thousands of entries, map them to look up by the name bytes
+                // and copy the unchanged ones without seeking the file for each read
+                oldApk = new TinkerZipFile(new File(apkPath), TinkerZipFile.OPEN_READ | TinkerZipFile.OPEN_MAPPED);
+                newApk = new TinkerZipFile(patchFile, TinkerZipFile.OPEN_READ | TinkerZipFile.OPEN_MAPPED);
+                final TinkerZipEntry[] oldEntries = TinkerZipEntryPlan.listEntries(oldApk);
+                final TinkerZipEntryPlan entryPlan = readResEntryPlan(patchZipFile, oldEntries, resPatchInfo);
+                if (entryPlan != null) {
+                    //unchanged files and manifest, just copy them in the planned order
+                    totalEntryCount += entryPlan.copyEntries(oldApk, oldEntries, out);
+                } else {
+                    final HashSet<String> changedRes = new HashSet<>(resPatchInfo.deleteRes);
+                    changedRes.addAll(resPatchInfo.modRes);
+                    changedRes.addAll(resPatchInfo.largeModRes);
+                    for (TinkerZipEntry zipEntry : oldEntries) {
+                        if (zipEntry == null) {
+                            throw new TinkerRuntimeException("zipEntry is null when get from oldApk");
+                        }
+                        String name = zipEntry.getName();
+                        if (name.contains("../")) {
+                            continue;
+                        }
+                        if (ShareResPatchInfo.checkFileInPattern(resPatchInfo.patterns, name)) {
+                            //won't contain in add set.
+                            if (!changedRes.contains(name) && !name.equals(ShareConstants.RES_MANIFEST)) {
+                                TinkerZipUtil.extractTinkerEntry(oldApk, zipEntry, out);
+                                totalEntryCount++;
+                            }
                         }
                     }
-                }
 
-                //process manifest
-                TinkerZipEntry manifestZipEntry = oldApk.getEntry(ShareConstants.RES_MANIFEST);
-                if (manifestZipEntry == null) {
-                    ShareTinkerLog.w(TAG, "manifest patch entry is null. path:" + ShareConstants.RES_MANIFEST);
-                    manager.getPatchReporter().onPatchTypeExtractFail(patchFile, resOutput, ShareConstants.RES_MANIFEST, type);
-                    return false;
+                    //process manifest
+                    TinkerZipEntry manifestZipEntry = oldApk.getEntry(ShareConstants.RES_MANIFEST);
+                    if (manifestZipEntry == null) {
+                        ShareTinkerLog.w(TAG, "manifest patch entry is null. path:" + ShareConstants.RES_MANIFEST);
+                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, resOutput, ShareConstants.RES_MANIFEST, type);
+                        return false;
+                    }
+                    TinkerZipUtil.extractTinkerEntry(oldApk, manifestZipEntry, out);
+                    totalEntryCount++;
                 }
-                TinkerZipUtil.extractTinkerEntry(oldApk, manifestZipEntry, out);
-                totalEntryCount++;
 
-                for (String name : resPatchInfo.largeModRes) {
-                    TinkerZipEntry largeZipEntry = oldApk.getEntry(name);
+                for (int i = 0; i < resPatchInfo.largeModRes.size(); i++) {
+                    String name = resPatchInfo.largeModRes.get(i);
+                    TinkerZipEntry largeZipEntry = entryPlan != null ? entryPlan.getReplaceEntry(oldEntries, i) : oldApk.getEntry(name);
                     if (largeZipEntry == null) {
                         ShareTinkerLog.w(TAG, "large patch entry is null. path:" + name);
                         manager.getPatchReporter().onPatchTypeExtractFail(patchFile, resOutput, name, type);
                         return false;
                     }
                     ShareResPatchInfo.LargeModeInfo largeModeInfo = resPatchInfo.largeModMap.get(name);
+                    // it is time to write this entry, wait for its patch task
+                    if (!waitForLargeModPatchTask(largeModPatchTasks.get(name))) {
+                        ShareTinkerLog.w(TAG, "Failed to recover large modify file:%s", largeModeInfo.file.getPath());
+                        SharePatchFileUtil.safeDeleteFile(largeModeInfo.file);
+                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, largeModeInfo.file, name, type);
+                        return false;
+                    }
                     TinkerZipUtil.extractLargeModifyFile(largeZipEntry, largeModeInfo.file, largeModeInfo.crc, out);
                     totalEntryCount++;
                 }
@@ -192,7 +239,7 @@ public class ResDiffPatchInternal extends BasePatchInternal {
                         File storeFile = resPatchInfo.storeRes.get(name);
                         TinkerZipUtil.extractLargeModifyFile(addZipEntry, storeFile, addZipEntry.getCrc(), out);
                     } else {
-                        TinkerZipUtil.extractTinkerEntry(newApk, addZipEntry, out);
+                        extractPatchEntry(checker, newApk, addZipEntry, out);
                     }
                     totalEntryCount++;
                 }
@@ -208,7 +255,7 @@ public class ResDiffPatchInternal extends BasePatchInternal {
                         File storeFile = resPatchInfo.storeRes.get(name);
                         TinkerZipUtil.extractLargeModifyFile(modZipEntry, storeFile, modZipEntry.getCrc(), out);
                     } else {
-                        TinkerZipUtil.extractTinkerEntry(newApk, modZipEntry, out);
+                        extractPatchEntry(checker, newApk, modZipEntry, out);
                     }
                     totalEntryCount++;
                 }
@@ -219,6 +266,11 @@ public class ResDiffPatchInternal extends BasePatchInternal {
                 IOHelper.closeQuietly(oldApk);
                 IOHelper.closeQuietly(newApk);
 
+                // tasks may be still running if we failed halfway
+                shutdownAndWait(largeModPatchExecutor);
+                SharePatchFileUtil.closeZip(apkFile);
+                SharePatchFileUtil.closeZip(patchZipFile);
+
                 //delete temp files
                 SharePatchFileUtil.deleteDir(tempResFileDirectory);
             }
@@ -231,24 +283,112 @@ public class ResDiffPatchInternal extends BasePatchInternal {
                 return false;
             }
 
+            String misalignedEntry = alignPolicy.findMisalignedEntry(resOutput);
+            if (misalignedEntry != null) {
+                // still a valid apk, it just costs more memory to load
+                ShareTinkerLog.w(TAG, "entry %s of new resource file is not aligned", misalignedEntry);
+            }
+
             ShareTinkerLog.i(TAG, "final new resource file:%s, entry count:%d, size:%d", resOutput.getAbsolutePath(), totalEntryCount, resOutput.length());
         } catch (Throwable e) {
+            // it may be written halfway, or with an entry failing the signature check
+            SharePatchFileUtil.safeDeleteFile(resOutput);
             throw new TinkerRuntimeException("patch " + ShareTinkerInternals.getTypeString(type) +  " extract failed (" + e.getMessage() + ").", e);
         }
         return true;
     }
 
-    private static boolean checkAndExtractResourceLargeFile(Context context, String apkPath, File directory, File tempFileDirtory,
-                                                            File patchFile, ShareResPatchInfo resPatchInfo, int type, boolean useCustomPatcher) {
+    /**
+     * The plan is read through the patch zip file opened by the security check, it is inflated
+     * and verified against the signed digests, unlike the raw streams of {@link TinkerZipFile}.
+     *
+     * @return null if there is no entry plan in the patch or it doesn't match the base apk,
+     * we would rebuild resources.apk by names then.
+     */
+    private static TinkerZipEntryPlan readResEntryPlan(ZipFile patchZipFile, TinkerZipEntry[] oldEntries, ShareResPatchInfo resPatchInfo) {
+        final ZipEntry planEntry = patchZipFile.getEntry(ShareConstants.RES_ENTRY_PLAN_FILE);
+        if (planEntry == null) {
+            ShareTinkerLog.i(TAG, "no resource entry plan in patch, rebuild by names");
+            return null;
+        }
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(patchZipFile.getInputStream(planEntry));
+            final TinkerZipEntryPlan entryPlan = TinkerZipEntryPlan.read(is);
+            if (!entryPlan.matches(oldEntries, ShareConstants.RES_MANIFEST, resPatchInfo.largeModRes)) {
+                ShareTinkerLog.w(TAG, "resource entry plan mismatch with base apk, rebuild by names");
+                return null;
+            }
+            return entryPlan;
+        } catch (SecurityException e) {
+            // the patch is tampered, don't fall back
+            throw e;
+        } catch (Throwable thr) {
+            ShareTinkerLog.printErrStackTrace(TAG, thr, "read resource entry plan fail, rebuild by names");
+            return null;
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Added and modified entries are copied compressed from the patch through {@link TinkerZipFile},
+     * which skips the digest check of {@link ShareSecurityCheck#openPatchFile(File)}, so digest
+     * their inflated data while copying them.
+     */
+    private static void extractPatchEntry(ShareSecurityCheck checker, TinkerZipFile newApk, TinkerZipEntry zipEntry,
+                                          TinkerZipOutputStream out) throws IOException {
+        final MessageDigest digest = checker.newPatchEntryDigest(zipEntry.getName());
+        TinkerZipUtil.extractTinkerEntry(newApk, zipEntry, out, digest);
+        if (digest != null) {
+            checker.verifyPatchEntryDigest(zipEntry.getName(), digest);
+        }
+    }
+
+    private static int getLargeModPatchThreadCount(Context context, ShareResPatchInfo resPatchInfo, boolean useCustomPatcher) {
+        // we don't know whether the custom patcher is thread safe
+        if (useCustomPatcher && Tinker.with(context).getCustomPatcher() != null) {
+            return 1;
+        }
+        int count = Math.min(resPatchInfo.largeModRes.size(), MAX_LARGE_MOD_PATCH_THREADS);
+        count = Math.min(count, Runtime.getRuntime().availableProcessors() - 1);
+        return Math.max(count, 1);
+    }
+
+    private static boolean waitForLargeModPatchTask(Future<Boolean> task) throws Throwable {
+        if (task == null) {
+            return false;
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void shutdownAndWait(ExecutorService executor) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                ShareTinkerLog.w(TAG, "wait for large modify file patch tasks to finish");
+            }
+        } catch (InterruptedException e) {
+            ShareTinkerLog.e(TAG, "wait for large modify file patch tasks interrupted");
+        }
+    }
+
+    private static boolean checkAndExtractResourceLargeFile(final Context context, final ZipFile apkFile, final ZipFile patchZipFile, File tempFileDirtory,
+                                                            File patchFile, ShareResPatchInfo resPatchInfo, int type, final boolean useCustomPatcher,
+                                                            ExecutorService largeModPatchExecutor, Map<String, Future<Boolean>> largeModPatchTasks) {
         long start = System.currentTimeMillis();
         Tinker manager = Tinker.with(context);
-        ZipFile apkFile = null;
-        ZipFile patchZipFile = null;
         try {
             //recover resources.arsc first
-            apkFile = new ZipFile(apkPath);
             ZipEntry arscEntry = apkFile.getEntry(ShareConstants.RES_ARSC);
-            File arscFile = new File(directory, ShareConstants.RES_ARSC);
+            File arscFile = new File(tempFileDirtory.getParentFile(), ShareConstants.RES_ARSC);
             if (arscEntry == null) {
                 ShareTinkerLog.w(TAG, "resources apk entry is null. path:" + ShareConstants.RES_ARSC);
                 manager.getPatchReporter().onPatchTypeExtractFail(patchFile, arscFile, ShareConstants.RES_ARSC, type);
@@ -267,7 +407,6 @@ public class ResDiffPatchInternal extends BasePatchInternal {
                 ShareTinkerLog.i(TAG, "no large modify or store resources, just return");
                 return true;
             }
-            patchZipFile = new ZipFile(patchFile);
 
             for (String name : resPatchInfo.storeRes.keySet()) {
                 long storeStart = System.currentTimeMillis();
@@ -291,9 +430,8 @@ public class ResDiffPatchInternal extends BasePatchInternal {
 
                 ShareTinkerLog.w(TAG, "success recover store file:%s, file size:%d, use time:%d", destCopy.getPath(), destCopy.length(), (System.currentTimeMillis() - storeStart));
             }
-            for (String name : resPatchInfo.largeModRes) {
-                long largeStart = System.currentTimeMillis();
-                ShareResPatchInfo.LargeModeInfo largeModeInfo = resPatchInfo.largeModMap.get(name);
+            for (final String name : resPatchInfo.largeModRes) {
+                final ShareResPatchInfo.LargeModeInfo largeModeInfo = resPatchInfo.largeModMap.get(name);
 
                 if (largeModeInfo == null) {
                     ShareTinkerLog.w(TAG, "resource not found largeModeInfo, type:%s, name: %s", ShareTinkerInternals.getTypeString(type), name);
@@ -310,44 +448,46 @@ public class ResDiffPatchInternal extends BasePatchInternal {
                     manager.getPatchReporter().onPatchPackageCheckFail(patchFile, BasePatchInternal.getMetaCorruptedCode(type));
                     return false;
                 }
-                ZipEntry patchEntry = patchZipFile.getEntry(name);
+                final ZipEntry patchEntry = patchZipFile.getEntry(name);
                 if (patchEntry == null) {
                     ShareTinkerLog.w(TAG, "large mod patch entry is null. path:" + name);
                     manager.getPatchReporter().onPatchTypeExtractFail(patchFile, largeModeInfo.file, name, type);
                     return false;
                 }
 
-                ZipEntry baseEntry = apkFile.getEntry(name);
+                final ZipEntry baseEntry = apkFile.getEntry(name);
                 if (baseEntry == null) {
                     ShareTinkerLog.w(TAG, "resources apk entry is null. path:" + name);
                     manager.getPatchReporter().onPatchTypeExtractFail(patchFile, largeModeInfo.file, name, type);
                     return false;
                 }
-                InputStream oldStream = null;
-                InputStream newStream = null;
-                try {
-                    oldStream = apkFile.getInputStream(baseEntry);
-                    newStream = patchZipFile.getInputStream(patchEntry);
-                    FilePatchFactory.getFilePatcher(context, useCustomPatcher).patchFast(oldStream, newStream, largeModeInfo.file);
-                } finally {
-                    IOHelper.closeQuietly(oldStream);
-                    IOHelper.closeQuietly(newStream);
-                }
-                // go go go bsdiff get the
-                if (!SharePatchFileUtil.verifyFileMd5(largeModeInfo.file, largeModeInfo.md5)) {
-                    ShareTinkerLog.w(TAG, "Failed to recover large modify file:%s", largeModeInfo.file.getPath());
-                    SharePatchFileUtil.safeDeleteFile(largeModeInfo.file);
-                    manager.getPatchReporter().onPatchTypeExtractFail(patchFile, largeModeInfo.file, name, type);
-                    return false;
-                }
-                ShareTinkerLog.w(TAG, "success recover large modify file:%s, file size:%d, use time:%d", largeModeInfo.file.getPath(), largeModeInfo.file.length(), (System.currentTimeMillis() - largeStart));
+                largeModPatchTasks.put(name, largeModPatchExecutor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        long largeStart = System.currentTimeMillis();
+                        InputStream oldStream = null;
+                        InputStream newStream = null;
+                        try {
+                            oldStream = apkFile.getInputStream(baseEntry);
+                            newStream = patchZipFile.getInputStream(patchEntry);
+                            FilePatchFactory.getFilePatcher(context, useCustomPatcher).patchFast(oldStream, newStream, largeModeInfo.file);
+                        } finally {
+                            IOHelper.closeQuietly(oldStream);
+                            IOHelper.closeQuietly(newStream);
+                        }
+                        // go go go bsdiff get the
+                        if (!SharePatchFileUtil.verifyFileMd5(largeModeInfo.file, largeModeInfo.md5)) {
+                            return false;
+                        }
+                        ShareTinkerLog.w(TAG, "success recover large modify file:%s, file size:%d, use time:%d", largeModeInfo.file.getPath(), largeModeInfo.file.length(), (System.currentTimeMillis() - largeStart));
+                        return true;
+                    }
+                }));
             }
-            ShareTinkerLog.w(TAG, "success recover all large modify and store resources use time:%d", (System.currentTimeMillis() - start));
+            ShareTinkerLog.w(TAG, "success recover all store resources and submit %d large modify resources, use time:%d",
+                largeModPatchTasks.size(), (System.currentTimeMillis() - start));
         } catch (Throwable e) {
             throw new TinkerRuntimeException("patch " + ShareTinkerInternals.getTypeString(type) +  " extract failed (" + e.getMessage() + ").", e);
-        } finally {
-            SharePatchFileUtil.closeZip(apkFile);
-            SharePatchFileUtil.closeZip(patchZipFile);
         }
         return true;
     }
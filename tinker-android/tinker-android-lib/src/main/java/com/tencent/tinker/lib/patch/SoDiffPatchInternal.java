@@ -58,7 +58,7 @@ public class SoDiffPatchInternal extends BasePatchInternal {
             return true;
         }
         long begin = SystemClock.elapsedRealtime();
-        boolean result = patchLibraryExtractViaBsDiff(context, patchVersionDirectory, libMeta, patchFile, useCustomPatcher);
+        boolean result = patchLibraryExtractViaBsDiff(context, patchVersionDirectory, libMeta, patchFile, checker, useCustomPatcher);
         long cost = SystemClock.elapsedRealtime() - begin;
         patchResult.soCostTime = cost;
         ShareTinkerLog.i(TAG, "recover lib result:%b, cost:%d", result, cost);
@@ -66,12 +66,14 @@ public class SoDiffPatchInternal extends BasePatchInternal {
     }
 
 
-    private static boolean patchLibraryExtractViaBsDiff(Context context, String patchVersionDirectory, String meta, File patchFile, boolean useCustomPatcher) {
+    private static boolean patchLibraryExtractViaBsDiff(Context context, String patchVersionDirectory, String meta, File patchFile,
+                                                        ShareSecurityCheck checker, boolean useCustomPatcher) {
         String dir = patchVersionDirectory + "/" + SO_PATH + "/";
-        return extractBsDiffInternals(context, dir, meta, patchFile, TYPE_LIBRARY, useCustomPatcher);
+        return extractBsDiffInternals(context, dir, meta, patchFile, checker, TYPE_LIBRARY, useCustomPatcher);
     }
 
-    private static boolean extractBsDiffInternals(Context context, String dir, String meta, File patchFile, int type, boolean useCustomPatcher) {
+    private static boolean extractBsDiffInternals(Context context, String dir, String meta, File patchFile, ShareSecurityCheck checker,
+                                                  int type, boolean useCustomPatcher) {
         //parse
         ArrayList<ShareBsDiffPatchInfo> patchList = new ArrayList<>();
 
@@ -99,7 +101,8 @@ public class SoDiffPatchInternal extends BasePatchInternal {
         try {
             String apkPath = applicationInfo.sourceDir;
             apk = new ZipFile(apkPath);
-            patch = new ZipFile(patchFile);
+            // entries of the patch are verified with the signed manifest while we extract them
+            patch = checker.openPatchFile(patchFile);
 
             for (ShareBsDiffPatchInfo info : patchList) {
                 long start = System.currentTimeMillis();
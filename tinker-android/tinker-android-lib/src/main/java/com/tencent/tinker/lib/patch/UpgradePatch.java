@@ -20,6 +20,7 @@ import android.content.Context;
 import android.os.Build;
 
 import com.tencent.tinker.lib.service.PatchResult;
+import com.tencent.tinker.lib.service.TinkerDexOptimizeJobService;
 import com.tencent.tinker.lib.tinker.Tinker;
 import com.tencent.tinker.lib.util.UpgradePatchRetry;
 import com.tencent.tinker.loader.shareutil.ShareConstants;
@@ -41,6 +42,24 @@ import java.util.Map;
 public class UpgradePatch extends AbstractPatch {
     private static final String TAG = "Tinker.UpgradePatch";
 
+    private final boolean deferDexOptimize;
+
+    public UpgradePatch() {
+        this(false);
+    }
+
+    /**
+     * @param deferDexOptimize if true, the patch is committed with a quick interpret or verify only dexopt,
+     *                         and the full speed compilation is done by {@link TinkerDexOptimizeJobService}
+     *                         when the device is idle. it only works on art before android o and after android q,
+     *                         for other versions we just fall back to the blocking dexopt.
+     *                         the job is lost on reboot unless it is persisted, see
+     *                         {@link TinkerDexOptimizeJobService#setPersisted(boolean)}.
+     */
+    public UpgradePatch(boolean deferDexOptimize) {
+        this.deferDexOptimize = deferDexOptimize;
+    }
+
     @Override
     public boolean tryPatch(Context context, String tempPatchPath, PatchResult patchResult) {
         Tinker manager = Tinker.with(context);
@@ -57,7 +76,8 @@ public class UpgradePatch extends AbstractPatch {
             return false;
         }
         //check the signature, we should create a new checker
-        ShareSecurityCheck signatureCheck = new ShareSecurityCheck(context);
+        //the signature block is verified only once here, entries are verified when they are extracted
+        ShareSecurityCheck signatureCheck = new ShareSecurityCheck(context, true);
 
         int returnCode = ShareTinkerInternals.checkTinkerPackage(context, manager.getTinkerFlags(), patchFile, signatureCheck);
         if (returnCode != ShareConstants.ERROR_PACKAGE_CHECK_OK) {
@@ -95,6 +115,16 @@ public class UpgradePatch extends AbstractPatch {
 
         SharePatchInfo oldInfo = SharePatchInfo.readAndCheckPropertyWithLock(patchInfoFile, patchInfoLockFile);
 
+        boolean deferDexOpt = deferDexOptimize && DexDiffPatchInternal.canDeferDexOptimize();
+        final String deferredOatDir = DexDiffPatchInternal.getDeferredDexOptimizeDir();
+        if (deferDexOpt && oldInfo != null && !ShareTinkerInternals.isNullOrNil(oldInfo.oldVersion)
+            && !deferredOatDir.equals(oldInfo.oatDir)) {
+            // the loaded patch uses another oat dir, other processes may still load it before main process restarts
+            ShareTinkerLog.w(TAG, "UpgradePatch tryPatch:old patch is loaded with oat dir %s, can't defer dexopt", oldInfo.oatDir);
+            deferDexOpt = false;
+        }
+        patchResult.isDexOptimizeDeferred = deferDexOpt;
+
         //it is a new patch, so we should not find a exist
         SharePatchInfo newInfo;
 
@@ -124,7 +154,12 @@ public class UpgradePatch extends AbstractPatch {
                 return true;
             }
             // if it is interpret now, use changing flag to wait main process
-            final String finalOatDir = usingInterpret ? ShareConstants.CHANING_DEX_OPTIMIZE_PATH : oldInfo.oatDir;
+            final String finalOatDir;
+            if (deferDexOpt) {
+                finalOatDir = deferredOatDir;
+            } else {
+                finalOatDir = usingInterpret ? ShareConstants.CHANING_DEX_OPTIMIZE_PATH : oldInfo.oatDir;
+            }
             if (!patchMd5.equals(oldInfo.newVersion) && !oldInfo.newVersion.equals(oldInfo.oldVersion)) {
                 // Currently applied patch is not the same as last applied one and the last applied one is not loaded,
                 // so we can delete the last applied patch to avoid patch artifacts accumulating.
@@ -140,7 +175,8 @@ public class UpgradePatch extends AbstractPatch {
             }
             newInfo = new SharePatchInfo(oldInfo.oldVersion, patchMd5, isProtectedApp, useCustomPatch, versionToRemove, Build.FINGERPRINT, finalOatDir, false);
         } else {
-            newInfo = new SharePatchInfo("", patchMd5, isProtectedApp, useCustomPatch, "", Build.FINGERPRINT, ShareConstants.DEFAULT_DEX_OPTIMIZE_PATH, false);
+            final String oatDir = deferDexOpt ? deferredOatDir : ShareConstants.DEFAULT_DEX_OPTIMIZE_PATH;
+            newInfo = new SharePatchInfo("", patchMd5, isProtectedApp, useCustomPatch, "", Build.FINGERPRINT, oatDir, false);
         }
 
         // it is a new patch, we first delete if there is any files
@@ -169,7 +205,7 @@ public class UpgradePatch extends AbstractPatch {
         }
 
         //we use destPatchFile instead of patchFile, because patchFile may be deleted during the patch process
-        if (!DexDiffPatchInternal.tryRecoverDexFiles(manager, signatureCheck, context, patchVersionDirectory, destPatchFile, patchResult)) {
+        if (!DexDiffPatchInternal.tryRecoverDexFiles(manager, signatureCheck, context, patchVersionDirectory, destPatchFile, patchResult, deferDexOpt)) {
             ShareTinkerLog.e(TAG, "UpgradePatch tryPatch:new patch recover, try patch dex failed");
             return false;
         }
@@ -207,6 +243,11 @@ public class UpgradePatch extends AbstractPatch {
         // patch apply disable when we apply it successfully previously.
         UpgradePatchRetry.getInstance(context).onPatchResetMaxCheck(patchMd5);
 
+        if (deferDexOpt && !TinkerDexOptimizeJobService.schedule(context, patchMd5)) {
+            // patch still works with the quick dexopt result, just slower
+            ShareTinkerLog.w(TAG, "UpgradePatch tryPatch: schedule deferred dexopt fail");
+        }
+
         ShareTinkerLog.w(TAG, "UpgradePatch tryPatch: done, it is ok");
         return true;
     }
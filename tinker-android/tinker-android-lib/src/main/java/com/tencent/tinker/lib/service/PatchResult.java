@@ -44,6 +44,8 @@ public class PatchResult implements Serializable {
 
     public boolean isOatGenerated;
 
+    public boolean isDexOptimizeDeferred;
+
     public Throwable e;
 
     //@Nullable
@@ -58,6 +60,7 @@ public class PatchResult implements Serializable {
         sb.append("costTime:" + totalCostTime + "\n");
         sb.append("dexoptTriggerTime:" + dexoptTriggerTime + "\n");
         sb.append("isOatGenerated:" + isOatGenerated + "\n");
+        sb.append("isDexOptimizeDeferred:" + isDexOptimizeDeferred + "\n");
         if (patchVersion != null) {
             sb.append("patchVersion:" + patchVersion + "\n");
         }
@@ -0,0 +1,223 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.lib.service;
+
+import android.Manifest;
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.util.SparseArray;
+
+import com.tencent.tinker.lib.patch.DexDiffPatchInternal;
+import com.tencent.tinker.loader.shareutil.ShareConstants;
+import com.tencent.tinker.loader.shareutil.SharePatchFileUtil;
+import com.tencent.tinker.loader.shareutil.SharePatchInfo;
+import com.tencent.tinker.loader.shareutil.ShareTinkerLog;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Second phase of the deferred dexopt install, see {@link com.tencent.tinker.lib.patch.UpgradePatch}.
+ * The patch is already committed with interpret or verified dex files, here we do the full speed
+ * compilation when the device is idle and charging, then switch the oat dir of patch info.
+ */
+@TargetApi(21)
+public class TinkerDexOptimizeJobService extends JobService {
+    private static final String TAG = "Tinker.TinkerDexOptimizeJobService";
+
+    private static final String PATCH_VERSION_EXTRA = "patch_version_extra";
+
+    private static int jobId = ShareConstants.TINKER_DEX_OPTIMIZE_JOB_ID;
+
+    private static boolean persisted = false;
+
+    private final SparseArray<DexOptimizeWorker> workers = new SparseArray<>();
+
+    /**
+     * set the job id if it is conflict with your own jobs
+     * @param id
+     */
+    public static void setJobId(int id) {
+        jobId = id;
+    }
+
+    /**
+     * keep the job across reboots, otherwise the patch stays interpret only if the device reboots
+     * before the job runs, until the next patch is installed.
+     * Tinker does not declare it for you, the app must declare
+     * android.permission.RECEIVE_BOOT_COMPLETED in its AndroidManifest.xml to enable it.
+     * @param persist
+     */
+    public static void setPersisted(boolean persist) {
+        persisted = persist;
+    }
+
+    public static boolean schedule(Context context, String patchVersion) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return false;
+        }
+        try {
+            final JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            if (scheduler == null) {
+                ShareTinkerLog.e(TAG, "schedule deferred dexopt fail, job scheduler is null");
+                return false;
+            }
+            final PersistableBundle extras = new PersistableBundle();
+            extras.putString(PATCH_VERSION_EXTRA, patchVersion);
+            boolean persist = persisted;
+            if (persist && context.checkCallingOrSelfPermission(Manifest.permission.RECEIVE_BOOT_COMPLETED)
+                != PackageManager.PERMISSION_GRANTED) {
+                // the job scheduler refuses a persisted job without it
+                ShareTinkerLog.w(TAG, "RECEIVE_BOOT_COMPLETED is not declared, deferred dexopt job is not persisted");
+                persist = false;
+            }
+            final JobInfo jobInfo = new JobInfo.Builder(jobId, new ComponentName(context, TinkerDexOptimizeJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPersisted(persist)
+                .setExtras(extras)
+                .build();
+            // a newer patch would replace the pending job of the old one
+            final boolean result = scheduler.schedule(jobInfo) == JobScheduler.RESULT_SUCCESS;
+            ShareTinkerLog.i(TAG, "schedule deferred dexopt for patch %s, result: %b", patchVersion, result);
+            return result;
+        } catch (Throwable thr) {
+            ShareTinkerLog.printErrStackTrace(TAG, thr, "schedule deferred dexopt fail");
+            return false;
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final String patchVersion = params.getExtras().getString(PATCH_VERSION_EXTRA);
+        if (patchVersion == null) {
+            ShareTinkerLog.e(TAG, "deferred dexopt job without patch version, ignoring.");
+            return false;
+        }
+        final DexOptimizeWorker worker = new DexOptimizeWorker(params, getApplicationContext(), patchVersion);
+        synchronized (workers) {
+            workers.put(params.getJobId(), worker);
+        }
+        worker.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        final DexOptimizeWorker worker;
+        synchronized (workers) {
+            worker = workers.get(params.getJobId());
+            workers.remove(params.getJobId());
+        }
+        if (worker != null) {
+            worker.cancel();
+        }
+        // device is not idle any more, odex files generated so far are kept, just do it again next time.
+        return true;
+    }
+
+    private final class DexOptimizeWorker extends Thread {
+        private final JobParameters params;
+        private final Context       context;
+        private final String        patchVersion;
+        // set once the job is either finished by us or stopped by the system
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        DexOptimizeWorker(JobParameters params, Context context, String patchVersion) {
+            super("TinkerDexOptimizeJob");
+            this.params = params;
+            this.context = context;
+            this.patchVersion = patchVersion;
+        }
+
+        void cancel() {
+            if (done.compareAndSet(false, true)) {
+                interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean needsReschedule = false;
+            try {
+                needsReschedule = !optimizeAndSwitchOatDir(context, patchVersion);
+            } catch (Throwable thr) {
+                ShareTinkerLog.printErrStackTrace(TAG, thr, "deferred dexopt for patch %s fail", patchVersion);
+                needsReschedule = true;
+            } finally {
+                synchronized (workers) {
+                    if (workers.get(params.getJobId()) == this) {
+                        workers.remove(params.getJobId());
+                    }
+                }
+                // the system does not expect jobFinished once it has stopped the job
+                if (done.compareAndSet(false, true)) {
+                    jobFinished(params, needsReschedule);
+                } else {
+                    ShareTinkerLog.i(TAG, "deferred dexopt for patch %s is stopped", patchVersion);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if we should try again later
+     */
+    private static boolean optimizeAndSwitchOatDir(Context context, String patchVersion) {
+        final File patchDirectory = SharePatchFileUtil.getPatchDirectory(context);
+        if (patchDirectory == null) {
+            return true;
+        }
+        final File patchInfoFile = SharePatchFileUtil.getPatchInfoFile(patchDirectory.getAbsolutePath());
+        final File patchInfoLockFile = SharePatchFileUtil.getPatchInfoLockFile(patchDirectory.getAbsolutePath());
+
+        final SharePatchInfo patchInfo = SharePatchInfo.readAndCheckPropertyWithLock(patchInfoFile, patchInfoLockFile);
+        if (patchInfo == null || !patchVersion.equals(patchInfo.newVersion)) {
+            ShareTinkerLog.w(TAG, "patch %s is not the current patch any more, skip deferred dexopt", patchVersion);
+            return true;
+        }
+        final String patchVersionDirectory = patchDirectory.getAbsolutePath() + "/"
+            + SharePatchFileUtil.getPatchVersionDirectory(patchVersion);
+
+        if (!DexDiffPatchInternal.optimizeDexFilesDeferred(context, patchVersionDirectory)) {
+            return false;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            // stopped after the last dex file, the odex files are complete but leave the switch to next run
+            return false;
+        }
+        if (!ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH.equals(patchInfo.oatDir)) {
+            // odex files are placed in the same dir, runtime would pick them up on next launch
+            return true;
+        }
+        // main process would use the odex files and remove the interpret ones on next launch,
+        // other processes keep using the interpret ones until then.
+        if (!SharePatchInfo.changeOatDirWithLock(patchInfoFile, patchInfoLockFile, patchVersion,
+            ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH, ShareConstants.CHANING_DEX_OPTIMIZE_PATH)) {
+            ShareTinkerLog.w(TAG, "switch oat dir of patch %s fail", patchVersion);
+        }
+        return true;
+    }
+}
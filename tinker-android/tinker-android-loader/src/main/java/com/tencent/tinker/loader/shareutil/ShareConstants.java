@@ -82,6 +82,7 @@ public class ShareConstants {
 
 
     public static final String RES_META_FILE       = "assets/res_meta.txt";
+    public static final String RES_ENTRY_PLAN_FILE = "assets/res_entry_plan.bin";
     public static final String RES_ARSC            = "resources.arsc";
     public static final String RES_MANIFEST        = "AndroidManifest.xml";
     public static final String RES_TITLE           = "resources_out.zip";
@@ -131,6 +132,12 @@ public class ShareConstants {
      */
     public static final int TINKER_PATCH_SERVICE_NOTIFICATION = -1119860829;
 
+    /**
+     * job id of the deferred dexopt job,
+     * if you want to define it, use {@code TinkerDexOptimizeJobService.setJobId}
+     */
+    public static final int TINKER_DEX_OPTIMIZE_JOB_ID = -1119860830;
+
     //resource type
     public static final int TYPE_PATCH_FILE = 1;
     public static final int TYPE_PATCH_INFO = 2;
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.HashMap;
@@ -109,6 +110,97 @@ public class ShareElfFile implements Closeable {
         }
     }
 
+    /**
+     * Map the whole {@code file} read only, the mapping is still valid after the channel is closed.
+     */
+    public static MappedByteBuffer mapReadOnly(File file) throws IOException {
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            final FileChannel channel = is.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (Throwable thr) {
+                    // Ignored.
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the file offset of section {@code name} in a mapped elf file without creating
+     * any header object, only the elf header and the section header table are touched.
+     *
+     * @param elfBuffer
+     *  the mapped elf file, its byte order will be set to the data order of the elf file.
+     * @return
+     *  offset of the section, or -1 if the section is not found.
+     */
+    public static long findSectionOffsetByName(ByteBuffer elfBuffer, String name) throws IOException {
+        if (elfBuffer.limit() < 0x10 || elfBuffer.get(0) != 0x7F || elfBuffer.get(1) != 'E'
+                || elfBuffer.get(2) != 'L' || elfBuffer.get(3) != 'F') {
+            throw new IOException("bad elf magic.");
+        }
+        final byte elfClass = elfBuffer.get(ElfHeader.EI_CLASS);
+        final byte elfData = elfBuffer.get(ElfHeader.EI_DATA);
+        assertInRange(elfClass, ElfHeader.ELFCLASS32, ElfHeader.ELFCLASS64, "bad elf class: " + elfClass);
+        assertInRange(elfData, ElfHeader.ELFDATA2LSB, ElfHeader.ELFDATA2MSB, "bad elf data encoding: " + elfData);
+        elfBuffer.order(elfData == ElfHeader.ELFDATA2LSB ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+        final boolean is32Bit = (elfClass == ElfHeader.ELFCLASS32);
+        // the last field read below is e_shstrndx, which ends the elf header
+        final int elfHeaderSize = is32Bit ? 0x34 : 0x40;
+        if (elfBuffer.limit() < elfHeaderSize) {
+            throw new IOException("truncated elf header, file size: " + elfBuffer.limit());
+        }
+        final long shOff = is32Bit ? (elfBuffer.getInt(0x20) & 0xFFFFFFFFL) : elfBuffer.getLong(0x28);
+        final int shEntSize = elfBuffer.getShort(is32Bit ? 0x2E : 0x3A) & 0xFFFF;
+        final int shNum = elfBuffer.getShort(is32Bit ? 0x30 : 0x3C) & 0xFFFF;
+        final int shStrNdx = elfBuffer.getShort(is32Bit ? 0x32 : 0x3E) & 0xFFFF;
+        if (shStrNdx == 0 || shStrNdx >= shNum) {
+            return -1;
+        }
+        final int shOffsetFieldOffset = is32Bit ? 0x10 : 0x18;
+        final long shStrTabOff = getSectionHeaderLong(elfBuffer, is32Bit, shOff + (long) shStrNdx * shEntSize + shOffsetFieldOffset);
+        for (int i = 0; i < shNum; ++i) {
+            final long shdrOff = shOff + (long) i * shEntSize;
+            final long nameOff = shStrTabOff + (elfBuffer.getInt(checkOffset(elfBuffer, shdrOff, 4)) & 0xFFFFFFFFL);
+            if (isCStringEquals(elfBuffer, nameOff, name)) {
+                return getSectionHeaderLong(elfBuffer, is32Bit, shdrOff + shOffsetFieldOffset);
+            }
+        }
+        return -1;
+    }
+
+    private static long getSectionHeaderLong(ByteBuffer elfBuffer, boolean is32Bit, long offset) throws IOException {
+        if (is32Bit) {
+            return elfBuffer.getInt(checkOffset(elfBuffer, offset, 4)) & 0xFFFFFFFFL;
+        } else {
+            return elfBuffer.getLong(checkOffset(elfBuffer, offset, 8));
+        }
+    }
+
+    private static int checkOffset(ByteBuffer buffer, long offset, int size) throws IOException {
+        if (offset < 0 || offset + size > buffer.limit()) {
+            throw new IOException("offset out of range: " + offset + ", file size: " + buffer.limit());
+        }
+        return (int) offset;
+    }
+
+    private static boolean isCStringEquals(ByteBuffer buffer, long offset, String str) throws IOException {
+        final int len = str.length();
+        final int begin = checkOffset(buffer, offset, len + 1);
+        for (int i = 0; i < len; ++i) {
+            if (buffer.get(begin + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return buffer.get(begin + len) == 0;
+    }
+
     public static void readUntilLimit(FileChannel channel, ByteBuffer bufferOut, String errMsg) throws IOException {
         bufferOut.rewind();
         int bytesRead = channel.read(bufferOut);
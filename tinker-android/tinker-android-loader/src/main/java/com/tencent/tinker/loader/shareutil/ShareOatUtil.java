@@ -18,9 +18,7 @@ package com.tencent.tinker.loader.shareutil;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.charset.Charset;
+import java.nio.MappedByteBuffer;
 
 /**
  * Created by tangyinsheng on 2017/3/14.
@@ -46,98 +44,79 @@ public final class ShareOatUtil {
      *  If anything wrong when parsing the elf format or locating target field in oat header.
      */
     public static String getOatFileInstructionSet(File oatFile) throws Throwable {
-        ShareElfFile elfFile = null;
-        String result = "";
-        try {
-            elfFile = new ShareElfFile(oatFile);
-            final ShareElfFile.SectionHeader roDataHdr = elfFile.getSectionHeaderByName(".rodata");
-            if (roDataHdr == null) {
-                throw new IOException("Unable to find .rodata section.");
-            }
-
-            final FileChannel channel = elfFile.getChannel();
-            channel.position(roDataHdr.shOffset);
-
-            final byte[] oatMagicAndVersion = new byte[8];
-            ShareElfFile.readUntilLimit(channel, ByteBuffer.wrap(oatMagicAndVersion), "Failed to read oat magic and version.");
+        return parseOatFileInstructionSet(ShareElfFile.mapReadOnly(oatFile));
+    }
 
-            if (oatMagicAndVersion[0] != 'o'
-                    || oatMagicAndVersion[1] != 'a'
-                    || oatMagicAndVersion[2] != 't'
-                    || oatMagicAndVersion[3] != '\n') {
-                throw new IOException(
-                        String.format("Bad oat magic: %x %x %x %x",
-                                oatMagicAndVersion[0],
-                                oatMagicAndVersion[1],
-                                oatMagicAndVersion[2],
-                                oatMagicAndVersion[3])
-                );
-            }
+    /**
+     * Only the elf header, the section header table and the first fields of oat header
+     * in .rodata are read, all of them are read from the mapping in place.
+     */
+    private static String parseOatFileInstructionSet(MappedByteBuffer elfBuffer) throws IOException {
+        final long roDataOffset = ShareElfFile.findSectionOffsetByName(elfBuffer, ".rodata");
+        if (roDataOffset < 0) {
+            throw new IOException("Unable to find .rodata section.");
+        }
+        // magic(4) + version(4) + adler32 checksum(4) + isa(4)
+        if (roDataOffset + 16 > elfBuffer.limit()) {
+            throw new IOException("Failed to read oat header, file size: " + elfBuffer.limit());
+        }
+        final int oatBegin = (int) roDataOffset;
 
-            final int versionOffsetFromOatBegin = 4;
-            final int versionBytes = 3;
+        if (elfBuffer.get(oatBegin) != 'o'
+                || elfBuffer.get(oatBegin + 1) != 'a'
+                || elfBuffer.get(oatBegin + 2) != 't'
+                || elfBuffer.get(oatBegin + 3) != '\n') {
+            throw new IOException(
+                    String.format("Bad oat magic: %x %x %x %x",
+                            elfBuffer.get(oatBegin),
+                            elfBuffer.get(oatBegin + 1),
+                            elfBuffer.get(oatBegin + 2),
+                            elfBuffer.get(oatBegin + 3))
+            );
+        }
 
-            final String oatVersion = new String(oatMagicAndVersion,
-                    versionOffsetFromOatBegin, versionBytes, Charset.forName("ASCII"));
-            try {
-                Integer.parseInt(oatVersion);
-            } catch (NumberFormatException e) {
-                throw new IOException("Bad oat version: " + oatVersion);
+        final int versionOffsetFromOatBegin = 4;
+        final int versionBytes = 3;
+        for (int i = 0; i < versionBytes; ++i) {
+            final byte digit = elfBuffer.get(oatBegin + versionOffsetFromOatBegin + i);
+            if (digit < '0' || digit > '9') {
+                throw new IOException("Bad oat version at byte " + i + ": " + digit);
             }
+        }
 
-            ByteBuffer buffer = ByteBuffer.allocate(128);
-            buffer.order(elfFile.getDataOrder());
-            // TODO This is a risk point, since each oat version may use a different offset.
-            // So far it's ok. Perhaps we should use oatVersionNum to judge the right offset in
-            // the future.
-            final int isaNumOffsetFromOatBegin = 12;
-            channel.position(roDataHdr.shOffset + isaNumOffsetFromOatBegin);
-            buffer.limit(4);
-            ShareElfFile.readUntilLimit(channel, buffer, "Failed to read isa num.");
-
-            int isaNum = buffer.getInt();
-            if (isaNum < 0 || isaNum >= InstructionSet.values().length) {
-                throw new IOException("Bad isa num: " + isaNum);
-            }
+        // TODO This is a risk point, since each oat version may use a different offset.
+        // So far it's ok. Perhaps we should use oatVersionNum to judge the right offset in
+        // the future.
+        final int isaNumOffsetFromOatBegin = 12;
+        // byte order of the buffer has been set to the data order of elf file.
+        final int isaNum = elfBuffer.getInt(oatBegin + isaNumOffsetFromOatBegin);
+        if (isaNum < 0 || isaNum >= INSTRUCTION_SETS.length) {
+            throw new IOException("Bad isa num: " + isaNum);
+        }
 
-            switch (InstructionSet.values()[isaNum]) {
-                case kArm:
-                case kThumb2:
-                    result = "arm";
-                    break;
-                case kArm64:
-                    result = "arm64";
-                    break;
-                case kX86:
-                    result = "x86";
-                    break;
-                case kX86_64:
-                    result = "x86_64";
-                    break;
-                case kMips:
-                    result = "mips";
-                    break;
-                case kMips64:
-                    result = "mips64";
-                    break;
-                case kNone:
-                    result = "none";
-                    break;
-                default:
-                    throw new IOException("Should not reach here.");
-            }
-        } finally {
-            if (elfFile != null) {
-                try {
-                    elfFile.close();
-                } catch (Exception ignored) {
-                    // Ignored.
-                }
-            }
+        switch (INSTRUCTION_SETS[isaNum]) {
+            case kArm:
+            case kThumb2:
+                return "arm";
+            case kArm64:
+                return "arm64";
+            case kX86:
+                return "x86";
+            case kX86_64:
+                return "x86_64";
+            case kMips:
+                return "mips";
+            case kMips64:
+                return "mips64";
+            case kNone:
+                return "none";
+            default:
+                throw new IOException("Should not reach here.");
         }
-        return result;
     }
 
+    private static final InstructionSet[] INSTRUCTION_SETS = InstructionSet.values();
+
     private enum InstructionSet {
         kNone,
         kArm,
@@ -119,6 +119,51 @@ public class SharePatchInfo {
         return rewriteSuccess;
     }
 
+    /**
+     * change oat dir of patch info only if it still points to the expected version and dir,
+     * read and rewrite are done while holding the same lock, so other processes would never
+     * see a half changed state
+     *
+     * @return true if oat dir is changed
+     */
+    public static boolean changeOatDirWithLock(File pathInfoFile, File lockFile, String expectVersion,
+                                               String expectOatDir, String newOatDir) {
+        if (pathInfoFile == null || lockFile == null || expectVersion == null) {
+            return false;
+        }
+        File lockParentFile = lockFile.getParentFile();
+        if (!lockParentFile.exists()) {
+            lockParentFile.mkdirs();
+        }
+        boolean changeSuccess = false;
+        ShareFileLockHelper fileLock = null;
+        try {
+            fileLock = ShareFileLockHelper.getFileLock(lockFile);
+            SharePatchInfo info = readAndCheckProperty(pathInfoFile);
+            if (info == null || !expectVersion.equals(info.newVersion)) {
+                ShareTinkerLog.w(TAG, "changeOatDirWithLock: patch version is changed, expect:%s, current:%s",
+                    expectVersion, info == null ? null : info.newVersion);
+            } else if (expectOatDir != null && !expectOatDir.equals(info.oatDir)) {
+                ShareTinkerLog.w(TAG, "changeOatDirWithLock: oat dir is changed, expect:%s, current:%s",
+                    expectOatDir, info.oatDir);
+            } else {
+                info.oatDir = newOatDir;
+                changeSuccess = rewritePatchInfoFile(pathInfoFile, info);
+            }
+        } catch (Exception e) {
+            throw new TinkerRuntimeException("changeOatDirWithLock fail", e);
+        } finally {
+            try {
+                if (fileLock != null) {
+                    fileLock.close();
+                }
+            } catch (IOException e) {
+                ShareTinkerLog.i(TAG, "releaseInfoLock error", e);
+            }
+        }
+        return changeSuccess;
+    }
+
     private static SharePatchInfo readAndCheckProperty(File pathInfoFile) {
         boolean isReadPatchSuccessful = false;
         int numAttempts = 0;
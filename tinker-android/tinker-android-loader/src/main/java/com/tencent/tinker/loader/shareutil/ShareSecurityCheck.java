@@ -24,13 +24,24 @@ import android.content.pm.PackageManager;
 import com.tencent.tinker.loader.TinkerRuntimeException;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.Certificate;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Created by zhangshaowen on 16/3/10.
@@ -43,14 +54,37 @@ public class ShareSecurityCheck {
      */
     private static       String mPublicKeyMd5 = null;
 
+    private static final String META_INF = "META-INF/";
+    /**
+     * digest algorithms of the jar signing in preference order, names in the manifest and for MessageDigest
+     */
+    private static final String[] DIGEST_ATTRIBUTE_PREFIXES = {"SHA-256", "SHA1"};
+    private static final String[] DIGEST_ALGORITHMS         = {"SHA-256", "SHA-1"};
+
     private final Context                 mContext;
     private final HashMap<String, String> metaContentMap;
     private final HashMap<String, String> packageProperties;
+    private final boolean                 verifyEntriesOnExtract;
+    /**
+     * digests of the entries in the signed manifest, null if we don't verify entries on extract
+     * or the manifest can't be trusted as a whole
+     */
+    private HashMap<String, EntryDigest> signedEntryDigests;
 
     public ShareSecurityCheck(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param verifyEntriesOnExtract keep the digests of the signed manifest while checking the signature,
+     *                               so entries read from {@link #openPatchFile(File)} are verified by the
+     *                               extraction itself instead of another pass over the patch
+     */
+    public ShareSecurityCheck(Context context, boolean verifyEntriesOnExtract) {
         mContext = context;
         metaContentMap = new HashMap<>();
         packageProperties = new HashMap<>();
+        this.verifyEntriesOnExtract = verifyEntriesOnExtract;
         if (mPublicKeyMd5 == null) {
             init(mContext);
         }
@@ -99,10 +133,14 @@ public class ShareSecurityCheck {
         if (!SharePatchFileUtil.isLegalFile(path)) {
             return false;
         }
+        signedEntryDigests = null;
         JarFile jarFile = null;
         try {
             jarFile = new JarFile(path);
             final Enumeration<JarEntry> entries = jarFile.entries();
+            JarEntry signatureFileEntry = null;
+            int signatureFileCount = 0;
+            boolean signerChecked = false;
             while (entries.hasMoreElements()) {
                 JarEntry jarEntry = entries.nextElement();
                 // no code
@@ -111,7 +149,11 @@ public class ShareSecurityCheck {
                 }
 
                 final String name = jarEntry.getName();
-                if (name.startsWith("META-INF/")) {
+                if (name.startsWith(META_INF)) {
+                    if (isSignatureFile(name)) {
+                        signatureFileEntry = jarEntry;
+                        signatureFileCount++;
+                    }
                     continue;
                 }
                 //for faster, only check the meta.txt files
@@ -125,6 +167,16 @@ public class ShareSecurityCheck {
                 if (certs == null || !check(path, certs)) {
                     return false;
                 }
+                signerChecked = true;
+            }
+            // the signature block is verified with our certificate by now, with only one signer it
+            // signs the only signature file, then we can take the entry digests of the manifest
+            if (verifyEntriesOnExtract && signerChecked && signatureFileCount == 1) {
+                signedEntryDigests = loadSignedEntryDigests(jarFile, signatureFileEntry);
+            }
+            if (verifyEntriesOnExtract && signedEntryDigests == null) {
+                ShareTinkerLog.w(TAG, "can't verify entries of patch %s on extract, signature files: %d",
+                    path.getAbsolutePath(), signatureFileCount);
             }
         } catch (Exception e) {
             throw new TinkerRuntimeException(
@@ -141,6 +193,294 @@ public class ShareSecurityCheck {
         return true;
     }
 
+    /**
+     * Open the patch file to extract the entries. If the entry digests of the signed manifest are
+     * kept by {@link #verifyPatchMetaSignature(File)}, every entry except the ones in META-INF
+     * read from the returned zip file is digested while it is read and compared with the signed
+     * manifest at the end of the stream, a tampered or unsigned entry fails with
+     * {@link SecurityException}. Readers must read the entries to the end before committing
+     * anything made from them, our extractors and patchers all do.
+     */
+    public ZipFile openPatchFile(File patchFile) throws IOException {
+        if (signedEntryDigests == null) {
+            return new ZipFile(patchFile);
+        }
+        return new SignedPatchFile(patchFile, signedEntryDigests);
+    }
+
+    /**
+     * @return true if entries read from {@link #openPatchFile(File)} are verified with the signed manifest,
+     * callers reading entries in other ways must verify them through it themselves
+     */
+    public boolean isVerifyingPatchEntries() {
+        return signedEntryDigests != null;
+    }
+
+    /**
+     * For entries which are not read from {@link #openPatchFile(File)}, such as the ones copied compressed.
+     *
+     * @return a digest to feed the uncompressed data of the entry and check with
+     * {@link #verifyPatchEntryDigest(String, MessageDigest)}, or null if entries are not verified
+     * @throws SecurityException if the entry is not signed
+     */
+    public MessageDigest newPatchEntryDigest(String name) throws IOException {
+        if (signedEntryDigests == null) {
+            return null;
+        }
+        final EntryDigest expected = signedEntryDigests.get(name);
+        if (expected == null) {
+            throw new SecurityException("entry " + name + " is not signed in patch");
+        }
+        return expected.newMessageDigest();
+    }
+
+    /**
+     * @param digest from {@link #newPatchEntryDigest(String)}, fed with all the uncompressed data of the entry
+     * @throws SecurityException if the entry mismatches the signed manifest
+     */
+    public void verifyPatchEntryDigest(String name, MessageDigest digest) {
+        final EntryDigest expected = (signedEntryDigests != null ? signedEntryDigests.get(name) : null);
+        if (expected == null || !MessageDigest.isEqual(expected.digest, digest.digest())) {
+            throw new SecurityException("digest of entry " + name + " mismatches the signed manifest");
+        }
+    }
+
+    private static boolean isSignatureFile(String name) {
+        return name.indexOf('/', META_INF.length()) < 0 && name.toUpperCase(Locale.US).endsWith(".SF");
+    }
+
+    /**
+     * @return digests of the manifest entries, or null if the whole manifest is not signed by the signature file
+     */
+    private static HashMap<String, EntryDigest> loadSignedEntryDigests(JarFile jarFile, JarEntry signatureFileEntry) throws IOException {
+        final JarEntry manifestEntry = jarFile.getJarEntry(JarFile.MANIFEST_NAME);
+        if (manifestEntry == null) {
+            return null;
+        }
+        final byte[] manifestBytes = readEntry(jarFile, manifestEntry);
+        final Attributes signatureAttributes = new Manifest(new ByteArrayInputStream(readEntry(jarFile, signatureFileEntry))).getMainAttributes();
+        final EntryDigest manifestDigest = EntryDigest.fromAttributes(signatureAttributes, "-Digest-Manifest");
+        if (manifestDigest == null || !manifestDigest.matches(manifestBytes)) {
+            return null;
+        }
+        // parse the bytes we have digested, not the manifest that JarFile reads again
+        final Map<String, Attributes> sections = new Manifest(new ByteArrayInputStream(manifestBytes)).getEntries();
+        final HashMap<String, EntryDigest> digests = new HashMap<>(sections.size());
+        for (Map.Entry<String, Attributes> section : sections.entrySet()) {
+            final EntryDigest digest = EntryDigest.fromAttributes(section.getValue(), "-Digest");
+            if (digest != null) {
+                digests.put(section.getKey(), digest);
+            }
+        }
+        return digests;
+    }
+
+    private static byte[] readEntry(JarFile jarFile, JarEntry entry) throws IOException {
+        InputStream is = null;
+        try {
+            is = jarFile.getInputStream(entry);
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[ShareConstants.BUFFER_SIZE];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                os.write(buffer, 0, length);
+            }
+            return os.toByteArray();
+        } finally {
+            SharePatchFileUtil.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Decode the base64 digests of the manifests, android.util.Base64 is not there on the jvm
+     * and java.util.Base64 needs api 26.
+     */
+    static byte[] decodeBase64(String value) {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(value.length() * 3 / 4);
+        int bits = 0;
+        int bitCount = 0;
+        int paddingCount = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            final int sextet;
+            if (c >= 'A' && c <= 'Z') {
+                sextet = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                sextet = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                sextet = c - '0' + 52;
+            } else if (c == '+') {
+                sextet = 62;
+            } else if (c == '/') {
+                sextet = 63;
+            } else if (c == '=') {
+                paddingCount++;
+                continue;
+            } else if (Character.isWhitespace(c)) {
+                continue;
+            } else {
+                throw new IllegalArgumentException("bad base64 character at " + i);
+            }
+            if (paddingCount > 0) {
+                throw new IllegalArgumentException("bad base64 padding at " + i);
+            }
+            bits = (bits << 6) | sextet;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                os.write(bits >> bitCount);
+                bits &= (1 << bitCount) - 1;
+            }
+        }
+        // the left bits are only the padding of the last byte
+        if (bitCount >= 6 || bits != 0 || paddingCount > 2) {
+            throw new IllegalArgumentException("bad base64 ending");
+        }
+        return os.toByteArray();
+    }
+
+    private static final class EntryDigest {
+        final String algorithm;
+        final byte[] digest;
+
+        EntryDigest(String algorithm, byte[] digest) {
+            this.algorithm = algorithm;
+            this.digest = digest;
+        }
+
+        /**
+         * @return the strongest digest in the attributes, or null if there is none we know
+         */
+        static EntryDigest fromAttributes(Attributes attributes, String nameSuffix) {
+            for (int i = 0; i < DIGEST_ATTRIBUTE_PREFIXES.length; i++) {
+                final String value = attributes.getValue(DIGEST_ATTRIBUTE_PREFIXES[i] + nameSuffix);
+                if (value != null) {
+                    return new EntryDigest(DIGEST_ALGORITHMS[i], decodeBase64(value));
+                }
+            }
+            return null;
+        }
+
+        MessageDigest newMessageDigest() throws IOException {
+            try {
+                return MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        boolean matches(byte[] data) throws IOException {
+            return MessageDigest.isEqual(digest, newMessageDigest().digest(data));
+        }
+    }
+
+    /**
+     * Patch file whose entry streams are verified with the signed manifest.
+     */
+    private static final class SignedPatchFile extends ZipFile {
+        private final HashMap<String, EntryDigest> entryDigests;
+
+        SignedPatchFile(File file, HashMap<String, EntryDigest> entryDigests) throws IOException {
+            super(file);
+            this.entryDigests = entryDigests;
+        }
+
+        @Override
+        public InputStream getInputStream(ZipEntry entry) throws IOException {
+            final InputStream is = super.getInputStream(entry);
+            final String name = entry.getName();
+            if (is == null || name.startsWith(META_INF) || entry.isDirectory()) {
+                return is;
+            }
+            final EntryDigest digest = entryDigests.get(name);
+            if (digest == null) {
+                SharePatchFileUtil.closeQuietly(is);
+                throw new SecurityException("entry " + name + " is not signed in patch " + getName());
+            }
+            return new SignedEntryInputStream(is, name, digest);
+        }
+    }
+
+    /**
+     * Digest the entry on the way, and fail at the end of the stream if it mismatches the signed manifest.
+     */
+    private static final class SignedEntryInputStream extends FilterInputStream {
+        private final String        name;
+        private final EntryDigest   expected;
+        private final MessageDigest messageDigest;
+        private boolean             verified = false;
+        private boolean             mismatched = false;
+
+        SignedEntryInputStream(InputStream in, String name, EntryDigest expected) throws IOException {
+            super(in);
+            this.name = name;
+            this.expected = expected;
+            this.messageDigest = expected.newMessageDigest();
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b == -1) {
+                verify();
+            } else {
+                messageDigest.update((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int count = super.read(buffer, offset, length);
+            if (count == -1) {
+                verify();
+            } else {
+                messageDigest.update(buffer, offset, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            // skipped bytes must be digested too
+            final byte[] buffer = new byte[(int) Math.min(Math.max(byteCount, 0), ShareConstants.BUFFER_SIZE)];
+            long skipped = 0;
+            while (skipped < byteCount) {
+                final int count = read(buffer, 0, (int) Math.min(buffer.length, byteCount - skipped));
+                if (count == -1) {
+                    break;
+                }
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            // not supported, the digest can't go back
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        private void verify() {
+            if (!verified) {
+                verified = true;
+                mismatched = !MessageDigest.isEqual(expected.digest, messageDigest.digest());
+            }
+            // keep failing, in case someone reads it again after catching the first one
+            if (mismatched) {
+                throw new SecurityException("digest of entry " + name + " mismatches the signed manifest");
+            }
+        }
+    }
 
     // verify the signature of the Apk
     private boolean check(File path, Certificate[] certs) {
@@ -0,0 +1,90 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.loader.shareutil;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ShareElfFileTest {
+    private static final int  ELF64_HEADER_SIZE  = 0x40;
+    private static final int  ELF64_SHDR_SIZE    = 0x40;
+    private static final long RODATA_FILE_OFFSET = 0x1000;
+
+    @Test
+    public void findSection() throws IOException {
+        final byte[] elf = createElf64();
+        assertEquals(RODATA_FILE_OFFSET, ShareElfFile.findSectionOffsetByName(ByteBuffer.wrap(elf), ".rodata"));
+        assertEquals(-1, ShareElfFile.findSectionOffsetByName(ByteBuffer.wrap(elf), ".text"));
+    }
+
+    @Test
+    public void truncatedHeader() {
+        final byte[] elf = createElf64();
+        // every length which cuts the header, including the ones which keep the section header offset
+        for (int length = 0; length < ELF64_HEADER_SIZE; ++length) {
+            try {
+                ShareElfFile.findSectionOffsetByName(ByteBuffer.wrap(Arrays.copyOf(elf, length)), ".rodata");
+                fail("truncated header of " + length + " bytes is accepted");
+            } catch (IOException expected) {
+                // the header can not be read
+            }
+        }
+    }
+
+    @Test
+    public void truncatedSectionHeaders() {
+        final byte[] elf = createElf64();
+        try {
+            ShareElfFile.findSectionOffsetByName(ByteBuffer.wrap(Arrays.copyOf(elf, ELF64_HEADER_SIZE + 8)), ".rodata");
+            fail("truncated section headers are accepted");
+        } catch (IOException expected) {
+            // section headers are out of range
+        }
+    }
+
+    /**
+     * little endian 64 bit elf file with a null section, .shstrtab and .rodata
+     */
+    private static byte[] createElf64() {
+        final byte[] strTab = "\0.shstrtab\0.rodata\0".getBytes();
+        final int shOff = ELF64_HEADER_SIZE;
+        final int strTabOff = shOff + 3 * ELF64_SHDR_SIZE;
+        final ByteBuffer buffer = ByteBuffer.allocate(strTabOff + strTab.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[] {0x7F, 'E', 'L', 'F', ShareElfFile.ElfHeader.ELFCLASS64, ShareElfFile.ElfHeader.ELFDATA2LSB, 1});
+        buffer.putLong(0x28, shOff);
+        buffer.putShort(0x34, (short) ELF64_HEADER_SIZE);
+        buffer.putShort(0x3A, (short) ELF64_SHDR_SIZE);
+        buffer.putShort(0x3C, (short) 3);
+        buffer.putShort(0x3E, (short) 1);
+        // .shstrtab
+        buffer.putInt(shOff + ELF64_SHDR_SIZE, 1);
+        buffer.putLong(shOff + ELF64_SHDR_SIZE + 0x18, strTabOff);
+        // .rodata
+        buffer.putInt(shOff + 2 * ELF64_SHDR_SIZE, 11);
+        buffer.putLong(shOff + 2 * ELF64_SHDR_SIZE + 0x18, RODATA_FILE_OFFSET);
+        buffer.position(strTabOff);
+        buffer.put(strTab);
+        return buffer.array();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.loader.shareutil;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharePatchInfoTest {
+    private static final String OLD_VERSION = "0123456789abcdef0123456789abcdef";
+    private static final String NEW_VERSION = "fedcba9876543210fedcba9876543210";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File infoFile;
+    private File lockFile;
+
+    @BeforeClass
+    public static void setUpLog() throws Exception {
+        TestTinkerLog.bypassInlineFence();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        infoFile = new File(tempFolder.getRoot(), "patch.info");
+        lockFile = new File(tempFolder.getRoot(), "info.lock");
+        final SharePatchInfo info = new SharePatchInfo(OLD_VERSION, NEW_VERSION, false, false, "",
+            "fingerprint", ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH, false);
+        assertTrue(SharePatchInfo.rewritePatchInfoFileWithLock(infoFile, info, lockFile));
+    }
+
+    @Test
+    public void changeOatDir() {
+        assertTrue(SharePatchInfo.changeOatDirWithLock(infoFile, lockFile, NEW_VERSION,
+            ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH, ShareConstants.CHANING_DEX_OPTIMIZE_PATH));
+
+        final SharePatchInfo info = SharePatchInfo.readAndCheckPropertyWithLock(infoFile, lockFile);
+        assertEquals(ShareConstants.CHANING_DEX_OPTIMIZE_PATH, info.oatDir);
+        // the other fields are kept
+        assertEquals(OLD_VERSION, info.oldVersion);
+        assertEquals(NEW_VERSION, info.newVersion);
+        assertEquals("fingerprint", info.fingerPrint);
+    }
+
+    @Test
+    public void changeOatDirOnlyOnce() {
+        assertTrue(SharePatchInfo.changeOatDirWithLock(infoFile, lockFile, NEW_VERSION,
+            ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH, ShareConstants.CHANING_DEX_OPTIMIZE_PATH));
+        // a second job of the same patch sees the dir is already switched
+        assertFalse(SharePatchInfo.changeOatDirWithLock(infoFile, lockFile, NEW_VERSION,
+            ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH, ShareConstants.CHANING_DEX_OPTIMIZE_PATH));
+        assertEquals(ShareConstants.CHANING_DEX_OPTIMIZE_PATH,
+            SharePatchInfo.readAndCheckPropertyWithLock(infoFile, lockFile).oatDir);
+    }
+
+    @Test
+    public void keepOatDirOfNewerPatch() {
+        final SharePatchInfo newer = new SharePatchInfo(NEW_VERSION, OLD_VERSION, false, false, "",
+            "fingerprint", ShareConstants.DEFAULT_DEX_OPTIMIZE_PATH, false);
+        assertTrue(SharePatchInfo.rewritePatchInfoFileWithLock(infoFile, newer, lockFile));
+
+        assertFalse(SharePatchInfo.changeOatDirWithLock(infoFile, lockFile, NEW_VERSION,
+            ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH, ShareConstants.CHANING_DEX_OPTIMIZE_PATH));
+
+        final SharePatchInfo info = SharePatchInfo.readAndCheckPropertyWithLock(infoFile, lockFile);
+        assertEquals(OLD_VERSION, info.newVersion);
+        assertEquals(ShareConstants.DEFAULT_DEX_OPTIMIZE_PATH, info.oatDir);
+    }
+
+    @Test
+    public void keepOatDirIfMissing() {
+        assertFalse(SharePatchInfo.changeOatDirWithLock(new File(tempFolder.getRoot(), "missing.info"), lockFile,
+            NEW_VERSION, ShareConstants.INTERPRET_DEX_OPTIMIZE_PATH, ShareConstants.CHANING_DEX_OPTIMIZE_PATH));
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.loader.shareutil;
+
+import com.tencent.tinker.commons.arscpatcher.ArscPatchApplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * signed_patch.apk is signed by ApkSigner of tinker-patch-lib with the keystore of the sample app,
+ * the other cases are made from it by rewriting its entries.
+ */
+public class ShareSecurityCheckTest {
+    private static final String SIGNED_PATCH = "signed_patch.apk";
+    private static final String DEX_ENTRY    = "classes.dex";
+    private static final String ARSC_ENTRY   = "resources.arsc";
+    private static final String OLD_ARSC     = "old_resources.arsc";
+    private static final Charset UTF_8       = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File signedPatch;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        TestTinkerLog.bypassInlineFence();
+        // patches are signed with SHA1 for old devices, recent jdks treat jars signed with it as unsigned
+        Security.setProperty("jdk.jar.disabledAlgorithms", "MD2");
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        signedPatch = tempFolder.newFile(SIGNED_PATCH);
+        final InputStream is = getClass().getClassLoader().getResourceAsStream(SIGNED_PATCH);
+        try {
+            Files.write(signedPatch.toPath(), readFully(is));
+        } finally {
+            is.close();
+        }
+        // the signer of the patch plays the app, there is no package manager to ask
+        setPublicKeyMd5(SharePatchFileUtil.getMD5(readSigner(signedPatch).getEncoded()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        setPublicKeyMd5(null);
+    }
+
+    @Test
+    public void validPatch() throws Exception {
+        final ShareSecurityCheck checker = new ShareSecurityCheck(null, true);
+        assertTrue(checker.verifyPatchMetaSignature(signedPatch));
+        assertTrue(checker.isVerifyingPatchEntries());
+        assertNotNull(checker.getMetaContentMap().get(ShareConstants.DEX_META_FILE));
+
+        final ZipFile plain = new ZipFile(signedPatch);
+        final ZipFile patch = checker.openPatchFile(signedPatch);
+        try {
+            for (ZipEntry entry : Collections.list(patch.entries())) {
+                assertArrayEquals(entry.getName(), readEntry(plain, entry.getName()), readEntry(patch, entry.getName()));
+            }
+        } finally {
+            patch.close();
+            plain.close();
+        }
+    }
+
+    @Test
+    public void otherSigner() throws Exception {
+        setPublicKeyMd5("0123456789abcdef0123456789abcdef");
+        assertFalse(new ShareSecurityCheck(null, true).verifyPatchMetaSignature(signedPatch));
+    }
+
+    @Test
+    public void modifiedEntryFailsAtEndOfStream() throws Exception {
+        final File modified = rewrite("modified.apk", DEX_ENTRY, null);
+        final ShareSecurityCheck checker = new ShareSecurityCheck(null, true);
+        // only the meta files are checked up front
+        assertTrue(checker.verifyPatchMetaSignature(modified));
+
+        final ZipFile patch = checker.openPatchFile(modified);
+        try {
+            final ZipEntry entry = patch.getEntry(DEX_ENTRY);
+            final InputStream is = patch.getInputStream(entry);
+            try {
+                // every byte is handed out, the mismatch is known at the end
+                final byte[] buffer = new byte[(int) entry.getSize()];
+                int read = 0;
+                while (read < buffer.length) {
+                    read += is.read(buffer, read, buffer.length - read);
+                }
+                try {
+                    is.read();
+                    fail("modified entry is verified");
+                } catch (SecurityException expected) {
+                    // digest mismatch
+                }
+                try {
+                    is.read(buffer);
+                    fail("modified entry is verified on the second try");
+                } catch (SecurityException expected) {
+                    // keeps failing
+                }
+            } finally {
+                is.close();
+            }
+            // the other entries are still fine
+            readEntry(patch, ShareConstants.DEX_META_FILE);
+        } finally {
+            patch.close();
+        }
+    }
+
+    @Test
+    public void tamperedArscPatch() throws Exception {
+        final File modified = rewrite("modified_arsc.apk", ARSC_ENTRY, null);
+        final InputStream oldArscIn = getClass().getClassLoader().getResourceAsStream(OLD_ARSC);
+        final byte[] oldArsc;
+        try {
+            oldArsc = readFully(oldArscIn);
+        } finally {
+            oldArscIn.close();
+        }
+        // the flipped byte is in the data of a replaced chunk, the applier can't tell by itself
+        final ZipFile plain = new ZipFile(modified);
+        try {
+            applyArscPatch(oldArsc, plain);
+        } finally {
+            plain.close();
+        }
+
+        final ShareSecurityCheck checker = new ShareSecurityCheck(null, true);
+        assertTrue(checker.verifyPatchMetaSignature(modified));
+        final ZipFile patch = checker.openPatchFile(modified);
+        try {
+            applyArscPatch(oldArsc, patch);
+            fail("tampered arsc patch is applied");
+        } catch (SecurityException expected) {
+            // the applier reads the patch to the end, where the digest mismatches
+        } finally {
+            patch.close();
+        }
+
+        // the untouched patch is fine
+        final ShareSecurityCheck signedChecker = new ShareSecurityCheck(null, true);
+        assertTrue(signedChecker.verifyPatchMetaSignature(signedPatch));
+        final ZipFile signed = signedChecker.openPatchFile(signedPatch);
+        try {
+            applyArscPatch(oldArsc, signed);
+        } finally {
+            signed.close();
+        }
+    }
+
+    @Test
+    public void entryDigestOfCopiedEntry() throws Exception {
+        final ShareSecurityCheck checker = new ShareSecurityCheck(null, true);
+        assertTrue(checker.verifyPatchMetaSignature(signedPatch));
+        final ZipFile plain = new ZipFile(signedPatch);
+        try {
+            final byte[] data = readEntry(plain, DEX_ENTRY);
+            final MessageDigest digest = checker.newPatchEntryDigest(DEX_ENTRY);
+            digest.update(data);
+            checker.verifyPatchEntryDigest(DEX_ENTRY, digest);
+
+            data[data.length / 2] ^= 1;
+            final MessageDigest modifiedDigest = checker.newPatchEntryDigest(DEX_ENTRY);
+            modifiedDigest.update(data);
+            try {
+                checker.verifyPatchEntryDigest(DEX_ENTRY, modifiedDigest);
+                fail("modified entry is verified");
+            } catch (SecurityException expected) {
+                // digest mismatch
+            }
+        } finally {
+            plain.close();
+        }
+        try {
+            checker.newPatchEntryDigest("assets/extra.bin");
+            fail("unsigned entry is digested");
+        } catch (SecurityException expected) {
+            // not in the manifest
+        }
+        // nothing to verify in legacy mode
+        final ShareSecurityCheck legacyChecker = new ShareSecurityCheck(null);
+        assertTrue(legacyChecker.verifyPatchMetaSignature(signedPatch));
+        assertNull(legacyChecker.newPatchEntryDigest(DEX_ENTRY));
+    }
+
+    @Test
+    public void entryMissingFromManifest() throws Exception {
+        final File extra = rewrite("extra.apk", null, "assets/extra.bin");
+        final ShareSecurityCheck checker = new ShareSecurityCheck(null, true);
+        assertTrue(checker.verifyPatchMetaSignature(extra));
+
+        final ZipFile patch = checker.openPatchFile(extra);
+        try {
+            patch.getInputStream(patch.getEntry("assets/extra.bin"));
+            fail("unsigned entry is opened");
+        } catch (SecurityException expected) {
+            // not in the manifest
+        } finally {
+            patch.close();
+        }
+    }
+
+    @Test
+    public void badDigestManifest() throws Exception {
+        // add an entry together with its own section in the manifest, the sections signed by
+        // CERT.SF still verify one by one, but the manifest mismatches *-Digest-Manifest
+        final File badManifest = rewrite("bad_manifest.apk", JarFile.MANIFEST_NAME, "assets/extra.bin");
+        final ShareSecurityCheck checker = new ShareSecurityCheck(null, true);
+        assertTrue(checker.verifyPatchMetaSignature(badManifest));
+        // the digests of the manifest can't be trusted
+        assertFalse(checker.isVerifyingPatchEntries());
+        final ZipFile patch = checker.openPatchFile(badManifest);
+        try {
+            assertEquals(ZipFile.class, patch.getClass());
+        } finally {
+            patch.close();
+        }
+    }
+
+    @Test
+    public void twoSigners() throws Exception {
+        final File twoSigners = rewrite("two_signers.apk", null, "META-INF/OTHER.SF");
+        final ShareSecurityCheck checker = new ShareSecurityCheck(null, true);
+        assertTrue(checker.verifyPatchMetaSignature(twoSigners));
+        // we don't know which signature file our certificate signs
+        assertFalse(checker.isVerifyingPatchEntries());
+    }
+
+    @Test
+    public void legacyMode() throws Exception {
+        final ShareSecurityCheck checker = new ShareSecurityCheck(null);
+        assertTrue(checker.verifyPatchMetaSignature(signedPatch));
+        assertFalse(checker.isVerifyingPatchEntries());
+    }
+
+    @Test
+    public void decodeBase64() {
+        final Random random = new Random(49);
+        for (int length = 0; length < 70; length++) {
+            final byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertArrayEquals(data, ShareSecurityCheck.decodeBase64(Base64.getEncoder().encodeToString(data)));
+        }
+        for (String bad : new String[] {"A", "AB=C", "ABC*", "AB==="}) {
+            try {
+                ShareSecurityCheck.decodeBase64(bad);
+                fail(bad + " is decoded");
+            } catch (IllegalArgumentException expected) {
+                // not base64
+            }
+        }
+    }
+
+    /**
+     * Copy the signed patch, flipping a byte of {@code modifiedEntry} and adding {@code addedEntry}
+     * with the content of CERT.SF. If the manifest is modified, a section of the added entry is
+     * appended to it instead.
+     */
+    private File rewrite(String name, String modifiedEntry, String addedEntry) throws Exception {
+        final File output = tempFolder.newFile(name);
+        final ZipFile input = new ZipFile(signedPatch);
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(output));
+        try {
+            final Map<String, byte[]> entries = new LinkedHashMap<>();
+            for (ZipEntry entry : Collections.list(input.entries())) {
+                entries.put(entry.getName(), readEntry(input, entry.getName()));
+            }
+            if (addedEntry != null) {
+                entries.put(addedEntry, entries.get("META-INF/CERT.SF"));
+                if (addedEntry.endsWith(".SF")) {
+                    entries.put(addedEntry.replace(".SF", ".RSA"), entries.get("META-INF/CERT.RSA"));
+                }
+            }
+            if (JarFile.MANIFEST_NAME.equals(modifiedEntry)) {
+                final String section = "Name: " + addedEntry + "\r\nSHA1-Digest: "
+                    + Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA1").digest(entries.get(addedEntry))) + "\r\n\r\n";
+                entries.put(modifiedEntry, (new String(entries.get(modifiedEntry), UTF_8) + section).getBytes(UTF_8));
+            } else if (modifiedEntry != null) {
+                final byte[] data = entries.get(modifiedEntry);
+                data[data.length / 2] ^= 1;
+            }
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zos.putNextEntry(new ZipEntry(entry.getKey()));
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+            input.close();
+        }
+        return output;
+    }
+
+    private static void applyArscPatch(byte[] oldArsc, ZipFile patch) throws IOException {
+        final InputStream is = patch.getInputStream(patch.getEntry(ARSC_ENTRY));
+        try {
+            new ArscPatchApplier(oldArsc, is).executeAndSaveTo(new ByteArrayOutputStream());
+        } finally {
+            is.close();
+        }
+    }
+
+    private static Certificate readSigner(File file) throws IOException {
+        final JarFile jarFile = new JarFile(file, true);
+        try {
+            final JarEntry entry = jarFile.getJarEntry(ShareConstants.DEX_META_FILE);
+            // certificates are known after the entry is read to the end
+            readFully(jarFile.getInputStream(entry));
+            return entry.getCertificates()[0];
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private static void setPublicKeyMd5(String md5) throws Exception {
+        final Field field = ShareSecurityCheck.class.getDeclaredField("mPublicKeyMd5");
+        field.setAccessible(true);
+        field.set(null, md5);
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, String name) throws IOException {
+        final InputStream is = zipFile.getInputStream(zipFile.getEntry(name));
+        try {
+            return readFully(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+            os.write(buffer, 0, length);
+        }
+        return os.toByteArray();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.loader.shareutil;
+
+import android.os.Handler;
+
+import java.lang.reflect.Field;
+
+/**
+ * Local unit tests run against the stub android.jar, where Message.obtain returns null and the
+ * inline fence of {@link ShareTinkerLog} can't handle it.
+ */
+final class TestTinkerLog {
+
+    private TestTinkerLog() {
+    }
+
+    /**
+     * Drop the inline fence, so logs go to the default log impl directly, as on a process
+     * failing to create the fence.
+     */
+    static void bypassInlineFence() throws Exception {
+        final Field field = ShareTinkerLog.class.getDeclaredField("tinkerLogInlineFenceRef");
+        field.setAccessible(true);
+        final Handler[] inlineFenceRef = (Handler[]) field.get(null);
+        synchronized (inlineFenceRef) {
+            inlineFenceRef[0] = null;
+        }
+    }
+}
@@ -17,19 +17,37 @@
 package com.tencent.tinker.patch;
 
 
+import com.tencent.tinker.build.patch.BatchRunner;
 import com.tencent.tinker.build.patch.Configuration;
 import com.tencent.tinker.build.patch.Runner;
+import com.tencent.tinker.build.util.ApkEntryCache;
+import com.tencent.tinker.build.util.ApkEntryCachePool;
+import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
+import com.tencent.tinker.commons.util.IOHelper;
 
 import org.xml.sax.SAXException;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -44,6 +62,14 @@ public class CliMain extends Runner {
     private static final String ARG_OLD    = "-old";
     private static final String ARG_NEW    = "-new";
     private static final String ARG_CUSTOM_PATH = "-customPath";
+    private static final String ARG_THREADS = "-threads";
+    private static final String ARG_DAEMON  = "-daemon";
+    private static final String ARG_CACHE_SIZE = "-cacheSize";
+
+    private static final String DAEMON_SHUTDOWN   = "-shutdown";
+    private static final String DAEMON_CACHE_DIR  = "tinker_daemon_cache_";
+    private static final String DAEMON_TOKEN_FILE = "tinker_daemon_%d.token";
+    private static final int    DAEMON_CACHE_SIZE = 4;
 
     protected static String mRunningLocation;
 
@@ -52,7 +78,6 @@ public class CliMain extends Runner {
     }
 
     public static void main(String[] args) {
-        mBeginTime = System.currentTimeMillis();
         CliMain m = new CliMain(false);
         setRunningLocation(m);
         m.run(args);
@@ -78,6 +103,12 @@ public class CliMain extends Runner {
         out.println();
         out.println();
         out.println("Usage: java -jar " + command + " " + ARG_OLD + " old.apk " + ARG_NEW + " new.apk " + ARG_CONFIG + " tinker_config.xml " + ARG_OUT + " output_path " + ARG_CONFIG + " custom_file_cmd_path");
+        out.println("Batch: repeat " + ARG_OLD + " and " + ARG_NEW + " to patch every old apk against every new apk, "
+            + "each patch goes to output_path/old_new, " + ARG_THREADS + " n limits the threads of all the jobs");
+        out.println("Daemon: java -jar " + command + " " + ARG_DAEMON + " port [" + ARG_CACHE_SIZE + " n], "
+            + "then send the token it writes to tinker_daemon_port.token"
+            + " and the arguments above to 127.0.0.1:port one per line, ended with an empty line, "
+            + "the reply is a line starting with OK or ERROR. Send " + DAEMON_SHUTDOWN + " to stop it");
         out.println("others please contact us");
     }
 
@@ -85,45 +116,250 @@ public class CliMain extends Runner {
         if (args.length < 1) {
             goToError(new IllegalArgumentException("Please provide required arguments."), ERRNO_USAGE);
         }
+        if (args[0].equals(ARG_DAEMON)) {
+            runDaemon(args);
+            return;
+        }
         try {
+            if (!runPatch(args, null)) {
+                System.exit(ERRNO_ERRORS);
+            }
+        } catch (IOException e) {
+            goToError(e, ERRNO_ERRORS);
+        }
+    }
 
-            ReadArgs readArgs = new ReadArgs(args).invoke();
-            File configFile = readArgs.getConfigFile();
-            File outputFile = readArgs.getOutputFile();
-            File oldApkFile = readArgs.getOldApkFile();
-            File newApkFile = readArgs.getNewApkFile();
-            String customDiffCmd = readArgs.getCustomDiffCmd();
-
-            if (oldApkFile == null || newApkFile == null) {
-                goToError(new IllegalArgumentException("Missing old apk or new apk file argument"), ERRNO_ERRORS);
-            } else if (!oldApkFile.exists() || !newApkFile.exists()) {
-                goToError(new IOException("Old apk or new apk file does not exist"), ERRNO_ERRORS);
+    /**
+     * @param cachePool entry caches of the old apks kept by the daemon, null for a single run
+     * @return false if some jobs of a batch failed, the other errors go to {@link #goToError}
+     */
+    private boolean runPatch(String[] args, ApkEntryCachePool cachePool) throws IOException {
+        ReadArgs readArgs = new ReadArgs(args).invoke();
+        File configFile = readArgs.getConfigFile();
+        File outputFile = readArgs.getOutputFile();
+        List<File> oldApkFiles = readArgs.getOldApkFiles();
+        List<File> newApkFiles = readArgs.getNewApkFiles();
+        String customDiffCmd = readArgs.getCustomDiffCmd();
+
+        if (oldApkFiles.isEmpty() || newApkFiles.isEmpty()) {
+            goToError(new IllegalArgumentException("Missing old apk or new apk file argument"), ERRNO_ERRORS);
+        }
+        for (File apkFile : oldApkFiles) {
+            if (!apkFile.exists()) {
+                goToError(new IOException("Old apk file does not exist: " + apkFile.getAbsolutePath()), ERRNO_ERRORS);
             }
+        }
+        for (File apkFile : newApkFiles) {
+            if (!apkFile.exists()) {
+                goToError(new IOException("New apk file does not exist: " + apkFile.getAbsolutePath()), ERRNO_ERRORS);
+            }
+        }
+
+        if (outputFile == null) {
+            outputFile = new File(mRunningLocation, TypedValue.PATH_DEFAULT_OUTPUT);
+        }
 
-            if (outputFile == null) {
-                outputFile = new File(mRunningLocation, TypedValue.PATH_DEFAULT_OUTPUT);
+        if (oldApkFiles.size() > 1 || newApkFiles.size() > 1) {
+            return runBatch(configFile, outputFile, oldApkFiles, newApkFiles, customDiffCmd, readArgs.getThreads(), cachePool);
+        }
+
+        loadConfigFromXml(configFile, outputFile, oldApkFiles.get(0), newApkFiles.get(0));
+        if (customDiffCmd != null) {
+            mConfig.mCustomDiffPath = customDiffCmd;
+        }
+        if (cachePool != null) {
+            mConfig.mOldApkEntryCache = cachePool.acquire(mConfig.mOldApkFile);
+        }
+        Logger.initLogger(mConfig);
+        try {
+            tinkerPatch();
+        } finally {
+            Logger.closeLogger();
+            if (cachePool != null) {
+                cachePool.release(mConfig.mOldApkEntryCache);
             }
+        }
+        return true;
+    }
+
+    private boolean runBatch(File configFile, File outputFile, List<File> oldApkFiles, List<File> newApkFiles,
+                             String customDiffCmd, int threads, ApkEntryCachePool cachePool) throws IOException {
+        BatchRunner batchRunner = new BatchRunner(outputFile, threads);
+        List<String> jobNames = new ArrayList<>();
+        //the caches are kept until all the jobs of the request are done
+        List<ApkEntryCache> acquiredCaches = new ArrayList<>();
+        try {
+            for (File oldApkFile : oldApkFiles) {
+                for (File newApkFile : newApkFiles) {
+                    String jobName = getApkName(oldApkFile) + "_" + getApkName(newApkFile);
+                    //apks with the same name in different dirs
+                    String uniqueName = jobName;
+                    for (int i = 1; jobNames.contains(uniqueName); i++) {
+                        uniqueName = jobName + "_" + i;
+                    }
+                    jobNames.add(uniqueName);
 
-            loadConfigFromXml(configFile, outputFile, oldApkFile, newApkFile);
-            if (customDiffCmd != null) {
-                mConfig.mCustomDiffPath = customDiffCmd;
+                    loadConfigFromXml(configFile, new File(outputFile, uniqueName), oldApkFile, newApkFile);
+                    if (customDiffCmd != null) {
+                        mConfig.mCustomDiffPath = customDiffCmd;
+                    }
+                    if (cachePool != null) {
+                        mConfig.mOldApkEntryCache = cachePool.acquire(oldApkFile);
+                        acquiredCaches.add(mConfig.mOldApkEntryCache);
+                    }
+                    batchRunner.addJob(mConfig);
+                }
+            }
+            return batchRunner.run().isEmpty();
+        } finally {
+            for (ApkEntryCache cache : acquiredCaches) {
+                cachePool.release(cache);
+            }
+        }
+    }
+
+    /**
+     * Keep the jvm and the entry caches of the old apks alive between patch builds, such as on a ci agent.
+     * Builds run one by one, each of them can still use all the threads.
+     */
+    private void runDaemon(String[] args) {
+        int port = -1;
+        int cacheSize = DAEMON_CACHE_SIZE;
+        try {
+            for (int index = 1; index < args.length; index++) {
+                if (args[index].equals(ARG_CACHE_SIZE) && index < args.length - 1) {
+                    cacheSize = Integer.parseInt(args[++index]);
+                } else if (port < 0) {
+                    port = Integer.parseInt(args[index]);
+                } else {
+                    goToError(new IllegalArgumentException("Unknown daemon argument: " + args[index]), ERRNO_USAGE);
+                }
+            }
+        } catch (NumberFormatException e) {
+            goToError(e, ERRNO_USAGE);
+        }
+        if (port < 0) {
+            goToError(new IllegalArgumentException("Missing daemon port argument"), ERRNO_USAGE);
+        }
+
+        ApkEntryCachePool cachePool = null;
+        ServerSocket serverSocket = null;
+        File cacheDir = null;
+        File tokenFile = null;
+        try {
+            //each daemon has its own cache dir, so they never delete the caches of each other
+            cacheDir = Files.createTempDirectory(new File(mRunningLocation).toPath(), DAEMON_CACHE_DIR).toFile();
+            cachePool = new ApkEntryCachePool(cacheDir, cacheSize);
+            // only the local clients can connect, and only the ones who can read the token file are served
+            serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+            tokenFile = new File(mRunningLocation, String.format(DAEMON_TOKEN_FILE, serverSocket.getLocalPort()));
+            String token = createToken(tokenFile);
+            System.out.printf("tinker patch daemon is listening on port %d, token file: %s\n",
+                serverSocket.getLocalPort(), tokenFile.getAbsolutePath());
+            boolean running = true;
+            while (running) {
+                Socket socket = serverSocket.accept();
+                try {
+                    running = serveRequest(socket, token, cachePool);
+                } finally {
+                    IOHelper.closeQuietly(socket);
+                }
             }
-            Logger.initLogger(mConfig);
-            tinkerPatch();
         } catch (IOException e) {
             goToError(e, ERRNO_ERRORS);
         } finally {
-            Logger.closeLogger();
+            IOHelper.closeQuietly(serverSocket);
+            if (tokenFile != null) {
+                tokenFile.delete();
+            }
+            if (cachePool != null) {
+                cachePool.clear();
+            }
+            if (cacheDir != null) {
+                FileOperation.deleteDir(cacheDir);
+            }
+        }
+    }
+
+    /**
+     * a random token in a file only the user running the daemon can read
+     */
+    private static String createToken(File tokenFile) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder token = new StringBuilder(random.length * 2);
+        for (byte b : random) {
+            token.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+        }
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            //such as windows
+            Files.createFile(path);
+            tokenFile.setReadable(false, false);
+            tokenFile.setWritable(false, false);
+            tokenFile.setReadable(true, true);
+            tokenFile.setWritable(true, true);
         }
+        Files.write(path, token.toString().getBytes("UTF-8"));
+        return token.toString();
+    }
+
+    /**
+     * one build for each connection, the client sends the token, then the command line arguments one per line
+     * and an empty line, the daemon replies a line starting with OK or ERROR.
+     *
+     * @return false if the daemon should stop
+     */
+    private boolean serveRequest(Socket socket, String token, ApkEntryCachePool cachePool) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        PrintStream writer = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+        String clientToken = reader.readLine();
+        if (clientToken == null || !MessageDigest.isEqual(token.getBytes("UTF-8"), clientToken.getBytes("UTF-8"))) {
+            writer.println("ERROR bad token");
+            return true;
+        }
+        List<String> args = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            args.add(line);
+        }
+        if (args.size() == 1 && args.get(0).equals(DAEMON_SHUTDOWN)) {
+            writer.println("OK");
+            return false;
+        }
+
+        try {
+            // errors are thrown instead of exiting
+            CliMain m = new CliMain(true);
+            if (m.runPatch(args.toArray(new String[0]), cachePool)) {
+                writer.println("OK");
+            } else {
+                writer.println("ERROR some patch jobs failed");
+            }
+        } catch (Throwable thr) {
+            thr.printStackTrace(System.err);
+            writer.println("ERROR " + thr);
+        }
+        return true;
+    }
+
+    private static String getApkName(File apkFile) {
+        String name = apkFile.getName();
+        if (name.endsWith(TypedValue.FILE_APK)) {
+            name = name.substring(0, name.length() - TypedValue.FILE_APK.length());
+        }
+        return name;
     }
 
     private void loadConfigFromXml(File configFile, File outputFile, File oldApkFile, File newApkFile) {
         if (configFile == null) {
             configFile = new File(mRunningLocation + File.separator + TypedValue.FILE_CONFIG);
             if (!configFile.exists()) {
-                System.err.printf("the config file %s does not exit\n", configFile.getAbsolutePath());
                 printUsage(System.err);
-                System.exit(ERRNO_USAGE);
+                goToError(new FileNotFoundException("the config file " + configFile.getAbsolutePath() + " does not exist"), ERRNO_USAGE);
             }
         }
         try {
@@ -139,9 +375,10 @@ public class CliMain extends Runner {
         private String[] args;
         private File     configFile;
         private File     outputFile;
-        private File     oldApkFile;
-        private File     newApkFile;
+        private List<File> oldApkFiles = new ArrayList<>();
+        private List<File> newApkFiles = new ArrayList<>();
         private String   customDiffCmd;
+        private int      threads = Runtime.getRuntime().availableProcessors();
 
         ReadArgs(String[] args) {
             this.args = args;
@@ -155,12 +392,16 @@ public class CliMain extends Runner {
             return outputFile;
         }
 
-        public File getOldApkFile() {
-            return oldApkFile;
+        public List<File> getOldApkFiles() {
+            return oldApkFiles;
+        }
+
+        public List<File> getNewApkFiles() {
+            return newApkFiles;
         }
 
-        public File getNewApkFile() {
-            return newApkFile;
+        public int getThreads() {
+            return threads;
         }
 
         public String getCustomDiffCmd() {
@@ -196,18 +437,27 @@ public class CliMain extends Runner {
                     if (index == args.length - 1) {
                         goToError(new IllegalArgumentException("Missing old apk file argument"), ERRNO_USAGE);
                     }
-                    oldApkFile = new File(args[++index]);
+                    oldApkFiles.add(new File(args[++index]));
                 } else if (arg.equals(ARG_NEW)) {
                     if (index == args.length - 1) {
                         goToError(new IllegalArgumentException("Missing new apk file argument"), ERRNO_USAGE);
                     }
-                    newApkFile = new File(args[++index]);
+                    newApkFiles.add(new File(args[++index]));
                 } else if (arg.equals(ARG_CUSTOM_PATH)) {
                     if (index == args.length - 1) {
                         goToError(new IllegalArgumentException("Missing output file argument"), ERRNO_USAGE);
                     }
                     customDiffCmd = args[++index];
                     System.out.printf("special output custom diff cmd: %s\n", customDiffCmd);
+                } else if (arg.equals(ARG_THREADS)) {
+                    if (index == args.length - 1) {
+                        goToError(new IllegalArgumentException("Missing threads argument"), ERRNO_USAGE);
+                    }
+                    try {
+                        threads = Integer.parseInt(args[++index]);
+                    } catch (NumberFormatException e) {
+                        goToError(new IllegalArgumentException("Bad threads argument: " + args[index]), ERRNO_USAGE);
+                    }
                 }
             }
             return this;
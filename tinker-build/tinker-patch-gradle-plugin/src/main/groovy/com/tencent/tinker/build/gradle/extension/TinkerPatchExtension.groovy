@@ -108,6 +108,13 @@ public class TinkerPatchExtension {
      */
     String customDiffPathArgs
 
+    /**
+     * Seconds all the bsdiff of a patch build can take, the changed files after it is used up are
+     * put in the patch without diff, so the patch is larger but the build time is bounded.
+     * default: 0, no limit
+     */
+    int diffTimeBudget
+
     public TinkerPatchExtension() {
         oldApk = ""
         outputFolder = ""
@@ -119,9 +126,13 @@ public class TinkerPatchExtension {
         tinkerEnable = true
         customPath = null
         customDiffPathArgs = null
+        diffTimeBudget = 0
     }
 
     void checkParameter() {
+        if (diffTimeBudget < 0) {
+            throw new GradleException("diffTimeBudget must not be negative")
+        }
         if (oldApk == null) {
             throw new GradleException("old apk is null, you must set the correct old apk value!")
         }
@@ -140,6 +151,7 @@ public class TinkerPatchExtension {
            | removeLoaderForAllDex = ${removeLoaderForAllDex}
            | tinkerEnable = ${tinkerEnable}
            | useSign = ${useSign}
+           | diffTimeBudget = ${diffTimeBudget}
         """.stripMargin()
     }
 }
\ No newline at end of file
@@ -49,11 +49,19 @@ public class TinkerResourceExtension {
      */
     int largeModSize
 
+    /**
+     * default false
+     * diff resources.arsc by chunks instead of bsdiff over the whole file, the patch is smaller,
+     * but it can only be applied by tinker with the chunk patcher
+     */
+    boolean arscChunkDiff
+
     public TinkerResourceExtension() {
         pattern = []
         ignoreChange = []
         ignoreChangeWarning = []
         largeModSize = 100
+        arscChunkDiff = false
     }
     void checkParameter() {
         if (largeModSize <= 0) {
@@ -67,6 +75,7 @@ public class TinkerResourceExtension {
            | exclude = ${ignoreChange}
            | ignoreWarning = ${ignoreChangeWarning}
            | largeModSize = ${largeModSize}kb
+           | arscChunkDiff = ${arscChunkDiff}
         """.stripMargin()
     }
 }
\ No newline at end of file
@@ -36,7 +36,7 @@ public class TinkerSevenZipExtension {
      * Specifies a local path.
      * if path is Specified, it will overwrite the artifact param
      * such as/usr/local/bin/7za
-     * if you do not set the zipArtifact and path, We will try to use 7za directly
+     * if you do not set the zipArtifact and path, we will deflate the patch with best compression in process
      */
     String path
 
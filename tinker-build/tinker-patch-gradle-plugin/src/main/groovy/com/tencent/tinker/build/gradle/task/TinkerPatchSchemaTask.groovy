@@ -18,7 +18,10 @@ package com.tencent.tinker.build.gradle.task
 
 import com.tencent.tinker.build.gradle.extension.TinkerPatchExtension
 import com.tencent.tinker.build.patch.InputParam
+import com.tencent.tinker.build.patch.PatchMetrics
+import com.tencent.tinker.build.patch.PatchMetricsListener
 import com.tencent.tinker.build.patch.Runner
+import com.tencent.tinker.build.util.TypedValue
 import groovy.io.FileType
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
@@ -139,6 +142,7 @@ public class TinkerPatchSchemaTask extends DefaultTask {
                     .setAllowLoaderInAnyDex(configuration.allowLoaderInAnyDex)
                     .setCustomDiffPath(configuration.customPath)
                     .setCustomDiffPathArgs(configuration.customDiffPathArgs)
+                    .setDiffTimeBudget(configuration.diffTimeBudget)
                     .setRemoveLoaderForAllDex(configuration.removeLoaderForAllDex)
                     .setDexFilePattern(new ArrayList<String>(configuration.dex.pattern))
                     .setIsProtectedApp(configuration.buildConfig.isProtectedApp)
@@ -151,19 +155,33 @@ public class TinkerPatchSchemaTask extends DefaultTask {
                     .setResourceIgnoreChangePattern(new ArrayList<String>(configuration.res.ignoreChange))
                     .setResourceIgnoreChangeWarningPattern(new ArrayList<String>(configuration.res.ignoreChangeWarning))
                     .setResourceLargeModSize(configuration.res.largeModSize)
+                    .setResourceArscChunkDiff(configuration.res.arscChunkDiff)
                     .setUseApplyResource(configuration.buildConfig.usingResourceMapping)
                     .setConfigFields(packageConfigFields)
                     .setSevenZipPath(configuration.sevenZip.path)
                     .setUseSign(configuration.useSign)
                     .setArkHotPath(configuration.arkHot.path)
                     .setArkHotName(configuration.arkHot.name)
+                    .setMetricsListener(new PatchMetricsListener() {
+                        @Override
+                        void onPhaseEnd(PatchMetrics.Span phase) {
+                            project.logger.info("tinker patch phase ${phase.name}: ${phase.wallTimeNanos.intdiv(1000000)}ms, "
+                                    + "cpu ${phase.cpuTimeNanos.intdiv(1000000)}ms, allocated ${phase.allocatedBytes} bytes")
+                        }
+
+                        @Override
+                        void onPatchEnd(PatchMetrics metrics, File reportFile) {
+                            // the report is moved to the output dir with the patch apks
+                            project.logger.lifecycle("tinker patch ${newApk.name} took ${metrics.totalTimeNanos.intdiv(1000000)}ms")
+                        }
+                    })
 
             InputParam inputParam = builder.create()
             Runner.gradleRun(inputParam)
 
             def prefix = newApk.name.take(newApk.name.lastIndexOf('.'))
             tmpDir.eachFile(FileType.FILES) {
-                if (!it.name.endsWith(".apk")) {
+                if (!it.name.endsWith(".apk") && it.name != TypedValue.PATCH_METRICS_FILE) {
                     return
                 }
                 final File dest = new File(outputDir, "${prefix}-${it.name}")
@@ -0,0 +1,197 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.arscpatcher;
+
+import com.tencent.tinker.bsdiff.BSDiff;
+import com.tencent.tinker.build.util.Logger;
+import com.tencent.tinker.commons.arscpatcher.struct.ArscChunk;
+import com.tencent.tinker.commons.arscpatcher.struct.ArscPatchFile;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Diff resources.arsc by its leaf chunks instead of bsdiff over the whole file.
+ *
+ * Unchanged chunks (usually most of the type chunks) are copied from the old file, changed
+ * chunks are bsdiffed against the old chunk with the same identity, such as the global string
+ * pool or a type chunk of the same config, and new chunks are stored as they are.
+ */
+public class ArscPatchGenerator {
+    // bsdiff header is 32 bytes, it is not worth to diff such small chunks
+    private static final int MIN_PATCH_CHUNK_SIZE = 256;
+
+    private final byte[]          oldArsc;
+    private final byte[]          newArsc;
+    private final List<ArscChunk> oldChunks;
+    private final List<ArscChunk> newChunks;
+
+    private int copiedChunkCount   = 0;
+    private int replacedChunkCount = 0;
+    private int patchedChunkCount  = 0;
+
+    public ArscPatchGenerator(File oldFile, File newFile) throws IOException {
+        this.oldArsc = Files.readAllBytes(oldFile.toPath());
+        this.newArsc = Files.readAllBytes(newFile.toPath());
+        this.oldChunks = ArscChunk.parseLeafChunks(oldArsc);
+        this.newChunks = ArscChunk.parseLeafChunks(newArsc);
+    }
+
+    public void executeAndSaveTo(File file) throws IOException {
+        final ByteArrayOutputStream opsBytes = new ByteArrayOutputStream();
+        final DataOutputStream opsOut = new DataOutputStream(opsBytes);
+        final int opCount = generateOperations(opsOut);
+        opsOut.flush();
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.write(ArscPatchFile.MAGIC);
+            out.writeShort(ArscPatchFile.CURRENT_VERSION);
+            out.writeInt(oldArsc.length);
+            out.writeInt(newArsc.length);
+            out.writeInt(opCount);
+            opsBytes.writeTo(out);
+        } finally {
+            IOHelper.closeQuietly(out);
+        }
+        Logger.d("arsc patch %s, old chunks: %d, new chunks: %d, copied: %d, replaced: %d, patched: %d, size: %d",
+            file.getName(), oldChunks.size(), newChunks.size(), copiedChunkCount, replacedChunkCount, patchedChunkCount, file.length());
+    }
+
+    private int generateOperations(DataOutputStream out) throws IOException {
+        final Map<String, Integer> oldIndexByKey = new HashMap<>();
+        final Map<Integer, List<Integer>> oldIndicesByHash = new HashMap<>();
+        for (int i = 0; i < oldChunks.size(); i++) {
+            final ArscChunk oldChunk = oldChunks.get(i);
+            oldIndexByKey.put(oldChunk.key, i);
+            final int hash = hashChunk(oldArsc, oldChunk);
+            List<Integer> indices = oldIndicesByHash.get(hash);
+            if (indices == null) {
+                indices = new ArrayList<>();
+                oldIndicesByHash.put(hash, indices);
+            }
+            indices.add(i);
+        }
+
+        int opCount = 0;
+        int copyStart = -1;
+        int copyCount = 0;
+        for (ArscChunk newChunk : newChunks) {
+            final Integer counterpart = oldIndexByKey.get(newChunk.key);
+            int sameIndex = -1;
+            if (counterpart != null && isSameContent(oldChunks.get(counterpart), newChunk)) {
+                sameIndex = counterpart;
+            } else {
+                final List<Integer> candidates = oldIndicesByHash.get(hashChunk(newArsc, newChunk));
+                if (candidates != null) {
+                    for (int candidate : candidates) {
+                        if (isSameContent(oldChunks.get(candidate), newChunk)) {
+                            sameIndex = candidate;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (sameIndex >= 0) {
+                ++copiedChunkCount;
+                // merge the continuous old chunks into one copy
+                if (copyCount > 0 && copyStart + copyCount == sameIndex) {
+                    ++copyCount;
+                    continue;
+                }
+                if (copyCount > 0) {
+                    writeCopy(out, copyStart, copyCount);
+                    ++opCount;
+                }
+                copyStart = sameIndex;
+                copyCount = 1;
+                continue;
+            }
+            if (copyCount > 0) {
+                writeCopy(out, copyStart, copyCount);
+                ++opCount;
+                copyCount = 0;
+            }
+            if (counterpart != null && newChunk.size >= MIN_PATCH_CHUNK_SIZE) {
+                final ArscChunk oldChunk = oldChunks.get(counterpart);
+                final byte[] diff = BSDiff.bsdiff(copyOf(oldArsc, oldChunk), oldChunk.size, copyOf(newArsc, newChunk), newChunk.size);
+                if (diff.length < newChunk.size) {
+                    out.writeByte(ArscPatchFile.OP_PATCH);
+                    out.writeInt(counterpart);
+                    out.writeInt(diff.length);
+                    out.write(diff);
+                    ++opCount;
+                    ++patchedChunkCount;
+                    continue;
+                }
+            }
+            out.writeByte(ArscPatchFile.OP_REPLACE);
+            out.writeInt(newChunk.size);
+            out.write(newArsc, newChunk.offset, newChunk.size);
+            ++opCount;
+            ++replacedChunkCount;
+        }
+        if (copyCount > 0) {
+            writeCopy(out, copyStart, copyCount);
+            ++opCount;
+        }
+        return opCount;
+    }
+
+    private static void writeCopy(DataOutputStream out, int start, int count) throws IOException {
+        out.writeByte(ArscPatchFile.OP_COPY);
+        out.writeInt(start);
+        out.writeInt(count);
+    }
+
+    private boolean isSameContent(ArscChunk oldChunk, ArscChunk newChunk) {
+        if (oldChunk.size != newChunk.size) {
+            return false;
+        }
+        for (int i = 0; i < oldChunk.size; i++) {
+            if (oldArsc[oldChunk.offset + i] != newArsc[newChunk.offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hashChunk(byte[] data, ArscChunk chunk) {
+        int hash = 1;
+        for (int i = chunk.offset; i < chunk.offset + chunk.size; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash;
+    }
+
+    private static byte[] copyOf(byte[] data, ArscChunk chunk) {
+        final byte[] result = new byte[chunk.size];
+        System.arraycopy(data, chunk.offset, result, 0, chunk.size);
+        return result;
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.builder;
+
+import com.tencent.tinker.commons.util.IOHelper;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntry;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipFile;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Jar signer for the patch apk, it does what "jarsigner -digestalg SHA1" does without forking any process.
+ *
+ * Entries of the unsigned zip are streamed once: the compressed data is copied as is (or deflated again
+ * with the best compression), and the SHA1 digests are computed from the inflated data at the same time.
+ * MANIFEST.MF, CERT.SF and the PKCS#7 signature block are written after all the entries.
+ */
+public class ApkSigner {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String META_INF     = "META-INF/";
+    private static final String MANIFEST     = META_INF + "MANIFEST.MF";
+    private static final String SIGNATURE    = META_INF + "CERT.SF";
+    private static final String CREATED_BY   = "1.0 (Tinker)";
+    private static final int    BUFFER_SIZE  = 16 * 1024;
+    /**
+     * no line may be longer than 72 bytes, see the jar file specification
+     */
+    private static final int    MAX_LINE_LENGTH = 72;
+
+    private static final String OID_SHA1        = "1.3.14.3.2.26";
+    private static final String OID_DATA        = "1.2.840.113549.1.7.1";
+    private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String OID_RSA         = "1.2.840.113549.1.1.1";
+    private static final String OID_DSA         = "1.2.840.10040.4.1";
+    private static final String OID_EC          = "1.2.840.10045.2.1";
+
+    private final PrivateKey        privateKey;
+    private final X509Certificate[] certificateChain;
+    private final String            keyAlgorithm;
+    private final String            signatureAlgorithm;
+
+    public ApkSigner(File keyStoreFile, String storePass, String alias, String keyPass) throws IOException, GeneralSecurityException {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(keyStoreFile));
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(is, storePass.toCharArray());
+            privateKey = (PrivateKey) keyStore.getKey(alias, keyPass.toCharArray());
+            Certificate[] chain = keyStore.getCertificateChain(alias);
+            if (privateKey == null || chain == null || chain.length == 0) {
+                throw new GeneralSecurityException("can't find the key or certificate of alias " + alias + " in " + keyStoreFile.getAbsolutePath());
+            }
+            certificateChain = new X509Certificate[chain.length];
+            for (int i = 0; i < chain.length; i++) {
+                certificateChain[i] = (X509Certificate) chain[i];
+            }
+            keyAlgorithm = privateKey.getAlgorithm().toUpperCase(Locale.US);
+            signatureAlgorithm = getSignatureAlgorithm(keyAlgorithm);
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+    }
+
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * issue https://github.com/Tencent/tinker/issues/118, always use SHA1 for the old devices
+     */
+    private static String getSignatureAlgorithm(String keyAlgorithm) {
+        if (keyAlgorithm.equals("DSA")) {
+            return "SHA1withDSA";
+        } else if (keyAlgorithm.equals("RSA")) {
+            return "SHA1withRSA";
+        } else if (keyAlgorithm.equals("EC")) {
+            return "SHA1withECDSA";
+        }
+        throw new RuntimeException("private key is not a DSA, RSA or EC key");
+    }
+
+    private String getEncryptionAlgorithmOid() {
+        if (keyAlgorithm.equals("DSA")) {
+            return OID_DSA;
+        } else if (keyAlgorithm.equals("EC")) {
+            return OID_EC;
+        }
+        return OID_RSA;
+    }
+
+    /**
+     * @param input         unsigned zip
+     * @param output        signed apk
+     * @param bestCompression deflate all the entries again with the best compression, instead of copying them
+     */
+    public void sign(File input, File output, boolean bestCompression) throws IOException, GeneralSecurityException {
+        TinkerZipFile inputZip = null;
+        TinkerZipOutputStream out = null;
+        try {
+            inputZip = new TinkerZipFile(input);
+            out = new TinkerZipOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE));
+
+            final ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            writeAttribute(manifest, "Manifest-Version", "1.0");
+            writeAttribute(manifest, "Created-By", CREATED_BY);
+            writeNewLine(manifest);
+            final int mainAttributesLength = manifest.size();
+
+            final ByteArrayOutputStream entrySections = new ByteArrayOutputStream();
+            final MessageDigest entryDigest = MessageDigest.getInstance("SHA1");
+            final MessageDigest sectionDigest = MessageDigest.getInstance("SHA1");
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            final byte[] inflated = new byte[BUFFER_SIZE];
+            final Inflater inflater = new Inflater(true);
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+            try {
+                final Enumeration<? extends TinkerZipEntry> entries = inputZip.entries();
+                while (entries.hasMoreElements()) {
+                    final TinkerZipEntry entry = entries.nextElement();
+                    final String name = entry.getName();
+                    if (entry.isDirectory() || isSignatureFile(name)) {
+                        continue;
+                    }
+                    entryDigest.reset();
+                    inflater.reset();
+                    deflater.reset();
+                    if (bestCompression) {
+                        copyAndDeflate(inputZip, entry, out, entryDigest, inflater, deflater, buffer, inflated);
+                    } else {
+                        copyAndDigest(inputZip, entry, out, entryDigest, inflater, buffer, inflated);
+                    }
+
+                    final int sectionStart = manifest.size();
+                    writeAttribute(manifest, "Name", name);
+                    writeAttribute(manifest, "SHA1-Digest", base64(entryDigest.digest()));
+                    writeNewLine(manifest);
+
+                    sectionDigest.reset();
+                    sectionDigest.update(manifest.toByteArray(), sectionStart, manifest.size() - sectionStart);
+                    writeAttribute(entrySections, "Name", name);
+                    writeAttribute(entrySections, "SHA1-Digest", base64(sectionDigest.digest()));
+                    writeNewLine(entrySections);
+                }
+            } finally {
+                inflater.end();
+                deflater.end();
+            }
+
+            final byte[] manifestBytes = manifest.toByteArray();
+            final ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+            writeAttribute(signatureFile, "Signature-Version", "1.0");
+            writeAttribute(signatureFile, "Created-By", CREATED_BY);
+            sectionDigest.reset();
+            writeAttribute(signatureFile, "SHA1-Digest-Manifest", base64(sectionDigest.digest(manifestBytes)));
+            sectionDigest.reset();
+            sectionDigest.update(manifestBytes, 0, mainAttributesLength);
+            writeAttribute(signatureFile, "SHA1-Digest-Manifest-Main-Attributes", base64(sectionDigest.digest()));
+            writeNewLine(signatureFile);
+            entrySections.writeTo(signatureFile);
+            final byte[] signatureFileBytes = signatureFile.toByteArray();
+
+            writeStoredEntry(out, MANIFEST, manifestBytes);
+            writeStoredEntry(out, SIGNATURE, signatureFileBytes);
+            writeStoredEntry(out, META_INF + "CERT." + keyAlgorithm, generateSignatureBlock(signatureFileBytes));
+        } finally {
+            IOHelper.closeQuietly(out);
+            IOHelper.closeQuietly(inputZip);
+        }
+    }
+
+    private static boolean isSignatureFile(String name) {
+        if (!name.startsWith(META_INF) || name.indexOf('/', META_INF.length()) >= 0) {
+            return false;
+        }
+        final String upperName = name.toUpperCase(Locale.US);
+        return upperName.equals(MANIFEST) || upperName.endsWith(".SF")
+            || upperName.endsWith(".RSA") || upperName.endsWith(".DSA") || upperName.endsWith(".EC");
+    }
+
+    /**
+     * copy the raw data of the entry, and digest the inflated data on the way
+     */
+    private static void copyAndDigest(TinkerZipFile inputZip, TinkerZipEntry entry, TinkerZipOutputStream out,
+                                      MessageDigest digest, Inflater inflater, byte[] buffer, byte[] inflated) throws IOException {
+        final boolean deflated = entry.getMethod() == TinkerZipEntry.DEFLATED;
+        InputStream in = null;
+        try {
+            in = inputZip.getInputStream(entry);
+            out.putNextEntry(new TinkerZipEntry(entry));
+            for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
+                out.write(buffer, 0, length);
+                if (deflated) {
+                    inflate(inflater, buffer, length, inflated, digest, null);
+                } else {
+                    digest.update(buffer, 0, length);
+                }
+            }
+            out.closeEntry();
+        } finally {
+            IOHelper.closeQuietly(in);
+        }
+        if (deflated && !inflater.finished()) {
+            throw new IOException("truncated deflated data of entry " + entry.getName());
+        }
+    }
+
+    /**
+     * deflate the entry again with the best compression, the old data is inflated once for both the digest and deflater
+     */
+    private static void copyAndDeflate(TinkerZipFile inputZip, TinkerZipEntry entry, TinkerZipOutputStream out,
+                                       MessageDigest digest, Inflater inflater, Deflater deflater, byte[] buffer, byte[] inflated) throws IOException {
+        final boolean deflated = entry.getMethod() == TinkerZipEntry.DEFLATED;
+        final DeflateSink sink = new DeflateSink(out, deflater, buffer.length);
+        final TinkerZipEntry newEntry = new TinkerZipEntry(entry);
+        newEntry.setMethod(TinkerZipEntry.DEFLATED);
+        InputStream in = null;
+        try {
+            in = inputZip.getInputStream(entry);
+            out.putNextEntry(newEntry);
+            for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
+                if (deflated) {
+                    inflate(inflater, buffer, length, inflated, digest, sink);
+                } else {
+                    digest.update(buffer, 0, length);
+                    sink.write(buffer, 0, length);
+                }
+            }
+            sink.finish();
+            // sizes and crc are written in the data descriptor, they are only needed at closing
+            newEntry.setCrc(sink.crc.getValue());
+            newEntry.setSize(deflater.getBytesRead());
+            newEntry.setCompressedSize(deflater.getBytesWritten());
+            out.closeEntry();
+        } finally {
+            IOHelper.closeQuietly(in);
+        }
+        if (deflated && !inflater.finished()) {
+            throw new IOException("truncated deflated data of entry " + entry.getName());
+        }
+    }
+
+    private static void inflate(Inflater inflater, byte[] input, int length, byte[] inflated,
+                                MessageDigest digest, DeflateSink sink) throws IOException {
+        inflater.setInput(input, 0, length);
+        try {
+            while (!inflater.needsInput() && !inflater.finished()) {
+                final int count = inflater.inflate(inflated);
+                if (count == 0 && inflater.needsDictionary()) {
+                    throw new IOException("deflated data needs a preset dictionary");
+                }
+                digest.update(inflated, 0, count);
+                if (sink != null) {
+                    sink.write(inflated, 0, count);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void writeStoredEntry(TinkerZipOutputStream out, String name, byte[] data) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        final TinkerZipEntry entry = new TinkerZipEntry(name);
+        entry.setMethod(TinkerZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(data, 0, data.length);
+        out.closeEntry();
+    }
+
+    private static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+        final byte[] line = (name + ": " + value).getBytes(UTF_8);
+        int offset = Math.min(line.length, MAX_LINE_LENGTH);
+        out.write(line, 0, offset);
+        while (offset < line.length) {
+            // continuation lines start with a space
+            final int length = Math.min(line.length - offset, MAX_LINE_LENGTH - 1);
+            writeNewLine(out);
+            out.write(' ');
+            out.write(line, offset, length);
+            offset += length;
+        }
+        writeNewLine(out);
+    }
+
+    private static void writeNewLine(ByteArrayOutputStream out) {
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private static String base64(byte[] data) {
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    /**
+     * PKCS#7 SignedData of the signature file without content and authenticated attributes, the same as jarsigner
+     */
+    private byte[] generateSignatureBlock(byte[] signatureFile) throws GeneralSecurityException {
+        final Signature signature = Signature.getInstance(signatureAlgorithm);
+        signature.initSign(privateKey);
+        signature.update(signatureFile);
+        final byte[] signatureBytes = signature.sign();
+
+        final byte[] sha1AlgorithmId = derSequence(derOid(OID_SHA1), derNull());
+        final List<byte[]> certificates = new ArrayList<>(certificateChain.length);
+        for (X509Certificate certificate : certificateChain) {
+            certificates.add(certificate.getEncoded());
+        }
+        final X509Certificate signer = certificateChain[0];
+        final byte[] signerInfo = derSequence(
+            derInteger(BigInteger.ONE),
+            derSequence(signer.getIssuerX500Principal().getEncoded(), derInteger(signer.getSerialNumber())),
+            sha1AlgorithmId,
+            keyAlgorithm.equals("RSA") ? derSequence(derOid(getEncryptionAlgorithmOid()), derNull())
+                : derSequence(derOid(getEncryptionAlgorithmOid())),
+            der(0x04, signatureBytes)
+        );
+        final byte[] signedData = derSequence(
+            derInteger(BigInteger.ONE),
+            der(0x31, sha1AlgorithmId),
+            derSequence(derOid(OID_DATA)),
+            der(0xA0, certificates.toArray(new byte[certificates.size()][])),
+            der(0x31, signerInfo)
+        );
+        return derSequence(derOid(OID_SIGNED_DATA), der(0xA0, signedData));
+    }
+
+    private static byte[] derSequence(byte[]... contents) {
+        return der(0x30, contents);
+    }
+
+    private static byte[] derNull() {
+        return new byte[] {0x05, 0x00};
+    }
+
+    private static byte[] derInteger(BigInteger value) {
+        return der(0x02, value.toByteArray());
+    }
+
+    private static byte[] derOid(String oid) {
+        final String[] arcs = oid.split("\\.");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeBase128(out, Long.parseLong(arcs[0]) * 40 + Long.parseLong(arcs[1]));
+        for (int i = 2; i < arcs.length; i++) {
+            writeBase128(out, Long.parseLong(arcs[i]));
+        }
+        return der(0x06, out.toByteArray());
+    }
+
+    private static void writeBase128(ByteArrayOutputStream out, long value) {
+        int shift = 63 - Long.numberOfLeadingZeros(value | 1);
+        shift -= shift % 7;
+        for (; shift > 0; shift -= 7) {
+            out.write((int) ((value >>> shift) & 0x7f) | 0x80);
+        }
+        out.write((int) (value & 0x7f));
+    }
+
+    private static byte[] der(int tag, byte[]... contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            final int lengthBytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                out.write(length >>> (i * 8));
+            }
+        }
+        for (byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * deflate into the zip output stream, keeping the crc of the raw data
+     */
+    private static final class DeflateSink {
+        final CRC32 crc = new CRC32();
+
+        private final OutputStream out;
+        private final Deflater     deflater;
+        private final byte[]       buffer;
+
+        DeflateSink(OutputStream out, Deflater deflater, int bufferSize) {
+            this.out = out;
+            this.deflater = deflater;
+            this.buffer = new byte[bufferSize];
+        }
+
+        void write(byte[] data, int offset, int length) throws IOException {
+            crc.update(data, offset, length);
+            deflater.setInput(data, offset, length);
+            while (!deflater.needsInput()) {
+                drain();
+            }
+        }
+
+        void finish() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            final int count = deflater.deflate(buffer);
+            if (count > 0) {
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+}
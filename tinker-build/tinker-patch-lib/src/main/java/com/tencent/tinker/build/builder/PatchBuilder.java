@@ -18,19 +18,13 @@ package com.tencent.tinker.build.builder;
 
 
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.patch.PatchMetrics;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.TypedValue;
-import com.tencent.tinker.commons.util.IOHelper;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.Key;
-import java.security.KeyStore;
-import java.util.ArrayList;
 
 /**
  * @author zhangshaowen
@@ -42,10 +36,11 @@ public class PatchBuilder {
     private       File          signedApk;
     private       File          signedWith7ZipApk;
     private       File          sevenZipOutPutDir;
+    private       ApkSigner     apkSigner;
 
     public PatchBuilder(Configuration config) {
         this.config = config;
-        this.unSignedApk = new File(config.mOutFolder, PATCH_NAME + "_unsigned.apk");
+        this.unSignedApk = config.mPatchZipWriter.getOutputFile();
         this.signedApk = new File(config.mOutFolder, PATCH_NAME + "_signed.apk");
         this.signedWith7ZipApk = new File(config.mOutFolder, PATCH_NAME + "_signed_7zip.apk");
         this.sevenZipOutPutDir = new File(config.mOutFolder, TypedValue.OUT_7ZIP_FILE_PATH);
@@ -58,13 +53,31 @@ public class PatchBuilder {
                 "Missing patch unzip files, path=%s\n", resultDir.getAbsolutePath()));
         }
         //no file change
-        if (resultDir.listFiles().length == 0) {
+        if (config.mPatchZipWriter.isEmpty() && resultDir.listFiles().length == 0) {
             return;
         }
-        generateUnsignedApk(unSignedApk);
-        signApk(unSignedApk, signedApk);
+        final PatchMetrics metrics = config.mPatchMetrics;
+        PatchMetrics.Span phase = metrics.beginPhase(PatchMetrics.PHASE_PATCH_ZIP);
+        try {
+            generateUnsignedApk(unSignedApk);
+        } finally {
+            metrics.end(phase.addBytesWritten(unSignedApk.length()));
+        }
+        if (config.mUseSignAPk) {
+            phase = metrics.beginPhase(PatchMetrics.PHASE_SIGN);
+            try {
+                signApk(unSignedApk, signedApk);
+            } finally {
+                metrics.end(phase.addBytesRead(unSignedApk.length()).addBytesWritten(signedApk.length()));
+            }
 
-        use7zApk(signedApk, signedWith7ZipApk, sevenZipOutPutDir);
+            phase = metrics.beginPhase(PatchMetrics.PHASE_SEVEN_ZIP);
+            try {
+                use7zApk(unSignedApk, signedApk, signedWith7ZipApk, sevenZipOutPutDir);
+            } finally {
+                metrics.end(phase.addBytesRead(unSignedApk.length()).addBytesWritten(signedWith7ZipApk.length()));
+            }
+        }
 
         if (!signedApk.exists()) {
             Logger.e("Result: final unsigned patch result: %s, size=%d", unSignedApk.getAbsolutePath(), unSignedApk.length());
@@ -86,68 +99,29 @@ public class PatchBuilder {
 
     }
 
-    private String getSignatureAlgorithm() throws Exception {
-        InputStream is = null;
-        try {
-            is = new BufferedInputStream(new FileInputStream(config.mSignatureFile));
-            KeyStore keyStore = KeyStore.getInstance("JKS");
-            keyStore.load(is, config.mStorePass.toCharArray());
-            Key key = keyStore.getKey(config.mStoreAlias, config.mKeyPass.toCharArray());
-            String keyAlgorithm = key.getAlgorithm();
-            String signatureAlgorithm;
-            if (keyAlgorithm.equalsIgnoreCase("DSA")) {
-                signatureAlgorithm = "SHA1withDSA";
-            } else if (keyAlgorithm.equalsIgnoreCase("RSA")) {
-                signatureAlgorithm = "SHA1withRSA";
-            } else if (keyAlgorithm.equalsIgnoreCase("EC")) {
-                signatureAlgorithm = "SHA1withECDSA";
-            } else {
-                throw new RuntimeException("private key is not a DSA or "
-                        + "RSA key");
-            }
-            return signatureAlgorithm;
-        } finally {
-            IOHelper.closeQuietly(is);
+    private ApkSigner getApkSigner() throws Exception {
+        if (apkSigner == null) {
+            apkSigner = new ApkSigner(config.mSignatureFile, config.mStorePass, config.mStoreAlias, config.mKeyPass);
         }
+        return apkSigner;
     }
 
     /**
      * @param input  unsigned file input
      * @param output signed file output
-     * @throws IOException
-     * @throws InterruptedException
+     * @throws Exception
      */
     private void signApk(File input, File output) throws Exception {
         //sign apk
         if (config.mUseSignAPk) {
             Logger.d("Signing apk: %s", output.getName());
-            String signatureAlgorithm = getSignatureAlgorithm();
-            Logger.d("Signing key algorithm is %s", signatureAlgorithm);
+            ApkSigner signer = getApkSigner();
+            Logger.d("Signing key algorithm is %s", signer.getSignatureAlgorithm());
 
             if (output.exists()) {
                 output.delete();
             }
-            ArrayList<String> command = new ArrayList<>();
-            command.add("jarsigner");
-            // issue https://github.com/Tencent/tinker/issues/118
-            command.add("-sigalg");
-            command.add(signatureAlgorithm);
-            command.add("-digestalg");
-            command.add("SHA1");
-            command.add("-keystore");
-            command.add(config.mSignatureFile.getAbsolutePath());
-            command.add("-storepass");
-            command.add(config.mStorePass);
-            command.add("-keypass");
-            command.add(config.mKeyPass);
-            command.add("-signedjar");
-            command.add(output.getAbsolutePath());
-            command.add(input.getAbsolutePath());
-            command.add(config.mStoreAlias);
-
-            Process process = new ProcessBuilder(command).start();
-            process.waitFor();
-            process.destroy();
+            signer.sign(input, output, false);
             if (!output.exists()) {
                 throw new IOException("Can't Generate signed APK. Please check if your sign info is correct.");
             }
@@ -165,7 +139,10 @@ public class PatchBuilder {
             throw new IOException(String.format(
                 "Missing patch unzip files, path=%s\n", tempOutDir.getAbsolutePath()));
         }
-        FileOperation.zipInputDir(tempOutDir, output, null);
+        //files taken from the new apk are already in the zip, add the generated ones left in the result dir
+        final PatchZipWriter writer = config.mPatchZipWriter;
+        writer.addDirectory(tempOutDir);
+        writer.finish();
 
         if (!output.exists()) {
             throw new IOException(String.format(
@@ -174,7 +151,7 @@ public class PatchBuilder {
         }
     }
 
-    private void use7zApk(File inputSignedFile, File out7zipFile, File tempFilesDir) throws IOException {
+    private void use7zApk(File inputUnsignedFile, File inputSignedFile, File out7zipFile, File tempFilesDir) throws Exception {
         if (!config.mUseSignAPk) {
             return;
         }
@@ -184,6 +161,12 @@ public class PatchBuilder {
                     + "you must fill the sign data in the config file path=%s", inputSignedFile.getAbsolutePath())
             );
         }
+        //without a 7za executable, just deflate with the best compression and sign again, no process is forked
+        if (!isSevenZipAvailable(config.mSevenZipPath)) {
+            Logger.d("Try to compress the patch file with best compression: %s", out7zipFile.getName());
+            getApkSigner().sign(inputUnsignedFile, out7zipFile, true);
+            return;
+        }
         Logger.d("Try use 7za to compress the patch file: %s, will cost much more time", out7zipFile.getName());
         Logger.d("Current 7za path:%s", config.mSevenZipPath);
 
@@ -199,4 +182,32 @@ public class PatchBuilder {
                 out7zipFile.getAbsolutePath()));
         }
     }
+
+    /**
+     * the path is a file, or a command such as the default "7za" which is looked up in PATH like the shell does
+     */
+    private static boolean isSevenZipAvailable(String sevenZipPath) {
+        if (sevenZipPath == null || sevenZipPath.trim().isEmpty()) {
+            return false;
+        }
+        if (new File(sevenZipPath).isFile()) {
+            return true;
+        }
+        if (sevenZipPath.indexOf('/') >= 0 || sevenZipPath.indexOf(File.separatorChar) >= 0) {
+            return false;
+        }
+        final String pathEnv = System.getenv("PATH");
+        if (pathEnv == null) {
+            return false;
+        }
+        final String[] suffixes = File.separatorChar == '\\' ? new String[] {"", ".exe", ".bat", ".cmd"} : new String[] {""};
+        for (String dir : pathEnv.split(File.pathSeparator)) {
+            for (String suffix : suffixes) {
+                if (!dir.isEmpty() && new File(dir, sevenZipPath + suffix).isFile()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 }
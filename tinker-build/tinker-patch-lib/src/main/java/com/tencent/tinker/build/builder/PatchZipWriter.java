@@ -0,0 +1,222 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.builder;
+
+import com.tencent.tinker.build.util.TinkerPatchException;
+import com.tencent.tinker.build.util.TypedValue;
+import com.tencent.tinker.commons.util.IOHelper;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntry;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The unsigned patch zip, decoders put the files they take from the new apk here directly,
+ * instead of copying them to the temp result dir and zipping the dir again at last.
+ * Files generated by the decoders are still left in the temp result dir, they are added by {@link #addDirectory}.
+ *
+ * Decoders run on their own threads, so the entries are only collected when they are added, and
+ * {@link #finish} writes them sorted by name. The patch is the same whatever order the decoders run in,
+ * the added files must be kept until then.
+ */
+public class PatchZipWriter implements Closeable {
+    /**
+     * aapt doesn't compress these, deflating them again makes little difference
+     */
+    private static final HashSet<String> NO_COMPRESS_EXTENSIONS = new HashSet<>(Arrays.asList(
+        ".jpg", ".jpeg", ".png", ".gif", ".webp", ".wav", ".mp2", ".mp3", ".ogg", ".aac", ".mpg", ".mpeg",
+        ".mid", ".midi", ".smf", ".jet", ".rtttl", ".imy", ".xmf", ".mp4", ".m4a", ".m4v", ".3gp", ".3gpp",
+        ".3g2", ".3gpp2", ".amr", ".awb", ".wma", ".wmv", ".webm", ".mkv", ".zip", ".jar", ".apk"
+    ));
+
+    private final File                  outputFile;
+    private final TreeMap<String, File> entries  = new TreeMap<>();
+    private final byte[]                buffer   = new byte[TypedValue.BUFFER_SIZE];
+    private final byte[]                deflated = new byte[TypedValue.BUFFER_SIZE];
+
+    private TinkerZipOutputStream out;
+    private Deflater              deflater;
+
+    public PatchZipWriter(File outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * @param entryName relative path in the patch, use '/' as separator
+     */
+    public synchronized void addFile(String entryName, File file) throws IOException {
+        if (entries.containsKey(entryName)) {
+            throw new TinkerPatchException("duplicate entry in patch: " + entryName);
+        }
+        entries.put(entryName, file);
+    }
+
+    /**
+     * add all the files left in the dir, entry names are relative to the dir
+     */
+    public synchronized void addDirectory(File dir) throws IOException {
+        addDirectory(dir, "");
+    }
+
+    private void addDirectory(File dir, String prefix) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addDirectory(file, prefix + file.getName() + "/");
+            } else {
+                addFile(prefix + file.getName(), file);
+            }
+        }
+    }
+
+    /**
+     * write all the added entries to the output file
+     */
+    public synchronized void finish() throws IOException {
+        ensureOpen();
+        for (Map.Entry<String, File> entry : entries.entrySet()) {
+            if (isNoCompressName(entry.getKey())) {
+                writeStored(entry.getKey(), entry.getValue());
+            } else {
+                writeDeflated(entry.getKey(), entry.getValue());
+            }
+        }
+        close();
+    }
+
+    /**
+     * the entries which are not written by {@link #finish} are dropped, such as when the build fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (out == null) {
+            File parent = outputFile.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            out = new TinkerZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), TypedValue.BUFFER_SIZE));
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    }
+
+    private static boolean isNoCompressName(String entryName) {
+        int dot = entryName.lastIndexOf('.');
+        return dot >= 0 && NO_COMPRESS_EXTENSIONS.contains(entryName.substring(dot).toLowerCase(Locale.US));
+    }
+
+    private void writeStored(String entryName, File file) throws IOException {
+        // the crc goes to the local header before the data
+        final CRC32 crc = new CRC32();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
+                crc.update(buffer, 0, length);
+            }
+        } finally {
+            IOHelper.closeQuietly(in);
+        }
+        final TinkerZipEntry entry = new TinkerZipEntry(entryName);
+        entry.setMethod(TinkerZipEntry.STORED);
+        entry.setSize(file.length());
+        entry.setCompressedSize(file.length());
+        entry.setCrc(crc.getValue());
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            out.putNextEntry(entry);
+            for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
+                out.write(buffer, 0, length);
+            }
+            out.closeEntry();
+        } finally {
+            IOHelper.closeQuietly(in);
+        }
+    }
+
+    private void writeDeflated(String entryName, File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final TinkerZipEntry entry = new TinkerZipEntry(entryName);
+        entry.setMethod(TinkerZipEntry.DEFLATED);
+        deflater.reset();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            out.putNextEntry(entry);
+            for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
+                crc.update(buffer, 0, length);
+                deflater.setInput(buffer, 0, length);
+                while (!deflater.needsInput()) {
+                    writeDeflatedData();
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeDeflatedData();
+            }
+            // written in the data descriptor after the data
+            entry.setCrc(crc.getValue());
+            entry.setSize(deflater.getBytesRead());
+            entry.setCompressedSize(deflater.getBytesWritten());
+            out.closeEntry();
+        } finally {
+            IOHelper.closeQuietly(in);
+        }
+    }
+
+    private void writeDeflatedData() throws IOException {
+        int count = deflater.deflate(deflated);
+        if (count > 0) {
+            out.write(deflated, 0, count);
+        }
+    }
+}
@@ -18,12 +18,13 @@ package com.tencent.tinker.build.decoder;
 
 
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.patch.PatchMetrics;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.MD5;
+import com.tencent.tinker.build.util.PatternMatcher;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
-import com.tencent.tinker.build.util.Utils;
 
 import java.io.File;
 import java.io.IOException;
@@ -33,6 +34,12 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 
 /**
@@ -48,6 +55,10 @@ public class ApkDecoder extends BaseDecoder {
     private final ResDiffDecoder       resPatchDecoder;
     private final ArkHotDecoder        arkHotDecoder;
 
+    private final PatternMatcher dexFileMatcher;
+    private final PatternMatcher soFileMatcher;
+    private final PatternMatcher resFileMatcher;
+
     /**
      * if resource's file is also contain in dex or library pattern,
      * they won't change in new resources' apk, and we will just warn you.
@@ -70,25 +81,30 @@ public class ApkDecoder extends BaseDecoder {
         arkHotDecoder = new ArkHotDecoder(config, prePath + TypedValue.ARKHOT_META_TXT);
         Logger.d("config: " + config.mArkHotPatchPath + " " + config.mArkHotPatchName + prePath + TypedValue.ARKHOT_META_TXT);
         resDuplicateFiles = new ArrayList<>();
+
+        dexFileMatcher = new PatternMatcher(config.mDexFilePattern);
+        soFileMatcher = new PatternMatcher(config.mSoFilePattern);
+        resFileMatcher = new PatternMatcher(config.mResFilePattern);
     }
 
-    private void unzipApkFile(File file, File destFile) throws TinkerPatchException, IOException {
+    private void checkApkFileName(File file) throws TinkerPatchException {
         String apkName = file.getName();
         if (!apkName.endsWith(TypedValue.FILE_APK)) {
             throw new TinkerPatchException(
                 String.format("input apk file path must end with .apk, yours %s\n", apkName)
             );
         }
-
-        String destPath = destFile.getAbsolutePath();
-        Logger.d("UnZipping apk to %s", destPath);
-        FileOperation.unZipAPk(file.getAbsoluteFile().getAbsolutePath(), destPath);
-
     }
 
     private void unzipApkFiles(File oldFile, File newFile) throws IOException, TinkerPatchException {
-        unzipApkFile(oldFile, this.mOldApkDir);
-        unzipApkFile(newFile, this.mNewApkDir);
+        checkApkFileName(oldFile);
+        checkApkFileName(newFile);
+
+        //unchanged entries won't be diffed, but dex decoder needs all the dexes
+        Logger.d("UnZipping apk to %s and %s", mOldApkDir.getAbsolutePath(), mNewApkDir.getAbsolutePath());
+        FileOperation.unZipChangedApkEntries(oldFile.getAbsoluteFile(), newFile.getAbsoluteFile(),
+            mOldApkDir.getAbsolutePath(), mNewApkDir.getAbsolutePath(), config.mDexFilePattern, config.mOldApkEntryCache,
+            config.mFileMD5Cache);
     }
 
     private void writeToLogFile(File oldFile, File newFile) throws IOException {
@@ -110,12 +126,27 @@ public class ApkDecoder extends BaseDecoder {
 
     public boolean patch(File oldFile, File newFile) throws Exception {
         writeToLogFile(oldFile, newFile);
+        final PatchMetrics metrics = config.mPatchMetrics;
         //check manifest change first
-        manifestDecoder.patch(oldFile, newFile);
+        PatchMetrics.Span phase = metrics.beginPhase(PatchMetrics.PHASE_MANIFEST);
+        try {
+            manifestDecoder.patch(oldFile, newFile);
+        } finally {
+            metrics.end(phase);
+        }
 
-        unzipApkFiles(oldFile, newFile);
+        phase = metrics.beginPhase(PatchMetrics.PHASE_UNZIP);
+        try {
+            unzipApkFiles(oldFile, newFile);
+        } finally {
+            metrics.end(phase.addBytesRead(oldFile.length() + newFile.length()));
+        }
 
-        Files.walkFileTree(mNewApkDir.toPath(), new ApkFilesVisitor(config, mNewApkDir.toPath(), mOldApkDir.toPath(), dexPatchDecoder, soPatchDecoder, resPatchDecoder));
+        //dex, so and res decoders work on their own files and meta, run each of them on its own thread
+        final DecoderTask dexTask = new DecoderTask(dexPatchDecoder, metrics, PatchMetrics.PHASE_DEX);
+        final DecoderTask soTask = new DecoderTask(soPatchDecoder, metrics, PatchMetrics.PHASE_SO);
+        final DecoderTask resTask = new DecoderTask(resPatchDecoder, metrics, PatchMetrics.PHASE_RES);
+        Files.walkFileTree(mNewApkDir.toPath(), new ApkFilesVisitor(config, mNewApkDir.toPath(), mOldApkDir.toPath(), dexTask, soTask, resTask));
 
         // get all duplicate resource file
         for (File duplicateRes : resDuplicateFiles) {
@@ -124,11 +155,14 @@ public class ApkDecoder extends BaseDecoder {
                 + "we treat it as unchanged in the new resource_out.zip", getRelativePathStringToOldFile(duplicateRes));
         }
 
-        soPatchDecoder.onAllPatchesEnd();
-        dexPatchDecoder.onAllPatchesEnd();
+        runDecoderTasks(dexTask, soTask, resTask);
         manifestDecoder.onAllPatchesEnd();
-        resPatchDecoder.onAllPatchesEnd();
-        arkHotDecoder.onAllPatchesEnd();
+        phase = metrics.beginPhase(PatchMetrics.PHASE_ARKHOT);
+        try {
+            arkHotDecoder.onAllPatchesEnd();
+        } finally {
+            metrics.end(phase);
+        }
 
         //clean resources
         dexPatchDecoder.clean();
@@ -143,19 +177,100 @@ public class ApkDecoder extends BaseDecoder {
     public void onAllPatchesEnd() throws IOException, TinkerPatchException {
     }
 
+    /**
+     * Wait for all the tasks even if one of them fails, then throw the failure of the first task in order,
+     * so the error we report doesn't depend on which decoder is faster.
+     */
+    private void runDecoderTasks(DecoderTask... tasks) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(tasks.length);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>(tasks.length);
+            for (DecoderTask task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            Throwable failure = null;
+            for (int i = 0; i < tasks.length; i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    } else {
+                        Logger.e("%s also failed: %s", tasks[i].decoder.getClass().getSimpleName(), e.getCause());
+                    }
+                }
+            }
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Files collected by the visitor for one decoder, they are patched in visiting order.
+     */
+    static class DecoderTask implements Callable<Void> {
+        final BaseDecoder  decoder;
+        final PatchMetrics metrics;
+        final String       phaseName;
+        final List<File>   oldFiles = new ArrayList<>();
+        final List<File>   newFiles = new ArrayList<>();
+        final List<String> entryNames = new ArrayList<>();
+
+        DecoderTask(BaseDecoder decoder, PatchMetrics metrics, String phaseName) {
+            this.decoder = decoder;
+            this.metrics = metrics;
+            this.phaseName = phaseName;
+        }
+
+        void add(File oldFile, File newFile, String entryName) {
+            oldFiles.add(oldFile);
+            newFiles.add(newFile);
+            entryNames.add(entryName);
+        }
+
+        @Override
+        public Void call() throws Exception {
+            final PatchMetrics.Span phase = metrics.beginPhase(phaseName);
+            try {
+                for (int i = 0; i < newFiles.size(); i++) {
+                    final File oldFile = oldFiles.get(i);
+                    final File newFile = newFiles.get(i);
+                    final long bytesRead = (oldFile != null ? oldFile.length() : 0) + newFile.length();
+                    final PatchMetrics.Span file = metrics.beginFile(entryNames.get(i));
+                    try {
+                        decoder.patch(oldFile, newFile);
+                    } finally {
+                        metrics.end(file.addBytesRead(bytesRead));
+                    }
+                    phase.addBytesRead(bytesRead);
+                }
+                decoder.onAllPatchesEnd();
+            } finally {
+                metrics.end(phase);
+            }
+            return null;
+        }
+    }
+
     class ApkFilesVisitor extends SimpleFileVisitor<Path> {
-        BaseDecoder     dexDecoder;
-        BaseDecoder     soDecoder;
-        BaseDecoder     resDecoder;
+        DecoderTask     dexTask;
+        DecoderTask     soTask;
+        DecoderTask     resTask;
         Configuration   config;
         Path            newApkPath;
         Path            oldApkPath;
 
-        ApkFilesVisitor(Configuration config, Path newPath, Path oldPath, BaseDecoder dex, BaseDecoder so, BaseDecoder resDecoder) {
+        ApkFilesVisitor(Configuration config, Path newPath, Path oldPath, DecoderTask dex, DecoderTask so, DecoderTask res) {
             this.config = config;
-            this.dexDecoder = dex;
-            this.soDecoder = so;
-            this.resDecoder = resDecoder;
+            this.dexTask = dex;
+            this.soTask = so;
+            this.resTask = res;
             this.newApkPath = newPath;
             this.oldApkPath = oldPath;
         }
@@ -174,22 +289,18 @@ public class ApkDecoder extends BaseDecoder {
             }
             String patternKey = relativePath.toString().replace("\\", "/");
 
-            if (Utils.checkFileInPattern(config.mDexFilePattern, patternKey)) {
+            if (dexFileMatcher.matches(patternKey)) {
                 //also treat duplicate file as unchanged
-                if (Utils.checkFileInPattern(config.mResFilePattern, patternKey) && oldFile != null) {
+                if (resFileMatcher.matches(patternKey) && oldFile != null) {
                     resDuplicateFiles.add(oldFile);
                 }
 
-                try {
-                    dexDecoder.patch(oldFile, file.toFile());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+                dexTask.add(oldFile, file.toFile(), patternKey);
                 return FileVisitResult.CONTINUE;
             }
-            if (Utils.checkFileInPattern(config.mSoFilePattern, patternKey)) {
+            if (soFileMatcher.matches(patternKey)) {
                 //also treat duplicate file as unchanged
-                if (Utils.checkFileInPattern(config.mResFilePattern, patternKey) && oldFile != null) {
+                if (resFileMatcher.matches(patternKey) && oldFile != null) {
                     resDuplicateFiles.add(oldFile);
                 }
 
@@ -205,19 +316,11 @@ public class ApkDecoder extends BaseDecoder {
                     }
                 }
 
-                try {
-                    soDecoder.patch(oldFile, file.toFile());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+                soTask.add(oldFile, file.toFile(), patternKey);
                 return FileVisitResult.CONTINUE;
             }
-            if (Utils.checkFileInPattern(config.mResFilePattern, patternKey)) {
-                try {
-                    resDecoder.patch(oldFile, file.toFile());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+            if (resFileMatcher.matches(patternKey)) {
+                resTask.add(oldFile, file.toFile(), patternKey);
                 return FileVisitResult.CONTINUE;
             }
             return FileVisitResult.CONTINUE;
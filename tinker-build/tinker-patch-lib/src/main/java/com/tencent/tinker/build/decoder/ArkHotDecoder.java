@@ -14,7 +14,6 @@ package com.tencent.tinker.build.decoder;
 
 import com.tencent.tinker.build.info.InfoWriter;
 import com.tencent.tinker.build.patch.Configuration;
-import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.MD5;
 import com.tencent.tinker.build.util.TinkerPatchException;
 
@@ -54,8 +53,7 @@ public class ArkHotDecoder extends BaseDecoder {
         }
         String md5 = MD5.getMD5(patchFile);
 
-        File dest = new File(config.mTempResultDir + "/" + ARKHOT_PATCH_PATH + "/" + ARKHOT_PATCH_NAME);
-        FileOperation.copyFileUsingStream(patchFile, dest);
+        config.mPatchZipWriter.addFile(ARKHOT_PATCH_PATH + "/" + ARKHOT_PATCH_NAME, patchFile);
         writeMetaFile(md5);
     }
 
@@ -58,6 +58,13 @@ public abstract class BaseDecoder {
         return config.mTempResultDir.toPath().resolve(getRelativePath(file));
     }
 
+    /**
+     * put the new file to the patch as it is, it won't be copied to the result dir
+     */
+    protected void addNewFileToPatch(File newFile) throws IOException {
+        config.mPatchZipWriter.addFile(getRelativePathStringToNewFile(newFile), newFile);
+    }
+
     public String getRelativePathStringToOldFile(File oldFile) {
         return config.mTempUnzipOldDir.toPath().relativize(oldFile.toPath()).toString().replace("\\", "/");
     }
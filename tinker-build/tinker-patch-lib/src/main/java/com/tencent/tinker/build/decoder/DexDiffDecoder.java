@@ -25,6 +25,7 @@ import com.tencent.tinker.build.dexpatcher.util.ChangedClassesDexClassInfoCollec
 import com.tencent.tinker.build.dexpatcher.util.PatternUtils;
 import com.tencent.tinker.build.info.InfoWriter;
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.patch.PatchMetrics;
 import com.tencent.tinker.build.util.DexClassesComparator;
 import com.tencent.tinker.build.util.DexClassesComparator.DexClassInfo;
 import com.tencent.tinker.build.util.DexClassesComparator.DexGroup;
@@ -32,6 +33,7 @@ import com.tencent.tinker.build.util.ExcludedClassModifiedChecker;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.MD5;
+import com.tencent.tinker.build.util.PatternMatcher;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
@@ -96,7 +98,7 @@ public class DexDiffDecoder extends BaseDecoder {
     private boolean hasDexChanged = false;
     private DexPatcherLoggerBridge dexPatcherLoggerBridge = null;
 
-    private final Set<Pattern> loaderClassPatterns;
+    private final PatternMatcher loaderClassMatcher;
 
     private final Set<String> descOfClassesInApk;
     private final Set<String> descOfSyntheticClassesInApk;
@@ -131,7 +133,7 @@ public class DexDiffDecoder extends BaseDecoder {
 
         dexNameToRelatedInfoMap = new HashMap<>();
 
-        loaderClassPatterns = new HashSet<>();
+        final Set<Pattern> loaderClassPatterns = new HashSet<>();
         for (String patternStr : config.mDexLoaderPattern) {
             loaderClassPatterns.add(
                     Pattern.compile(
@@ -139,6 +141,8 @@ public class DexDiffDecoder extends BaseDecoder {
                     )
             );
         }
+        // checked for every class reference of the loader classes
+        loaderClassMatcher = new PatternMatcher(loaderClassPatterns);
 
         descOfClassesInApk = new HashSet<>();
         descOfSyntheticClassesInApk = new HashSet<>();
@@ -201,13 +205,12 @@ public class DexDiffDecoder extends BaseDecoder {
             return false;
         }
 
-        File dexDiffOut = getOutputPath(newFile).toFile();
         final String newMd5 = getRawOrWrappedDexMD5(newFile);
 
         //new add file
         if (oldFile == null || !oldFile.exists() || oldFile.length() == 0) {
             hasDexChanged = true;
-            copyNewDexAndLogToDexMeta(newFile, newMd5, dexDiffOut);
+            copyNewDexAndLogToDexMeta(newFile, newMd5);
             return true;
         }
 
@@ -261,7 +264,7 @@ public class DexDiffDecoder extends BaseDecoder {
         if (!descOfClassesInApk.contains(refereeTypeDesc)) {
             return true;
         }
-        if (Utils.isStringMatchesPatterns(refereeTypeDesc, loaderClassPatterns)) {
+        if (loaderClassMatcher.matches(refereeTypeDesc)) {
             return true;
         }
         if (descOfSyntheticClassesInApk.contains(refereeTypeDesc)) {
@@ -279,7 +282,7 @@ public class DexDiffDecoder extends BaseDecoder {
             final DexFile dex = DexFileFactory.loadDexFile(dexFile, Opcodes.forApi(29));
             for (org.jf.dexlib2.iface.ClassDef classDef : dex.getClasses()) {
                 final String currClassDesc = classDef.getType();
-                if (!Utils.isStringMatchesPatterns(currClassDesc, loaderClassPatterns)) {
+                if (!loaderClassMatcher.matches(currClassDesc)) {
                     continue;
                 }
                 for (Field field : classDef.getFields()) {
@@ -630,6 +633,8 @@ public class DexDiffDecoder extends BaseDecoder {
         File dexDiffOut = getOutputPath(newDexFile).toFile();
         ensureDirectoryExist(dexDiffOut.getParentFile());
 
+        final PatchMetrics metrics = config.mPatchMetrics;
+        PatchMetrics.Span span = metrics.beginFile(dexName + " diff");
         try {
             DexPatchGenerator dexPatchGen = new DexPatchGenerator(oldDexFile, newDexFile);
             dexPatchGen.setAdditionalRemovingClassPatterns(config.mDexLoaderPattern);
@@ -645,6 +650,8 @@ public class DexDiffDecoder extends BaseDecoder {
             dexPatchGen.executeAndSaveTo(dexDiffOut);
         } catch (Exception e) {
             throw new TinkerPatchException(e);
+        } finally {
+            metrics.end(span.addBytesRead(oldDexFile.length() + newDexFile.length()).addBytesWritten(dexDiffOut.length()));
         }
 
         if (!dexDiffOut.exists()) {
@@ -660,6 +667,7 @@ public class DexDiffDecoder extends BaseDecoder {
             ensureDirectoryExist(tempFullPatchedDexFile.getParentFile());
         }
 
+        span = metrics.beginFile(dexName + " verify");
         try {
             new DexPatchApplier(oldDexFile, dexDiffOut).executeAndSaveTo(tempFullPatchedDexFile);
 
@@ -679,6 +687,8 @@ public class DexDiffDecoder extends BaseDecoder {
             throw new TinkerPatchException(
                     "Failed to generate temporary patched dex, which makes MD5 generating procedure of new dex failed, either.", e
             );
+        } finally {
+            metrics.end(span.addBytesRead(oldDexFile.length() + dexDiffOut.length()).addBytesWritten(tempFullPatchedDexFile.length()));
         }
 
         if (!tempFullPatchedDexFile.exists()) {
@@ -797,8 +807,8 @@ public class DexDiffDecoder extends BaseDecoder {
         return (dexName.matches("^classes[0-9]*\\.dex$"));
     }
 
-    private void copyNewDexAndLogToDexMeta(File newFile, String newMd5, File output) throws IOException {
-        FileOperation.copyFileUsingStream(newFile, output);
+    private void copyNewDexAndLogToDexMeta(File newFile, String newMd5) throws IOException {
+        addNewFileToPatch(newFile);
         final long newFileCrc = FileOperation.getFileCrc32(newFile);
         logToDexMeta(newFile, null, null, newMd5, newMd5, "0", newFileCrc);
     }
@@ -915,7 +925,7 @@ public class DexDiffDecoder extends BaseDecoder {
     private String getRawOrWrappedDexMD5(File dexOrJarFile) {
         final String name = dexOrJarFile.getName();
         if (name.endsWith(".dex")) {
-            return MD5.getMD5(dexOrJarFile);
+            return config.mFileMD5Cache.getMD5(dexOrJarFile);
         } else {
             JarFile dexJar = null;
             try {
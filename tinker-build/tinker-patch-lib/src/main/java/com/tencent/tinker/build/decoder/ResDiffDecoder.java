@@ -24,6 +24,7 @@ import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.CustomDiff;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.MD5;
+import com.tencent.tinker.build.util.PatternMatcher;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
@@ -58,7 +59,6 @@ public class ResDiffDecoder extends BaseDecoder {
     private static final String TEST_RESOURCE_NAME        = "only_use_to_test_tinker_resource.txt";
     private static final String TEST_RESOURCE_ASSETS_PATH = "assets/" + TEST_RESOURCE_NAME;
 
-    private static final String TEMP_RES_ZIP = "temp_res.zip";
     private final InfoWriter        logWriter;
     private final InfoWriter        metaWriter;
     private       ArrayList<String> addedSet;
@@ -72,6 +72,10 @@ public class ResDiffDecoder extends BaseDecoder {
     private ApkParser                      newApkParser;
     private Set<String>                    newApkAnimResNames;
 
+    private final PatternMatcher resFileMatcher;
+    private final PatternMatcher resIgnoreChangeMatcher;
+    private final PatternMatcher resIgnoreChangeWarningMatcher;
+
     public ResDiffDecoder(Configuration config, String metaPath, String logPath) throws IOException {
         super(config);
 
@@ -95,6 +99,10 @@ public class ResDiffDecoder extends BaseDecoder {
 
         newApkParser = new ApkParser(config.mNewApkFile);
         newApkAnimResNames = new HashSet<>();
+
+        resFileMatcher = new PatternMatcher(config.mResFilePattern);
+        resIgnoreChangeMatcher = new PatternMatcher(config.mResIgnoreChangePattern);
+        resIgnoreChangeWarningMatcher = new PatternMatcher(config.mResIgnoreChangeWarningPattern);
     }
 
     @Override
@@ -168,7 +176,7 @@ public class ResDiffDecoder extends BaseDecoder {
         //actually, it won't go below
         if (newFile == null || !newFile.exists()) {
             String relativeStringByOldDir = getRelativePathStringToOldFile(oldFile);
-            if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, relativeStringByOldDir)) {
+            if (resIgnoreChangeMatcher.matches(relativeStringByOldDir)) {
                 Logger.e("found delete resource: " + relativeStringByOldDir + " ,but it match ignore change pattern, just ignore!");
                 return false;
             }
@@ -180,11 +188,11 @@ public class ResDiffDecoder extends BaseDecoder {
         File outputFile = getOutputPath(newFile).toFile();
 
         if (oldFile == null || !oldFile.exists()) {
-            if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, name)) {
+            if (resIgnoreChangeMatcher.matches(name)) {
                 Logger.e("found add resource: " + name + " ,but it match ignore change pattern, just ignore!");
                 return false;
             }
-            FileOperation.copyFileUsingStream(newFile, outputFile);
+            addNewFileToPatch(newFile);
             addedSet.add(name);
             writeResLog(newFile, oldFile, TypedValue.ADD);
             return true;
@@ -194,14 +202,14 @@ public class ResDiffDecoder extends BaseDecoder {
             return false;
         }
         //new add file
-        String newMd5 = MD5.getMD5(newFile);
-        String oldMd5 = MD5.getMD5(oldFile);
+        String newMd5 = config.mFileMD5Cache.getMD5(newFile);
+        String oldMd5 = config.mFileMD5Cache.getMD5(oldFile);
 
         //oldFile or newFile may be 0b length
         if (oldMd5 != null && oldMd5.equals(newMd5)) {
             return false;
         }
-        if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, name)) {
+        if (resIgnoreChangeMatcher.matches(name)) {
             Logger.d("found modify resource: " + name + ", but it match ignore change pattern, just ignore!");
             return false;
         }
@@ -224,9 +232,14 @@ public class ResDiffDecoder extends BaseDecoder {
             if (!outputFile.getParentFile().exists()) {
                 outputFile.getParentFile().mkdirs();
             }
-            DiffFactory.diffFile(config, oldFile, newFile, outputFile);
+            final boolean diffed;
+            if (name.equals(TypedValue.RES_ARSC)) {
+                diffed = DiffFactory.tryDiffResourceTable(config, oldFile, newFile, outputFile);
+            } else {
+                diffed = DiffFactory.tryDiffFile(config, oldFile, newFile, outputFile);
+            }
             //treat it as normal modify
-            if (Utils.checkBsDiffFileSize(outputFile, newFile)) {
+            if (diffed && Utils.checkBsDiffFileSize(outputFile, newFile)) {
                 LargeModeInfo largeModeInfo = new LargeModeInfo();
                 largeModeInfo.path = newFile;
                 largeModeInfo.crc = FileOperation.getFileCrc32(newFile);
@@ -237,8 +250,10 @@ public class ResDiffDecoder extends BaseDecoder {
                 return true;
             }
         }
+        //the diff is too large, use the new file instead
+        FileOperation.deleteFile(outputFile);
         modifiedSet.add(name);
-        FileOperation.copyFileUsingStream(newFile, outputFile);
+        addNewFileToPatch(newFile);
         writeResLog(newFile, oldFile, TypedValue.MOD);
         return false;
     }
@@ -349,22 +364,18 @@ public class ResDiffDecoder extends BaseDecoder {
         // last add test res in assets for user cannot ignore it;
         addAssetsFileForTestResource();
 
-        File tempResZip = new File(config.mOutFolder + File.separator + TEMP_RES_ZIP);
-        final File tempResFiles = config.mTempResultDir;
-
-        //gen zip resources_out.zip
-        FileOperation.zipInputDir(tempResFiles, tempResZip, null);
+        //gen zip resources_out.zip, added and modified files are taken from the new apk directly
         File extractToZip = new File(config.mOutFolder + File.separator + TypedValue.RES_OUT);
 
-        String resZipMd5 = Utils.genResOutputFile(extractToZip, tempResZip, config,
-            addedSet, modifiedSet, deletedSet, largeModifiedSet, largeModifiedMap);
+        //device would rebuild resources.apk with this plan, put it in assets along with the meta file
+        File entryPlanFile = new File(config.mTempResultDir + File.separator + TypedValue.FILE_ASSETS + File.separator + TypedValue.RES_ENTRY_PLAN);
+        String resZipMd5 = Utils.genResOutputFile(extractToZip, config.mNewApkFile, config,
+            addedSet, modifiedSet, deletedSet, largeModifiedSet, largeModifiedMap, entryPlanFile);
 
         Logger.e("Final normal zip resource: %s, size=%d, md5=%s", extractToZip.getName(), extractToZip.length(), resZipMd5);
         logWriter.writeLineToInfoFile(
             String.format("Final normal zip resource: %s, size=%d, md5=%s", extractToZip.getName(), extractToZip.length(), resZipMd5)
         );
-        //delete temp file
-        FileOperation.deleteFile(tempResZip);
 
         //first, write resource meta first
         //use resources.arsc's base crc to identify base.apk
@@ -405,7 +416,7 @@ public class ResDiffDecoder extends BaseDecoder {
         final Set<String> changedAnimResNames = new HashSet<>();
         for (String resFileName : specificFileNames) {
             if (newApkAnimResNames.contains(resFileName)) {
-                if (Utils.isStringMatchesPatterns(resFileName, config.mResIgnoreChangeWarningPattern)) {
+                if (resIgnoreChangeWarningMatcher.matches(resFileName)) {
                     Logger.d("\nAnimation resource: " + resFileName
                             + " was changed, but it's filtered by ignoreChangeWarning pattern, just ignore.\n");
                 } else {
@@ -466,7 +477,7 @@ public class ResDiffDecoder extends BaseDecoder {
     private void removeIgnoreChangeFile(ArrayList<String> array) {
         ArrayList<String> removeList = new ArrayList<>();
         for (String name : array) {
-            if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, name)) {
+            if (resIgnoreChangeMatcher.matches(name)) {
                 Logger.e("ignore change resource file: " + name);
                 removeList.add(name);
             }
@@ -547,7 +558,7 @@ public class ResDiffDecoder extends BaseDecoder {
 
             String patternKey = relativePath.toString().replace("\\", "/");
 
-            if (Utils.checkFileInPattern(config.mResFilePattern, patternKey)) {
+            if (resFileMatcher.matches(patternKey)) {
                 //not contain in new path, is deleted
                 if (!newPath.toFile().exists()) {
                     deletedFiles.add(patternKey);
@@ -64,11 +64,11 @@ public class SoDiffDecoder extends BaseDecoder {
             return false;
         }
         //new add file
-        String newMd5 = MD5.getMD5(newFile);
+        String newMd5 = config.mFileMD5Cache.getMD5(newFile);
         File diffFile = getOutputPath(newFile).toFile();
 
         if (oldFile == null || !oldFile.exists()) {
-            FileOperation.copyFileUsingStream(newFile, diffFile);
+            addNewFileToPatch(newFile);
             writeLogFiles(newFile, null, null, newMd5);
             return true;
         }
@@ -78,13 +78,13 @@ public class SoDiffDecoder extends BaseDecoder {
             return false;
         }
         if (oldFile.length() == 0 || newFile.length() == 0) {
-            FileOperation.copyFileUsingStream(newFile, diffFile);
+            addNewFileToPatch(newFile);
             writeLogFiles(newFile, null, null, newMd5);
             return true;
         }
 
         //new add file
-        String oldMd5 = MD5.getMD5(oldFile);
+        String oldMd5 = config.mFileMD5Cache.getMD5(oldFile);
 
         if (oldMd5.equals(newMd5)) {
             return false;
@@ -94,12 +94,11 @@ public class SoDiffDecoder extends BaseDecoder {
             diffFile.getParentFile().mkdirs();
         }
 
-        diffFile(oldFile, newFile, diffFile);
-
-        if (Utils.checkBsDiffFileSize(diffFile, newFile)) {
+        if (DiffFactory.tryDiffFile(config, oldFile, newFile, diffFile) && Utils.checkBsDiffFileSize(diffFile, newFile)) {
             writeLogFiles(newFile, oldFile, diffFile, newMd5);
         } else {
-            FileOperation.copyFileUsingStream(newFile, diffFile);
+            FileOperation.deleteFile(diffFile);
+            addNewFileToPatch(newFile);
             writeLogFiles(newFile, null, null, newMd5);
         }
         return true;
@@ -148,8 +147,4 @@ public class SoDiffDecoder extends BaseDecoder {
             logWriter.writeLineToInfoFile(log);
         }
     }
-
-    private void diffFile(File oldFile, File newFile, File diffFile) throws IOException {
-        DiffFactory.diffFile(config, oldFile, newFile, diffFile);
-    }
 }
@@ -52,6 +52,7 @@ import com.tencent.tinker.build.dexpatcher.algorithms.diff.TypeListSectionDiffAl
 import com.tencent.tinker.build.dexpatcher.util.PatternUtils;
 import com.tencent.tinker.commons.dexpatcher.DexPatcherLogger;
 import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
+import com.tencent.tinker.commons.dexpatcher.struct.IndexListCodec;
 import com.tencent.tinker.commons.dexpatcher.struct.PatchOperation;
 import com.tencent.tinker.commons.dexpatcher.util.SparseIndexMap;
 import com.tencent.tinker.commons.util.IOHelper;
@@ -558,8 +559,7 @@ public class DexPatchGenerator {
         writePatchOperations(buffer, this.encodedArraySectionDiffAlg.getPatchOperationList());
         writePatchOperations(buffer, this.classDefSectionDiffAlg.getPatchOperationList());
 
-        byte[] bufferData = buffer.array();
-        os.write(bufferData);
+        buffer.writeTo(os);
         os.flush();
     }
 
@@ -592,26 +592,10 @@ public class DexPatchGenerator {
             }
         }
 
-        buffer.writeUleb128(delOpIndexList.size());
-        int lastIndex = 0;
-        for (Integer index : delOpIndexList) {
-            buffer.writeSleb128(index - lastIndex);
-            lastIndex = index;
-        }
-
-        buffer.writeUleb128(addOpIndexList.size());
-        lastIndex = 0;
-        for (Integer index : addOpIndexList) {
-            buffer.writeSleb128(index - lastIndex);
-            lastIndex = index;
-        }
-
-        buffer.writeUleb128(replaceOpIndexList.size());
-        lastIndex = 0;
-        for (Integer index : replaceOpIndexList) {
-            buffer.writeSleb128(index - lastIndex);
-            lastIndex = index;
-        }
+        // Operations are sorted by index, so each list is ascending.
+        IndexListCodec.write(buffer, toIntArray(delOpIndexList));
+        IndexListCodec.write(buffer, toIntArray(addOpIndexList));
+        IndexListCodec.write(buffer, toIntArray(replaceOpIndexList));
 
         for (T newItem : newItemList) {
             if (newItem instanceof StringData) {
@@ -670,4 +654,12 @@ public class DexPatchGenerator {
             }
         }
     }
+
+    private static int[] toIntArray(List<Integer> list) {
+        final int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
 }
@@ -67,7 +67,7 @@ public class InfoWriter {
         }
     }
 
-    public void writeLineToInfoFile(String line) {
+    public synchronized void writeLineToInfoFile(String line) {
         if (infoPath == null || line == null || line.length() == 0) {
             return;
         }
@@ -88,7 +88,7 @@ public class InfoWriter {
 
     }
 
-    public void close() {
+    public synchronized void close() {
         try {
             if (infoWrite != null) infoWrite.close();
         } catch (IOException e) {
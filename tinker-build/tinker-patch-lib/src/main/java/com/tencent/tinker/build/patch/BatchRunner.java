@@ -0,0 +1,161 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.patch;
+
+import com.tencent.tinker.build.util.ApkEntryCache;
+import com.tencent.tinker.build.util.FileOperation;
+import com.tencent.tinker.build.util.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generate patches of several old and new apk pairs in one run, such as several flavors against one base apk.
+ * Entries of the same old apk are extracted only once for all of its jobs, and jobs run at the same time
+ * as long as the thread budget allows.
+ */
+public class BatchRunner {
+    /**
+     * dex, so and res decoders of a job run at the same time
+     */
+    private static final int THREADS_PER_JOB = 3;
+
+    private static final String OLD_APK_CACHE_DIR = "tinker_old_apk_cache_";
+
+    private final File                workDir;
+    private final int                 threadBudget;
+    private final List<Configuration> jobs = new ArrayList<>();
+
+    /**
+     * @param workDir      old apk entries are cached here during the run
+     * @param threadBudget threads all the jobs can use together
+     */
+    public BatchRunner(File workDir, int threadBudget) {
+        this.workDir = workDir;
+        this.threadBudget = threadBudget;
+    }
+
+    /**
+     * each job must have its own output folder, jobs without an old apk entry cache
+     * share one if they have the same old apk
+     */
+    public void addJob(Configuration config) {
+        jobs.add(config);
+    }
+
+    /**
+     * @return the failed jobs, their errors are printed already
+     */
+    public List<Configuration> run() throws IOException {
+        final List<File> cacheDirs = shareOldApkEntries();
+        final int concurrentJobs = Math.max(1, Math.min(jobs.size(), threadBudget / THREADS_PER_JOB));
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrentJobs);
+        final List<Configuration> failedJobs = new ArrayList<>();
+        try {
+            final List<Future<Void>> futures = new ArrayList<>(jobs.size());
+            for (final Configuration config : jobs) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        new JobRunner(config).runJob();
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < jobs.size(); i++) {
+                final Configuration config = jobs.get(i);
+                try {
+                    futures.get(i).get();
+                    Logger.d("patch job done: %s -> %s, output: %s",
+                        config.mOldApkFile.getName(), config.mNewApkFile.getName(), config.mOutFolder);
+                } catch (ExecutionException e) {
+                    Logger.e(e.getCause(), "patch job failed: %s -> %s, output: %s",
+                        config.mOldApkFile.getName(), config.mNewApkFile.getName(), config.mOutFolder);
+                    failedJobs.add(config);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (File cacheDir : cacheDirs) {
+                FileOperation.deleteDir(cacheDir);
+            }
+        }
+        return failedJobs;
+    }
+
+    /**
+     * jobs with the same old apk use the same entry cache
+     */
+    private List<File> shareOldApkEntries() throws IOException {
+        final LinkedHashMap<String, List<Configuration>> jobsByOldApk = new LinkedHashMap<>();
+        for (Configuration config : jobs) {
+            if (config.mOldApkEntryCache != null) {
+                //such as the cache of a daemon
+                continue;
+            }
+            final String oldApkPath = config.mOldApkFile.getCanonicalPath();
+            List<Configuration> oldApkJobs = jobsByOldApk.get(oldApkPath);
+            if (oldApkJobs == null) {
+                oldApkJobs = new ArrayList<>();
+                jobsByOldApk.put(oldApkPath, oldApkJobs);
+            }
+            oldApkJobs.add(config);
+        }
+        final List<File> cacheDirs = new ArrayList<>();
+        for (List<Configuration> oldApkJobs : jobsByOldApk.values()) {
+            if (oldApkJobs.size() < 2) {
+                continue;
+            }
+            final File cacheDir = new File(workDir, OLD_APK_CACHE_DIR + cacheDirs.size());
+            final ApkEntryCache cache = new ApkEntryCache(cacheDir);
+            for (Configuration config : oldApkJobs) {
+                config.mOldApkEntryCache = cache;
+            }
+            cacheDirs.add(cacheDir);
+        }
+        return cacheDirs;
+    }
+
+    /**
+     * errors are thrown to the batch instead of exiting the process
+     */
+    private static class JobRunner extends Runner {
+        JobRunner(Configuration config) {
+            super(true);
+            mConfig = config;
+        }
+
+        void runJob() throws IOException {
+            Logger.initLogger(mConfig);
+            try {
+                tinkerPatch();
+            } finally {
+                Logger.closeLogger();
+            }
+        }
+    }
+}
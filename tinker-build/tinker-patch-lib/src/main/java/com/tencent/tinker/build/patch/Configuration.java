@@ -16,6 +16,10 @@
 
 package com.tencent.tinker.build.patch;
 
+import com.tencent.tinker.build.builder.PatchZipWriter;
+import com.tencent.tinker.build.util.ApkEntryCache;
+import com.tencent.tinker.build.util.DiffBudget;
+import com.tencent.tinker.build.util.FileMD5Cache;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
@@ -71,11 +75,13 @@ public class Configuration {
     protected static final String ATTR_SEVEN_ZIP_PATH            = "sevenZipPath";
     protected static final String ATTR_CUSTOM_DIFF_PATH          = "customPath";
     protected static final String ATTR_CUSTOM_DIFF_PATH_ARGS     = "customPathArgs";
+    protected static final String ATTR_DIFF_TIME_BUDGET          = "diffTimeBudget";
     protected static final String ATTR_DEX_MODE                  = "dexMode";
     protected static final String ATTR_PATTERN                   = "pattern";
     protected static final String ATTR_IGNORE_CHANGE             = "ignoreChange";
     protected static final String ATTR_IGNORE_CHANGE_WARNING     = "ignoreChangeWarning";
     protected static final String ATTR_RES_LARGE_MOD             = "largeModSize";
+    protected static final String ATTR_RES_ARSC_CHUNK_DIFF       = "arscChunkDiff";
 
     protected static final String ATTR_ARKHOT_PATH = "path";
     protected static final String ATTR_ARKHOT_NAME = "name";
@@ -120,6 +126,10 @@ public class Configuration {
     public HashSet<Pattern> mResIgnoreChangeWarningPattern;
     public HashSet<String>  mResRawPattern;
     public int              mLargeModSize;
+    /**
+     * diff resources.arsc by chunks, devices with an older tinker can't apply such patch
+     */
+    public boolean          mArscChunkDiff;
     /**
      * only gradle have the param
      */
@@ -141,6 +151,15 @@ public class Configuration {
      * custom diff path config
      */
     public String mCustomDiffPathArgs;
+    /**
+     * seconds all the diffs of a build can take, 0 means no limit
+     */
+    public int        mDiffTimeBudget;
+    public DiffBudget mDiffBudget;
+    /**
+     * md5 of the apk entries extracted by this build
+     */
+    public FileMD5Cache mFileMD5Cache = new FileMD5Cache();
     /**
      * sign data
      */
@@ -157,6 +176,21 @@ public class Configuration {
     public File mTempUnzipOldDir;
     public File mTempUnzipNewDir;
 
+    /**
+     * the unsigned patch zip, decoders put their outputs here
+     */
+    public PatchZipWriter mPatchZipWriter;
+
+    /**
+     * old apk entries shared by the jobs of a batch, null if there is only one job
+     */
+    public ApkEntryCache mOldApkEntryCache;
+
+    /**
+     * time and allocations of each phase, written next to the patch output
+     */
+    public PatchMetrics mPatchMetrics;
+
     public boolean mUsingGradle;
 
     /**
@@ -171,6 +205,7 @@ public class Configuration {
     public Configuration(File config, File outputFile, File oldApkFile, File newApkFile)
         throws IOException, ParserConfigurationException, SAXException, TinkerPatchException {
         mUsingGradle = false;
+        mPatchMetrics = new PatchMetrics(null);
         mSoFilePattern = new HashSet<>();
         mDexFilePattern = new HashSet<>();
         mDexLoaderPattern = new HashSet<>();
@@ -194,6 +229,7 @@ public class Configuration {
         readXmlConfig(config);
         createTempDirectory();
         checkInputPatternParameter();
+        mDiffBudget = new DiffBudget(mDiffTimeBudget);
     }
 
 
@@ -202,6 +238,7 @@ public class Configuration {
      */
     public Configuration(InputParam param) throws IOException, TinkerPatchException {
         mUsingGradle = true;
+        mPatchMetrics = new PatchMetrics(param.metricsListener);
         mSoFilePattern = new HashSet<>();
         mDexFilePattern = new HashSet<>();
         mDexLoaderPattern = new HashSet<>();
@@ -235,6 +272,7 @@ public class Configuration {
             addToPatterns(item, mResIgnoreChangeWarningPattern);
         }
         mLargeModSize = param.largeModSize;
+        mArscChunkDiff = param.arscChunkDiff;
         //only gradle have the param
         mUseApplyResource = param.useApplyResource;
 
@@ -269,6 +307,8 @@ public class Configuration {
         mUseSignAPk = param.useSign;
         mCustomDiffPath = param.customDiffPath;
         mCustomDiffPathArgs = param.customDiffPathArgs;
+        mDiffTimeBudget = param.diffTimeBudget;
+        mDiffBudget = new DiffBudget(mDiffTimeBudget);
         setSignData(param.signFile, param.keypass, param.storealias, param.storepass);
 
         FileOperation.cleanDir(new File(mOutFolder));
@@ -293,6 +333,7 @@ public class Configuration {
         sb.append("isProtectedApp:" + mIsProtectedApp + "\n");
         sb.append("7-ZipPath:" + mSevenZipPath + "\n");
         sb.append("useSignAPk:" + mUseSignAPk + "\n");
+        sb.append("diffTimeBudget:" + mDiffTimeBudget + "s\n");
 
         sb.append("package meta fields: \n");
 
@@ -332,6 +373,7 @@ public class Configuration {
             sb.append("resIgnore change warning:" + name.toString() + "\n");
         }
         sb.append("largeModSize:" + mLargeModSize + "kb\n");
+        sb.append("arscChunkDiff:" + mArscChunkDiff + "\n");
         sb.append("useApplyResource:" + mUseApplyResource + "\n");
         sb.append("ArkHot: "  + mArkHotPatchPath + " / " + mArkHotPatchName + "\n");
         return sb.toString();
@@ -343,6 +385,7 @@ public class Configuration {
         if (!mTempResultDir.exists()) {
             mTempResultDir.mkdir();
         }
+        mPatchZipWriter = new PatchZipWriter(new File(mOutFolder, TypedValue.UNSIGNED_PATCH_FILE));
 
         String oldApkName = mOldApkFile.getName();
         if (!oldApkName.endsWith(TypedValue.FILE_APK)) {
@@ -494,6 +537,8 @@ public class Configuration {
                         mCustomDiffPath = value;
                     }  else if (tagName.equals(ATTR_CUSTOM_DIFF_PATH_ARGS)) {
                         mCustomDiffPathArgs = value;
+                    } else if (tagName.equals(ATTR_DIFF_TIME_BUDGET)) {
+                        mDiffTimeBudget = Integer.parseInt(value);
                     }
                     else {
                         System.err.println("unknown property tag " + tagName);
@@ -642,6 +687,8 @@ public class Configuration {
                         }
                     } else if (tagName.equals(ATTR_RES_LARGE_MOD)) {
                         mLargeModSize = Integer.valueOf(value);
+                    } else if (tagName.equals(ATTR_RES_ARSC_CHUNK_DIFF)) {
+                        mArscChunkDiff = value.equals("true");
                     } else {
                         System.err.println("unknown dex tag " + tagName);
                     }
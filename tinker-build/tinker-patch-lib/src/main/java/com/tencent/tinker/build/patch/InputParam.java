@@ -36,6 +36,7 @@ public class InputParam {
     public final String  storepass;
     public final String customDiffPath;
     public final String customDiffPathArgs;
+    public final int    diffTimeBudget;
     public final boolean ignoreWarning;
     public final boolean allowLoaderInAnyDex;
     public final boolean removeLoaderForAllDex;
@@ -71,6 +72,10 @@ public class InputParam {
      * tinkerPath.resource largeModSize
      */
     public final int                     largeModSize;
+    /**
+     * tinkerPatch.resource arscChunkDiff
+     */
+    public final boolean                 arscChunkDiff;
     /**
      * tinkerPath.buildConfig applyResourceMapping
      */
@@ -90,6 +95,11 @@ public class InputParam {
     public final String arkHotPatchPath;
     public final String arkHotPatchName;
 
+    /**
+     * receive the metrics of the build, can be null
+     */
+    public final PatchMetricsListener metricsListener;
+
     private InputParam(
             String oldApk,
             String newApk,
@@ -100,6 +110,7 @@ public class InputParam {
             String storepass,
             String customDiffPath,
             String customDiffPathArgs,
+            int diffTimeBudget,
             boolean ignoreWarning,
             boolean allowLoaderInAnyDex,
             boolean removeLoaderForAllDex,
@@ -117,12 +128,14 @@ public class InputParam {
             ArrayList<String> resourceIgnoreChangePattern,
             ArrayList<String> resourceIgnoreChangeWarningPattern,
             int largeModSize,
+            boolean arscChunkDiff,
             boolean useApplyResource,
             HashMap<String, String> configFields,
 
         String sevenZipPath,
         String arkHotPatchPath,
-        String arkHotPatchName
+        String arkHotPatchName,
+        PatchMetricsListener metricsListener
     ) {
         this.oldApk = oldApk;
         this.newApk = newApk;
@@ -133,6 +146,7 @@ public class InputParam {
         this.storepass = storepass;
         this.customDiffPath = customDiffPath;
         this.customDiffPathArgs = customDiffPathArgs;
+        this.diffTimeBudget = diffTimeBudget;
         this.ignoreWarning = ignoreWarning;
         this.allowLoaderInAnyDex = allowLoaderInAnyDex;
         this.removeLoaderForAllDex = removeLoaderForAllDex;
@@ -150,6 +164,7 @@ public class InputParam {
         this.resourceIgnoreChangePattern = resourceIgnoreChangePattern;
         this.resourceIgnoreChangeWarningPattern = resourceIgnoreChangeWarningPattern;
         this.largeModSize = largeModSize;
+        this.arscChunkDiff = arscChunkDiff;
         this.useApplyResource = useApplyResource;
 
         this.configFields = configFields;
@@ -157,6 +172,7 @@ public class InputParam {
         this.sevenZipPath = sevenZipPath;
         this.arkHotPatchPath = arkHotPatchPath;
         this.arkHotPatchName = arkHotPatchName;
+        this.metricsListener = metricsListener;
     }
 
     public static class Builder {
@@ -172,6 +188,7 @@ public class InputParam {
         private String  storepass;
         private String  customDiffPath;
         private String  customDiffPathArgs;
+        private int     diffTimeBudget;
         private boolean ignoreWarning;
         private boolean allowLoaderInAnyDex;
         private boolean removeLoaderForAllDex;
@@ -207,6 +224,10 @@ public class InputParam {
          * tinkerPath.resource largeModSize
          */
         private  int                    largeModSize;
+        /**
+         * tinkerPatch.resource arscChunkDiff
+         */
+        private boolean                 arscChunkDiff;
         /**
          * tinkerPath.buildConfig applyResourceMapping
          */
@@ -226,6 +247,8 @@ public class InputParam {
         private String arkHotPatchPath;
         private String arkHotPatchName;
 
+        private PatchMetricsListener metricsListener;
+
 
         public Builder() {
         }
@@ -265,6 +288,11 @@ public class InputParam {
             return this;
         }
 
+        public Builder setResourceArscChunkDiff(boolean arscChunkDiff) {
+            this.arscChunkDiff = arscChunkDiff;
+            return this;
+        }
+
         public Builder setUseApplyResource(boolean useApplyResource) {
             this.useApplyResource = useApplyResource;
             return this;
@@ -320,6 +348,11 @@ public class InputParam {
             return this;
         }
 
+        public Builder setDiffTimeBudget(int seconds) {
+            this.diffTimeBudget = seconds;
+            return this;
+        }
+
         public Builder setRemoveLoaderForAllDex(boolean removeLoaderForAllDex){
             this.removeLoaderForAllDex = removeLoaderForAllDex;
             return this;
@@ -375,6 +408,11 @@ public class InputParam {
             return this;
         }
 
+        public Builder setMetricsListener(PatchMetricsListener listener) {
+            this.metricsListener = listener;
+            return this;
+        }
+
         public InputParam create() {
             return new InputParam(
                     oldApk,
@@ -386,6 +424,7 @@ public class InputParam {
                     storepass,
                     customDiffPath,
                     customDiffPathArgs,
+                    diffTimeBudget,
                     ignoreWarning,
                     allowLoaderInAnyDex,
                     removeLoaderForAllDex,
@@ -401,11 +440,13 @@ public class InputParam {
                     resourceIgnoreChangePattern,
                     resourceIgnoreChangeWarningPattern,
                     largeModSize,
+                    arscChunkDiff,
                     useApplyResource,
                     configFields,
                     sevenZipPath,
                     arkHotPatchPath,
-                    arkHotPatchName
+                    arkHotPatchName,
+                    metricsListener
             );
         }
     }
@@ -0,0 +1,307 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.patch;
+
+import com.tencent.tinker.build.util.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Time and allocations of each phase of a patch build, with the files of the phase, such as each dex diff.
+ * A span measures the thread which begins it, so it must end on the same thread, and the work it hands to
+ * other threads, such as the parallel unzip, only shows up in its wall time.
+ */
+public final class PatchMetrics {
+    public static final String PHASE_MANIFEST   = "manifest";
+    public static final String PHASE_UNZIP      = "unzip";
+    public static final String PHASE_DEX        = "dex";
+    public static final String PHASE_SO         = "so";
+    public static final String PHASE_RES        = "res";
+    public static final String PHASE_ARKHOT     = "arkhot";
+    public static final String PHASE_PATCH_INFO = "patch_info";
+    public static final String PHASE_PATCH_ZIP  = "patch_zip";
+    public static final String PHASE_SIGN       = "sign";
+    public static final String PHASE_SEVEN_ZIP  = "7zip";
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private final PatchMetricsListener listener;
+    private final long                 beginTime = System.nanoTime();
+    private final List<Span>           phases    = Collections.synchronizedList(new ArrayList<Span>());
+    private final ThreadLocal<Span>    currentPhase = new ThreadLocal<>();
+
+    private volatile long totalTimeNanos = -1;
+
+    /**
+     * @param listener can be null
+     */
+    public PatchMetrics(PatchMetricsListener listener) {
+        this.listener = listener;
+    }
+
+    public Span beginPhase(String name) {
+        final Span phase = new Span(name, true);
+        phases.add(phase);
+        currentPhase.set(phase);
+        return phase;
+    }
+
+    /**
+     * a file of the phase running on this thread, it is not recorded if there is no such phase
+     */
+    public Span beginFile(String name) {
+        final Span file = new Span(name, false);
+        final Span phase = currentPhase.get();
+        if (phase != null) {
+            phase.files.add(file);
+        }
+        return file;
+    }
+
+    public void end(Span span) {
+        span.end();
+        if (span.isPhase) {
+            if (currentPhase.get() == span) {
+                currentPhase.remove();
+            }
+            if (listener != null) {
+                listener.onPhaseEnd(span);
+            }
+        }
+    }
+
+    public List<Span> getPhases() {
+        synchronized (phases) {
+            return new ArrayList<>(phases);
+        }
+    }
+
+    /**
+     * @return -1 if the build is not finished
+     */
+    public long getTotalTimeNanos() {
+        return totalTimeNanos;
+    }
+
+    /**
+     * write the json report and tell the listener, the phases still running are left out
+     */
+    public void finish(File reportFile, boolean success) {
+        totalTimeNanos = System.nanoTime() - beginTime;
+        try {
+            writeReport(reportFile, success);
+        } catch (IOException e) {
+            Logger.e("Warning: can't write the patch metrics to %s: %s", reportFile.getAbsolutePath(), e);
+            reportFile = null;
+        }
+        if (listener != null) {
+            listener.onPatchEnd(this, reportFile);
+        }
+    }
+
+    private void writeReport(File reportFile, boolean success) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"success\": ").append(success)
+            .append(",\n  \"wall_time_ms\": ").append(toMillis(totalTimeNanos))
+            .append(",\n  \"phases\": [");
+        boolean first = true;
+        for (Span phase : getPhases()) {
+            if (!phase.isEnded()) {
+                continue;
+            }
+            sb.append(first ? "\n    " : ",\n    ");
+            first = false;
+            appendSpan(sb, phase, "    ");
+        }
+        sb.append(first ? "]\n}\n" : "\n  ]\n}\n");
+
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+        try {
+            writer.write(sb.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void appendSpan(StringBuilder sb, Span span, String indent) {
+        sb.append("{\"name\": \"").append(escape(span.name))
+            .append("\", \"wall_time_ms\": ").append(toMillis(span.wallTimeNanos))
+            .append(", \"cpu_time_ms\": ").append(toMillis(span.cpuTimeNanos))
+            .append(", \"allocated_bytes\": ").append(span.allocatedBytes)
+            .append(", \"bytes_read\": ").append(span.getBytesRead())
+            .append(", \"bytes_written\": ").append(span.getBytesWritten());
+        if (span.isPhase) {
+            sb.append(", \"files\": [");
+            boolean first = true;
+            for (Span file : span.getFiles()) {
+                if (!file.isEnded()) {
+                    continue;
+                }
+                sb.append(first ? "\n" : ",\n").append(indent).append("  ");
+                first = false;
+                appendSpan(sb, file, indent + "  ");
+            }
+            sb.append(first ? "]" : "\n" + indent + "]");
+        }
+        sb.append("}");
+    }
+
+    private static String toMillis(long nanos) {
+        if (nanos < 0) {
+            return "-1";
+        }
+        return String.format(Locale.US, "%.3f", nanos / 1000000.0);
+    }
+
+    private static String escape(String value) {
+        final StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * cpu time and allocated bytes are -1 if the jvm doesn't support them
+     */
+    private static long currentThreadCpuTime() {
+        try {
+            if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+                return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+            }
+        } catch (UnsupportedOperationException ignored) {
+            // cpu time measurement is disabled
+        }
+        return -1;
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+            try {
+                if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                }
+            } catch (UnsupportedOperationException ignored) {
+                // allocation measurement is disabled
+            }
+        }
+        return -1;
+    }
+
+    public static final class Span {
+        private final String     name;
+        private final boolean    isPhase;
+        private final List<Span> files = Collections.synchronizedList(new ArrayList<Span>());
+
+        private final long startWallTime;
+        private final long startCpuTime;
+        private final long startAllocatedBytes;
+
+        private volatile long wallTimeNanos  = -1;
+        private volatile long cpuTimeNanos   = -1;
+        private volatile long allocatedBytes = -1;
+
+        private long bytesRead;
+        private long bytesWritten;
+
+        Span(String name, boolean isPhase) {
+            this.name = name;
+            this.isPhase = isPhase;
+            this.startWallTime = System.nanoTime();
+            this.startCpuTime = currentThreadCpuTime();
+            this.startAllocatedBytes = currentThreadAllocatedBytes();
+        }
+
+        private void end() {
+            final long cpuTime = currentThreadCpuTime();
+            final long allocated = currentThreadAllocatedBytes();
+            if (startCpuTime >= 0 && cpuTime >= 0) {
+                cpuTimeNanos = cpuTime - startCpuTime;
+            }
+            if (startAllocatedBytes >= 0 && allocated >= 0) {
+                allocatedBytes = allocated - startAllocatedBytes;
+            }
+            wallTimeNanos = System.nanoTime() - startWallTime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isEnded() {
+            return wallTimeNanos >= 0;
+        }
+
+        public long getWallTimeNanos() {
+            return wallTimeNanos;
+        }
+
+        public long getCpuTimeNanos() {
+            return cpuTimeNanos;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public synchronized long getBytesRead() {
+            return bytesRead;
+        }
+
+        public synchronized long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public synchronized Span addBytesRead(long bytes) {
+            bytesRead += bytes;
+            return this;
+        }
+
+        public synchronized Span addBytesWritten(long bytes) {
+            bytesWritten += bytes;
+            return this;
+        }
+
+        /**
+         * empty for a file span
+         */
+        public List<Span> getFiles() {
+            synchronized (files) {
+                return new ArrayList<>(files);
+            }
+        }
+    }
+}
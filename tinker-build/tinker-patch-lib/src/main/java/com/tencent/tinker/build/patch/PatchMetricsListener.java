@@ -0,0 +1,36 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.patch;
+
+import java.io.File;
+
+/**
+ * Receive the metrics of a patch build, such as the gradle plugin reporting them in its own way.
+ * Phases of the decoders end on their own threads, the listener should be thread safe and return quickly.
+ */
+public interface PatchMetricsListener {
+    /**
+     * @param phase a finished phase with its files
+     */
+    void onPhaseEnd(PatchMetrics.Span phase);
+
+    /**
+     * @param reportFile the json report next to the patch output, null if it can't be written
+     */
+    void onPatchEnd(PatchMetrics metrics, File reportFile);
+}
@@ -21,7 +21,10 @@ import com.tencent.tinker.build.decoder.ApkDecoder;
 import com.tencent.tinker.build.info.PatchInfo;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.TinkerPatchException;
+import com.tencent.tinker.build.util.TypedValue;
+import com.tencent.tinker.commons.util.IOHelper;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -33,15 +36,18 @@ public class Runner {
 
     private final boolean mIsGradleEnv;
 
-    protected static long          mBeginTime;
-    protected        Configuration mConfig;
+    /**
+     * each runner is one patch build, the jobs of a batch have their own
+     */
+    protected final long          mBeginTime;
+    protected       Configuration mConfig;
 
     public Runner(boolean isGradleEnv) {
         mIsGradleEnv = isGradleEnv;
+        mBeginTime = System.currentTimeMillis();
     }
 
     public static void gradleRun(InputParam inputParam) {
-        mBeginTime = System.currentTimeMillis();
         Runner m = new Runner(true);
         m.run(inputParam);
     }
@@ -71,14 +77,25 @@ public class Runner {
 
             //gen meta file and version file
             PatchInfo info = new PatchInfo(mConfig);
-            info.gen();
+            PatchMetrics.Span phase = mConfig.mPatchMetrics.beginPhase(PatchMetrics.PHASE_PATCH_INFO);
+            try {
+                info.gen();
+            } finally {
+                mConfig.mPatchMetrics.end(phase);
+            }
 
             //build patch
             PatchBuilder builder = new PatchBuilder(mConfig);
             builder.buildPatch();
-
+            finishMetrics(true);
         } catch (Throwable e) {
+            //the cli exits in goToError, report what we have got first
+            IOHelper.closeQuietly(mConfig.mPatchZipWriter);
+            finishMetrics(false);
             goToError(e, ERRNO_USAGE);
+        } finally {
+            //it is already closed if the patch is built
+            IOHelper.closeQuietly(mConfig.mPatchZipWriter);
         }
 
         Logger.d("Tinker patch done, total time cost: %fs", diffTimeFromBegin());
@@ -86,6 +103,10 @@ public class Runner {
         Logger.d("-----------------------Tinker patch end-------------------------");
     }
 
+    private void finishMetrics(boolean success) {
+        mConfig.mPatchMetrics.finish(new File(mConfig.mOutFolder, TypedValue.PATCH_METRICS_FILE), success);
+    }
+
     private void loadConfigFromGradle(InputParam inputParam) {
         try {
             mConfig = new Configuration(inputParam);
@@ -0,0 +1,99 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Entries of an apk extracted once and shared by all the patch jobs against it.
+ * Each job still gets its own unzip dir with only the entries it needs, they are hard links to the cached files.
+ * The md5 of the cached entries are kept by entry name, they are the same for every job since the content is.
+ */
+public final class ApkEntryCache {
+    private final File                    cacheDir;
+    // entry name -> md5 of the extracted entries
+    private final HashMap<String, String> entryMD5s = new HashMap<>();
+
+    public ApkEntryCache(File cacheDir) {
+        this.cacheDir = cacheDir;
+        FileOperation.checkDirectory(cacheDir.getAbsolutePath());
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * delete the cached entries, the cache can still be used and they are extracted again
+     */
+    public synchronized void clear() {
+        FileOperation.deleteDir(cacheDir);
+        entryMD5s.clear();
+    }
+
+    /**
+     * extract the entries which are not cached yet, then link all of them to the dir
+     *
+     * @param apkFile  any apk with the same content as the cached one
+     * @param md5Cache if not null, the md5 of the linked files are put into it
+     */
+    public void linkEntries(File apkFile, List<ZipEntry> entries, String filePath, FileMD5Cache md5Cache) throws IOException {
+        final HashMap<String, String> md5s = new HashMap<>();
+        synchronized (this) {
+            if (entryMD5s.isEmpty()) {
+                FileOperation.checkDirectory(cacheDir.getAbsolutePath());
+            }
+            final List<ZipEntry> missingEntries = new ArrayList<>();
+            for (ZipEntry entry : entries) {
+                if (!entry.isDirectory() && !entryMD5s.containsKey(entry.getName())) {
+                    missingEntries.add(entry);
+                }
+            }
+            entryMD5s.putAll(FileOperation.unZipEntries(apkFile, missingEntries, cacheDir.getAbsolutePath()));
+            for (ZipEntry entry : entries) {
+                md5s.put(entry.getName(), entryMD5s.get(entry.getName()));
+            }
+        }
+        for (ZipEntry entry : entries) {
+            if (entry.isDirectory()) {
+                if (!FileOperation.validateZipEntryName(new File(filePath), entry.getName())) {
+                    throw new IOException("Bad ZipEntry name: " + entry.getName());
+                }
+                new File(filePath, entry.getName()).mkdirs();
+                continue;
+            }
+            FileOperation.makeParentDirectory(filePath, entry.getName());
+            final File cachedFile = new File(cacheDir, entry.getName());
+            final File destFile = new File(filePath, entry.getName());
+            try {
+                Files.createLink(destFile.toPath(), cachedFile.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                // such as a file system without hard link
+                FileOperation.copyFileUsingStream(cachedFile, destFile);
+            }
+            if (md5Cache != null) {
+                md5Cache.put(destFile, md5s.get(entry.getName()));
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Entry caches of the old apks kept by a long running process, such as the patch daemon.
+ * The caches are keyed by the md5 of the apk content, so a base apk downloaded again to another path
+ * still hits its cache, and the least recently used ones are deleted once there are too many.
+ *
+ * A cache is pinned from {@link #acquire} to {@link #release}, the jobs of a request may still be using it,
+ * so only the caches which are not pinned are deleted. The pool can be larger than its size for a while
+ * if a request needs more old apks than that.
+ */
+public final class ApkEntryCachePool {
+    private static final String CACHE_DIR = "apk_entry_cache_";
+
+    private final File rootDir;
+    private final int  maxSize;
+
+    private final LinkedHashMap<String, ApkEntryCache> caches = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * how many times each cache is acquired and not released yet
+     */
+    private final HashMap<ApkEntryCache, Integer> pinCounts = new HashMap<>();
+
+    /**
+     * md5 of the apks we have seen, avoid hashing the same unchanged file again
+     */
+    private final HashMap<String, ApkDigest> apkDigests = new HashMap<>();
+
+    private int nextCacheId = 0;
+
+    public ApkEntryCachePool(File rootDir, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("cache size must be positive: " + maxSize);
+        }
+        this.rootDir = rootDir;
+        this.maxSize = maxSize;
+        FileOperation.cleanDir(rootDir);
+    }
+
+    /**
+     * the cache is pinned until it is released
+     */
+    public synchronized ApkEntryCache acquire(File apkFile) throws IOException {
+        final String md5 = getApkMD5(apkFile);
+        ApkEntryCache cache = caches.get(md5);
+        if (cache != null) {
+            Logger.d("Reuse the entry cache of apk %s, md5=%s", apkFile.getName(), md5);
+        } else {
+            cache = new ApkEntryCache(new File(rootDir, CACHE_DIR + nextCacheId++));
+            caches.put(md5, cache);
+        }
+        final Integer pinCount = pinCounts.get(cache);
+        pinCounts.put(cache, pinCount == null ? 1 : pinCount + 1);
+        trimToSize();
+        return cache;
+    }
+
+    public synchronized void release(ApkEntryCache cache) {
+        final Integer pinCount = pinCounts.get(cache);
+        if (pinCount == null) {
+            throw new IllegalStateException("cache is not acquired: " + cache.getCacheDir());
+        }
+        if (pinCount > 1) {
+            pinCounts.put(cache, pinCount - 1);
+        } else {
+            pinCounts.remove(cache);
+        }
+        trimToSize();
+    }
+
+    public synchronized void clear() {
+        for (ApkEntryCache cache : caches.values()) {
+            cache.clear();
+        }
+        caches.clear();
+        pinCounts.clear();
+        apkDigests.clear();
+    }
+
+    /**
+     * delete the least recently used caches which are not pinned
+     */
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, ApkEntryCache>> it = caches.entrySet().iterator();
+        while (caches.size() > maxSize && it.hasNext()) {
+            final ApkEntryCache eldest = it.next().getValue();
+            if (pinCounts.containsKey(eldest)) {
+                continue;
+            }
+            it.remove();
+            eldest.clear();
+        }
+    }
+
+    private String getApkMD5(File apkFile) throws IOException {
+        final String path = apkFile.getCanonicalPath();
+        ApkDigest digest = apkDigests.get(path);
+        if (digest == null || digest.length != apkFile.length() || digest.lastModified != apkFile.lastModified()) {
+            final String md5 = MD5.getMD5(apkFile);
+            if (md5 == null) {
+                throw new IOException("can't read apk " + path);
+            }
+            digest = new ApkDigest(apkFile.length(), apkFile.lastModified(), md5);
+            apkDigests.put(path, digest);
+        }
+        return digest.md5;
+    }
+
+    private static final class ApkDigest {
+        final long   length;
+        final long   lastModified;
+        final String md5;
+
+        ApkDigest(long length, long lastModified, String md5) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+    }
+}
@@ -176,6 +176,15 @@ public final class DexClassesComparator {
         newClassDescriptorToClassInfoMap.clear();
         refAffectedClassDescs.clear();
 
+        // Names of the same types and members are resolved again and again while comparing,
+        // decode all strings once instead of on every lookup.
+        for (Dex oldDex : oldDexGroup.dexes) {
+            oldDex.buildSymbolIndex();
+        }
+        for (Dex newDex : newDexGroup.dexes) {
+            newDex.buildSymbolIndex();
+        }
+
         // Map classDesc and typeIndex to classInfo
         // and collect typeIndex of classes to check in oldDexes.
         for (Dex oldDex : oldDexGroup.dexes) {
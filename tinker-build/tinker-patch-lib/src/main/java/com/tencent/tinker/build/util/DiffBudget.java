@@ -0,0 +1,59 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The diff time a patch build can spend, shared by the decoders running at the same time.
+ * Once it is used up, the changed files are put in the patch as they are, the patch is larger
+ * but the build time is bounded.
+ */
+public final class DiffBudget {
+    private final long          budgetNanos;
+    private final AtomicLong    usedNanos = new AtomicLong();
+    private final AtomicBoolean exhaustedLogged = new AtomicBoolean();
+
+    /**
+     * @param budgetSeconds 0 means no limit
+     */
+    public DiffBudget(int budgetSeconds) {
+        this.budgetNanos = TimeUnit.SECONDS.toNanos(budgetSeconds);
+    }
+
+    public boolean isExhausted() {
+        if (budgetNanos <= 0 || usedNanos.get() < budgetNanos) {
+            return false;
+        }
+        if (exhaustedLogged.compareAndSet(false, true)) {
+            Logger.e("Warning: diff time budget %ds is used up, the other changed files are put in the patch without diff",
+                TimeUnit.NANOSECONDS.toSeconds(budgetNanos));
+        }
+        return true;
+    }
+
+    public void charge(long nanos) {
+        usedNanos.addAndGet(nanos);
+    }
+
+    public long getUsedNanos() {
+        return usedNanos.get();
+    }
+}
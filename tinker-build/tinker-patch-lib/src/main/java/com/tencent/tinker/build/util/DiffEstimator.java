@@ -0,0 +1,194 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Predict the size of a bsdiff patch before paying for bsdiff, which is much slower than reading the files.
+ *
+ * Windows of both files are hashed with a rolling hash, and only the windows whose hash has its low bits zero
+ * are sampled, so the samples are chosen by content and an insertion doesn't shift all of them. The part of
+ * the new file which can't be found in the old one goes to the patch nearly as is, compressed by bsdiff,
+ * so the patch is about that part times the compress ratio of the new file.
+ */
+public final class DiffEstimator {
+    /**
+     * smaller files are diffed quickly anyway
+     */
+    public static final long MIN_ESTIMATE_SIZE = 64 * TypedValue.K_BYTES;
+
+    /**
+     * the estimation is rough, only skip the diff if it is clearly too large
+     */
+    private static final double SKIP_MARGIN = 0.1;
+
+    /**
+     * must be a power of 2
+     */
+    private static final int  WINDOW_SIZE    = 32;
+    private static final int  HASH_BASE      = 0x01000193;
+    private static final int  MAX_SAMPLES    = 1 << 16;
+    private static final int  COMPRESS_SAMPLE_SIZE = 64 * 1024;
+    private static final int  BUFFER_SIZE    = 64 * 1024;
+
+    private DiffEstimator() {
+    }
+
+    /**
+     * @return true if the bsdiff patch would be larger than {@link TypedValue#BSDIFF_PATCH_MAX_RATIO} of
+     * the new file, so the new file is used anyway
+     */
+    public static boolean isDiffTooLarge(File oldFile, File newFile) throws IOException {
+        if (newFile.length() < MIN_ESTIMATE_SIZE) {
+            return false;
+        }
+        final double ratio = estimateDiffRatio(oldFile, newFile);
+        if (ratio > TypedValue.BSDIFF_PATCH_MAX_RATIO + SKIP_MARGIN) {
+            Logger.d("Estimated diff ratio of %s is %.2f, skip bsdiff and treat it as newly file", newFile.getName(), ratio);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return estimated size of the bsdiff patch divided by the size of the new file
+     */
+    public static double estimateDiffRatio(File oldFile, File newFile) throws IOException {
+        return (1 - estimateSimilarity(oldFile, newFile)) * estimateCompressRatio(newFile);
+    }
+
+    /**
+     * @return how much of the new file can be found in the old one, from 0 to 1
+     */
+    public static double estimateSimilarity(File oldFile, File newFile) throws IOException {
+        final int sampleMask = getSampleMask(Math.max(oldFile.length(), newFile.length()));
+        final int[] oldSamples = sampleHashes(oldFile, sampleMask);
+        final int[] newSamples = sampleHashes(newFile, sampleMask);
+        if (newSamples.length == 0) {
+            return 0;
+        }
+        Arrays.sort(oldSamples);
+        int matched = 0;
+        for (int sample : newSamples) {
+            if (Arrays.binarySearch(oldSamples, sample) >= 0) {
+                matched++;
+            }
+        }
+        return matched / (double) newSamples.length;
+    }
+
+    /**
+     * deflate a part in the middle of the file, the head is usually not like the rest
+     */
+    private static double estimateCompressRatio(File file) throws IOException {
+        final long length = file.length();
+        final byte[] sample = new byte[(int) Math.min(length, COMPRESS_SAMPLE_SIZE)];
+        if (sample.length == 0) {
+            return 1;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek((length - sample.length) / 2);
+            raf.readFully(sample);
+        } finally {
+            raf.close();
+        }
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            final byte[] out = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return Math.min(1, compressed / (double) sample.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * sample about {@link #MAX_SAMPLES} windows of the larger file at most
+     */
+    private static int getSampleMask(long length) {
+        int mask = 0x3f;
+        while (mask != -1 && (length >>> Integer.bitCount(mask)) > MAX_SAMPLES) {
+            mask = (mask << 1) | 1;
+        }
+        return mask;
+    }
+
+    /**
+     * @return hashes of the sampled windows
+     */
+    private static int[] sampleHashes(File file, int sampleMask) throws IOException {
+        int highPower = 1;
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            highPower *= HASH_BASE;
+        }
+        int[] samples = new int[1024];
+        int count = 0;
+        final byte[] window = new byte[WINDOW_SIZE];
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int hash = 0;
+        long position = 0;
+        final InputStream is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            int len;
+            while ((len = is.read(buffer)) > 0) {
+                for (int i = 0; i < len; i++, position++) {
+                    final int slot = (int) (position & (WINDOW_SIZE - 1));
+                    hash = hash * HASH_BASE + (buffer[i] & 0xff) - (window[slot] & 0xff) * highPower;
+                    window[slot] = buffer[i];
+                    if (position < WINDOW_SIZE - 1) {
+                        continue;
+                    }
+                    final int mixed = mix(hash);
+                    if ((mixed & sampleMask) == 0) {
+                        if (count == samples.length) {
+                            samples = Arrays.copyOf(samples, samples.length * 2);
+                        }
+                        samples[count++] = mixed;
+                    }
+                }
+            }
+        } finally {
+            is.close();
+        }
+        return Arrays.copyOf(samples, count);
+    }
+
+    /**
+     * the low bits of a polynomial hash are poor, spread the high ones down
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+}
@@ -1,30 +1,115 @@
 package com.tencent.tinker.build.util;
 
 import com.tencent.tinker.bsdiff.BSDiff;
+import com.tencent.tinker.build.arscpatcher.ArscPatchGenerator;
 import com.tencent.tinker.build.patch.Configuration;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 
 public class DiffFactory {
 
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
     private static boolean diffShellPermission = false;
 
+    /**
+     * Diff the files unless the diff is not worth it: the estimated bsdiff patch is too large to be used,
+     * or the diff time budget of the build is used up.
+     *
+     * @return false if the files are not diffed, the new file should be put in the patch instead
+     */
+    public static boolean tryDiffFile(Configuration config, File oldFile, File newFile, File diffFile) throws IOException {
+        if (config.mDiffBudget.isExhausted()) {
+            return false;
+        }
+        final boolean customDiff = CustomDiff.checkHasCustomDiff(config);
+        // the custom diff may do much better than bsdiff
+        if (!customDiff && DiffEstimator.isDiffTooLarge(oldFile, newFile)) {
+            return false;
+        }
+        chargeDiffTime(config, customDiff, new DiffAction() {
+            @Override
+            public void diff() throws IOException {
+                diffFile(config, oldFile, newFile, diffFile);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * like {@link #tryDiffFile}, resources.arsc is diffed by chunks so there is no estimation
+     */
+    public static boolean tryDiffResourceTable(Configuration config, File oldFile, File newFile, File diffFile) throws IOException {
+        if (config.mDiffBudget.isExhausted()) {
+            return false;
+        }
+        chargeDiffTime(config, CustomDiff.checkHasCustomDiff(config), new DiffAction() {
+            @Override
+            public void diff() throws IOException {
+                diffResourceTable(config, oldFile, newFile, diffFile);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * bsdiff is charged by the cpu time of this thread, the custom diff runs in another process,
+     * it is charged by the wall time
+     */
+    private static void chargeDiffTime(Configuration config, boolean customDiff, DiffAction action) throws IOException {
+        final boolean useCpuTime = !customDiff && THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+        final long start = useCpuTime ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+        try {
+            action.diff();
+        } finally {
+            final long end = useCpuTime ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+            config.mDiffBudget.charge(end - start);
+        }
+    }
+
+    private interface DiffAction {
+        void diff() throws IOException;
+    }
+
     public static void diffFile(Configuration config, File oldFile, File newFile, File diffFile) throws IOException {
         Logger.d("path:" + config.mCustomDiffPath + " oldFile:" + oldFile.getPath());
         if (CustomDiff.checkHasCustomDiff(config)) {
-            if (!diffShellPermission) {
-                diffShellPermission = true;
-                makeSurePermission(config.mCustomDiffPath);
-            }
+            checkDiffShellPermission(config);
             CustomDiff.diffFile(config.mCustomDiffPath, config.mCustomDiffPathArgs, oldFile, newFile, diffFile);
         } else {
             BSDiff.bsdiff(oldFile, newFile, diffFile);
         }
     }
 
+    /**
+     * diff resources.arsc by chunks if it is enabled, it is much smaller and faster to apply than bsdiff over the whole file.
+     * It is off by default since devices with an older tinker only know bspatch, and the custom patcher on the device
+     * doesn't know the format either, so just use the custom diff in that case.
+     */
+    public static void diffResourceTable(Configuration config, File oldFile, File newFile, File diffFile) throws IOException {
+        if (config.mArscChunkDiff && !CustomDiff.checkHasCustomDiff(config)) {
+            try {
+                new ArscPatchGenerator(oldFile, newFile).executeAndSaveTo(diffFile);
+                return;
+            } catch (IllegalStateException e) {
+                Logger.e("can't diff %s by chunks, use bsdiff instead. reason: %s", newFile.getName(), e.getMessage());
+            }
+        }
+        diffFile(config, oldFile, newFile, diffFile);
+    }
+
+    private static synchronized void checkDiffShellPermission(Configuration config) throws IOException {
+        if (!diffShellPermission) {
+            diffShellPermission = true;
+            makeSurePermission(config.mCustomDiffPath);
+        }
+    }
+
     private static void makeSurePermission(String path) throws IOException {
         try {
             Process process = new ProcessBuilder("chmod", "777", path.split(" ")[0]).start();
@@ -0,0 +1,55 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * md5 of the apk entries extracted by one patch build, computed while they were written.
+ *
+ * Each build has its own cache in {@link com.tencent.tinker.build.patch.Configuration}, so a file
+ * rewritten by a later build can never get the md5 of an older content. Files which are not
+ * in the cache are just read again.
+ */
+public final class FileMD5Cache {
+    private final ConcurrentHashMap<String, String> md5s = new ConcurrentHashMap<>();
+
+    public void put(File file, String md5) {
+        // keep the same behavior with MD5.getMD5(File), which returns null for empty files
+        if (md5 == null || file.length() <= 0) {
+            return;
+        }
+        md5s.put(file.getAbsolutePath(), md5);
+    }
+
+    public String getMD5(File file) {
+        if (file == null) {
+            return null;
+        }
+        final String md5 = md5s.get(file.getAbsolutePath());
+        return md5 != null ? md5 : MD5.getMD5(file);
+    }
+
+    static String toHexString(byte[] digest) {
+        StringBuilder md5Str = new StringBuilder(32);
+        for (int i = 0; i < digest.length; i++) {
+            md5Str.append(Integer.toString((digest[i] & 0xff) + 0x100, 16).substring(1));
+        }
+        return md5Str.toString();
+    }
+}
@@ -29,16 +29,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 public class FileOperation {
+    // extracting is mostly bounded by disk, more threads won't help
+    private static final int MAX_EXTRACT_THREADS = 8;
+
     public static final boolean deleteFile(String filePath) {
         if (filePath == null) {
             return true;
@@ -181,52 +194,228 @@ public class FileOperation {
     public static void unZipAPk(String fileName, String filePath) throws IOException {
         checkDirectory(filePath);
 
+        final File apkFile = new File(fileName);
+        final List<ZipExtractJob> jobs = new ArrayList<>();
         ZipFile zipFile = new ZipFile(fileName);
         Enumeration enumeration = zipFile.entries();
         try {
             while (enumeration.hasMoreElements()) {
                 ZipEntry entry = (ZipEntry) enumeration.nextElement();
-                if (!validateZipEntryName(new File(filePath), entry.getName())) {
-                    throw new IOException("Bad ZipEntry name: " + entry.getName());
+                addZipExtractJob(jobs, apkFile, entry, filePath);
+            }
+        } finally {
+            if (zipFile != null) {
+                zipFile.close();
+            }
+        }
+        extractZipEntries(jobs);
+    }
+
+    /**
+     * Only extract the entries the decoders would diff: added, deleted or modified ones,
+     * compared by crc and size in the central directories, and the ones always need to be
+     * extracted, such as dex files. For unchanged entries, just create their parent directories.
+     */
+    public static void unZipChangedApkEntries(File oldApk, File newApk, String oldPath, String newPath,
+                                              HashSet<Pattern> alwaysExtractPatterns) throws IOException {
+        unZipChangedApkEntries(oldApk, newApk, oldPath, newPath, alwaysExtractPatterns, null, null);
+    }
+
+    /**
+     * @param oldEntryCache if not null, old entries are taken from the cache shared by the jobs of a batch
+     * @param md5Cache      if not null, the md5 of the extracted files are put into it
+     */
+    public static void unZipChangedApkEntries(File oldApk, File newApk, String oldPath, String newPath,
+                                              HashSet<Pattern> alwaysExtractPatterns, ApkEntryCache oldEntryCache,
+                                              FileMD5Cache md5Cache) throws IOException {
+        checkDirectory(oldPath);
+        checkDirectory(newPath);
+
+        final PatternMatcher alwaysExtractMatcher = new PatternMatcher(alwaysExtractPatterns);
+        final List<ZipExtractJob> jobs = new ArrayList<>();
+        final List<ZipEntry> oldEntriesToExtract = new ArrayList<>();
+        ZipFile oldZipFile = null;
+        ZipFile newZipFile = null;
+        int skippedCount = 0;
+        try {
+            oldZipFile = new ZipFile(oldApk);
+            newZipFile = new ZipFile(newApk);
+
+            Enumeration<? extends ZipEntry> newEntries = newZipFile.entries();
+            while (newEntries.hasMoreElements()) {
+                ZipEntry newEntry = newEntries.nextElement();
+                ZipEntry oldEntry = oldZipFile.getEntry(newEntry.getName());
+                if (newEntry.isDirectory()
+                    || oldEntry == null
+                    || oldEntry.getCrc() != newEntry.getCrc()
+                    || oldEntry.getSize() != newEntry.getSize()
+                    || alwaysExtractMatcher.matches(newEntry.getName())) {
+                    addZipExtractJob(jobs, newApk, newEntry, newPath);
+                    if (oldEntry != null) {
+                        oldEntriesToExtract.add(oldEntry);
+                    }
+                } else {
+                    makeParentDirectory(newPath, newEntry.getName());
+                    makeParentDirectory(oldPath, oldEntry.getName());
+                    skippedCount++;
                 }
-                if (entry.isDirectory()) {
-                    new File(filePath, entry.getName()).mkdirs();
-                    continue;
+            }
+            //deleted entries
+            Enumeration<? extends ZipEntry> oldEntries = oldZipFile.entries();
+            while (oldEntries.hasMoreElements()) {
+                ZipEntry oldEntry = oldEntries.nextElement();
+                if (newZipFile.getEntry(oldEntry.getName()) == null) {
+                    oldEntriesToExtract.add(oldEntry);
                 }
-                BufferedInputStream bis = new BufferedInputStream(zipFile.getInputStream(entry));
+            }
+        } finally {
+            IOHelper.closeQuietly(oldZipFile);
+            IOHelper.closeQuietly(newZipFile);
+        }
+        if (oldEntryCache == null) {
+            for (ZipEntry oldEntry : oldEntriesToExtract) {
+                addZipExtractJob(jobs, oldApk, oldEntry, oldPath);
+            }
+            extractZipEntries(jobs);
+        } else {
+            extractZipEntries(jobs);
+            oldEntryCache.linkEntries(oldApk, oldEntriesToExtract, oldPath, md5Cache);
+        }
+        if (md5Cache != null) {
+            for (ZipExtractJob job : jobs) {
+                md5Cache.put(job.destFile, job.md5);
+            }
+        }
+        Logger.d("UnZipping changed apk entries, extracted: %d, old entries: %d, unchanged: %d",
+            jobs.size(), oldEntriesToExtract.size(), skippedCount);
+    }
 
-                File file = new File(filePath + File.separator + entry.getName());
+    /**
+     * extract the entries to the dir in parallel
+     *
+     * @return md5 of the extracted files by their entry names
+     */
+    public static HashMap<String, String> unZipEntries(File zipFile, Collection<ZipEntry> entries, String filePath) throws IOException {
+        final List<ZipExtractJob> jobs = new ArrayList<>();
+        for (ZipEntry entry : entries) {
+            addZipExtractJob(jobs, zipFile, entry, filePath);
+        }
+        extractZipEntries(jobs);
+        final HashMap<String, String> md5s = new HashMap<>();
+        for (ZipExtractJob job : jobs) {
+            md5s.put(job.entryName, job.md5);
+        }
+        return md5s;
+    }
 
-                File parentFile = file.getParentFile();
-                if (parentFile != null && (!parentFile.exists())) {
-                    parentFile.mkdirs();
-                }
-                FileOutputStream fos = null;
-                BufferedOutputStream bos = null;
-                try {
-                    fos = new FileOutputStream(file);
-                    bos = new BufferedOutputStream(fos, TypedValue.BUFFER_SIZE);
+    static void makeParentDirectory(String filePath, String entryName) throws IOException {
+        if (!validateZipEntryName(new File(filePath), entryName)) {
+            throw new IOException("Bad ZipEntry name: " + entryName);
+        }
+        File parentFile = new File(filePath + File.separator + entryName).getParentFile();
+        if (parentFile != null && (!parentFile.exists())) {
+            parentFile.mkdirs();
+        }
+    }
 
-                    byte[] buf = new byte[TypedValue.BUFFER_SIZE];
-                    int len;
-                    while ((len = bis.read(buf, 0, TypedValue.BUFFER_SIZE)) != -1) {
-                        fos.write(buf, 0, len);
-                    }
-                } finally {
-                    if (bos != null) {
-                        bos.flush();
-                        bos.close();
-                    }
-                    if (bis != null) {
-                        bis.close();
+    /**
+     * directories are created here, so the workers never race on them
+     */
+    private static void addZipExtractJob(List<ZipExtractJob> jobs, File zipFile, ZipEntry entry, String filePath) throws IOException {
+        if (entry.isDirectory()) {
+            if (!validateZipEntryName(new File(filePath), entry.getName())) {
+                throw new IOException("Bad ZipEntry name: " + entry.getName());
+            }
+            new File(filePath, entry.getName()).mkdirs();
+            return;
+        }
+        makeParentDirectory(filePath, entry.getName());
+        jobs.add(new ZipExtractJob(zipFile, entry.getName(), entry.getCrc(), new File(filePath + File.separator + entry.getName())));
+    }
+
+    /**
+     * Extract entries across a worker pool, each worker opens its own zip file handles.
+     * The md5 is computed while writing, so the decoders don't need to read the files again.
+     */
+    private static void extractZipEntries(final List<ZipExtractJob> jobs) throws IOException {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        final int workerCount = Math.min(Math.min(Runtime.getRuntime().availableProcessors(), MAX_EXTRACT_THREADS), jobs.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try {
+            final List<Future<Void>> futures = new ArrayList<>(workerCount);
+            for (int i = 0; i < workerCount; i++) {
+                final int workerIndex = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        final HashMap<File, ZipFile> zipFiles = new HashMap<>();
+                        try {
+                            for (int j = workerIndex; j < jobs.size(); j += workerCount) {
+                                final ZipExtractJob job = jobs.get(j);
+                                ZipFile zipFile = zipFiles.get(job.zipFile);
+                                if (zipFile == null) {
+                                    zipFile = new ZipFile(job.zipFile);
+                                    zipFiles.put(job.zipFile, zipFile);
+                                }
+                                extractZipEntry(zipFile, job);
+                            }
+                        } finally {
+                            for (ZipFile zipFile : zipFiles.values()) {
+                                IOHelper.closeQuietly(zipFile);
+                            }
+                        }
+                        return null;
                     }
-                }
+                }));
             }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
         } finally {
-            if (zipFile != null) {
-                zipFile.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void extractZipEntry(ZipFile zipFile, ZipExtractJob job) throws IOException, NoSuchAlgorithmException {
+        ZipEntry entry = zipFile.getEntry(job.entryName);
+        if (entry == null) {
+            throw new IOException("can't find entry " + job.entryName + " in " + zipFile.getName());
+        }
+        final MessageDigest md5 = MessageDigest.getInstance("MD5");
+        final CRC32 crc = new CRC32();
+        BufferedInputStream bis = new BufferedInputStream(zipFile.getInputStream(entry));
+        BufferedOutputStream bos = null;
+        try {
+            bos = new BufferedOutputStream(new FileOutputStream(job.destFile), TypedValue.BUFFER_SIZE);
+
+            byte[] buf = new byte[TypedValue.BUFFER_SIZE];
+            int len;
+            while ((len = bis.read(buf, 0, TypedValue.BUFFER_SIZE)) != -1) {
+                bos.write(buf, 0, len);
+                md5.update(buf, 0, len);
+                crc.update(buf, 0, len);
             }
+        } finally {
+            if (bos != null) {
+                bos.flush();
+                bos.close();
+            }
+            bis.close();
         }
+        if (job.crc != -1 && job.crc != crc.getValue()) {
+            throw new IOException("crc mismatch when extracting " + job.entryName + " from " + zipFile.getName());
+        }
+        job.md5 = FileMD5Cache.toHexString(md5.digest());
     }
 
     /**
@@ -371,6 +560,21 @@ public class FileOperation {
         FileOperation.zipFiles(collectFiles, outputFile, comment);
     }
 
+    public static void zipInputDirEntries(File inputDir, Collection<String> entryNames, File outputFile) throws IOException {
+        ZipOutputStream zipout = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), TypedValue.BUFFER_SIZE));
+        try {
+            for (String entryName : entryNames) {
+                File file = new File(inputDir, entryName);
+                if (!file.isFile()) {
+                    throw new IOException("can't find " + entryName + " in " + inputDir.getAbsolutePath());
+                }
+                zipFile(file, zipout, entryName.substring(0, Math.max(entryName.lastIndexOf('/'), 0)));
+            }
+        } finally {
+            zipout.close();
+        }
+    }
+
     public static boolean sevenZipInputDir(File inputDir, File outputFile, Configuration config) {
         String outPath = inputDir.getAbsolutePath();
         String path = outPath + File.separator + "*";
@@ -406,7 +610,7 @@ public class FileOperation {
         return true;
     }
 
-    private static boolean validateZipEntryName(File destDir, String entryName) {
+    static boolean validateZipEntryName(File destDir, String entryName) {
         if (entryName == null || entryName.isEmpty()) {
             return false;
         }
@@ -418,4 +622,20 @@ public class FileOperation {
             return false;
         }
     }
+
+    private static final class ZipExtractJob {
+        final File   zipFile;
+        final String entryName;
+        final long   crc;
+        final File   destFile;
+        // written by the worker, read after all the workers are done
+        String md5;
+
+        ZipExtractJob(File zipFile, String entryName, long crc, File destFile) {
+            this.zipFile = zipFile;
+            this.entryName = entryName;
+            this.crc = crc;
+            this.destFile = destFile;
+        }
+    }
 }
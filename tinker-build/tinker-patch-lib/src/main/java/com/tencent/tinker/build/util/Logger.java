@@ -21,21 +21,36 @@ import com.tencent.tinker.build.patch.Configuration;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 
 /**
  * Created by zhangshaowen on 16/4/7.
  */
 public class Logger {
-    private static InfoWriter logWriter;
+    /**
+     * patch jobs of a batch run on their own threads and write their own log files,
+     * the decoder threads of a job inherit its writer
+     */
+    private static final InheritableThreadLocal<InfoWriter> logWriter = new InheritableThreadLocal<>();
 
     public static void initLogger(Configuration config) throws IOException {
         String logPath = config.mOutFolder + File.separator + TypedValue.FILE_LOG;
-        logWriter = new InfoWriter(config, logPath);
+        logWriter.set(new InfoWriter(config, logPath));
     }
 
     public static void closeLogger() {
-        if (logWriter != null) {
-            logWriter.close();
+        InfoWriter writer = logWriter.get();
+        if (writer != null) {
+            writer.close();
+            logWriter.remove();
+        }
+    }
+
+    private static void writeLog(String log) {
+        InfoWriter writer = logWriter.get();
+        if (writer != null) {
+            writer.writeLineToInfoFile(log);
         }
     }
 
@@ -52,7 +67,7 @@ public class Logger {
         System.out.println(log);
         System.out.flush();
 
-        logWriter.writeLineToInfoFile(log);
+        writeLog(log);
     }
 
     public static void e(final String msg) {
@@ -67,7 +82,13 @@ public class Logger {
         System.err.println(log);
         System.err.flush();
 
-        logWriter.writeLineToInfoFile(log);
+        writeLog(log);
+    }
+
+    public static void e(final Throwable thr, final String format, final Object... obj) {
+        StringWriter stackTrace = new StringWriter();
+        thr.printStackTrace(new PrintWriter(stackTrace));
+        Logger.e("%s\n%s", obj.length == 0 ? format : String.format(format, obj), stackTrace);
     }
 
 }
@@ -0,0 +1,214 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Match a string against a set of patterns at once, instead of running every regex for every string.
+ *
+ * Most of our patterns are globs converted to regex, such as "res/.*" or "^Lcom/tencent/tinker/loader/.*;$".
+ * Those are matched without regex: literal ones by a hash set, and the ones made of literals and ".*" by
+ * a trie of their literal prefixes. The others still use regex, but only after their literal prefix matches.
+ * Results are memoized, since the same class descriptors are checked again and again.
+ */
+public final class PatternMatcher {
+    private final HashSet<String> literals = new HashSet<>();
+    private final TrieNode        globRoot = new TrieNode();
+    private final List<PrefixedPattern> regexPatterns = new ArrayList<>();
+
+    private final ConcurrentHashMap<String, Boolean> results = new ConcurrentHashMap<>();
+
+    public PatternMatcher(Collection<Pattern> patterns) {
+        for (Pattern pattern : patterns) {
+            addPattern(pattern);
+        }
+    }
+
+    public boolean matches(String str) {
+        Boolean result = results.get(str);
+        if (result == null) {
+            result = doMatch(str);
+            results.put(str, result);
+        }
+        return result;
+    }
+
+    private boolean doMatch(String str) {
+        if (literals.contains(str)) {
+            return true;
+        }
+        TrieNode node = globRoot;
+        for (int i = 0; node != null; i++) {
+            for (String[] segments : node.globs) {
+                if (matchGlob(str, segments)) {
+                    return true;
+                }
+            }
+            if (i >= str.length()) {
+                break;
+            }
+            node = node.children.get(str.charAt(i));
+        }
+        for (PrefixedPattern regex : regexPatterns) {
+            if (str.startsWith(regex.prefix) && regex.pattern.matcher(str).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addPattern(Pattern pattern) {
+        final String regex = pattern.pattern();
+        final List<String> segments = pattern.flags() == 0 ? splitGlob(regex) : null;
+        if (segments == null) {
+            // alternation or flags would make the prefix meaningless
+            final String prefix = pattern.flags() == 0 && regex.indexOf('|') < 0 ? literalPrefix(regex) : "";
+            regexPatterns.add(new PrefixedPattern(prefix, pattern));
+            return;
+        }
+        if (segments.size() == 1) {
+            literals.add(segments.get(0));
+            return;
+        }
+        TrieNode node = globRoot;
+        final String prefix = segments.get(0);
+        for (int i = 0; i < prefix.length(); i++) {
+            TrieNode child = node.children.get(prefix.charAt(i));
+            if (child == null) {
+                child = new TrieNode();
+                node.children.put(prefix.charAt(i), child);
+            }
+            node = child;
+        }
+        node.globs.add(segments.toArray(new String[segments.size()]));
+    }
+
+    /**
+     * @return the literal segments between ".*", or null if the regex is not such a simple glob
+     */
+    private static List<String> splitGlob(String regex) {
+        int start = 0;
+        int end = regex.length();
+        // matches() is always anchored
+        if (regex.startsWith("^")) {
+            start++;
+        }
+        if (end > start && regex.charAt(end - 1) == '$' && !isEscaped(regex, end - 1)) {
+            end--;
+        }
+        final List<String> segments = new ArrayList<>();
+        StringBuilder segment = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            final char ch = regex.charAt(i);
+            if (ch == '\\') {
+                if (i + 1 >= end || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                segment.append(regex.charAt(++i));
+            } else if (ch == '.' && i + 1 < end && regex.charAt(i + 1) == '*') {
+                segments.add(segment.toString());
+                segment = new StringBuilder();
+                i++;
+            } else if (isRegexMeta(ch)) {
+                return null;
+            } else {
+                segment.append(ch);
+            }
+        }
+        segments.add(segment.toString());
+        return segments;
+    }
+
+    private static String literalPrefix(String regex) {
+        final StringBuilder sb = new StringBuilder();
+        final int start = regex.startsWith("^") ? 1 : 0;
+        for (int i = start; i < regex.length(); i++) {
+            final char ch = regex.charAt(i);
+            if (ch == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    break;
+                }
+                // a quantifier may follow the escaped char
+                if (i + 2 < regex.length() && isQuantifier(regex.charAt(i + 2))) {
+                    break;
+                }
+                sb.append(regex.charAt(++i));
+            } else if (isRegexMeta(ch) || (i + 1 < regex.length() && isQuantifier(regex.charAt(i + 1)))) {
+                break;
+            } else {
+                sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean matchGlob(String str, String[] segments) {
+        final String first = segments[0];
+        final String last = segments[segments.length - 1];
+        if (str.length() < first.length() + last.length() || !str.startsWith(first) || !str.endsWith(last)) {
+            return false;
+        }
+        int from = first.length();
+        final int to = str.length() - last.length();
+        for (int i = 1; i < segments.length - 1; i++) {
+            final int index = str.indexOf(segments[i], from);
+            if (index < 0 || index + segments[i].length() > to) {
+                return false;
+            }
+            from = index + segments[i].length();
+        }
+        return true;
+    }
+
+    private static boolean isEscaped(String regex, int index) {
+        int count = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            count++;
+        }
+        return (count & 1) == 1;
+    }
+
+    private static boolean isRegexMeta(char ch) {
+        return ".[]{}()*+?^$|".indexOf(ch) >= 0;
+    }
+
+    private static boolean isQuantifier(char ch) {
+        return ch == '*' || ch == '+' || ch == '?' || ch == '{';
+    }
+
+    private static final class TrieNode {
+        final HashMap<Character, TrieNode> children = new HashMap<>();
+        final List<String[]>               globs    = new ArrayList<>();
+    }
+
+    private static final class PrefixedPattern {
+        final String  prefix;
+        final Pattern pattern;
+
+        PrefixedPattern(String prefix, Pattern pattern) {
+            this.prefix = prefix;
+            this.pattern = pattern;
+        }
+    }
+}
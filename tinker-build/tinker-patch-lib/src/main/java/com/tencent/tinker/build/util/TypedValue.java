@@ -36,6 +36,8 @@ public class TypedValue {
     public static final String DEX_TEMP_PATCH_DIR = "tempPatchedDexes";
     public static final String RES_LOG_FILE       = "res_log.txt";
     public static final String RES_META_TXT       = "res_meta.txt";
+    // Please keep it synchronized with the one defined in ShareConstants.
+    public static final String RES_ENTRY_PLAN     = "res_entry_plan.bin";
     public static final String ARKHOT_META_TXT = "arkHot_meta.txt";
 
     public static final String FILE_ASSETS = "assets";
@@ -57,6 +59,8 @@ public class TypedValue {
 
     public static final String PATH_PATCH_FILES   = "tinker_result";
     public static final String OUT_7ZIP_FILE_PATH = "out_7zip";
+    public static final String UNSIGNED_PATCH_FILE = "patch_unsigned.apk";
+    public static final String PATCH_METRICS_FILE  = "patch_metrics.json";
 
     public static final int    ANDROID_40_API_LEVEL    = 14;
     public static final double DEX_PATCH_MAX_RATIO     = 0.6;
@@ -20,6 +20,7 @@ import com.tencent.tinker.build.decoder.ResDiffDecoder;
 import com.tencent.tinker.build.patch.Configuration;
 import com.tencent.tinker.commons.util.IOHelper;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipEntry;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntryPlan;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipFile;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipOutputStream;
 import com.tencent.tinker.ziputils.ziputil.TinkerZipUtil;
@@ -29,9 +30,10 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -120,7 +122,8 @@ public class Utils {
 
     public static String genResOutputFile(File output, File newZipFile, Configuration config,
                                     ArrayList<String> addedSet, ArrayList<String> modifiedSet, ArrayList<String> deletedSet,
-                                    ArrayList<String> largeModifiedSet, HashMap<String, ResDiffDecoder.LargeModeInfo> largeModifiedMap) throws IOException {
+                                    ArrayList<String> largeModifiedSet, HashMap<String, ResDiffDecoder.LargeModeInfo> largeModifiedMap,
+                                    File entryPlanFile) throws IOException {
         TinkerZipFile oldApk = null;
         TinkerZipFile newApk = null;
         TinkerZipOutputStream out = null;
@@ -130,44 +133,14 @@ public class Utils {
             newApk = new TinkerZipFile(newZipFile);
             out = new TinkerZipOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
 
-            final Enumeration<? extends TinkerZipEntry> entries = oldApk.entries();
-            while (entries.hasMoreElements()) {
-                TinkerZipEntry zipEntry = entries.nextElement();
-                if (zipEntry == null) {
-                    throw new TinkerPatchException(
-                        String.format("zipEntry is null when get from oldApk")
-                    );
-                }
-                String name = zipEntry.getName();
-                if (!TinkerZipUtil.validateZipEntryName(output.getParentFile(), name)) {
-                    throw new IOException("Bad ZipEntry name: " + name);
-                }
-                if (Utils.checkFileInPattern(config.mResFilePattern, name)) {
-                    //won't contain in add set.
-                    if (!deletedSet.contains(name)
-                        && !modifiedSet.contains(name)
-                        && !largeModifiedSet.contains(name)
-                        && !name.equals(TypedValue.RES_MANIFEST)) {
-                        TinkerZipUtil.extractTinkerEntry(oldApk, zipEntry, out);
-                    }
-                }
-            }
-            //process manifest
-            TinkerZipEntry manifestZipEntry = oldApk.getEntry(TypedValue.RES_MANIFEST);
-            if (manifestZipEntry == null) {
-                throw new TinkerPatchException(
-                    String.format("can't found resource file %s from old apk file %s", TypedValue.RES_MANIFEST, config.mOldApkFile.getAbsolutePath())
-                );
-            }
-            TinkerZipUtil.extractTinkerEntry(oldApk, manifestZipEntry, out);
+            final TinkerZipEntry[] oldEntries = TinkerZipEntryPlan.listEntries(oldApk);
+            final TinkerZipEntryPlan entryPlan = genResEntryPlan(output, config, oldEntries, modifiedSet, deletedSet, largeModifiedSet);
+            //unchanged files and manifest
+            entryPlan.copyEntries(oldApk, oldEntries, out);
 
-            for (String name : largeModifiedSet) {
-                TinkerZipEntry largeZipEntry = oldApk.getEntry(name);
-                if (largeZipEntry == null) {
-                    throw new TinkerPatchException(
-                        String.format("can't found resource file %s from old apk file %s", name, config.mOldApkFile.getAbsolutePath())
-                    );
-                }
+            for (int i = 0; i < largeModifiedSet.size(); i++) {
+                String name = largeModifiedSet.get(i);
+                TinkerZipEntry largeZipEntry = entryPlan.getReplaceEntry(oldEntries, i);
                 ResDiffDecoder.LargeModeInfo largeModeInfo = largeModifiedMap.get(name);
                 TinkerZipUtil.extractLargeModifyFile(largeZipEntry, largeModeInfo.path, largeModeInfo.crc, out);
             }
@@ -175,9 +148,15 @@ public class Utils {
             for (String name : addedSet) {
                 TinkerZipEntry addZipEntry = newApk.getEntry(name);
                 if (addZipEntry == null) {
-                    throw new TinkerPatchException(
-                        String.format("can't found add resource file %s from new apk file %s", name, config.mNewApkFile.getAbsolutePath())
-                    );
+                    //such as the test resource, it is generated in the result dir
+                    File addFile = new File(config.mTempResultDir, name);
+                    if (!addFile.isFile()) {
+                        throw new TinkerPatchException(
+                            String.format("can't found add resource file %s from new apk file %s", name, config.mNewApkFile.getAbsolutePath())
+                        );
+                    }
+                    TinkerZipUtil.extractLargeModifyFile(new TinkerZipEntry(name), addFile, FileOperation.getFileCrc32(addFile), out);
+                    continue;
                 }
                 TinkerZipUtil.extractTinkerEntry(newApk, addZipEntry, out);
             }
@@ -191,6 +170,10 @@ public class Utils {
                 }
                 TinkerZipUtil.extractTinkerEntry(newApk, modZipEntry, out);
             }
+
+            if (entryPlanFile != null) {
+                writeResEntryPlan(entryPlan, entryPlanFile);
+            }
         } finally {
             IOHelper.closeQuietly(out);
             IOHelper.closeQuietly(oldApk);
@@ -199,6 +182,82 @@ public class Utils {
         return MD5.getMD5(output);
     }
 
+    /**
+     * walk the old apk once, the device can rebuild resources.apk with the plan without any lookup
+     */
+    private static TinkerZipEntryPlan genResEntryPlan(File output, Configuration config, TinkerZipEntry[] oldEntries,
+                                                      ArrayList<String> modifiedSet, ArrayList<String> deletedSet,
+                                                      ArrayList<String> largeModifiedSet) throws IOException {
+        final HashSet<String> changedSet = new HashSet<>(deletedSet);
+        changedSet.addAll(modifiedSet);
+        changedSet.addAll(largeModifiedSet);
+        final HashMap<String, Integer> largeModifiedOrdinals = new HashMap<>();
+        for (String name : largeModifiedSet) {
+            largeModifiedOrdinals.put(name, -1);
+        }
+
+        final PatternMatcher resFileMatcher = new PatternMatcher(config.mResFilePattern);
+
+        int[] copyOrdinals = new int[oldEntries.length];
+        long[] copyOffsets = new long[oldEntries.length];
+        int copyCount = 0;
+        int manifestOrdinal = -1;
+        for (int ordinal = 0; ordinal < oldEntries.length; ordinal++) {
+            TinkerZipEntry zipEntry = oldEntries[ordinal];
+            if (zipEntry == null) {
+                throw new TinkerPatchException(
+                    String.format("zipEntry is null when get from oldApk")
+                );
+            }
+            String name = zipEntry.getName();
+            if (!TinkerZipUtil.validateZipEntryName(output.getParentFile(), name)) {
+                throw new IOException("Bad ZipEntry name: " + name);
+            }
+            if (name.equals(TypedValue.RES_MANIFEST)) {
+                manifestOrdinal = ordinal;
+                continue;
+            }
+            if (largeModifiedOrdinals.containsKey(name)) {
+                largeModifiedOrdinals.put(name, ordinal);
+            }
+            //won't contain in add set.
+            if (resFileMatcher.matches(name) && !changedSet.contains(name)) {
+                copyOrdinals[copyCount] = ordinal;
+                copyOffsets[copyCount] = zipEntry.getLocalHeaderRelOffset();
+                copyCount++;
+            }
+        }
+        if (manifestOrdinal < 0) {
+            throw new TinkerPatchException(
+                String.format("can't found resource file %s from old apk file %s", TypedValue.RES_MANIFEST, config.mOldApkFile.getAbsolutePath())
+            );
+        }
+        int[] replaceOrdinals = new int[largeModifiedSet.size()];
+        for (int i = 0; i < replaceOrdinals.length; i++) {
+            String name = largeModifiedSet.get(i);
+            int ordinal = largeModifiedOrdinals.get(name);
+            if (ordinal < 0) {
+                throw new TinkerPatchException(
+                    String.format("can't found resource file %s from old apk file %s", name, config.mOldApkFile.getAbsolutePath())
+                );
+            }
+            replaceOrdinals[i] = ordinal;
+        }
+        return new TinkerZipEntryPlan(oldEntries.length, Arrays.copyOf(copyOrdinals, copyCount),
+            Arrays.copyOf(copyOffsets, copyCount), manifestOrdinal, replaceOrdinals);
+    }
+
+    private static void writeResEntryPlan(TinkerZipEntryPlan entryPlan, File entryPlanFile) throws IOException {
+        entryPlanFile.getParentFile().mkdirs();
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(entryPlanFile));
+            entryPlan.write(os);
+        } finally {
+            IOHelper.closeQuietly(os);
+        }
+    }
+
     public static String getResourceMeta(String baseCrc, String md5) {
         return TypedValue.RES_OUT + "," + baseCrc + "," + md5;
     }
@@ -0,0 +1,301 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.arscpatcher;
+
+import com.tencent.tinker.bsdiff.BSPatch;
+import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.util.DiffFactory;
+import com.tencent.tinker.commons.arscpatcher.ArscPatchApplier;
+import com.tencent.tinker.commons.arscpatcher.struct.ArscChunk;
+import com.tencent.tinker.commons.arscpatcher.struct.ArscPatchFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * resources.arsc is built here chunk by chunk like aapt lays it out: the table header, the global
+ * string pool and one package with its type and key pools, a type spec and the type chunks of each config.
+ */
+public class ArscPatchGeneratorTest {
+    private static final int RES_VALUE_TYPE_INT_DEC = 0x10;
+    private static final int CONFIG_SIZE            = 64;
+    private static final int ENTRY_COUNT            = 64;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void patchRoundTrip() throws IOException {
+        final List<String> strings = createStrings();
+        final byte[][] oldConfigs = {language(0, 0), language('e', 'n'), language('z', 'h')};
+        final File oldArsc = writeFile("old.arsc", buildTable(strings, oldConfigs, 0));
+
+        // one changed string, one changed value of the default config and a new config
+        final List<String> newStrings = new ArrayList<>(strings);
+        newStrings.set(7, "a changed string");
+        final byte[][] newConfigs = {language(0, 0), language('e', 'n'), language('z', 'h'), language('f', 'r')};
+        final byte[] newTable = buildTable(newStrings, newConfigs, 5);
+        final File newArsc = writeFile("new.arsc", newTable);
+
+        final File patch = new File(tempFolder.getRoot(), "arsc.patch");
+        new ArscPatchGenerator(oldArsc, newArsc).executeAndSaveTo(patch);
+        assertTrue(patch.length() < newArsc.length());
+
+        final ByteArrayOutputStream patched = new ByteArrayOutputStream();
+        final InputStream patchIn = new FileInputStream(patch);
+        try {
+            new ArscPatchApplier(Files.readAllBytes(oldArsc.toPath()), patchIn).executeAndSaveTo(patched);
+        } finally {
+            patchIn.close();
+        }
+        assertArrayEquals(newTable, patched.toByteArray());
+    }
+
+    @Test
+    public void trailingDataIsRejected() throws IOException {
+        final List<String> strings = createStrings();
+        final byte[] oldTable = buildTable(strings, new byte[][] {language(0, 0), language('e', 'n')}, 0);
+        final File oldArsc = writeFile("old.arsc", oldTable);
+        final File newArsc = writeFile("new.arsc", buildTable(strings, new byte[][] {language(0, 0), language('e', 'n')}, 3));
+        final File patch = new File(tempFolder.getRoot(), "arsc.patch");
+        new ArscPatchGenerator(oldArsc, newArsc).executeAndSaveTo(patch);
+
+        final ByteArrayOutputStream trailing = new ByteArrayOutputStream();
+        trailing.write(Files.readAllBytes(patch.toPath()));
+        trailing.write(0);
+        try {
+            new ArscPatchApplier(oldTable, new ByteArrayInputStream(trailing.toByteArray())).executeAndSaveTo(new ByteArrayOutputStream());
+            fail("arsc patch with trailing data is applied");
+        } catch (IllegalStateException expected) {
+            // the patch must be read to the end
+        }
+    }
+
+    @Test
+    public void chunkKeysAreUnique() {
+        // language 0x01 0x23 and 0x12 0x03 are both "123" with unpadded hex
+        final byte[] table = buildTable(createStrings(), new byte[][] {language(0x01, 0x23), language(0x12, 0x03)}, 0);
+        final Set<String> keys = new HashSet<>();
+        for (ArscChunk chunk : ArscChunk.parseLeafChunks(table)) {
+            assertTrue(chunk.key, keys.add(chunk.key));
+            if (chunk.key.contains("/type")) {
+                // type chunks are paired by their config, never by the order
+                assertFalse(chunk.key, chunk.key.contains("#"));
+            }
+        }
+    }
+
+    @Test
+    public void chunkDiffIsOptIn() throws Exception {
+        final List<String> strings = createStrings();
+        final byte[][] configs = {language(0, 0), language('e', 'n')};
+        final File oldArsc = writeFile("old.arsc", buildTable(strings, configs, 0));
+        final byte[] newTable = buildTable(strings, configs, 3);
+        final File newArsc = writeFile("new.arsc", newTable);
+
+        final File bsDiff = new File(tempFolder.getRoot(), "bs.patch");
+        DiffFactory.diffResourceTable(createConfig("default.xml", ""), oldArsc, newArsc, bsDiff);
+        assertFalse(isArscPatch(bsDiff));
+        final InputStream oldIn = new FileInputStream(oldArsc);
+        final InputStream diffIn = new FileInputStream(bsDiff);
+        try {
+            assertArrayEquals(newTable, BSPatch.patchFast(oldIn, diffIn));
+        } finally {
+            oldIn.close();
+            diffIn.close();
+        }
+
+        final File chunkDiff = new File(tempFolder.getRoot(), "chunk.patch");
+        DiffFactory.diffResourceTable(createConfig("chunk.xml", "<arscChunkDiff value=\"true\"/>"),
+            oldArsc, newArsc, chunkDiff);
+        assertTrue(isArscPatch(chunkDiff));
+    }
+
+    private Configuration createConfig(String name, String extra) throws Exception {
+        final File xml = tempFolder.newFile(name);
+        final FileOutputStream os = new FileOutputStream(xml);
+        try {
+            os.write(("<tinkerPatch><issue id=\"resource\">"
+                + "<pattern value=\"resources.arsc\"/>" + extra
+                + "</issue></tinkerPatch>").getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        // the apks are not read by the diff
+        return new Configuration(xml, tempFolder.newFolder(), tempFolder.newFile(name + ".old.apk"), tempFolder.newFile(name + ".new.apk"));
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        final File file = new File(tempFolder.getRoot(), name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static boolean isArscPatch(File file) throws IOException {
+        final InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return ArscPatchFile.isArscPatch(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static List<String> createStrings() {
+        final List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            strings.add("res/layout/layout_" + i + ".xml");
+        }
+        return strings;
+    }
+
+    private static byte[] language(int first, int second) {
+        final byte[] config = new byte[CONFIG_SIZE];
+        ByteBuffer.wrap(config).order(ByteOrder.LITTLE_ENDIAN).putInt(0, CONFIG_SIZE);
+        // imsi(4), then the language
+        config[8] = (byte) first;
+        config[9] = (byte) second;
+        return config;
+    }
+
+    /**
+     * @param valueDelta added to the value of the entry 0 of the first config
+     */
+    private static byte[] buildTable(List<String> strings, byte[][] configs, int valueDelta) {
+        final List<byte[]> packageChunks = new ArrayList<>();
+        packageChunks.add(stringPool(Arrays.asList("layout")));
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            keys.add("key_" + i);
+        }
+        packageChunks.add(stringPool(keys));
+        packageChunks.add(typeSpec());
+        for (int i = 0; i < configs.length; i++) {
+            packageChunks.add(type(configs[i], i, i == 0 ? valueDelta : 0));
+        }
+        final byte[] pkg = packageChunk(packageChunks);
+        final byte[] pool = stringPool(strings);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(12 + pool.length + pkg.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) ArscChunk.RES_TABLE_TYPE).putShort((short) 12).putInt(buffer.capacity()).putInt(1);
+        buffer.put(pool).put(pkg);
+        return buffer.array();
+    }
+
+    private static byte[] stringPool(List<String> strings) {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final int[] offsets = new int[strings.size()];
+        for (int i = 0; i < strings.size(); i++) {
+            offsets[i] = data.size();
+            final byte[] utf8 = strings.get(i).getBytes();
+            data.write(strings.get(i).length());
+            data.write(utf8.length);
+            data.write(utf8, 0, utf8.length);
+            data.write(0);
+        }
+        while (data.size() % 4 != 0) {
+            data.write(0);
+        }
+        final int headerSize = 28;
+        final int stringsStart = headerSize + 4 * strings.size();
+        final ByteBuffer buffer = ByteBuffer.allocate(stringsStart + data.size()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) ArscChunk.RES_STRING_POOL_TYPE).putShort((short) headerSize).putInt(buffer.capacity());
+        // string count, style count, UTF8_FLAG, strings start, styles start
+        buffer.putInt(strings.size()).putInt(0).putInt(0x100).putInt(stringsStart).putInt(0);
+        for (int offset : offsets) {
+            buffer.putInt(offset);
+        }
+        buffer.put(data.toByteArray());
+        return buffer.array();
+    }
+
+    private static byte[] packageChunk(List<byte[]> children) {
+        final int headerSize = 288;
+        int size = headerSize;
+        for (byte[] child : children) {
+            size += child.length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) ArscChunk.RES_TABLE_PACKAGE_TYPE).putShort((short) headerSize).putInt(size);
+        buffer.putInt(0x7f);
+        final String name = "com.tencent.tinker.test";
+        for (int i = 0; i < 128; i++) {
+            buffer.putChar(i < name.length() ? name.charAt(i) : 0);
+        }
+        // type strings, last public type, key strings, last public key, type id offset
+        buffer.putInt(headerSize).putInt(1).putInt(headerSize + children.get(0).length).putInt(ENTRY_COUNT).putInt(0);
+        for (byte[] child : children) {
+            buffer.put(child);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] typeSpec() {
+        final int headerSize = 16;
+        final ByteBuffer buffer = ByteBuffer.allocate(headerSize + 4 * ENTRY_COUNT).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) ArscChunk.RES_TABLE_TYPE_SPEC_TYPE).putShort((short) headerSize).putInt(buffer.capacity());
+        buffer.put((byte) 1).put((byte) 0).putShort((short) 0).putInt(ENTRY_COUNT);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            // CONFIG_LOCALE
+            buffer.putInt(0x0004);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] type(byte[] config, int configIndex, int valueDelta) {
+        final int headerSize = 8 + 12 + CONFIG_SIZE;
+        final int entrySize = 8 + 8;
+        final int entriesStart = headerSize + 4 * ENTRY_COUNT;
+        final ByteBuffer buffer = ByteBuffer.allocate(entriesStart + entrySize * ENTRY_COUNT).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) ArscChunk.RES_TABLE_TYPE_TYPE).putShort((short) headerSize).putInt(buffer.capacity());
+        buffer.put((byte) 1).put((byte) 0).putShort((short) 0).putInt(ENTRY_COUNT).putInt(entriesStart);
+        buffer.put(config);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            buffer.putInt(i * entrySize);
+        }
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            // entry: size, flags, key
+            buffer.putShort((short) 8).putShort((short) 0).putInt(i);
+            // value: size, res0, type, data
+            buffer.putShort((short) 8).put((byte) 0).put((byte) RES_VALUE_TYPE_INT_DEC);
+            buffer.putInt(configIndex * 1000 + i + (i == 0 ? valueDelta : 0));
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.builder;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Sign with the keystore of the sample app, then verify the result with the jdk's own jar verifier.
+ */
+public class ApkSignerTest {
+    private static final String KEYSTORE = "release.keystore";
+    private static final String PASSWORD = "testres";
+    private static final String ALIAS    = "testres";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void allowSha1Jars() {
+        // devices need SHA1 (issue 118), recent jdks treat jars signed with it as unsigned
+        Security.setProperty("jdk.jar.disabledAlgorithms", "MD2");
+    }
+
+    @Test
+    public void signAndVerify() throws Exception {
+        verifySigned(false);
+    }
+
+    @Test
+    public void signWithBestCompressionAndVerify() throws Exception {
+        verifySigned(true);
+    }
+
+    @Test
+    public void digestManifest() throws Exception {
+        final File signed = sign(writeUnsignedZip(createEntries()), false);
+        final ZipFile zipFile = new ZipFile(signed);
+        try {
+            final byte[] manifest = readEntry(zipFile, "META-INF/MANIFEST.MF");
+            final Manifest signatureFile = new Manifest(zipFile.getInputStream(zipFile.getEntry("META-INF/CERT.SF")));
+            final Attributes mainAttributes = signatureFile.getMainAttributes();
+            assertEquals(sha1(manifest, manifest.length), mainAttributes.getValue("SHA1-Digest-Manifest"));
+            // main attributes of the manifest end with the first empty line
+            final int mainLength = new String(manifest, "UTF-8").indexOf("\r\n\r\n") + 4;
+            assertEquals(sha1(manifest, mainLength), mainAttributes.getValue("SHA1-Digest-Manifest-Main-Attributes"));
+            assertEquals(createEntries().size(), signatureFile.getEntries().size());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void modifiedEntryFails() throws Exception {
+        final File signed = sign(writeUnsignedZip(createEntries()), false);
+        // copy the signed zip with one entry changed
+        final File modified = tempFolder.newFile("modified.apk");
+        final ZipFile zipFile = new ZipFile(signed);
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(modified));
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                final byte[] data = readEntry(zipFile, entry.getName());
+                if (entry.getName().equals("classes.dex")) {
+                    data[0] ^= 1;
+                }
+                zos.putNextEntry(new ZipEntry(entry.getName()));
+                zos.write(data);
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+            zipFile.close();
+        }
+
+        final JarFile jarFile = new JarFile(modified, true);
+        try {
+            readEntry(jarFile, "classes.dex");
+            fail("modified entry is verified");
+        } catch (SecurityException expected) {
+            // digest mismatch
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private void verifySigned(boolean bestCompression) throws Exception {
+        final Map<String, byte[]> entries = createEntries();
+        final File signed = sign(writeUnsignedZip(entries), bestCompression);
+
+        final JarFile jarFile = new JarFile(signed, true);
+        try {
+            // the old signature is dropped
+            assertNull(jarFile.getEntry("META-INF/OLD.SF"));
+            for (Map.Entry<String, byte[]> expected : entries.entrySet()) {
+                final JarEntry entry = jarFile.getJarEntry(expected.getKey());
+                assertNotNull(expected.getKey(), entry);
+                // code signers are known after the entry is read to the end
+                assertArrayEquals(expected.getValue(), readEntry(jarFile, expected.getKey()));
+                final Certificate[] certificates = entry.getCertificates();
+                assertNotNull(expected.getKey() + " is not signed", certificates);
+                assertEquals(1, certificates.length);
+                if (bestCompression) {
+                    assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    private File sign(File unsigned, boolean bestCompression) throws Exception {
+        final File keyStore = new File(getClass().getClassLoader().getResource(KEYSTORE).toURI());
+        final File signed = new File(tempFolder.getRoot(), "signed_" + bestCompression + ".apk");
+        new ApkSigner(keyStore, PASSWORD, ALIAS, PASSWORD).sign(unsigned, signed, bestCompression);
+        return signed;
+    }
+
+    private static Map<String, byte[]> createEntries() throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("classes.dex", "dex content".getBytes("UTF-8"));
+        entries.put("assets/stored.bin", new byte[] {0, 1, 2, 3, 4, 5, 6, 7});
+        entries.put("res/empty.xml", new byte[0]);
+        // the Name line of the manifest is longer than 72 bytes and continued on the next line
+        final StringBuilder longName = new StringBuilder("res/");
+        while (longName.length() < 100) {
+            longName.append("long_name_");
+        }
+        entries.put(longName.append(".xml").toString(), "long".getBytes("UTF-8"));
+        return entries;
+    }
+
+    private File writeUnsignedZip(Map<String, byte[]> entries) throws IOException {
+        final File file = tempFolder.newFile();
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.putNextEntry(new ZipEntry("res/"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("META-INF/OLD.SF"));
+            zos.write("Signature-Version: 1.0\r\n".getBytes("UTF-8"));
+            zos.closeEntry();
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                final ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                if (entry.getKey().endsWith(".bin")) {
+                    final CRC32 crc = new CRC32();
+                    crc.update(entry.getValue());
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.getValue().length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                zos.putNextEntry(zipEntry);
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return file;
+    }
+
+    private static String sha1(byte[] data, int length) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA1");
+        digest.update(data, 0, length);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, String name) throws IOException {
+        final InputStream is = zipFile.getInputStream(zipFile.getEntry(name));
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            for (int length = is.read(buffer); length != -1; length = is.read(buffer)) {
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
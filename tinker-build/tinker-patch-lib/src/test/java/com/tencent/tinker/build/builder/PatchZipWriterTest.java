@@ -0,0 +1,110 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.builder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PatchZipWriterTest {
+    private static final List<String> NAMES = Arrays.asList(
+        "classes.dex", "lib/armeabi/libtest.so", "res/drawable/icon.png", "res/layout/main.xml", "assets/dex_meta.txt");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void sameOutputInAnyOrder() throws Exception {
+        final File dir = tempFolder.newFolder("files");
+        for (String name : NAMES) {
+            final File file = new File(dir, name);
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), ("content of " + name).getBytes("UTF-8"));
+        }
+
+        final List<String> reversed = new ArrayList<>(NAMES);
+        Collections.reverse(reversed);
+        final byte[] first = writePatch("first.apk", dir, NAMES);
+        final byte[] second = writePatch("second.apk", dir, reversed);
+        assertArrayEquals(first, second);
+
+        final ZipFile zipFile = new ZipFile(new File(tempFolder.getRoot(), "first.apk"));
+        try {
+            final List<String> names = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                names.add(entry.getName());
+                assertEquals(entry.getName().endsWith(".png") ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+            }
+            final List<String> sorted = new ArrayList<>(NAMES);
+            Collections.sort(sorted);
+            assertEquals(sorted, names);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void closeWithoutFinish() throws Exception {
+        final File file = tempFolder.newFile("content.xml");
+        final File output = new File(tempFolder.getRoot(), "failed.apk");
+        final PatchZipWriter writer = new PatchZipWriter(output);
+        writer.addFile("res/content.xml", file);
+        writer.close();
+        assertFalse(output.exists());
+    }
+
+    /**
+     * the decoders add their files from their own threads
+     */
+    private byte[] writePatch(String name, final File dir, List<String> names) throws Exception {
+        final File output = new File(tempFolder.getRoot(), name);
+        final PatchZipWriter writer = new PatchZipWriter(output);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (final String entryName : names) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writer.addFile(entryName, new File(dir, entryName));
+                    } catch (IOException e) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            // start them one by one, so they are added in the given order
+            thread.join();
+        }
+        assertEquals(Collections.<Throwable>emptyList(), errors);
+        writer.finish();
+        return Files.readAllBytes(output.toPath());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.dexpatcher;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10t;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11n;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21t;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction22c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction31t;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.builder.instruction.BuilderPackedSwitchPayload;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction21c;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generates the dexes of the dex patch tests and benchmarks with dexlib2, as an old dex and a
+ * new dex which is the old one changed like a new build would.
+ *
+ * Without references each class has some methods loading a string. With references each class
+ * extends another one, has a string and an int field, a static helper method reading the field
+ * of the next class, and methods with branches, a packed switch, and field, type and method
+ * references into the other classes.
+ */
+public final class DexFixtureBuilder {
+    /**
+     * Same as the dex decoder, the dex version of newer apis is not supported by
+     * {@link com.tencent.tinker.android.dex.Dex}.
+     */
+    public static final Opcodes OPCODES = Opcodes.forApi(23);
+
+    private static final String PACKAGE      = "Lcom/tencent/tinker/fixture/";
+    private static final int    MODULE_COUNT = 8;
+
+    private final int classCount;
+    private int methodCount = 1;
+    private boolean hasReferences = false;
+    private int changedClassInterval = 0;
+    private int removedClassInterval = 0;
+
+    public DexFixtureBuilder(int classCount) {
+        this.classCount = classCount;
+    }
+
+    /**
+     * Methods of each class, besides the helper method of a class with references.
+     */
+    public DexFixtureBuilder setMethodCount(int methodCount) {
+        this.methodCount = methodCount;
+        return this;
+    }
+
+    public DexFixtureBuilder setReferences(boolean hasReferences) {
+        this.hasReferences = hasReferences;
+        return this;
+    }
+
+    /**
+     * The new dex changes the strings of every {@code changedClassInterval}th class and drops every
+     * {@code removedClassInterval}th class, 0 means none.
+     */
+    public DexFixtureBuilder setMutation(int changedClassInterval, int removedClassInterval) {
+        this.changedClassInterval = changedClassInterval;
+        this.removedClassInterval = removedClassInterval;
+        return this;
+    }
+
+    public static String typeOf(int classIndex) {
+        return PACKAGE + "module" + (classIndex % MODULE_COUNT) + "/Clazz" + classIndex + ";";
+    }
+
+    public List<ClassDef> buildClasses(boolean isNew) {
+        final List<ClassDef> classes = new ArrayList<>(classCount);
+        for (int c = 0; c < classCount; ++c) {
+            if (isNew && removedClassInterval > 0 && c % removedClassInterval == 0) {
+                continue;
+            }
+            final String suffix = (isNew && changedClassInterval > 0 && c % changedClassInterval == 0 ? "_v2" : "");
+            classes.add(hasReferences ? buildClassWithReferences(c, suffix) : buildPlainClass(c, suffix));
+        }
+        return classes;
+    }
+
+    public void writeDex(File file, boolean isNew) throws IOException {
+        writeDex(buildClasses(isNew), file);
+    }
+
+    public static void writeDex(Iterable<? extends ClassDef> classes, File file) throws IOException {
+        final DexPool dexPool = new DexPool(OPCODES);
+        for (ClassDef classDef : classes) {
+            dexPool.internClass(classDef);
+        }
+        dexPool.writeTo(new FileDataStore(file));
+    }
+
+    private ClassDef buildPlainClass(int c, String suffix) {
+        final String type = typeOf(c);
+        final List<Method> methods = new ArrayList<>();
+        for (int m = 0; m < methodCount; ++m) {
+            final List<ImmutableInstruction> instructions = new ArrayList<>();
+            instructions.add(new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference("msg_" + c + "_" + m + suffix)));
+            instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+            methods.add(new ImmutableMethod(type, "m" + m, null, "V", AccessFlags.PUBLIC.getValue(), null,
+                    new ImmutableMethodImplementation(1, instructions, null, null)));
+        }
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null,
+                Collections.<Field>emptyList(), methods);
+    }
+
+    private ClassDef buildClassWithReferences(int c, String suffix) {
+        final int staticFlags = AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue();
+        final String type = typeOf(c);
+        final String superType = (c == 0 ? "Ljava/lang/Object;" : typeOf(c / 2));
+        final List<Field> fields = new ArrayList<>();
+        fields.add(new ImmutableField(type, "sField", "Ljava/lang/String;", staticFlags | AccessFlags.FINAL.getValue(),
+                new ImmutableStringEncodedValue("value_" + c + suffix), null));
+        fields.add(new ImmutableField(type, "iField", "I", AccessFlags.PUBLIC.getValue(), null, null));
+
+        final List<Method> methods = new ArrayList<>();
+        final List<ImmutableInstruction> helperInstructions = new ArrayList<>();
+        helperInstructions.add(new ImmutableInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference("helper_" + c + suffix)));
+        helperInstructions.add(new ImmutableInstruction21c(Opcode.SGET_OBJECT, 0,
+                new ImmutableFieldReference(typeOf((c + 1) % classCount), "sField", "Ljava/lang/String;")));
+        helperInstructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+        methods.add(new ImmutableMethod(type, "helper",
+                Collections.singletonList(new ImmutableMethodParameter("Ljava/lang/Object;", null, null)), "V",
+                staticFlags, null, new ImmutableMethodImplementation(2, helperInstructions, null, null)));
+        for (int m = 0; m < methodCount; ++m) {
+            methods.add(new ImmutableMethod(type, "m" + m, null, "V", AccessFlags.PUBLIC.getValue(), null,
+                    buildBranchingCode(c, type, "msg_" + c + "_" + m + suffix)));
+        }
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superType, null,
+                "Clazz" + c + ".java", null, fields, methods);
+    }
+
+    private MethodImplementation buildBranchingCode(int c, String type, String message) {
+        final String other = typeOf((c + 7) % classCount);
+        // 5 locals and this in v5
+        final MethodImplementationBuilder builder = new MethodImplementationBuilder(6);
+        final Label isZero = builder.getLabel("isZero");
+        final Label otherCase = builder.getLabel("otherCase");
+        final Label end = builder.getLabel("end");
+        final Label switchPayload = builder.getLabel("switchPayload");
+        builder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference(message)));
+        builder.addInstruction(new BuilderInstruction21c(Opcode.SPUT_OBJECT, 0,
+                new ImmutableFieldReference(type, "sField", "Ljava/lang/String;")));
+        builder.addInstruction(new BuilderInstruction22c(Opcode.IGET, 1, 5, new ImmutableFieldReference(type, "iField", "I")));
+        builder.addInstruction(new BuilderInstruction21t(Opcode.IF_EQZ, 1, isZero));
+        builder.addInstruction(new BuilderInstruction21c(Opcode.NEW_INSTANCE, 2,
+                new ImmutableTypeReference("Ljava/lang/StringBuilder;")));
+        builder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_DIRECT, 1, 2, 0, 0, 0, 0,
+                new ImmutableMethodReference("Ljava/lang/StringBuilder;", "<init>", null, "V")));
+        builder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_VIRTUAL, 2, 2, 0, 0, 0, 0,
+                new ImmutableMethodReference("Ljava/lang/StringBuilder;", "append",
+                        Collections.singletonList("Ljava/lang/String;"), "Ljava/lang/StringBuilder;")));
+        builder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_RESULT_OBJECT, 2));
+        builder.addLabel("isZero");
+        builder.addInstruction(new BuilderInstruction31t(Opcode.PACKED_SWITCH, 1, switchPayload));
+        builder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 3,
+                new ImmutableStringReference("case_" + (c % 500))));
+        builder.addInstruction(new BuilderInstruction21c(Opcode.CHECK_CAST, 3,
+                new ImmutableTypeReference("Ljava/lang/CharSequence;")));
+        builder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_STATIC, 1, 3, 0, 0, 0, 0,
+                new ImmutableMethodReference(other, "helper", Collections.singletonList("Ljava/lang/Object;"), "V")));
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, end));
+        builder.addLabel("otherCase");
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 4, 3));
+        builder.addLabel("end");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        builder.addLabel("switchPayload");
+        builder.addInstruction(new BuilderPackedSwitchPayload(0, Arrays.asList(isZero, otherCase, end)));
+        return builder.getMethodImplementation();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.dexpatcher;
+
+import com.tencent.tinker.commons.dexpatcher.DexPatchApplier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+/**
+ * Measures the bytes allocated by {@link DexPatchGenerator} and {@link DexPatchApplier} for one
+ * patched dex, on a generated pair of 3000 classes (about 1.5M each), the new dex drops every
+ * 50th class and changes the strings of every 7th class.
+ *
+ * It is not a test, run it from the test classpath, on two revisions to compare them:
+ * java -cp ... com.tencent.tinker.build.dexpatcher.DexPatchAllocationBenchmark [work dir] [runs]
+ */
+public class DexPatchAllocationBenchmark {
+    private static final int CLASS_COUNT  = 3000;
+    private static final int METHOD_COUNT = 8;
+
+    public static void main(String[] args) throws IOException {
+        final File workDir = args.length > 0 ? new File(args[0]) : Files.createTempDirectory("dex_alloc_bench").toFile();
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        final File oldDex = new File(workDir, "old.dex");
+        final File newDex = new File(workDir, "new.dex");
+        final File patch = new File(workDir, "old_new.patch");
+        final DexFixtureBuilder fixture = new DexFixtureBuilder(CLASS_COUNT).setMethodCount(METHOD_COUNT).setMutation(7, 50);
+        fixture.writeDex(oldDex, false);
+        fixture.writeDex(newDex, true);
+
+        final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        long generateBytes = 0;
+        long applyBytes = 0;
+        for (int i = 0; i < runs; i++) {
+            final long begin = threadMXBean.getThreadAllocatedBytes(threadId);
+            new DexPatchGenerator(oldDex, newDex).executeAndSaveTo(patch);
+            final long generated = threadMXBean.getThreadAllocatedBytes(threadId);
+            new DexPatchApplier(oldDex, patch).executeAndSaveTo(new ByteArrayOutputStream((int) newDex.length()));
+            final long applied = threadMXBean.getThreadAllocatedBytes(threadId);
+            // the first run warms up
+            if (i > 0) {
+                generateBytes += generated - begin;
+                applyBytes += applied - generated;
+            }
+        }
+        final int measured = Math.max(1, runs - 1);
+        System.out.printf("dex %d bytes, patch %d bytes%n", newDex.length(), patch.length());
+        System.out.printf("allocated per patched dex: generate %.1f MB, apply %.1f MB%n",
+            generateBytes / (double) measured / 1e6, applyBytes / (double) measured / 1e6);
+    }
+}
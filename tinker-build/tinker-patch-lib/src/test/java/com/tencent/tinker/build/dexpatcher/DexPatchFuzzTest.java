@@ -0,0 +1,504 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.dexpatcher;
+
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.android.dex.TableOfContents;
+import com.tencent.tinker.android.dex.util.FileUtils;
+import com.tencent.tinker.build.util.DexClassesComparator;
+import com.tencent.tinker.build.util.FileOperation;
+import com.tencent.tinker.build.util.Logger;
+import com.tencent.tinker.build.util.TinkerPatchException;
+import com.tencent.tinker.commons.dexpatcher.DexPatchApplier;
+import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction31c;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodImplementation;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction10x;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction31c;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.value.ImmutableStringEncodedValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Differential fuzz test of {@link DexPatchGenerator} and {@link DexPatchApplier}.
+ *
+ * Each case mutates one of the input dexes like a new build would: classes are removed and
+ * added, methods are changed, strings are added, and sometimes so many strings that the
+ * const-string instructions of old code must be promoted to const-string/jumbo. The input dex
+ * is diffed against the mutated one and the patch is applied to the input dex, the patched dex
+ * must have the same classes as the mutated one, the same item counts and a valid checksum and
+ * signature. The diff and apply throughput is reported at the end.
+ *
+ * By default it runs a fixed number of seeded cases on a generated dex. More cases or real dexes
+ * can be given by system properties of the test jvm, e.g.
+ * {@code -Dtinker.dexfuzz.cases=200 -Dtinker.dexfuzz.inputs=app.apk:classes2.dex}.
+ */
+public class DexPatchFuzzTest {
+    private static final long   SEED        = 0x74696E6B6572L;
+    private static final int    CASE_COUNT  = 24;
+    private static final int    CLASS_COUNT = 400;
+    private static final String PROPERTY_SEED   = "tinker.dexfuzz.seed";
+    private static final String PROPERTY_CASES  = "tinker.dexfuzz.cases";
+    private static final String PROPERTY_INPUTS = "tinker.dexfuzz.inputs";
+
+    private static final Pattern DEX_ENTRY_PATTERN = Pattern.compile("classes\\d*\\.dex");
+    private static final Opcodes OPCODES = Opcodes.forApi(29);
+    private static final String FUZZ_PACKAGE = "Lcom/tencent/tinker/fuzz/";
+
+    /**
+     * Strings of the jumbo mutation start with it, so they sort before almost all other strings
+     * and push them over 0xFFFF.
+     */
+    private static final String JUMBO_STRING_PREFIX = "\u0001";
+    private static final int JUMBO_STRING_COUNT = 0x10000;
+    private static final int JUMBO_STRINGS_PER_METHOD = 4096;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final List<InputDex> inputs = new ArrayList<>();
+    private final List<String> failures = new ArrayList<>();
+
+    private long diffNanos;
+    private long applyNanos;
+    private long diffBytes;
+    private long applyBytes;
+    private int skippedCount;
+
+    @Test
+    public void diffAndPatchMutatedDexes() throws IOException {
+        addInput("generated.dex", generateDex());
+        final String inputPaths = System.getProperty(PROPERTY_INPUTS);
+        if (inputPaths != null && !inputPaths.isEmpty()) {
+            for (String path : inputPaths.split(File.pathSeparator)) {
+                addInput(new File(path));
+            }
+        }
+        final long seed = Long.getLong(PROPERTY_SEED, SEED);
+        final int caseCount = Integer.getInteger(PROPERTY_CASES, CASE_COUNT);
+
+        final long startTime = System.nanoTime();
+        for (int caseIndex = 0; caseIndex < caseCount; ++caseIndex) {
+            runCase(seed, caseIndex, false);
+        }
+        Logger.d("%d cases in %.1fs, %d failed, %d skipped", caseCount, (System.nanoTime() - startTime) / 1e9,
+                failures.size(), skippedCount);
+        logThroughput();
+        assertEquals(Collections.<String>emptyList(), failures);
+    }
+
+    @Test
+    public void promoteConstStringToJumbo() throws IOException {
+        addInput("generated.dex", generateDex());
+        runCase(SEED, 0, true);
+        logThroughput();
+        assertEquals(Collections.<String>emptyList(), failures);
+        assertEquals(0, skippedCount);
+    }
+
+    /**
+     * Add a dex file, or all the dexes in an apk or zip file.
+     */
+    private void addInput(File file) throws IOException {
+        if (file.getName().endsWith(".dex")) {
+            addInput(file.getName(), FileUtils.readFile(file));
+            return;
+        }
+        ZipFile zipFile = null;
+        try {
+            zipFile = new ZipFile(file);
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (DEX_ENTRY_PATTERN.matcher(entry.getName()).matches()) {
+                    InputStream is = null;
+                    try {
+                        is = zipFile.getInputStream(entry);
+                        addInput(file.getName() + "!" + entry.getName(), FileUtils.readStream(is, (int) Math.max(entry.getSize(), 0)));
+                    } finally {
+                        IOHelper.closeQuietly(is);
+                    }
+                }
+            }
+        } finally {
+            IOHelper.closeQuietly(zipFile);
+        }
+    }
+
+    private void addInput(String name, byte[] bytes) {
+        final List<ClassDef> classes = new ArrayList<>();
+        for (ClassDef classDef : new DexBackedDexFile(OPCODES, bytes).getClasses()) {
+            classes.add(classDef);
+        }
+        if (classes.isEmpty()) {
+            Logger.d("skip %s, it has no classes", name);
+            return;
+        }
+        inputs.add(new InputDex(name, bytes, classes));
+    }
+
+    private void runCase(long seed, int caseIndex, boolean forceJumbo) throws IOException {
+        final Random random = new Random(seed * 0x9E3779B97F4A7C15L + caseIndex);
+        final InputDex input = inputs.get(random.nextInt(inputs.size()));
+
+        final StringBuilder mutations = new StringBuilder();
+        final List<ClassDef> newClasses = mutate(input.classes, random, caseIndex, forceJumbo, mutations);
+        final byte[] newDexBytes;
+        try {
+            newDexBytes = writeDex(newClasses);
+        } catch (Exception e) {
+            // not a bug of dex diff, the mutated classes can't be put in one dex
+            ++skippedCount;
+            Logger.d("case %d: skipped, can not write mutated dex of %s: %s", caseIndex, input.name, e);
+            return;
+        }
+
+        byte[] patchBytes = null;
+        byte[] patchedDexBytes = null;
+        try {
+            final long diffStart = System.nanoTime();
+            final ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+            new DexPatchGenerator(new Dex(input.bytes), new Dex(newDexBytes)).executeAndSaveTo(patchOut);
+            patchBytes = patchOut.toByteArray();
+
+            final long applyStart = System.nanoTime();
+            final ByteArrayOutputStream patchedOut = new ByteArrayOutputStream(newDexBytes.length);
+            new DexPatchApplier(new Dex(input.bytes), new DexPatchFile(new ByteArrayInputStream(patchBytes))).executeAndSaveTo(patchedOut);
+            patchedDexBytes = patchedOut.toByteArray();
+            final long applyEnd = System.nanoTime();
+
+            diffNanos += applyStart - diffStart;
+            applyNanos += applyEnd - applyStart;
+            diffBytes += input.bytes.length + newDexBytes.length;
+            applyBytes += input.bytes.length + patchBytes.length;
+
+            verifyPatchedDex(new Dex(newDexBytes), new Dex(patchedDexBytes));
+
+            Logger.d("case %d: %s%s, patch %d bytes, diff %.1f ms, apply %.1f ms", caseIndex, input.name, mutations,
+                    patchBytes.length, (applyStart - diffStart) / 1e6, (applyEnd - applyStart) / 1e6);
+        } catch (Throwable thr) {
+            // keep the dexes out of the temporary folder, so the case can be checked afterwards
+            final File caseDir = new File(System.getProperty("java.io.tmpdir"), "tinker_dex_fuzz" + File.separator + "case_" + caseIndex);
+            FileOperation.cleanDir(caseDir);
+            caseDir.mkdirs();
+            writeBytes(new File(caseDir, "old.dex"), input.bytes);
+            writeBytes(new File(caseDir, "new.dex"), newDexBytes);
+            if (patchBytes != null) {
+                writeBytes(new File(caseDir, "patch.dex"), patchBytes);
+            }
+            if (patchedDexBytes != null) {
+                writeBytes(new File(caseDir, "patched.dex"), patchedDexBytes);
+            }
+            Logger.e(thr, "case %d: %s%s failed, dexes are kept in %s", caseIndex, input.name, mutations, caseDir.getAbsolutePath());
+            failures.add("case " + caseIndex + ": " + thr);
+        }
+    }
+
+    private void logThroughput() {
+        Logger.d("diff: %.1f MB/s of old and new dex, apply: %.1f MB/s of old dex and patch",
+                throughput(diffBytes, diffNanos), throughput(applyBytes, applyNanos));
+    }
+
+    /**
+     * Same checks as the dex decoder does on the patched dex, plus the header and item counts.
+     */
+    private static void verifyPatchedDex(Dex newDex, Dex patchedDex) throws IOException {
+        final TableOfContents patchedToc = patchedDex.getTableOfContents();
+        if (patchedToc.checksum != patchedDex.computeChecksum()) {
+            throw new TinkerPatchException("bad checksum of patched dex");
+        }
+        if (!Arrays.equals(patchedToc.signature, patchedDex.computeSignature(true))) {
+            throw new TinkerPatchException("bad signature of patched dex");
+        }
+        // sections are sorted by offset, which could differ between the two dexes
+        for (TableOfContents.Section newSection : newDex.getTableOfContents().sections) {
+            final TableOfContents.Section patchedSection = patchedToc.getSectionByType(newSection.type);
+            if (newSection.size != patchedSection.size) {
+                throw new TinkerPatchException(String.format("item count of section 0x%04x, new dex: %d, patched dex: %d",
+                        newSection.type, newSection.size, patchedSection.size));
+            }
+        }
+
+        final DexClassesComparator classesComparator = new DexClassesComparator("*");
+        classesComparator.startCheck(newDex, patchedDex);
+        if (!classesComparator.getAddedClassInfos().isEmpty()
+                || !classesComparator.getDeletedClassInfos().isEmpty()
+                || !classesComparator.getChangedClassDescToInfosMap().isEmpty()) {
+            throw new TinkerPatchException("classes of patched dex differ from new dex, added: "
+                    + classesComparator.getAddedClassInfos() + ", deleted: " + classesComparator.getDeletedClassInfos()
+                    + ", changed: " + classesComparator.getChangedClassDescToInfosMap().keySet());
+        }
+    }
+
+    private static List<ClassDef> mutate(List<ClassDef> oldClasses, Random random, int caseIndex, boolean forceJumbo,
+                                         StringBuilder mutations) {
+        final List<ClassDef> classes = new ArrayList<>(oldClasses);
+
+        if (random.nextInt(4) != 0 && classes.size() > 1) {
+            final int count = 1 + random.nextInt(Math.min(classes.size() - 1, 1 + classes.size() / 50));
+            for (int i = 0; i < count; ++i) {
+                classes.remove(random.nextInt(classes.size()));
+            }
+            mutations.append(", removed classes: ").append(count);
+        }
+
+        if (random.nextInt(4) != 0) {
+            final int count = 1 + random.nextInt(1 + classes.size() / 100);
+            for (int i = 0; i < count; ++i) {
+                final ClassDef template = classes.get(random.nextInt(classes.size()));
+                classes.add(copyClass(template, FUZZ_PACKAGE + "Added" + caseIndex + "_" + i + ";"));
+            }
+            mutations.append(", added classes: ").append(count);
+        }
+
+        if (random.nextInt(4) != 0) {
+            final int count = 1 + random.nextInt(1 + classes.size() / 20);
+            int changedCount = 0;
+            for (int i = 0; i < count; ++i) {
+                final int classIndex = random.nextInt(classes.size());
+                final ClassDef changed = changeMethod(classes.get(classIndex), random, "tinker_fuzz_" + caseIndex + "_" + i);
+                if (changed != null) {
+                    classes.set(classIndex, changed);
+                    ++changedCount;
+                }
+            }
+            mutations.append(", changed methods: ").append(changedCount);
+        }
+
+        if (random.nextInt(4) != 0) {
+            final int count = 1 + random.nextInt(1 + classes.size() / 20);
+            for (int i = 0; i < count; ++i) {
+                final int classIndex = random.nextInt(classes.size());
+                final ClassDef classDef = classes.get(classIndex);
+                final List<Field> fields = new ArrayList<>();
+                for (Field field : classDef.getFields()) {
+                    fields.add(field);
+                }
+                fields.add(new ImmutableField(classDef.getType(), "tinkerFuzz" + caseIndex + "_" + i, "Ljava/lang/String;",
+                        AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue() | AccessFlags.FINAL.getValue(),
+                        new ImmutableStringEncodedValue(Long.toHexString(random.nextLong())), null));
+                classes.set(classIndex, rebuildClass(classDef, classDef.getType(), fields, classDef.getMethods()));
+            }
+            mutations.append(", added strings: ").append(count);
+        }
+
+        if (random.nextInt(8) == 0 || forceJumbo) {
+            for (int i = 0; i < classes.size(); ++i) {
+                final ClassDef promoted = promoteConstStrings(classes.get(i));
+                if (promoted != null) {
+                    classes.set(i, promoted);
+                }
+            }
+            classes.add(createJumboStringsClass(FUZZ_PACKAGE + "Jumbo" + caseIndex + ";"));
+            mutations.append(", jumbo strings: ").append(JUMBO_STRING_COUNT);
+        }
+        return classes;
+    }
+
+    private static ClassDef copyClass(ClassDef classDef, String type) {
+        final List<Field> fields = new ArrayList<>();
+        for (Field field : classDef.getFields()) {
+            fields.add(new ImmutableField(type, field.getName(), field.getType(), field.getAccessFlags(),
+                    field.getInitialValue(), field.getAnnotations()));
+        }
+        final List<Method> methods = new ArrayList<>();
+        for (Method method : classDef.getMethods()) {
+            methods.add(new ImmutableMethod(type, method.getName(), method.getParameters(), method.getReturnType(),
+                    method.getAccessFlags(), method.getAnnotations(), method.getImplementation()));
+        }
+        return rebuildClass(classDef, type, fields, methods);
+    }
+
+    /**
+     * Put a const-string of a new string ahead of the code of a method.
+     *
+     * @return null if the class has no method with a register to load the string to.
+     */
+    private static ClassDef changeMethod(ClassDef classDef, Random random, String newString) {
+        final List<Method> methods = new ArrayList<>();
+        final List<Integer> candidates = new ArrayList<>();
+        for (Method method : classDef.getMethods()) {
+            final MethodImplementation impl = method.getImplementation();
+            if (impl != null && impl.getRegisterCount() > 0) {
+                candidates.add(methods.size());
+            }
+            methods.add(method);
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        final int methodIndex = candidates.get(random.nextInt(candidates.size()));
+        final Method method = methods.get(methodIndex);
+        final MutableMethodImplementation impl = new MutableMethodImplementation(method.getImplementation());
+        impl.addInstruction(0, new BuilderInstruction21c(Opcode.CONST_STRING, 0, new ImmutableStringReference(newString)));
+        methods.set(methodIndex, replaceImplementation(method, impl));
+        return rebuildClass(classDef, classDef.getType(), classDef.getFields(), methods);
+    }
+
+    /**
+     * Turn the const-string instructions whose strings sort after the jumbo strings into
+     * const-string/jumbo, like a dex compiler does once there are more than 0xFFFF strings.
+     *
+     * @return null if nothing is changed.
+     */
+    private static ClassDef promoteConstStrings(ClassDef classDef) {
+        final List<Method> methods = new ArrayList<>();
+        boolean isChanged = false;
+        for (Method method : classDef.getMethods()) {
+            final MethodImplementation impl = method.getImplementation();
+            if (impl == null || !hasConstStringToPromote(impl)) {
+                methods.add(method);
+                continue;
+            }
+            final MutableMethodImplementation mutableImpl = new MutableMethodImplementation(impl);
+            final List<BuilderInstruction> instructions = mutableImpl.getInstructions();
+            for (int i = 0; i < instructions.size(); ++i) {
+                final Instruction insn = instructions.get(i);
+                if (isConstStringToPromote(insn)) {
+                    mutableImpl.replaceInstruction(i, new BuilderInstruction31c(Opcode.CONST_STRING_JUMBO,
+                            ((OneRegisterInstruction) insn).getRegisterA(), ((ReferenceInstruction) insn).getReference()));
+                }
+            }
+            methods.add(replaceImplementation(method, mutableImpl));
+            isChanged = true;
+        }
+        return isChanged ? rebuildClass(classDef, classDef.getType(), classDef.getFields(), methods) : null;
+    }
+
+    private static boolean hasConstStringToPromote(MethodImplementation impl) {
+        for (Instruction insn : impl.getInstructions()) {
+            if (isConstStringToPromote(insn)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isConstStringToPromote(Instruction insn) {
+        return insn.getOpcode() == Opcode.CONST_STRING
+                && ((StringReference) ((ReferenceInstruction) insn).getReference()).getString().compareTo(JUMBO_STRING_PREFIX) > 0;
+    }
+
+    private static ClassDef createJumboStringsClass(String type) {
+        final List<Method> methods = new ArrayList<>();
+        for (int start = 0; start < JUMBO_STRING_COUNT; start += JUMBO_STRINGS_PER_METHOD) {
+            final List<ImmutableInstruction> instructions = new ArrayList<>(JUMBO_STRINGS_PER_METHOD + 1);
+            for (int i = start; i < start + JUMBO_STRINGS_PER_METHOD; ++i) {
+                instructions.add(new ImmutableInstruction31c(Opcode.CONST_STRING_JUMBO, 0,
+                        new ImmutableStringReference(String.format("%s%06d", JUMBO_STRING_PREFIX, i))));
+            }
+            instructions.add(new ImmutableInstruction10x(Opcode.RETURN_VOID));
+            methods.add(new ImmutableMethod(type, "jumbo" + start, null, "V",
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                    new ImmutableMethodImplementation(1, instructions, null, null)));
+        }
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null,
+                Collections.<Field>emptyList(), methods);
+    }
+
+    private static Method replaceImplementation(Method method, MethodImplementation impl) {
+        return new ImmutableMethod(method.getDefiningClass(), method.getName(), method.getParameters(), method.getReturnType(),
+                method.getAccessFlags(), method.getAnnotations(), impl);
+    }
+
+    private static ClassDef rebuildClass(ClassDef classDef, String type, Iterable<? extends Field> fields, Iterable<? extends Method> methods) {
+        return new ImmutableClassDef(type, classDef.getAccessFlags(), classDef.getSuperclass(), classDef.getInterfaces(),
+                classDef.getSourceFile(), classDef.getAnnotations(), fields, methods);
+    }
+
+    /**
+     * A dex of {@link #CLASS_COUNT} classes, whose methods have branches, a packed switch, and
+     * string, field, type and method references into the other classes.
+     */
+    private byte[] generateDex() throws IOException {
+        return writeDex(new DexFixtureBuilder(CLASS_COUNT).setMethodCount(3).setReferences(true).buildClasses(false));
+    }
+
+    private byte[] writeDex(List<ClassDef> classes) throws IOException {
+        final File newDexFile = tempFolder.newFile();
+        DexFixtureBuilder.writeDex(classes, newDexFile);
+        return FileUtils.readFile(newDexFile);
+    }
+
+    private static void writeBytes(File file, byte[] bytes) throws IOException {
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            os.write(bytes);
+        } finally {
+            IOHelper.closeQuietly(os);
+        }
+    }
+
+    private static double throughput(long bytes, long nanos) {
+        return nanos == 0 ? 0 : bytes / 1048576.0 / (nanos / 1e9);
+    }
+
+    private static final class InputDex {
+        final String         name;
+        final byte[]         bytes;
+        final List<ClassDef> classes;
+
+        InputDex(String name, byte[] bytes, List<ClassDef> classes) {
+            this.name = name;
+            this.bytes = bytes;
+            this.classes = classes;
+        }
+    }
+}
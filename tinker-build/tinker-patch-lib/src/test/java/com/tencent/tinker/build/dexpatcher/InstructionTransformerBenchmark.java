@@ -0,0 +1,117 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.dexpatcher;
+
+import com.tencent.tinker.android.dex.ClassData;
+import com.tencent.tinker.android.dex.ClassDef;
+import com.tencent.tinker.android.dex.Code;
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.commons.dexpatcher.DexPatchApplier;
+import com.tencent.tinker.commons.dexpatcher.util.SparseIndexMap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the code section work of a dex patch on a generated dex of 60000 methods (12000
+ * classes, about 9M): adjusting the indexes of every code item by an index map which remaps
+ * most string and method ids, and applying a whole dex patch.
+ *
+ * The methods have branches, a packed switch, field, type and method references, so the
+ * transformer sees the usual instruction formats.
+ *
+ * It is not a test, run it from the test classpath, on two revisions to compare them:
+ * java -cp ... com.tencent.tinker.build.dexpatcher.InstructionTransformerBenchmark [work dir] [runs]
+ */
+public class InstructionTransformerBenchmark {
+    private static final int CLASS_COUNT  = 12000;
+    private static final int METHOD_COUNT = 4;
+
+    public static void main(String[] args) throws IOException {
+        final File workDir = args.length > 0 ? new File(args[0]) : Files.createTempDirectory("insn_bench").toFile();
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final File oldDexFile = new File(workDir, "old.dex");
+        final File newDexFile = new File(workDir, "new.dex");
+        final File patch = new File(workDir, "old_new.patch");
+        // the new dex changes the strings of every third class, which shifts most string ids
+        final DexFixtureBuilder fixture = new DexFixtureBuilder(CLASS_COUNT).setMethodCount(METHOD_COUNT)
+            .setReferences(true).setMutation(3, 0);
+        fixture.writeDex(oldDexFile, false);
+        fixture.writeDex(newDexFile, true);
+        new DexPatchGenerator(oldDexFile, newDexFile).executeAndSaveTo(patch);
+
+        final Dex oldDex = new Dex(oldDexFile);
+        final List<Code> codes = new ArrayList<>();
+        for (ClassDef classDef : oldDex.classDefs()) {
+            if (classDef.classDataOffset == ClassDef.NO_OFFSET) {
+                continue;
+            }
+            final ClassData classData = oldDex.readClassData(classDef);
+            for (ClassData.Method method : classData.directMethods) {
+                if (method.codeOffset != 0) {
+                    codes.add(oldDex.readCode(method));
+                }
+            }
+            for (ClassData.Method method : classData.virtualMethods) {
+                if (method.codeOffset != 0) {
+                    codes.add(oldDex.readCode(method));
+                }
+            }
+        }
+        final SparseIndexMap indexMap = new SparseIndexMap();
+        for (int i = 0; i < oldDex.strings().size(); i += 2) {
+            indexMap.mapStringIds(i, i + 1);
+        }
+        for (int i = 0; i < oldDex.methodIds().size(); i += 3) {
+            indexMap.mapMethodIds(i, i + 1);
+        }
+
+        final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        long bestAdjust = Long.MAX_VALUE;
+        long bestApply = Long.MAX_VALUE;
+        long adjustBytes = 0;
+        long applyBytes = 0;
+        long codeUnits = 0;
+        for (int i = 0; i < runs; i++) {
+            final long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+            final long begin = System.nanoTime();
+            codeUnits = 0;
+            for (Code code : codes) {
+                codeUnits += indexMap.adjust(code).instructions.length;
+            }
+            final long adjusted = System.nanoTime();
+            final long adjustedAllocated = threadMXBean.getThreadAllocatedBytes(threadId);
+            new DexPatchApplier(oldDexFile, patch).executeAndSaveTo(new ByteArrayOutputStream((int) newDexFile.length()));
+            final long applied = System.nanoTime();
+
+            bestAdjust = Math.min(bestAdjust, adjusted - begin);
+            bestApply = Math.min(bestApply, applied - adjusted);
+            adjustBytes = adjustedAllocated - allocated;
+            applyBytes = threadMXBean.getThreadAllocatedBytes(threadId) - adjustedAllocated;
+        }
+        System.out.printf("dex %d bytes, %d code items, %d code units%n", oldDexFile.length(), codes.size(), codeUnits);
+        System.out.printf("adjust all code items %.1f ms, %.1f MB allocated%n", bestAdjust / 1e6, adjustBytes / 1e6);
+        System.out.printf("apply dex patch %.1f ms, %.1f MB allocated%n", bestApply / 1e6, applyBytes / 1e6);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ApkEntryCachePoolTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void pinnedCachesAreKept() throws IOException {
+        final File apkA = writeApk("a.apk", "a");
+        final File apkB = writeApk("b.apk", "b");
+        final ApkEntryCachePool pool = new ApkEntryCachePool(tempFolder.newFolder("pool"), 1);
+
+        // one request needs two old apks, more than the pool size
+        final ApkEntryCache cacheA = pool.acquire(apkA);
+        extract(cacheA, apkA);
+        final ApkEntryCache cacheB = pool.acquire(apkB);
+        extract(cacheB, apkB);
+        assertTrue(cacheA.getCacheDir().isDirectory());
+        assertTrue(cacheB.getCacheDir().isDirectory());
+
+        // a is dropped once the request is done with it
+        pool.release(cacheA);
+        assertFalse(cacheA.getCacheDir().exists());
+        pool.release(cacheB);
+        assertTrue(cacheB.getCacheDir().isDirectory());
+
+        assertSame(cacheB, pool.acquire(apkB));
+        assertNotSame(cacheA, pool.acquire(apkA));
+    }
+
+    @Test
+    public void sameCacheAcquiredTwice() throws IOException {
+        final File apkA = writeApk("a.apk", "a");
+        final File apkB = writeApk("b.apk", "b");
+        final ApkEntryCachePool pool = new ApkEntryCachePool(tempFolder.newFolder("pool"), 1);
+
+        // two jobs of a batch share the old apk
+        final ApkEntryCache cacheA = pool.acquire(apkA);
+        assertSame(cacheA, pool.acquire(apkA));
+        extract(cacheA, apkA);
+        pool.release(cacheA);
+        pool.acquire(apkB);
+        assertTrue(cacheA.getCacheDir().isDirectory());
+        pool.release(cacheA);
+        assertFalse(cacheA.getCacheDir().exists());
+    }
+
+    private void extract(ApkEntryCache cache, File apk) throws IOException {
+        FileOperation.unZipChangedApkEntries(apk, apk, tempFolder.newFolder().getAbsolutePath(),
+            tempFolder.newFolder().getAbsolutePath(), new HashSet<>(Collections.singleton(Pattern.compile(".*"))), cache, null);
+    }
+
+    private File writeApk(String name, String content) throws IOException {
+        final File file = tempFolder.newFile(name);
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.putNextEntry(new ZipEntry("classes.dex"));
+            zos.write(content.getBytes("UTF-8"));
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.build.dexpatcher.DexFixtureBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+/**
+ * Measures {@link DexClassesComparator#startCheck(Dex, Dex)} and the class def and type lookups of
+ * {@link Dex} on a generated pair of 30000 classes, each class extends another one and references
+ * the field of the next one. The new dex changes the strings of every 97th class.
+ *
+ * It is not a test, run it from the test classpath, on two revisions to compare them:
+ * java -cp ... com.tencent.tinker.build.util.DexLookupBenchmark [work dir] [runs]
+ */
+public class DexLookupBenchmark {
+    private static final int CLASS_COUNT = 30000;
+
+    public static void main(String[] args) throws IOException {
+        final File workDir = args.length > 0 ? new File(args[0]) : Files.createTempDirectory("dex_lookup_bench").toFile();
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 15;
+        final File oldDexFile = new File(workDir, "old.dex");
+        final File newDexFile = new File(workDir, "new.dex");
+        final DexFixtureBuilder fixture = new DexFixtureBuilder(CLASS_COUNT).setMethodCount(0)
+            .setReferences(true).setMutation(97, 0);
+        fixture.writeDex(oldDexFile, false);
+        fixture.writeDex(newDexFile, true);
+
+        final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        long bestCompare = Long.MAX_VALUE;
+        long bestClassDefLookup = Long.MAX_VALUE;
+        long bestTypeLookup = Long.MAX_VALUE;
+        long compareBytes = 0;
+        int changed = 0;
+        int found = 0;
+        for (int i = 0; i < runs; i++) {
+            final Dex oldDex = new Dex(oldDexFile);
+            final Dex newDex = new Dex(newDexFile);
+
+            final long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+            final long begin = System.nanoTime();
+            final DexClassesComparator comparator = new DexClassesComparator("*");
+            comparator.startCheck(oldDex, newDex);
+            final long compared = System.nanoTime();
+            compareBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+            changed = comparator.getChangedClassDescToInfosMap().size();
+
+            found = 0;
+            for (int typeIndex = 0; typeIndex < oldDex.typeIds().size(); typeIndex++) {
+                if (oldDex.findClassDefIndexFromTypeIndex(typeIndex) >= 0) {
+                    found++;
+                }
+            }
+            final long classDefsLooked = System.nanoTime();
+            for (int c = 0; c < CLASS_COUNT; c += 3) {
+                if (oldDex.findTypeIndex(DexFixtureBuilder.typeOf(c)) < 0) {
+                    throw new IllegalStateException("type not found: " + DexFixtureBuilder.typeOf(c));
+                }
+            }
+            final long typesLooked = System.nanoTime();
+
+            bestCompare = Math.min(bestCompare, compared - begin);
+            bestClassDefLookup = Math.min(bestClassDefLookup, classDefsLooked - compared);
+            bestTypeLookup = Math.min(bestTypeLookup, typesLooked - classDefsLooked);
+        }
+        System.out.printf("classes %d, changed %d%n", CLASS_COUNT, changed);
+        System.out.printf("startCheck %d ms, %d MB allocated%n", bestCompare / 1000000, compareBytes >> 20);
+        System.out.printf("class def lookup of all types (%d found) %d ms%n", found, bestClassDefLookup / 1000000);
+        System.out.printf("findTypeIndex of %d types %d ms%n", (CLASS_COUNT + 2) / 3, bestTypeLookup / 1000000);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileMD5CacheTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void extractedEntries() throws IOException {
+        final File oldApk = writeApk("old.apk", "old content");
+        final File newApk = writeApk("new.apk", "new content");
+        final File oldDir = tempFolder.newFolder("old");
+        final File newDir = tempFolder.newFolder("new");
+
+        final FileMD5Cache cache = new FileMD5Cache();
+        FileOperation.unZipChangedApkEntries(oldApk, newApk, oldDir.getAbsolutePath(), newDir.getAbsolutePath(),
+            new HashSet<Pattern>(), null, cache);
+        for (File file : new File[] {new File(oldDir, "res/a.xml"), new File(newDir, "res/a.xml"), new File(newDir, "classes.dex")}) {
+            assertEquals(MD5.getMD5(file), cache.getMD5(file));
+        }
+
+        // the same dir extracted again by the next build, with the same length and maybe the same modified time
+        final File changedApk = writeApk("changed.apk", "NEW CONTENT");
+        final FileMD5Cache nextCache = new FileMD5Cache();
+        FileOperation.unZipChangedApkEntries(oldApk, changedApk, oldDir.getAbsolutePath(), newDir.getAbsolutePath(),
+            new HashSet<Pattern>(), null, nextCache);
+        final File changed = new File(newDir, "res/a.xml");
+        assertEquals(MD5.getMD5(changed), nextCache.getMD5(changed));
+    }
+
+    @Test
+    public void linkedEntries() throws IOException {
+        final File oldApk = writeApk("old.apk", "old content");
+        final File newApk = writeApk("new.apk", "new content");
+        final ApkEntryCache entryCache = new ApkEntryCache(tempFolder.newFolder("cache"));
+        // two jobs of a batch share the old entries
+        for (int i = 0; i < 2; i++) {
+            final File oldDir = tempFolder.newFolder("old" + i);
+            final FileMD5Cache cache = new FileMD5Cache();
+            FileOperation.unZipChangedApkEntries(oldApk, newApk, oldDir.getAbsolutePath(),
+                tempFolder.newFolder("new" + i).getAbsolutePath(), new HashSet<Pattern>(), entryCache, cache);
+            final File oldFile = new File(oldDir, "res/a.xml");
+            assertEquals(MD5.getMD5(oldFile), cache.getMD5(oldFile));
+        }
+    }
+
+    private File writeApk(String name, String content) throws IOException {
+        final File file = tempFolder.newFile(name);
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            zos.putNextEntry(new ZipEntry("res/a.xml"));
+            zos.write(content.getBytes("UTF-8"));
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("classes.dex"));
+            zos.write("dex".getBytes("UTF-8"));
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+        return file;
+    }
+}
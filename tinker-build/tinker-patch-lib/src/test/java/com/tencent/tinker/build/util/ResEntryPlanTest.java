@@ -0,0 +1,184 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.build.builder.PatchZipWriter;
+import com.tencent.tinker.build.decoder.ResDiffDecoder;
+import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntry;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntryPlan;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipFile;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The entry plan written by the patch builder must be read back the way the device does:
+ * from the patch zip through an inflating stream.
+ */
+public class ResEntryPlanTest {
+    private static final String PLAN_ENTRY = TypedValue.FILE_ASSETS + "/" + TypedValue.RES_ENTRY_PLAN;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void planRoundTrip() throws Exception {
+        final File oldApk = tempFolder.newFile("old.apk");
+        writeZip(oldApk, "AndroidManifest.xml", "res/a.xml", "res/b.png", "res/c.xml", "res/d.xml",
+            "resources.arsc", "classes.dex");
+        final File newApk = tempFolder.newFile("new.apk");
+        writeZip(newApk, "AndroidManifest.xml", "res/a.xml", "res/b.png", "res/d.xml", "res/e.xml",
+            "resources.arsc", "classes.dex");
+        final Configuration config = createConfig(oldApk, newApk);
+
+        final File resOut = new File(config.mOutFolder, TypedValue.RES_OUT);
+        final File planFile = new File(config.mTempResultDir, PLAN_ENTRY);
+        Utils.genResOutputFile(resOut, newApk, config,
+            new ArrayList<>(Collections.singletonList("res/e.xml")),
+            new ArrayList<>(Arrays.asList("res/d.xml", "resources.arsc")),
+            new ArrayList<>(Collections.singletonList("res/c.xml")),
+            new ArrayList<String>(), new HashMap<String, ResDiffDecoder.LargeModeInfo>(), planFile);
+        assertTrue(planFile.isFile());
+
+        // the builder puts the plan into the patch with the other generated files
+        final File patchFile = new File(config.mOutFolder, "patch.apk");
+        final PatchZipWriter writer = new PatchZipWriter(patchFile);
+        try {
+            writer.addDirectory(config.mTempResultDir);
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+
+        final TinkerZipEntryPlan entryPlan;
+        final ZipFile patchZip = new ZipFile(patchFile);
+        try {
+            final ZipEntry planEntry = patchZip.getEntry(PLAN_ENTRY);
+            assertNotNull(planEntry);
+            assertEquals(ZipEntry.DEFLATED, planEntry.getMethod());
+            final InputStream is = patchZip.getInputStream(planEntry);
+            try {
+                entryPlan = TinkerZipEntryPlan.read(is);
+            } finally {
+                is.close();
+            }
+        } finally {
+            patchZip.close();
+        }
+
+        // copy with the plan like the device does, the same entries as the builder output
+        final TinkerZipFile oldZip = new TinkerZipFile(oldApk);
+        final File copied = tempFolder.newFile("copied.apk");
+        try {
+            final TinkerZipEntry[] oldEntries = TinkerZipEntryPlan.listEntries(oldZip);
+            assertTrue(entryPlan.matches(oldEntries, TypedValue.RES_MANIFEST, new ArrayList<String>()));
+            final TinkerZipOutputStream out = new TinkerZipOutputStream(new FileOutputStream(copied));
+            try {
+                assertEquals(3, entryPlan.copyEntries(oldZip, oldEntries, out));
+            } finally {
+                out.close();
+            }
+        } finally {
+            oldZip.close();
+        }
+        assertEquals(Arrays.asList("res/a.xml", "res/b.png", "AndroidManifest.xml"), listNames(copied));
+        assertEquals(listNames(copied), listNames(resOut).subList(0, 3));
+    }
+
+    @Test
+    public void offsetsBeyondInt() throws IOException {
+        final long[] offsets = {0L, 0x7fffffffL, 0x100000000L, 0x7fffffffffffL};
+        final TinkerZipEntryPlan plan = new TinkerZipEntryPlan(6, new int[] {0, 1, 2, 3}, offsets, 4, new int[] {5});
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        plan.write(first);
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        TinkerZipEntryPlan.read(new ByteArrayInputStream(first.toByteArray())).write(second);
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+    }
+
+    private Configuration createConfig(File oldApk, File newApk) throws Exception {
+        final File xml = tempFolder.newFile("tinker_config.xml");
+        final FileOutputStream os = new FileOutputStream(xml);
+        try {
+            os.write(("<tinkerPatch><issue id=\"resource\">"
+                + "<pattern value=\"res/*\"/><pattern value=\"resources.arsc\"/>"
+                + "<pattern value=\"AndroidManifest.xml\"/>"
+                + "</issue></tinkerPatch>").getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        return new Configuration(xml, tempFolder.newFolder("out"), oldApk, newApk);
+    }
+
+    private static void writeZip(File file, String... names) throws IOException {
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (String name : names) {
+                final byte[] data = ("content of " + name).getBytes("UTF-8");
+                final ZipEntry entry = new ZipEntry(name);
+                if (name.endsWith(".png")) {
+                    final CRC32 crc = new CRC32();
+                    crc.update(data);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.length);
+                    entry.setCrc(crc.getValue());
+                }
+                zos.putNextEntry(entry);
+                zos.write(data);
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+    }
+
+    private static ArrayList<String> listNames(File file) throws IOException {
+        final ArrayList<String> names = new ArrayList<>();
+        final ZipFile zipFile = new ZipFile(file);
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                names.add(entry.getName());
+            }
+        } finally {
+            zipFile.close();
+        }
+        return names;
+    }
+}
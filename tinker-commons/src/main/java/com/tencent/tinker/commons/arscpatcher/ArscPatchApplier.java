@@ -0,0 +1,142 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.commons.arscpatcher;
+
+import com.tencent.tinker.bsdiff.BSPatch;
+import com.tencent.tinker.bsdiff.BSUtil;
+import com.tencent.tinker.commons.arscpatcher.struct.ArscChunk;
+import com.tencent.tinker.commons.arscpatcher.struct.ArscPatchFile;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rebuild the new resources.arsc from the old one and the chunk level patch made by ArscPatchGenerator.
+ */
+public class ArscPatchApplier {
+    private final byte[]          oldArsc;
+    private final List<ArscChunk> oldChunks;
+    private final DataInputStream patchIn;
+
+    public ArscPatchApplier(InputStream oldArscIn, InputStream patchIn) throws IOException {
+        this(BSUtil.inputStreamToByte(oldArscIn), patchIn);
+    }
+
+    public ArscPatchApplier(byte[] oldArsc, InputStream patchIn) {
+        this.oldArsc = oldArsc;
+        this.oldChunks = ArscChunk.parseLeafChunks(oldArsc);
+        this.patchIn = new DataInputStream(patchIn);
+    }
+
+    public void executeAndSaveTo(File file) throws IOException {
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(file));
+            executeAndSaveTo(os);
+        } finally {
+            IOHelper.closeQuietly(os);
+        }
+    }
+
+    public void executeAndSaveTo(OutputStream out) throws IOException {
+        final byte[] magic = new byte[ArscPatchFile.MAGIC.length];
+        patchIn.readFully(magic);
+        if (!Arrays.equals(magic, ArscPatchFile.MAGIC)) {
+            throw new IllegalStateException("bad arsc patch file magic: " + Arrays.toString(magic));
+        }
+        final short version = patchIn.readShort();
+        if (version != ArscPatchFile.CURRENT_VERSION) {
+            throw new IllegalStateException("bad arsc patch file version: " + version + ", expected: " + ArscPatchFile.CURRENT_VERSION);
+        }
+        final int oldSize = patchIn.readInt();
+        if (oldSize != oldArsc.length) {
+            throw new IllegalStateException("old arsc size mismatch, expected: " + oldSize + ", actual: " + oldArsc.length);
+        }
+        final int newSize = patchIn.readInt();
+        final int opCount = patchIn.readInt();
+
+        long written = 0;
+        for (int i = 0; i < opCount; i++) {
+            final byte op = patchIn.readByte();
+            switch (op) {
+                case ArscPatchFile.OP_COPY: {
+                    final int start = patchIn.readInt();
+                    final int count = patchIn.readInt();
+                    checkChunkIndex(start);
+                    checkChunkIndex(start + count - 1);
+                    // leaf chunks are contiguous, copy them at once
+                    final ArscChunk first = oldChunks.get(start);
+                    final ArscChunk last = oldChunks.get(start + count - 1);
+                    final int size = last.offset + last.size - first.offset;
+                    out.write(oldArsc, first.offset, size);
+                    written += size;
+                    break;
+                }
+                case ArscPatchFile.OP_REPLACE: {
+                    final byte[] data = new byte[checkLength(patchIn.readInt(), newSize - written)];
+                    patchIn.readFully(data);
+                    out.write(data);
+                    written += data.length;
+                    break;
+                }
+                case ArscPatchFile.OP_PATCH: {
+                    final int index = patchIn.readInt();
+                    checkChunkIndex(index);
+                    final ArscChunk oldChunk = oldChunks.get(index);
+                    final byte[] diff = new byte[checkLength(patchIn.readInt(), Integer.MAX_VALUE)];
+                    patchIn.readFully(diff);
+                    final byte[] oldData = Arrays.copyOfRange(oldArsc, oldChunk.offset, oldChunk.offset + oldChunk.size);
+                    final byte[] newData = BSPatch.patchFast(oldData, oldData.length, diff, diff.length, 0);
+                    out.write(newData);
+                    written += newData.length;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("bad arsc patch op: " + op);
+            }
+        }
+        // the patch may be verified while it is read, which is done only at the end of the stream
+        if (patchIn.read() != -1) {
+            throw new IllegalStateException("trailing data after " + opCount + " arsc patch ops");
+        }
+        out.flush();
+        if (written != newSize) {
+            throw new IllegalStateException("new arsc size mismatch, expected: " + newSize + ", actual: " + written);
+        }
+    }
+
+    private static int checkLength(int length, long maxLength) {
+        if (length < 0 || length > maxLength) {
+            throw new IllegalStateException("bad arsc patch data length: " + length + ", max: " + maxLength);
+        }
+        return length;
+    }
+
+    private void checkChunkIndex(int index) {
+        if (index < 0 || index >= oldChunks.size()) {
+            throw new IllegalStateException("bad old arsc chunk index: " + index + ", chunk count: " + oldChunks.size());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.commons.arscpatcher.struct;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A leaf chunk of resources.arsc.
+ *
+ * Table and package chunks are containers, we split them into their own header and children,
+ * so the leaf chunks of a resources.arsc are contiguous and cover the whole file. Then the new
+ * resources.arsc can be described by copying, replacing or patching each leaf chunk.
+ */
+public final class ArscChunk {
+    public static final int RES_STRING_POOL_TYPE     = 0x0001;
+    public static final int RES_TABLE_TYPE           = 0x0002;
+    public static final int RES_TABLE_PACKAGE_TYPE   = 0x0200;
+    public static final int RES_TABLE_TYPE_TYPE      = 0x0201;
+    public static final int RES_TABLE_TYPE_SPEC_TYPE = 0x0202;
+
+    private static final int CHUNK_HEADER_SIZE = 8;
+    // id(1) + res0(1) + res1(2) + entryCount(4) + entriesStart(4)
+    private static final int TYPE_CONFIG_OFFSET = CHUNK_HEADER_SIZE + 12;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * identity of the chunk, such as table/package0000007f/type03/config, used to pair the old and new chunks
+     */
+    public final String key;
+    public final int    offset;
+    public final int    size;
+
+    private ArscChunk(String key, int offset, int size) {
+        this.key = key;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    public static List<ArscChunk> parseLeafChunks(byte[] arsc) {
+        final ByteBuffer buffer = ByteBuffer.wrap(arsc).order(ByteOrder.LITTLE_ENDIAN);
+        final List<ArscChunk> result = new ArrayList<>();
+        parseChunks(buffer, 0, arsc.length, "", result);
+        return result;
+    }
+
+    private static void parseChunks(ByteBuffer buffer, int start, int end, String prefix, List<ArscChunk> result) {
+        final Map<String, Integer> keyCounts = new HashMap<>();
+        int offset = start;
+        while (offset < end) {
+            if (end - offset < CHUNK_HEADER_SIZE) {
+                // padding, keep it as it is
+                result.add(new ArscChunk(prefix + "tail", offset, end - offset));
+                break;
+            }
+            final int type = buffer.getShort(offset) & 0xffff;
+            final int headerSize = buffer.getShort(offset + 2) & 0xffff;
+            final int size = buffer.getInt(offset + 4);
+            if (headerSize < CHUNK_HEADER_SIZE || size < headerSize || size > end - offset) {
+                throw new IllegalStateException("bad arsc chunk at offset " + offset + ", type: " + type
+                    + ", header size: " + headerSize + ", size: " + size);
+            }
+            String key = prefix + getChunkName(buffer, type, offset, headerSize);
+            final Integer count = keyCounts.get(key);
+            keyCounts.put(key, count == null ? 1 : count + 1);
+            if (count != null) {
+                key = key + "#" + count;
+            }
+            if (type == RES_TABLE_TYPE || type == RES_TABLE_PACKAGE_TYPE) {
+                result.add(new ArscChunk(key + "/header", offset, headerSize));
+                parseChunks(buffer, offset + headerSize, offset + size, key + "/", result);
+            } else {
+                result.add(new ArscChunk(key, offset, size));
+            }
+            offset += size;
+        }
+    }
+
+    private static String getChunkName(ByteBuffer buffer, int type, int offset, int headerSize) {
+        switch (type) {
+            case RES_TABLE_TYPE:
+                return "table";
+            case RES_STRING_POOL_TYPE:
+                return "pool";
+            case RES_TABLE_PACKAGE_TYPE:
+                return String.format("package%08x", buffer.getInt(offset + CHUNK_HEADER_SIZE));
+            case RES_TABLE_TYPE_SPEC_TYPE:
+                return String.format("spec%02x", buffer.get(offset + CHUNK_HEADER_SIZE) & 0xff);
+            case RES_TABLE_TYPE_TYPE:
+                // fixed width fields, different configs must never make the same key
+                final StringBuilder sb = new StringBuilder(String.format("type%02x/", buffer.get(offset + CHUNK_HEADER_SIZE) & 0xff));
+                for (int i = offset + TYPE_CONFIG_OFFSET; i < offset + headerSize; i++) {
+                    sb.append(HEX_DIGITS[(buffer.get(i) >> 4) & 0xf]).append(HEX_DIGITS[buffer.get(i) & 0xf]);
+                }
+                return sb.toString();
+            default:
+                return String.format("chunk%04x", type);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.commons.arscpatcher.struct;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Layout of the resources.arsc patch, big endian:
+ *
+ * magic(8), version(2), old size(4), new size(4), operation count(4), operations...
+ *
+ * Each operation starts with its op code:
+ * COPY: first old chunk index(4), chunk count(4)
+ * REPLACE: size(4), data
+ * PATCH: old chunk index(4), bsdiff patch size(4), bsdiff patch data
+ */
+public final class ArscPatchFile {
+    public static final byte[] MAGIC = {0x41, 0x52, 0x53, 0x43, 0x44, 0x49, 0x46, 0x46}; // ARSCDIFF
+    public static final short CURRENT_VERSION = 0x0001;
+
+    public static final byte OP_COPY    = 0x01;
+    public static final byte OP_REPLACE = 0x02;
+    public static final byte OP_PATCH   = 0x03;
+
+    private ArscPatchFile() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Peek the magic of the stream, it must support mark.
+     */
+    public static boolean isArscPatch(InputStream is) throws IOException {
+        is.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (is.read() != (b & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            is.reset();
+        }
+    }
+}
@@ -20,10 +20,11 @@ import com.tencent.tinker.android.dex.Dex;
 import com.tencent.tinker.android.dex.TableOfContents;
 import com.tencent.tinker.android.dex.io.DexDataBuffer;
 import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
+import com.tencent.tinker.commons.dexpatcher.struct.IndexListCodec;
 import com.tencent.tinker.commons.dexpatcher.util.AbstractIndexMap;
 import com.tencent.tinker.commons.dexpatcher.util.SparseIndexMap;
 
-import java.util.Arrays;
+import java.util.BitSet;
 
 /**
  * Created by tangyinsheng on 2016/6/29.
@@ -98,15 +99,8 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
      */
     protected abstract int writePatchedItem(T patchedItem);
 
-    private int[] readDeltaIndiciesOrOffsets(int count) {
-        int[] result = new int[count];
-        int lastVal = 0;
-        for (int i = 0; i < count; ++i) {
-            int delta = patchFile.getBuffer().readSleb128();
-            lastVal = lastVal + delta;
-            result[i] = lastVal;
-        }
-        return result;
+    private BitSet readIndices(int count, int indexBound) {
+        return IndexListCodec.read(patchFile.getBuffer(), patchFile.getVersion(), count, indexBound);
     }
 
     /**
@@ -124,15 +118,6 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
     }
 
     public void execute() {
-        final int deletedItemCount = patchFile.getBuffer().readUleb128();
-        final int[] deletedIndices = readDeltaIndiciesOrOffsets(deletedItemCount);
-
-        final int addedItemCount = patchFile.getBuffer().readUleb128();
-        final int[] addedIndices = readDeltaIndiciesOrOffsets(addedItemCount);
-
-        final int replacedItemCount = patchFile.getBuffer().readUleb128();
-        final int[] replacedIndices = readDeltaIndiciesOrOffsets(replacedItemCount);
-
         final TableOfContents.Section tocSec = getTocSection(this.oldDex);
         Dex.Section oldSection = null;
 
@@ -142,23 +127,37 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
             oldItemCount = tocSec.size;
         }
 
+        // Deleted and replaced items are old ones, added items can be
+        // anywhere in the patched section.
+        final int deletedItemCount = patchFile.getBuffer().readUleb128();
+        final BitSet deletedIndices = readIndices(deletedItemCount, oldItemCount);
+
+        final int addedItemCount = patchFile.getBuffer().readUleb128();
+        final BitSet addedIndices = readIndices(addedItemCount, (int) Math.min((long) oldItemCount + addedItemCount, Integer.MAX_VALUE));
+
+        final int replacedItemCount = patchFile.getBuffer().readUleb128();
+        final BitSet replacedIndices = readIndices(replacedItemCount, oldItemCount);
+
         // Now rest data are added and replaced items arranged in the order of
         // added indices and replaced indices.
         doFullPatch(
-                oldSection, oldItemCount, deletedIndices, addedIndices, replacedIndices
+                oldSection, oldItemCount,
+                deletedIndices, deletedItemCount,
+                addedIndices, addedItemCount,
+                replacedIndices, replacedItemCount
         );
     }
 
     private void doFullPatch(
             Dex.Section oldSection,
             int oldItemCount,
-            int[] deletedIndices,
-            int[] addedIndices,
-            int[] replacedIndices
+            BitSet deletedIndices,
+            int deletedItemCount,
+            BitSet addedIndices,
+            int addedItemCount,
+            BitSet replacedIndices,
+            int replacedItemCount
     ) {
-        int deletedItemCount = deletedIndices.length;
-        int addedItemCount = addedIndices.length;
-        int replacedItemCount = replacedIndices.length;
         int newItemCount = oldItemCount + addedItemCount - deletedItemCount;
 
         int deletedItemCounter = 0;
@@ -168,19 +167,19 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
         int oldIndex = 0;
         int patchedIndex = 0;
         while (oldIndex < oldItemCount || patchedIndex < newItemCount) {
-            if (addActionCursor < addedItemCount && addedIndices[addActionCursor] == patchedIndex) {
+            if (addedIndices.get(patchedIndex)) {
                 T addedItem = nextItem(patchFile.getBuffer());
                 int patchedOffset = writePatchedItem(addedItem);
                 ++addActionCursor;
                 ++patchedIndex;
             } else
-            if (replaceActionCursor < replacedItemCount && replacedIndices[replaceActionCursor] == patchedIndex) {
+            if (replacedIndices.get(patchedIndex)) {
                 T replacedItem = nextItem(patchFile.getBuffer());
                 int patchedOffset = writePatchedItem(replacedItem);
                 ++replaceActionCursor;
                 ++patchedIndex;
             } else
-            if (Arrays.binarySearch(deletedIndices, oldIndex) >= 0) {
+            if (deletedIndices.get(oldIndex)) {
                 T skippedOldItem = nextItem(oldSection); // skip old item.
                 markDeletedIndexOrOffset(
                         oldToPatchedIndexMap,
@@ -190,7 +189,7 @@ public abstract class DexSectionPatchAlgorithm<T extends Comparable<T>> {
                 ++oldIndex;
                 ++deletedItemCounter;
             } else
-            if (Arrays.binarySearch(replacedIndices, oldIndex) >= 0) {
+            if (replacedIndices.get(oldIndex)) {
                 T skippedOldItem = nextItem(oldSection); // skip old item.
                 markDeletedIndexOrOffset(
                         oldToPatchedIndexMap,
@@ -32,7 +32,14 @@ import java.util.Arrays;
  */
 public final class DexPatchFile {
     public static final byte[] MAGIC = {0x44, 0x58, 0x44, 0x49, 0x46, 0x46}; // DXDIFF
-    public static final short CURRENT_VERSION = 0x0002;
+    /**
+     * Index lists are picked from delta, bitset and run-length encodings, see {@link IndexListCodec}.
+     */
+    public static final short CURRENT_VERSION = 0x0003;
+    /**
+     * Index lists are sleb128 deltas only, still readable.
+     */
+    public static final short VERSION_DELTA_INDEX_LIST = 0x0002;
     private final DexDataBuffer buffer;
     private short version;
     private int patchedDexSize;
@@ -73,7 +80,8 @@ public final class DexPatchFile {
         }
 
         this.version = this.buffer.readShort();
-        if (CompareUtils.uCompare(this.version, CURRENT_VERSION) != 0) {
+        if (CompareUtils.uCompare(this.version, CURRENT_VERSION) != 0
+                && CompareUtils.uCompare(this.version, VERSION_DELTA_INDEX_LIST) != 0) {
             throw new IllegalStateException("bad dex patch file version: " + this.version + ", expected: " + CURRENT_VERSION);
         }
 
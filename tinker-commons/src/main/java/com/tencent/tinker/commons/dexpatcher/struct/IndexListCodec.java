@@ -0,0 +1,201 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.commons.dexpatcher.struct;
+
+import com.tencent.tinker.android.dex.Leb128;
+import com.tencent.tinker.android.dex.io.DexDataBuffer;
+
+import java.util.BitSet;
+
+/**
+ * Codec of the deleted, added and replaced index lists of a section in {@link DexPatchFile}.
+ *
+ * Since {@link DexPatchFile#CURRENT_VERSION} a non-empty list starts with one byte telling
+ * which of the encodings below is used, the writer picks the smallest one. Lists of
+ * {@link DexPatchFile#VERSION_DELTA_INDEX_LIST} are plain sleb128 deltas.
+ */
+public final class IndexListCodec {
+    /**
+     * uleb128 delta to the previous index, the first one is the index itself.
+     */
+    public static final int ENCODING_DELTA = 0;
+    /**
+     * uleb128 first index and uleb128 byte count of a bitmap, bit k (lowest bit first)
+     * stands for index first + k. Dense changes take a bit per item.
+     */
+    public static final int ENCODING_BITSET = 1;
+    /**
+     * uleb128 run count, then uleb128 gap to the end of the previous run and uleb128
+     * length - 1 of each run of consecutive indices.
+     */
+    public static final int ENCODING_RUNS = 2;
+
+    private IndexListCodec() {
+    }
+
+    /**
+     * Write {@code sortedIndices}, which must be ascending without duplicates, including
+     * the count ahead of them.
+     */
+    public static void write(DexDataBuffer out, int[] sortedIndices) {
+        final int count = sortedIndices.length;
+        out.writeUleb128(count);
+        if (count == 0) {
+            return;
+        }
+
+        long deltaSize = 0;
+        int prevIndex = 0;
+        for (int index : sortedIndices) {
+            deltaSize += Leb128.unsignedLeb128Size(index - prevIndex);
+            prevIndex = index;
+        }
+
+        int runCount = 0;
+        long runsSize = 0;
+        int prevRunEnd = 0;
+        for (int i = 0; i < count; ) {
+            final int runStart = sortedIndices[i];
+            int j = i + 1;
+            while (j < count && sortedIndices[j] == sortedIndices[j - 1] + 1) {
+                ++j;
+            }
+            runsSize += Leb128.unsignedLeb128Size(runStart - prevRunEnd) + Leb128.unsignedLeb128Size(j - i - 1);
+            prevRunEnd = runStart + (j - i);
+            ++runCount;
+            i = j;
+        }
+        runsSize += Leb128.unsignedLeb128Size(runCount);
+
+        final int firstIndex = sortedIndices[0];
+        final int bitmapSize = (int) (((long) sortedIndices[count - 1] - firstIndex + 8) >>> 3);
+        final long bitsetSize = Leb128.unsignedLeb128Size(firstIndex) + Leb128.unsignedLeb128Size(bitmapSize) + (long) bitmapSize;
+
+        if (deltaSize <= bitsetSize && deltaSize <= runsSize) {
+            out.writeByte(ENCODING_DELTA);
+            prevIndex = 0;
+            for (int index : sortedIndices) {
+                out.writeUleb128(index - prevIndex);
+                prevIndex = index;
+            }
+        } else if (bitsetSize <= runsSize) {
+            out.writeByte(ENCODING_BITSET);
+            out.writeUleb128(firstIndex);
+            out.writeUleb128(bitmapSize);
+            final byte[] bitmap = new byte[bitmapSize];
+            for (int index : sortedIndices) {
+                final int bit = index - firstIndex;
+                bitmap[bit >>> 3] |= 1 << (bit & 7);
+            }
+            out.write(bitmap);
+        } else {
+            out.writeByte(ENCODING_RUNS);
+            out.writeUleb128(runCount);
+            prevRunEnd = 0;
+            for (int i = 0; i < count; ) {
+                final int runStart = sortedIndices[i];
+                int j = i + 1;
+                while (j < count && sortedIndices[j] == sortedIndices[j - 1] + 1) {
+                    ++j;
+                }
+                out.writeUleb128(runStart - prevRunEnd);
+                out.writeUleb128(j - i - 1);
+                prevRunEnd = runStart + (j - i);
+                i = j;
+            }
+        }
+    }
+
+    /**
+     * Read a list of {@code count} indices, whose count is already read, into a bitset.
+     *
+     * @param version version of the patch file.
+     * @param indexBound every index must be less than it.
+     */
+    public static BitSet read(DexDataBuffer in, short version, int count, int indexBound) {
+        final BitSet result = new BitSet();
+        if (count == 0) {
+            return result;
+        }
+        if (version == DexPatchFile.VERSION_DELTA_INDEX_LIST) {
+            int lastIndex = 0;
+            for (int i = 0; i < count; ++i) {
+                lastIndex += in.readSleb128();
+                checkIndex(lastIndex, indexBound);
+                result.set(lastIndex);
+            }
+        } else {
+            final int encoding = in.readByte() & 0xFF;
+            switch (encoding) {
+                case ENCODING_DELTA: {
+                    long lastIndex = 0;
+                    for (int i = 0; i < count; ++i) {
+                        lastIndex += in.readUleb128() & 0xFFFFFFFFL;
+                        checkIndex(lastIndex, indexBound);
+                        result.set((int) lastIndex);
+                    }
+                    break;
+                }
+                case ENCODING_BITSET: {
+                    final int firstIndex = in.readUleb128();
+                    final int bitmapSize = in.readUleb128();
+                    checkIndex(firstIndex & 0xFFFFFFFFL, indexBound);
+                    if ((bitmapSize & 0xFFFFFFFFL) > ((long) indexBound - firstIndex + 7) >>> 3) {
+                        throw new IllegalStateException("bad index bitmap size: " + bitmapSize + ", first index: " + firstIndex);
+                    }
+                    for (int i = 0; i < bitmapSize; ++i) {
+                        int bits = in.readByte() & 0xFF;
+                        while (bits != 0) {
+                            final int bit = Integer.numberOfTrailingZeros(bits);
+                            final long index = firstIndex + ((long) i << 3) + bit;
+                            checkIndex(index, indexBound);
+                            result.set((int) index);
+                            bits &= bits - 1;
+                        }
+                    }
+                    break;
+                }
+                case ENCODING_RUNS: {
+                    final int runCount = in.readUleb128();
+                    long prevRunEnd = 0;
+                    for (int i = 0; i < runCount; ++i) {
+                        final long runStart = prevRunEnd + (in.readUleb128() & 0xFFFFFFFFL);
+                        final long runEnd = runStart + (in.readUleb128() & 0xFFFFFFFFL) + 1;
+                        checkIndex(runEnd - 1, indexBound);
+                        result.set((int) runStart, (int) runEnd);
+                        prevRunEnd = runEnd;
+                    }
+                    break;
+                }
+                default: {
+                    throw new IllegalStateException("unknown index list encoding: " + encoding);
+                }
+            }
+        }
+        if (result.cardinality() != count) {
+            throw new IllegalStateException("bad index list, expected count: " + count + ", actual: " + result.cardinality());
+        }
+        return result;
+    }
+
+    private static void checkIndex(long index, int indexBound) {
+        if (index < 0 || index >= indexBound) {
+            throw new IllegalStateException("bad index in index list: " + index + ", bound: " + indexBound);
+        }
+    }
+}
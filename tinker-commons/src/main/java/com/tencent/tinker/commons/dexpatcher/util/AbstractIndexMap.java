@@ -46,6 +46,7 @@ import java.io.ByteArrayOutputStream;
  */
 
 public abstract class AbstractIndexMap {
+    private InstructionTransformer instructionTransformer = null;
 
     public abstract int adjustStringIndex(int stringIndex);
 
@@ -153,8 +154,10 @@ public abstract class AbstractIndexMap {
         if (instructions == null || instructions.length == 0) {
             return instructions;
         }
-        InstructionTransformer insTrans = new InstructionTransformer(this);
-        return insTrans.transform(instructions);
+        if (instructionTransformer == null) {
+            instructionTransformer = new InstructionTransformer(this);
+        }
+        return instructionTransformer.transform(instructions);
     }
 
     private Code.CatchHandler[] adjustCatchHandlers(Code.CatchHandler[] catchHandlers) {
@@ -22,22 +22,255 @@ import com.tencent.tinker.android.dx.instruction.InstructionPromoter;
 import com.tencent.tinker.android.dx.instruction.InstructionReader;
 import com.tencent.tinker.android.dx.instruction.InstructionVisitor;
 import com.tencent.tinker.android.dx.instruction.InstructionWriter;
+import com.tencent.tinker.android.dx.instruction.Opcodes;
 import com.tencent.tinker.android.dx.instruction.ShortArrayCodeInput;
 import com.tencent.tinker.android.dx.instruction.ShortArrayCodeOutput;
 
 import java.io.EOFException;
+import java.util.Arrays;
 
 /**
  * Created by tangyinsheng on 2016/6/29.
  */
 public final class InstructionTransformer {
+    /**
+     * Code units of each single byte opcode, 0 for unused opcodes.
+     */
+    private static final byte[] INSN_SIZES = new byte[256];
+
+    /**
+     * Index type of each single byte opcode.
+     */
+    private static final byte[] INSN_INDEX_TYPES = new byte[256];
+
+    static {
+        for (int opcode = 0; opcode < 256; ++opcode) {
+            INSN_SIZES[opcode] = (byte) getInstructionSize(InstructionCodec.getInstructionFormat(opcode));
+            INSN_INDEX_TYPES[opcode] = (byte) InstructionCodec.getInstructionIndexType(opcode);
+        }
+    }
+
     private final AbstractIndexMap indexMap;
 
+    /**
+     * Scratch buffer of switch targets reused by {@link #transformIndexesInPlace(short[])},
+     * so an instance must not be shared between threads.
+     */
+    private int[] switchTargets = new int[8];
+
     public InstructionTransformer(AbstractIndexMap indexMap) {
         this.indexMap = indexMap;
     }
 
     public short[] transform(short[] encodedInstructions) throws DexException {
+        short[] result = transformIndexesInPlace(encodedInstructions);
+        if (result != null) {
+            return result;
+        }
+        return transformWithPromotion(encodedInstructions);
+    }
+
+    /**
+     * Fast path for the common case that no instruction changes its size, which is true unless
+     * a const-string has to be promoted to const-string/jumbo. Index operands are rewritten
+     * in a copy of the code made when the first one changes, the code is returned as it is
+     * if nothing changes.
+     *
+     * The result is exactly what {@link #transformWithPromotion(short[])} writes for such code.
+     * Instructions which writer would re-encode differently, like the ones with non-zero unused
+     * bits, are left to it as well as malformed code, so it reports the errors.
+     *
+     * @return transformed code, or null if the code must be transformed with promotion.
+     */
+    private short[] transformIndexesInPlace(short[] encodedInstructions) {
+        short[] result = encodedInstructions;
+        final int length = encodedInstructions.length;
+        int switchCount = 0;
+        int pos = 0;
+        while (pos < length) {
+            final int opcodeUnit = encodedInstructions[pos] & 0xffff;
+            final int opcode = Opcodes.extractOpcodeFromUnit(opcodeUnit);
+            long size;
+            switch (opcode) {
+                case Opcodes.PACKED_SWITCH_PAYLOAD: {
+                    if (pos + 1 >= length || !isSwitchTarget(pos, switchCount)) {
+                        return null;
+                    }
+                    size = 4 + ((long) (encodedInstructions[pos + 1] & 0xffff) << 1);
+                    break;
+                }
+                case Opcodes.SPARSE_SWITCH_PAYLOAD: {
+                    if (pos + 1 >= length || !isSwitchTarget(pos, switchCount)) {
+                        return null;
+                    }
+                    size = 2 + ((long) (encodedInstructions[pos + 1] & 0xffff) << 2);
+                    break;
+                }
+                case Opcodes.FILL_ARRAY_DATA_PAYLOAD: {
+                    if (pos + 3 >= length) {
+                        return null;
+                    }
+                    final int elementWidth = encodedInstructions[pos + 1] & 0xffff;
+                    final int elementCount = (encodedInstructions[pos + 2] & 0xffff)
+                            | ((encodedInstructions[pos + 3] & 0xffff) << 16);
+                    if ((elementWidth != 1 && elementWidth != 2 && elementWidth != 4 && elementWidth != 8)
+                            || elementCount < 0) {
+                        return null;
+                    }
+                    size = 4 + (((long) elementCount * elementWidth + 1) >> 1);
+                    if (size > length - pos) {
+                        return null;
+                    }
+                    // Writer zeroes the padding byte after odd count of bytes.
+                    if (elementWidth == 1 && (elementCount & 1) != 0
+                            && (encodedInstructions[pos + (int) size - 1] & 0xff00) != 0) {
+                        return null;
+                    }
+                    break;
+                }
+                default: {
+                    if (opcode > 0xff || INSN_SIZES[opcode] == 0) {
+                        return null;
+                    }
+                    size = INSN_SIZES[opcode];
+                    if (size > length - pos) {
+                        return null;
+                    }
+                    if (!hasZeroUnusedBits(encodedInstructions, pos, opcode, opcodeUnit)) {
+                        return null;
+                    }
+                    if (opcode == Opcodes.PACKED_SWITCH || opcode == Opcodes.SPARSE_SWITCH) {
+                        if (switchCount == switchTargets.length) {
+                            switchTargets = Arrays.copyOf(switchTargets, switchCount << 1);
+                        }
+                        switchTargets[switchCount++] = pos + ((encodedInstructions[pos + 1] & 0xffff)
+                                | ((encodedInstructions[pos + 2] & 0xffff) << 16));
+                    }
+                    final int indexType = INSN_INDEX_TYPES[opcode];
+                    if (indexType == InstructionCodec.INDEX_TYPE_NONE) {
+                        break;
+                    }
+                    if (opcode == Opcodes.CONST_STRING_JUMBO) {
+                        final int index = (encodedInstructions[pos + 1] & 0xffff)
+                                | ((encodedInstructions[pos + 2] & 0xffff) << 16);
+                        final int mappedIndex = transformIndexIfNeeded(index, indexType);
+                        if (mappedIndex != index) {
+                            if (result == encodedInstructions) {
+                                result = encodedInstructions.clone();
+                            }
+                            result[pos + 1] = InstructionCodec.unit0(mappedIndex);
+                            result[pos + 2] = InstructionCodec.unit1(mappedIndex);
+                        }
+                    } else {
+                        final int index = encodedInstructions[pos + 1] & 0xffff;
+                        final int mappedIndex = transformIndexIfNeeded(index, indexType);
+                        if (opcode == Opcodes.CONST_STRING && mappedIndex > 0xFFFF) {
+                            return null;
+                        }
+                        if (mappedIndex != index) {
+                            if (result == encodedInstructions) {
+                                result = encodedInstructions.clone();
+                            }
+                            result[pos + 1] = (short) mappedIndex;
+                        }
+                    }
+                    break;
+                }
+            }
+            if (size > length - pos) {
+                return null;
+            }
+            pos += (int) size;
+        }
+        return result;
+    }
+
+    /**
+     * Targets of switch payloads are relative to the switch instruction, writer only keeps them
+     * for payloads after their switches, others are left to it.
+     */
+    private boolean isSwitchTarget(int address, int switchCount) {
+        for (int i = 0; i < switchCount; ++i) {
+            if (switchTargets[i] == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasZeroUnusedBits(short[] encodedInstructions, int pos, int opcode, int opcodeUnit) {
+        switch (opcode) {
+            case Opcodes.RETURN_VOID:
+            case Opcodes.GOTO_16:
+            case Opcodes.GOTO_32:
+            case Opcodes.MOVE_16:
+            case Opcodes.MOVE_WIDE_16:
+            case Opcodes.MOVE_OBJECT_16: {
+                return InstructionCodec.byte1(opcodeUnit) == 0;
+            }
+            case Opcodes.FILLED_NEW_ARRAY:
+            case Opcodes.INVOKE_VIRTUAL:
+            case Opcodes.INVOKE_SUPER:
+            case Opcodes.INVOKE_DIRECT:
+            case Opcodes.INVOKE_STATIC:
+            case Opcodes.INVOKE_INTERFACE: {
+                final int registerCount = InstructionCodec.nibble3(opcodeUnit);
+                if (registerCount > 5) {
+                    return false;
+                }
+                if (registerCount < 5 && InstructionCodec.nibble2(opcodeUnit) != 0) {
+                    return false;
+                }
+                final int registers = encodedInstructions[pos + 2] & 0xffff;
+                return registerCount >= 4 || (registers >>> (registerCount << 2)) == 0;
+            }
+            default: {
+                return true;
+            }
+        }
+    }
+
+    private static int getInstructionSize(int format) {
+        switch (format) {
+            case InstructionCodec.INSN_FORMAT_10T:
+            case InstructionCodec.INSN_FORMAT_10X:
+            case InstructionCodec.INSN_FORMAT_11N:
+            case InstructionCodec.INSN_FORMAT_11X:
+            case InstructionCodec.INSN_FORMAT_12X: {
+                return 1;
+            }
+            case InstructionCodec.INSN_FORMAT_20T:
+            case InstructionCodec.INSN_FORMAT_21C:
+            case InstructionCodec.INSN_FORMAT_21H:
+            case InstructionCodec.INSN_FORMAT_21S:
+            case InstructionCodec.INSN_FORMAT_21T:
+            case InstructionCodec.INSN_FORMAT_22B:
+            case InstructionCodec.INSN_FORMAT_22C:
+            case InstructionCodec.INSN_FORMAT_22S:
+            case InstructionCodec.INSN_FORMAT_22T:
+            case InstructionCodec.INSN_FORMAT_22X:
+            case InstructionCodec.INSN_FORMAT_23X: {
+                return 2;
+            }
+            case InstructionCodec.INSN_FORMAT_30T:
+            case InstructionCodec.INSN_FORMAT_31C:
+            case InstructionCodec.INSN_FORMAT_31I:
+            case InstructionCodec.INSN_FORMAT_31T:
+            case InstructionCodec.INSN_FORMAT_32X:
+            case InstructionCodec.INSN_FORMAT_35C:
+            case InstructionCodec.INSN_FORMAT_3RC: {
+                return 3;
+            }
+            case InstructionCodec.INSN_FORMAT_51L: {
+                return 5;
+            }
+            default: {
+                return 0;
+            }
+        }
+    }
+
+    private short[] transformWithPromotion(short[] encodedInstructions) throws DexException {
         ShortArrayCodeOutput out = new ShortArrayCodeOutput(encodedInstructions.length);
         InstructionPromoter ipmo = new InstructionPromoter();
         InstructionWriter iw = new InstructionWriter(out, ipmo);
@@ -56,6 +289,26 @@ public final class InstructionTransformer {
         return out.getArray();
     }
 
+    private int transformIndexIfNeeded(int index, int indexType) {
+        switch (indexType) {
+            case InstructionCodec.INDEX_TYPE_STRING_REF: {
+                return indexMap.adjustStringIndex(index);
+            }
+            case InstructionCodec.INDEX_TYPE_TYPE_REF: {
+                return indexMap.adjustTypeIdIndex(index);
+            }
+            case InstructionCodec.INDEX_TYPE_FIELD_REF: {
+                return indexMap.adjustFieldIdIndex(index);
+            }
+            case InstructionCodec.INDEX_TYPE_METHOD_REF: {
+                return indexMap.adjustMethodIdIndex(index);
+            }
+            default: {
+                return index;
+            }
+        }
+    }
+
     private final class InstructionTransformVisitor extends InstructionVisitor {
         InstructionTransformVisitor(InstructionVisitor iv) {
             super(iv);
@@ -103,26 +356,5 @@ public final class InstructionTransformer {
             super.visitRegisterRangeInsn(currentAddress, opcode, mappedIndex, indexType, target, literal, a, registerCount);
         }
 
-        private int transformIndexIfNeeded(int index, int indexType) {
-            switch (indexType) {
-                case InstructionCodec.INDEX_TYPE_STRING_REF: {
-                    return indexMap.adjustStringIndex(index);
-                }
-                case InstructionCodec.INDEX_TYPE_TYPE_REF: {
-                    return indexMap.adjustTypeIdIndex(index);
-                }
-                case InstructionCodec.INDEX_TYPE_FIELD_REF: {
-                    return indexMap.adjustFieldIdIndex(index);
-                }
-                case InstructionCodec.INDEX_TYPE_METHOD_REF: {
-                    return indexMap.adjustMethodIdIndex(index);
-                }
-                default: {
-                    return index;
-                }
-            }
-        }
-
     }
 }
-